@@ -0,0 +1,56 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import shared.Connection;
+import shared.messages.DeserializationException;
+import shared.messages.JsonKVMessage;
+import shared.messages.KVMessage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of a PUT request, for the JSON (1) and binary (2)
+ * protocol versions
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectionBenchmark {
+    @Param({"1", "2"})
+    public byte protocolVersion;
+
+    private JsonKVMessage message;
+    private ByteBuffer buffer;
+    private ByteBuffer header;
+    private ByteBuffer body;
+
+    @Setup
+    public void setup() {
+        message = new JsonKVMessage(KVMessage.StatusType.PUT);
+        message.setKey("benchmark-key");
+        message.setValue("benchmark-value-0123456789");
+        message.setTTL(60L);
+
+        ByteBuffer packet = Connection.encodeMessage(message, protocolVersion, null);
+        byte[] bytes = new byte[packet.limit()];
+        packet.get(bytes);
+
+        header = ByteBuffer.wrap(bytes, 0, Connection.HEADER_SIZE);
+        body = ByteBuffer.wrap(bytes, Connection.HEADER_SIZE, bytes.length - Connection.HEADER_SIZE).slice();
+    }
+
+    @Benchmark
+    public ByteBuffer serialize() {
+        buffer = Connection.encodeMessage(message, protocolVersion, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public JsonKVMessage deserialize() throws DeserializationException {
+        return Connection.decodeMessage(header, body.duplicate());
+    }
+}
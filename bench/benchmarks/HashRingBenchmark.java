@@ -0,0 +1,67 @@
+package benchmarks;
+
+import ecs.HashRing;
+import ecs.HashToken;
+import ecs.ServerNode;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Key hashing and lookups on hash rings of 10 and 100 nodes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashRingBenchmark {
+    private static final int KEY_COUNT = 1024;
+
+    @Param({"10", "100"})
+    public int nodeCount;
+
+    private HashRing hashRing;
+    private ServerNode node;
+    private String[] keys;
+
+    @Setup
+    public void setup() {
+        hashRing = new HashRing();
+        for (int i = 0; i < nodeCount; i++) {
+            hashRing.addNode(new ServerNode("server" + i, "localhost", 50000 + i));
+        }
+        node = hashRing.getNodes().get(0);
+
+        keys = new String[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys[i] = "key" + i;
+        }
+    }
+
+    private String randomKey() {
+        return keys[ThreadLocalRandom.current().nextInt(KEY_COUNT)];
+    }
+
+    @Benchmark
+    public String md5Hash() {
+        return ServerNode.md5Hash(randomKey());
+    }
+
+    @Benchmark
+    public HashToken hashToken() {
+        return HashToken.of(randomKey());
+    }
+
+    @Benchmark
+    public boolean isNodeResponsible() {
+        return node.isNodeResponsible(randomKey());
+    }
+
+    @Benchmark
+    public ServerNode getNodeForKey() {
+        return hashRing.getNodeForKey(randomKey());
+    }
+}
@@ -0,0 +1,97 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import store.KVSimpleStore;
+import store.KeyValue;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Get, put and update throughput of KVSimpleStore with a populated store.
+ * <p>
+ * The store is filled by merging a generated file, since a million single
+ * puts would take longer than the benchmark itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KVSimpleStoreBenchmark {
+    private static final String VALUE = "value-0123456789";
+
+    @Param({"1000", "100000", "1000000"})
+    public int keyCount;
+
+    private KVSimpleStore store;
+    private long nextKey;
+
+    @Setup(Level.Trial)
+    public void populate() throws Exception {
+        store = new KVSimpleStore("benchmark" + keyCount);
+        store.clear();
+
+        Path data = Files.createTempFile("benchmark", ".txt");
+        try (BufferedWriter writer = Files.newBufferedWriter(data, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < keyCount; i++) {
+                writer.write(new KeyValue(key(i), VALUE, null).getJsonKV());
+            }
+        }
+        store.mergeData(data.toString());
+
+        nextKey = keyCount;
+    }
+
+    @TearDown(Level.Iteration)
+    public void truncateWriteLog() {
+        // Nothing replicates the write log here, so keep it from growing
+        store.getWriteLog().truncate(store.getWriteLog().getLastSequence());
+    }
+
+    @TearDown(Level.Trial)
+    public void clear() throws IOException {
+        store.clear();
+    }
+
+    private static String key(long i) {
+        return "key" + i;
+    }
+
+    private String randomKey() {
+        return key(ThreadLocalRandom.current().nextInt(keyCount));
+    }
+
+    @Benchmark
+    public String get() throws Exception {
+        return store.get(randomKey());
+    }
+
+    @Benchmark
+    public boolean put() throws Exception {
+        return store.put(key(nextKey++), VALUE, null);
+    }
+
+    @Benchmark
+    public boolean update() throws Exception {
+        return store.put(randomKey(), VALUE, null);
+    }
+
+    /**
+     * Mixed load of nine gets to each update, from several threads
+     */
+    @Benchmark
+    @Threads(4)
+    public Object concurrentGetUpdate() throws Exception {
+        if (ThreadLocalRandom.current().nextInt(10) == 0) {
+            return store.put(randomKey(), VALUE, null);
+        }
+        return store.get(randomKey());
+    }
+}
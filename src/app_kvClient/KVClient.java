@@ -5,6 +5,7 @@ import cli.UnrecognizedCommand;
 import cli.cli_kvClient.*;
 import client.KVCommInterface;
 import client.KVStoreConnection;
+import client.ReadPolicy;
 import logger.LogSetup;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -53,7 +54,12 @@ public class KVClient implements IKVClient, Runnable {
         }
 
         try {
-            this.storeConnection = new KVStoreConnection(hostname, port);
+            KVStoreConnection connection = new KVStoreConnection(hostname, port);
+
+            String read_policy_env = System.getenv().getOrDefault("KV_READ_POLICY", "PRIMARY");
+            connection.setReadPolicy(ReadPolicy.valueOf(read_policy_env.toUpperCase()));
+
+            this.storeConnection = connection;
             this.storeConnection.connect();
         } catch (IOException e) {
             this.storeConnection = null;
@@ -1,5 +1,7 @@
 package app_kvServer;
 
+import ecs.HashRing;
+import ecs.HashToken;
 import org.apache.log4j.Logger;
 import shared.Connection;
 import shared.messages.DeserializationException;
@@ -8,185 +10,614 @@ import shared.messages.KVMessage.StatusType;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 
 
 /**
- * Represents a connection to a client over a TCP socket. Used
+ * Represents a connection to a client over a non-blocking TCP channel. Used
  * by the server.
+ * <p>
+ * The connection is driven by the event loop it is registered with, which is
+ * the only thread that touches its buffers and selection key. Complete
+ * requests are decoded and processed on the KVClientListener worker pool,
+ * one at a time, so responses go out in the same order as their requests.
+ * Reading is paused while a request is in flight, which pushes back on
+ * clients that send faster than the server can keep up. That also leaves
+ * the read buffer alone while the worker decodes the request straight out
+ * of it. Responses are encoded into the last fully written response buffer
+ * when there is one, so a connection does not allocate for every request.
  */
-public class ClientConnection extends Connection implements Runnable {
+public class ClientConnection {
     public static Logger logger = Logger.getLogger("ClientConnection");
+
+    // Largest message body accepted from a client. Anything bigger closes the connection
+    public static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    // Larger response buffers are not kept for reuse, so one big response
+    // doesn't hold on to memory for the life of the connection
+    private static final int MAX_SPARE_BUFFER_SIZE = 64 * 1024;
+
+    private final SocketChannel channel;
     private final KVServer server;
-    private boolean isOpen;
+    private final KVClientListener listener;
+    private final KVClientListener.EventLoop eventLoop;
+
+    private final String hostname;
+    private final int port;
+
+    private SelectionKey selectionKey;
+
+    // Kept in write mode: position is the number of bytes received but not yet processed
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+
+    // Written response buffer the next response is encoded into, or null
+    private ByteBuffer spareBuffer;
+
+    private boolean requestInFlight = false;
+
+    // Length of the packet at the start of the read buffer being processed
+    private int inFlightLength = 0;
+    private boolean isOpen = true;
 
-    public ClientConnection(Socket socket, KVServer server) {
-        this.socket = socket;
-        this.hostname = socket.getInetAddress().getHostName();
-        this.port = socket.getPort();
+    public ClientConnection(SocketChannel channel, KVServer server,
+                            KVClientListener listener, KVClientListener.EventLoop eventLoop) {
+        this.channel = channel;
         this.server = server;
-        this.isOpen = true;
+        this.listener = listener;
+        this.eventLoop = eventLoop;
+
+        this.hostname = channel.socket().getInetAddress().getHostName();
+        this.port = channel.socket().getPort();
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    /**
+     * Read everything available from the channel, and start processing the
+     * next request if one is complete
+     */
+    void onReadable() {
+        try {
+            while (true) {
+                if (!readBuffer.hasRemaining()) {
+                    growReadBuffer(readBuffer.capacity() * 2);
+                }
+
+                int bytesRead = channel.read(readBuffer);
+                if (bytesRead == -1) {
+                    logger.info("Connection closed by client");
+                    close();
+                    return;
+                }
+                if (bytesRead == 0) break;
+            }
+
+            dispatchNextRequest();
+        } catch (IOException e) {
+            // IOException indicates something wrong with the socket,
+            // so the connection is terminated
+            logger.error(e);
+            close();
+        }
     }
 
-    public void run() {
+    /**
+     * Write as much of the queued responses as the channel accepts
+     */
+    void onWritable() {
         try {
-            output = socket.getOutputStream();
-            input = socket.getInputStream();
+            flushWrites();
+        } catch (IOException e) {
+            logger.error(e);
+            close();
+        }
+    }
+
+    private void flushWrites() throws IOException {
+        while (!writeQueue.isEmpty()) {
+            ByteBuffer buffer = writeQueue.peek();
+            channel.write(buffer);
+
+            if (buffer.hasRemaining()) {
+                // The socket send buffer is full, wait until it drains
+                updateInterestOps();
+                return;
+            }
+
+            writeQueue.poll();
+            if (buffer.capacity() <= MAX_SPARE_BUFFER_SIZE) {
+                spareBuffer = buffer;
+            }
+        }
+
+        updateInterestOps();
+    }
 
-            while (isOpen) {
-                JsonKVMessage res = new JsonKVMessage();
+    private void updateInterestOps() {
+        if (!isOpen) return;
 
+        int ops = 0;
+        if (!requestInFlight) ops |= SelectionKey.OP_READ;
+        if (!writeQueue.isEmpty()) ops |= SelectionKey.OP_WRITE;
+
+        selectionKey.interestOps(ops);
+    }
+
+    private void growReadBuffer(int capacity) {
+        ByteBuffer grown = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        readBuffer.flip();
+        grown.put(readBuffer);
+        readBuffer = grown;
+    }
+
+    /**
+     * If no request is in flight and a complete message has been received,
+     * hand it to the worker pool
+     */
+    private void dispatchNextRequest() {
+        if (requestInFlight || !isOpen) return;
+
+        if (readBuffer.position() < Connection.HEADER_SIZE) {
+            updateInterestOps();
+            return;
+        }
+
+        int messageLength = readBuffer.getInt(1);
+
+        if (messageLength < 0 || messageLength > MAX_MESSAGE_SIZE) {
+            logger.error("Invalid message length " + messageLength + " from "
+                    + hostname + ":" + port + ", closing connection");
+            close();
+            return;
+        }
+
+        int packetLength = Connection.HEADER_SIZE + messageLength;
+
+        if (readBuffer.position() < packetLength) {
+            if (readBuffer.capacity() < packetLength) {
+                growReadBuffer(packetLength);
+            }
+            updateInterestOps();
+            return;
+        }
+
+        // The worker reads the packet in place. It is removed from the read
+        // buffer once the response is back, since reading waits until then
+        ByteBuffer packet = readBuffer.duplicate();
+        packet.flip();
+        packet.limit(packetLength);
+
+        ByteBuffer responseBuffer = spareBuffer;
+        spareBuffer = null;
+
+        requestInFlight = true;
+        inFlightLength = packetLength;
+        updateInterestOps();
+
+        try {
+            listener.submit(() -> {
+                ByteBuffer response;
                 try {
-                    JsonKVMessage req = receiveMessage();
+                    response = processMessage(packet, responseBuffer);
+                } catch (RuntimeException e) {
+                    // Without a response the connection would wait on this request forever
+                    logger.error("Unable to respond to " + hostname + ":" + port + ", closing connection", e);
+                    eventLoop.execute(this::close);
+                    return;
+                }
+                eventLoop.execute(() -> completeRequest(response));
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warn("Worker pool is full, closing connection to " + hostname + ":" + port);
 
-                    if (server.getStatus() == KVServer.ServerStatus.STOPPED) {
-                        res.setStatus(StatusType.SERVER_STOPPED);
-                        res.setMessage("Server is stopped");
-                        sendMessage(res);
-                        continue;
-                    }
+            JsonKVMessage res = new JsonKVMessage(StatusType.SERVER_ERROR);
+            res.setMessage("Server is busy");
+            writeQueue.add(Connection.encodeMessage(res, Connection.PROTOCOL_VERSION, null));
+            try {
+                flushWrites();
+            } catch (IOException ignored) {
+            }
+            close();
+        }
+    }
 
-                    Long currentTime = System.currentTimeMillis();
-                    Long expiryTime = null;
-                    if (req.getTTL() != null) {
-                        expiryTime = currentTime + (req.getTTL()*1000);
-                    }
+    /**
+     * Queue the response to the request in flight, and move on to the next
+     * request. Runs on the event loop.
+     */
+    private void completeRequest(ByteBuffer response) {
+        if (!isOpen) return;
 
-                    res.setKey(req.getKey());
-                    res.setValue(req.getValue());
-                    res.setTTL(expiryTime);
-                    res.setMetadata(server.getMetadata());
+        requestInFlight = false;
+        readBuffer.flip();
+        readBuffer.position(inFlightLength);
+        readBuffer.compact();
+        inFlightLength = 0;
 
+        writeQueue.add(response);
 
-                    switch (req.getStatus()) {
-                        case GET:
-                            if (!server.isNodeResponsible(req.getKey()) && !server.doesNodeReplicateKey(req.getKey())) {
-                                res.setStatus(StatusType.SERVER_NOT_RESPONSIBLE);
-                                res.setMessage("Server is not responsible for the given key");
+        try {
+            flushWrites();
+        } catch (IOException e) {
+            logger.error(e);
+            close();
+            return;
+        }
 
-                                sendMessage(res);
-                                continue;
-                            }
+        dispatchNextRequest();
+    }
 
-                            try {
-                                String value = server.getKV(req.getKey());
-                                res.setStatus(StatusType.GET_SUCCESS);
-                                res.setValue(value);
-                                logger.info("GET " + req.getKey() + " successful: " + res.getValue());
-                            } catch (Exception e) {
-                                if (e instanceof FileNotFoundException){
-                                    throw (FileNotFoundException)e;
-                                }
-                                res.setStatus(StatusType.GET_ERROR);
-                                res.setMessage(e.getMessage());
-                                logger.warn("GET " + req.getKey() + " error: " + e.getMessage());
-                            }
-                            break;
-                        case PUT:
-                            if (!server.isNodeResponsible(req.getKey())) {
-                                res.setStatus(StatusType.SERVER_NOT_RESPONSIBLE);
-                                res.setMessage("Server is not responsible for the given key");
-
-                                sendMessage(res);
-                                continue;
-                            }
+    /**
+     * Decode and process a single request. Runs on a worker thread.
+     * <p>
+     * The response uses the same protocol version as the request, so
+     * clients choose between the JSON and binary encodings.
+     *
+     * @param packet         Complete message, header included, from position 0
+     * @param responseBuffer Buffer to encode the response into, or null
+     * @return Encoded response
+     */
+    private ByteBuffer processMessage(ByteBuffer packet, ByteBuffer responseBuffer) {
+        byte version = packet.get(0) == Connection.BINARY_PROTOCOL_VERSION
+                ? Connection.BINARY_PROTOCOL_VERSION
+                : Connection.PROTOCOL_VERSION;
 
-                            if (server.getStatus() == KVServer.ServerStatus.WRITE_LOCKED) {
-                                res.setStatus(StatusType.SERVER_WRITE_LOCK);
-                                res.setMessage("Server locked for write");
-                                logger.warn("Could not process PUT request, server write locked");
-                                break;
-                            }
+        ByteBuffer header = packet.duplicate();
+        ByteBuffer body = packet.duplicate();
+        body.position(Connection.HEADER_SIZE);
 
-                            if (req.getValue() == null || req.getValue().equals("null")) {
-                                // The value string "null" is used to trigger deletion,
-                                // because the spec is insane
-
-                                try {
-                                    server.deleteKV(req.getKey());
-                                    res.setStatus(StatusType.DELETE_SUCCESS);
-                                    logger.info("DELETE " + req.getKey() + " successful");
-                                } catch (Exception e) {
-                                    if (e instanceof FileNotFoundException) {
-                                        throw (FileNotFoundException) e;
-                                    }
-                                    res.setStatus(StatusType.DELETE_ERROR);
-                                    res.setMessage(e.getMessage());
-                                    logger.warn("DELETE " + req.getKey() + " error: " + e.getMessage());
-                                }
-                            } else {
-                                try {
-                                    boolean exists = server.putKV(req.getKey(), req.getValue(), expiryTime);
-                                    if (exists) {
-                                        res.setStatus(StatusType.PUT_UPDATE);
-                                        logger.info("PUT update " + req.getKey() + "="
-                                                + req.getValue() + " successful");
-                                    } else {
-                                        res.setStatus(StatusType.PUT_SUCCESS);
-                                        logger.info("PUT insert " + req.getKey() + "="
-                                                + req.getValue() + " successful");
-                                    }
-                                } catch (Exception e) {
-                                    if (e instanceof FileNotFoundException){
-                                        throw (FileNotFoundException)e;
-                                    }
-                                    res.setStatus(StatusType.PUT_ERROR);
-                                    res.setMessage(e.getMessage());
-                                    logger.warn("PUT " + req.getKey() + "="
-                                            + req.getValue() + " error: " + e.getMessage(), e);
-                                }
-                            }
-                            break;
-                        default:
-                            // TODO: Test this
-                            res.setStatus(StatusType.BAD_REQUEST);
-                            res.setMessage("Invalid status");
-                            logger.warn("Invalid request type");
-                            break;
-                    }
+        // Responses carry the id of their request, so clients can pipeline requests
+        int requestId = header.order(ByteOrder.LITTLE_ENDIAN).getInt(Connection.REQUEST_ID_OFFSET);
+
+        JsonKVMessage res;
 
-                    sendMessage(res);
+        try {
+            JsonKVMessage req = Connection.decodeMessage(header, body);
 
-                } catch (DeserializationException e) {
-                    res.setStatus(StatusType.BAD_REQUEST);
+            if (logger.isDebugEnabled()) {
+                logger.debug("RECEIVE \t<" + hostname + ":" + port + ">: "
+                        + Connection.describeMessage(req, version) + "'");
+            }
+
+            res = processRequest(req);
+        } catch (DeserializationException e) {
+            res = new JsonKVMessage(StatusType.BAD_REQUEST);
+            res.setMessage(e.getMessage());
+            logger.error(e.getMessage());
+        } catch (FileNotFoundException e) {
+            res = new JsonKVMessage(StatusType.SERVER_ERROR);
+            res.setMessage("Storage file not found");
+            logger.fatal("Error: Storage file not found.");
+            server.kill();
+        } catch (RuntimeException e) {
+            res = new JsonKVMessage(StatusType.SERVER_ERROR);
+            res.setMessage("Unable to process request");
+            logger.error("Unable to process request from " + hostname + ":" + port, e);
+        }
+
+        res.setRequestId(requestId);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("SEND \t<" + hostname + ":" + port + ">: '"
+                    + Connection.describeMessage(res, version) + "'");
+        }
+
+        return Connection.encodeMessage(res, version, responseBuffer);
+    }
+
+    private JsonKVMessage processRequest(JsonKVMessage req) throws FileNotFoundException {
+        JsonKVMessage res = new JsonKVMessage();
+
+        if (server.getStatus() == KVServer.ServerStatus.STOPPED) {
+            res.setStatus(StatusType.SERVER_STOPPED);
+            res.setMessage("Server is stopped");
+            return res;
+        }
+
+        Long currentTime = System.currentTimeMillis();
+        Long expiryTime = null;
+        if (req.getTTL() != null) {
+            expiryTime = currentTime + (req.getTTL()*1000);
+        }
+
+        res.setKey(req.getKey());
+        res.setValue(req.getValue());
+        res.setTTL(expiryTime);
+
+        // The hash ring is only sent to clients with a stale copy. Clients
+        // that don't send an epoch always get it
+        HashRing metadata = server.getMetadata();
+        if (req.getEpoch() == null || metadata == null || req.getEpoch() != metadata.getEpoch()) {
+            res.setMetadata(metadata);
+        }
+
+
+        if ((req.getStatus() == StatusType.GET || req.getStatus() == StatusType.PUT) && req.getKey() == null) {
+            res.setStatus(StatusType.BAD_REQUEST);
+            res.setMessage("Request has no key");
+            return res;
+        }
+
+        HashToken keyHash;
+        switch (req.getStatus()) {
+            case GET:
+                // The key is hashed once, for routing and for the store
+                keyHash = HashToken.of(req.getKey());
+                if (!server.isNodeResponsible(keyHash) && !server.doesNodeReplicateKey(keyHash)) {
+                    return processMisroutedRequest(req, res, keyHash, metadata);
+                }
+
+                try {
+                    String value = server.getKV(req.getKey(), keyHash);
+                    res.setStatus(StatusType.GET_SUCCESS);
+                    res.setValue(value);
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("GET " + req.getKey() + " successful");
+                    }
+                } catch (Exception e) {
+                    if (e instanceof FileNotFoundException){
+                        throw (FileNotFoundException)e;
+                    }
+                    res.setStatus(StatusType.GET_ERROR);
                     res.setMessage(e.getMessage());
-                    sendMessage(res);
-                    logger.error(e.getMessage());
-                } catch (FileNotFoundException e){
-                    res.setStatus(StatusType.SERVER_ERROR);
-                    res.setMessage("Storage file not found");
-                    sendMessage(res);
-                    logger.fatal("Error: Storage file not found.");
-                    server.kill();
-                } catch (IOException e) {
-                    // "Connection terminated" is thrown by us when the connection is closed
-                    // by the client
-                    if (e.getMessage().equals("Connection terminated")) {
-                        logger.info("Connection closed by client");
-                    } else {
-                        // IOException indicates something wrong with the socket,
-                        // so the connection is terminated
-                        logger.error(e);
+                    logger.warn("GET " + req.getKey() + " error: " + e.getMessage());
+                }
+                break;
+            case PUT:
+                keyHash = HashToken.of(req.getKey());
+                if (!server.isNodeResponsible(keyHash)) {
+                    return processMisroutedRequest(req, res, keyHash, metadata);
+                }
+
+                if (server.isWriteLocked(keyHash)) {
+                    res.setStatus(StatusType.SERVER_WRITE_LOCK);
+                    res.setMessage("Server locked for write");
+                    logger.warn("Could not process PUT request, server write locked");
+                    break;
+                }
+
+                if (req.getValue() == null || req.getValue().equals("null")) {
+                    // The value string "null" is used to trigger deletion,
+                    // because the spec is insane
+
+                    try {
+                        server.deleteKV(req.getKey(), keyHash);
+                        res.setStatus(StatusType.DELETE_SUCCESS);
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("DELETE " + req.getKey() + " successful");
+                        }
+                    } catch (Exception e) {
+                        if (e instanceof FileNotFoundException) {
+                            throw (FileNotFoundException) e;
+                        }
+                        res.setStatus(StatusType.DELETE_ERROR);
+                        res.setMessage(e.getMessage());
+                        logger.warn("DELETE " + req.getKey() + " error: " + e.getMessage());
+                    }
+                } else {
+                    try {
+                        boolean exists = server.putKV(req.getKey(), keyHash, req.getValue(), expiryTime);
+                        if (exists) {
+                            res.setStatus(StatusType.PUT_UPDATE);
+                            if (logger.isDebugEnabled()) {
+                                logger.debug("PUT update " + req.getKey() + " successful");
+                            }
+                        } else {
+                            res.setStatus(StatusType.PUT_SUCCESS);
+                            if (logger.isDebugEnabled()) {
+                                logger.debug("PUT insert " + req.getKey() + " successful");
+                            }
+                        }
+                    } catch (Exception e) {
+                        if (e instanceof FileNotFoundException){
+                            throw (FileNotFoundException)e;
+                        }
+                        res.setStatus(StatusType.PUT_ERROR);
+                        res.setMessage(e.getMessage());
+                        logger.warn("PUT " + req.getKey() + "="
+                                + req.getValue() + " error: " + e.getMessage(), e);
                     }
-                    isOpen = false;
                 }
+                break;
+            case MGET:
+                processBatchGet(req, res, metadata);
+                break;
+            case MPUT:
+            case MDELETE:
+                processBatchWrite(req, res, metadata, currentTime);
+                break;
+            default:
+                // TODO: Test this
+                res.setStatus(StatusType.BAD_REQUEST);
+                res.setMessage("Invalid status");
+                logger.warn("Invalid request type");
+                break;
+        }
 
+        return res;
+    }
+
+    /**
+     * Answer a GET or PUT for a key this server is not responsible for.
+     * <p>
+     * Servers forwarding requests send it on to the responsible server and
+     * return its response, so the client does not need another round trip.
+     * Instead of the whole hash ring, the response carries this server's
+     * epoch as a hint that the client's ring is stale. The ring is only
+     * attached for clients that asked for it by leaving out their epoch.
+     * <p>
+     * Otherwise, or if forwarding fails, the client is sent the hash ring
+     * to retry with.
+     */
+    private JsonKVMessage processMisroutedRequest(JsonKVMessage req, JsonKVMessage res, HashToken keyHash,
+                                                  HashRing metadata) {
+        if (server.isForwardingRequests() && !req.isForwarded()) {
+            JsonKVMessage forwarded = server.forwardRequest(req, keyHash);
+
+            // The responsible server may not have the same ring yet
+            if (forwarded != null && forwarded.getStatus() != StatusType.SERVER_NOT_RESPONSIBLE) {
+                forwarded.setMetadata(req.getEpoch() == null ? metadata : null);
+                forwarded.setEpoch(metadata == null ? null : metadata.getEpoch());
+                return forwarded;
             }
+        }
 
-        } catch (IOException e) {
-            logger.error("Error! Connection could not be established");
-            isOpen = false;
-        } finally {
-            disconnect();
+        res.setStatus(StatusType.SERVER_NOT_RESPONSIBLE);
+        res.setMessage("Server is not responsible for the given key");
+        res.setMetadata(metadata);
+        return res;
+    }
+
+    /**
+     * Get every key in the entries of the request. Each entry of the
+     * response has the status and value of its key.
+     */
+    private void processBatchGet(JsonKVMessage req, JsonKVMessage res, HashRing metadata) throws FileNotFoundException {
+        if (req.getEntries() == null) {
+            res.setStatus(StatusType.BAD_REQUEST);
+            res.setMessage("Batch request has no entries");
+            return;
+        }
+
+        List<JsonKVMessage> results = new ArrayList<>(req.getEntries().size());
 
-            logger.info("Client connection to "
-                    + hostname + ":" + port + " has been closed");
+        for (JsonKVMessage entry : req.getEntries()) {
+            JsonKVMessage result = new JsonKVMessage();
+            result.setKey(entry.getKey());
 
+            if (entry.getKey() == null) {
+                result.setStatus(StatusType.BAD_REQUEST);
+                result.setMessage("Entry has no key");
+                results.add(result);
+                continue;
+            }
+
+            HashToken keyHash = HashToken.of(entry.getKey());
+            if (!server.isNodeResponsible(keyHash) && !server.doesNodeReplicateKey(keyHash)) {
+                result.setStatus(StatusType.SERVER_NOT_RESPONSIBLE);
+                res.setMetadata(metadata);
+            } else {
+                try {
+                    result.setValue(server.getKV(entry.getKey(), keyHash));
+                    result.setStatus(StatusType.GET_SUCCESS);
+                } catch (FileNotFoundException e) {
+                    throw e;
+                } catch (Exception e) {
+                    result.setStatus(StatusType.GET_ERROR);
+                    result.setMessage(e.getMessage());
+                }
+            }
+
+            results.add(result);
+        }
+
+        res.setStatus(StatusType.BATCH_RESULT);
+        res.setEntries(results);
+        if (logger.isDebugEnabled()) {
+            logger.debug("MGET of " + results.size() + " keys successful");
         }
     }
 
-    public void close() {
-        this.isOpen = false;
-        disconnect();
+    /**
+     * Apply the puts (MPUT) or deletes (MDELETE) in the entries of the
+     * request as one batch. As with single puts, a value of null or "null"
+     * deletes the key.
+     */
+    private void processBatchWrite(JsonKVMessage req, JsonKVMessage res, HashRing metadata,
+                                   long currentTime) throws FileNotFoundException {
+        if (req.getEntries() == null) {
+            res.setStatus(StatusType.BAD_REQUEST);
+            res.setMessage("Batch request has no entries");
+            return;
+        }
+
+        List<JsonKVMessage> results = new ArrayList<>(req.getEntries().size());
+        List<JsonKVMessage> writes = new ArrayList<>(req.getEntries().size());
+
+        for (JsonKVMessage entry : req.getEntries()) {
+            JsonKVMessage result = new JsonKVMessage();
+            result.setKey(entry.getKey());
+
+            if (entry.getKey() == null) {
+                result.setStatus(StatusType.BAD_REQUEST);
+                result.setMessage("Entry has no key");
+                results.add(result);
+                continue;
+            }
+
+            HashToken keyHash = HashToken.of(entry.getKey());
+            if (!server.isNodeResponsible(keyHash)) {
+                result.setStatus(StatusType.SERVER_NOT_RESPONSIBLE);
+                res.setMetadata(metadata);
+            } else if (server.isWriteLocked(keyHash)) {
+                // The batch is applied all at once, so it waits for the lock as a whole
+                res.setStatus(StatusType.SERVER_WRITE_LOCK);
+                res.setMessage("Server locked for write");
+                logger.warn("Could not process " + req.getStatus() + " request, server write locked");
+                return;
+            } else {
+                boolean delete = req.getStatus() == StatusType.MDELETE
+                        || entry.getValue() == null || entry.getValue().equals("null");
+
+                result.setValue(delete ? null : entry.getValue());
+                if (entry.getTTL() != null) {
+                    result.setTTL(currentTime + (entry.getTTL() * 1000));
+                }
+                writes.add(result);
+            }
+
+            results.add(result);
+        }
+
+        server.putKVBatch(writes);
+
+        res.setStatus(StatusType.BATCH_RESULT);
+        res.setEntries(results);
+        if (logger.isDebugEnabled()) {
+            logger.debug(req.getStatus() + " of " + writes.size() + " keys applied");
+        }
+    }
+
+    /**
+     * Close the connection. Must be called from the event loop.
+     */
+    void close() {
+        if (!isOpen) return;
+        isOpen = false;
+
+        if (selectionKey != null) {
+            selectionKey.cancel();
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Error! Unable to close connection: ", e);
+        }
+
+        listener.connectionClosed(this);
+
+        logger.info("Client connection to "
+                + hostname + ":" + port + " has been closed");
     }
 }
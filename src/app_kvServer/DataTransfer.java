@@ -0,0 +1,92 @@
+package app_kvServer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Moves a file of key-values from one server to another when a hash range
+ * changes hands.
+ * <p>
+ * A transfer is an 8-byte length followed by that many bytes of the file.
+ * The bytes go between the file and the socket with FileChannel.transferTo()
+ * and transferFrom(), so they are never decoded on either side.
+ */
+public class DataTransfer {
+
+    private DataTransfer() {
+    }
+
+    /**
+     * Send a file to a server's data receive port
+     *
+     * @return Number of bytes sent
+     */
+    public static long send(String host, int port, Path path) throws IOException {
+        try (SocketChannel socket = SocketChannel.open(new InetSocketAddress(host, port));
+             FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = file.size();
+
+            ByteBuffer header = ByteBuffer.allocate(Long.BYTES).putLong(size);
+            header.flip();
+            while (header.hasRemaining()) {
+                socket.write(header);
+            }
+
+            long position = 0;
+            while (position < size) {
+                position += file.transferTo(position, size - position, socket);
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Receive a file sent with send() into the given path
+     *
+     * @param socket Blocking channel of the accepted connection
+     * @return Number of bytes received
+     */
+    public static long receive(SocketChannel socket, Path path) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+        while (header.hasRemaining()) {
+            if (socket.read(header) < 0) {
+                throw new EOFException("Data transfer closed before its header");
+            }
+        }
+        header.flip();
+
+        long size = header.getLong();
+        if (size < 0) {
+            throw new IOException("Invalid data transfer length " + size);
+        }
+
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            while (position < size) {
+                long received = file.transferFrom(socket, position, size - position);
+
+                if (received == 0) {
+                    // transferFrom() returns 0 at the end of the stream as well,
+                    // so read a byte to tell the two apart
+                    ByteBuffer next = ByteBuffer.allocate(1);
+                    if (socket.read(next) < 0) {
+                        throw new EOFException("Data transfer closed after " + position + " of " + size + " bytes");
+                    }
+                    next.flip();
+                    received = file.write(next, position);
+                }
+
+                position += received;
+            }
+        }
+
+        return size;
+    }
+}
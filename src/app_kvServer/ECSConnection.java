@@ -2,6 +2,7 @@ package app_kvServer;
 
 import ecs.ServerNode;
 import ecs.HashRing;
+import ecs.HashToken;
 import ecs.ServerSettings;
 import ecs.ZooKeeperConnection;
 import org.apache.log4j.Logger;
@@ -10,7 +11,6 @@ import org.apache.zookeeper.data.Stat;
 import shared.messages.AdminMessage;
 
 import java.io.IOException;
-import java.util.Arrays;
 
 public class ECSConnection {
     private static final Logger logger = Logger.getLogger("ECSConnection");
@@ -109,6 +109,10 @@ public class ECSConnection {
         return this.nodeMetadata.isNodeResponsible(key);
     }
 
+    public boolean isNodeResponsible(HashToken keyHash) {
+        return this.nodeMetadata.isNodeResponsible(keyHash);
+    }
+
     /**
      * Get the hash ring
      */
@@ -178,7 +182,7 @@ public class ECSConnection {
                         response.setAction(AdminMessage.Action.ACK);
                         break;
                     case WRITE_LOCK:
-                        kvServer.lockWrite();
+                        kvServer.lockWrite(message.getMetadata());
                         response.setAction(AdminMessage.Action.ACK);
                         break;
                     case WRITE_UNLOCK:
@@ -195,7 +199,7 @@ public class ECSConnection {
                         response.setMessage(String.valueOf(port));
                         break;
                     case CLEANUP_DATA:
-                        kvServer.cleanUpData();
+                        kvServer.cleanUpData(message.getMetadata());
                         response.setAction(AdminMessage.Action.ACK);
                         break;
                     case SET_METADATA:
@@ -207,7 +211,7 @@ public class ECSConnection {
                         logger.info("Incoming Metadata: " + message.serialize());
                         kvServer.processServerChange(message.getServerChange(), hashRing);
                         logger.info("Metadata updated");
-                        logger.info("Server now responsible for " + Arrays.toString(nodeMetadata.getNodeHashRange()));
+                        logger.info("Server now responsible for " + nodeMetadata.getNodeHashRanges());
                         break;
                     default:
                         response.setAction(AdminMessage.Action.ERROR);
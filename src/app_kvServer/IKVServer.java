@@ -12,6 +12,11 @@ public interface IKVServer {
         FIFO
     };
 
+    public enum StorageEngine {
+        SIMPLE,         // Single file, rewritten in place (KVSimpleStore)
+        LOG,            // Append-only segments with compaction (KVLogStore)
+    }
+
     public enum ServerStatus {
         OFFLINE,        // Not started yet
         STOPPED,        // Not accepting connections
@@ -0,0 +1,268 @@
+package app_kvServer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Bounded cache of key-values in front of the KVStore, with LRU, LFU or FIFO
+ * eviction.
+ * <p>
+ * All operations are O(1) and synchronized on the cache. Entries keep the
+ * expiry time of their key-value, and expired entries are never returned.
+ * <p>
+ * Values read from the store are added with fill(), which only succeeds if
+ * no write went through the cache since stamp() was taken before the read.
+ * This stops a slow read from caching a value that a concurrent write has
+ * already replaced.
+ */
+public class KVCache {
+    private final IKVServer.CacheStrategy strategy;
+    private final int capacity;
+
+    // Iteration order is the eviction order for LRU and FIFO
+    private final LinkedHashMap<String, CacheEntry> entries;
+
+    // Keys of each access frequency in use, in the order they reached it, as
+    // a list from the lowest frequency up. Only used by LFU
+    private FrequencyBucket lowestFrequency;
+
+    private long writeStamp = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public KVCache(IKVServer.CacheStrategy strategy, int capacity) {
+        this.strategy = strategy;
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, strategy == IKVServer.CacheStrategy.LRU);
+    }
+
+    public IKVServer.CacheStrategy getStrategy() {
+        return strategy;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The cached value, or null on a miss
+     */
+    public synchronized String get(String key) {
+        CacheEntry entry = entries.get(key);
+
+        if (entry == null || entry.isExpired(System.currentTimeMillis())) {
+            if (entry != null) remove(key);
+            misses++;
+            return null;
+        }
+
+        if (strategy == IKVServer.CacheStrategy.LFU) {
+            incrementFrequency(key, entry);
+        }
+
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * Check if the key is cached, without counting a hit or miss or changing
+     * the eviction order
+     */
+    public synchronized boolean contains(String key) {
+        CacheEntry entry = entries.get(key);
+        return entry != null && !entry.isExpired(System.currentTimeMillis());
+    }
+
+    /**
+     * @return Stamp to pass to fill() after reading from the store
+     */
+    public synchronized long stamp() {
+        return writeStamp;
+    }
+
+    /**
+     * Cache a value read from the store, unless the cache was written since
+     * the stamp was taken
+     */
+    public synchronized void fill(String key, String value, Long expiryTime, long stamp) {
+        if (stamp != writeStamp) return;
+        insert(key, value, expiryTime);
+    }
+
+    /**
+     * Cache a value, as a write for fill(). The server invalidates keys
+     * instead, since it writes to the store outside the cache's lock and
+     * concurrent puts could be cached out of order.
+     */
+    public synchronized void put(String key, String value, Long expiryTime) {
+        writeStamp++;
+        insert(key, value, expiryTime);
+    }
+
+    public synchronized void invalidate(String key) {
+        writeStamp++;
+        remove(key);
+    }
+
+    /**
+     * Remove every entry whose expiry time has passed
+     */
+    public synchronized void removeExpired(long currentTime) {
+        writeStamp++;
+
+        Iterator<Map.Entry<String, CacheEntry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, CacheEntry> entry = iterator.next();
+            if (entry.getValue().isExpired(currentTime)) {
+                removeFrequency(entry.getKey(), entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        writeStamp++;
+        entries.clear();
+        lowestFrequency = null;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return strategy + " cache: " + entries.size() + "/" + capacity + " entries, "
+                + hits + " hits, " + misses + " misses, " + evictions + " evictions";
+    }
+
+    private void insert(String key, String value, Long expiryTime) {
+        CacheEntry existing = entries.get(key);
+
+        if (existing != null) {
+            existing.value = value;
+            existing.expiryTime = expiryTime;
+            if (strategy == IKVServer.CacheStrategy.LFU) {
+                incrementFrequency(key, existing);
+            }
+            return;
+        }
+
+        if (entries.size() >= capacity) {
+            evict();
+        }
+
+        CacheEntry entry = new CacheEntry(value, expiryTime);
+        entries.put(key, entry);
+
+        if (strategy == IKVServer.CacheStrategy.LFU) {
+            if (lowestFrequency == null || lowestFrequency.frequency != 1) {
+                FrequencyBucket bucket = new FrequencyBucket(1);
+                bucket.next = lowestFrequency;
+                if (lowestFrequency != null) lowestFrequency.prev = bucket;
+                lowestFrequency = bucket;
+            }
+            lowestFrequency.keys.add(key);
+            entry.bucket = lowestFrequency;
+        }
+    }
+
+    private void remove(String key) {
+        CacheEntry entry = entries.remove(key);
+        if (entry != null) {
+            removeFrequency(key, entry);
+        }
+    }
+
+    private void evict() {
+        String victim;
+
+        if (strategy == IKVServer.CacheStrategy.LFU) {
+            victim = lowestFrequency.keys.iterator().next();
+        } else {
+            // Least recently used for LRU (access order), oldest insert for FIFO
+            victim = entries.keySet().iterator().next();
+        }
+
+        remove(victim);
+        evictions++;
+    }
+
+    private void incrementFrequency(String key, CacheEntry entry) {
+        FrequencyBucket bucket = entry.bucket;
+        FrequencyBucket next = bucket.next;
+        if (next == null || next.frequency != bucket.frequency + 1) {
+            next = new FrequencyBucket(bucket.frequency + 1);
+            next.prev = bucket;
+            next.next = bucket.next;
+            if (bucket.next != null) bucket.next.prev = next;
+            bucket.next = next;
+        }
+
+        next.keys.add(key);
+        entry.bucket = next;
+        removeFromBucket(key, bucket);
+    }
+
+    private void removeFrequency(String key, CacheEntry entry) {
+        if (strategy != IKVServer.CacheStrategy.LFU) return;
+        removeFromBucket(key, entry.bucket);
+    }
+
+    /**
+     * Remove a key from its frequency, dropping the frequency once no key has it
+     */
+    private void removeFromBucket(String key, FrequencyBucket bucket) {
+        bucket.keys.remove(key);
+        if (!bucket.keys.isEmpty()) return;
+
+        if (bucket.prev != null) {
+            bucket.prev.next = bucket.next;
+        } else {
+            lowestFrequency = bucket.next;
+        }
+        if (bucket.next != null) bucket.next.prev = bucket.prev;
+    }
+
+    private static class CacheEntry {
+        private String value;
+        private Long expiryTime;
+        private FrequencyBucket bucket;
+
+        public CacheEntry(String value, Long expiryTime) {
+            this.value = value;
+            this.expiryTime = expiryTime;
+        }
+
+        public boolean isExpired(long currentTime) {
+            return expiryTime != null && expiryTime < currentTime;
+        }
+    }
+
+    private static class FrequencyBucket {
+        private final int frequency;
+        private final LinkedHashSet<String> keys = new LinkedHashSet<>();
+        private FrequencyBucket prev;
+        private FrequencyBucket next;
+
+        public FrequencyBucket(int frequency) {
+            this.frequency = frequency;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+import shared.Connection;
+import shared.messages.JsonKVMessage;
+import shared.messages.KVMessage.StatusType;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Accepts client connections and multiplexes them over a few event loop
+ * threads, each with its own selector. Requests are processed on a bounded
+ * worker pool.
+ * <p>
+ * Connections beyond the server's maximum are sent a SERVER_ERROR and closed
+ * straight away.
+ */
+public class KVClientListener implements Runnable {
+    private static final Logger logger = Logger.getLogger("KVClientListener");
+
+    private final KVServer server;
+    private final ServerSocketChannel serverChannel;
+
+    private final EventLoop[] eventLoops;
+    private int nextEventLoop = 0;
+
+    private final ThreadPoolExecutor workers;
+
+    private final Set<ClientConnection> connections = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    private volatile boolean running = true;
+
+    /**
+     * @param server          Server to process requests with
+     * @param port            Port to listen for clients on
+     * @param numEventLoops   Number of event loop threads
+     * @param numWorkers      Number of threads processing requests
+     * @param workerQueueSize Number of requests that can wait for a worker
+     * @throws IOException If the port can't be bound
+     */
+    public KVClientListener(KVServer server, int port, int numEventLoops,
+                            int numWorkers, int workerQueueSize) throws IOException {
+        this.server = server;
+
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port));
+
+        this.eventLoops = new EventLoop[numEventLoops];
+        for (int i = 0; i < numEventLoops; i++) {
+            eventLoops[i] = new EventLoop(Selector.open());
+            Thread thread = new Thread(eventLoops[i], "ClientEventLoop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        AtomicInteger workerNum = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(
+                numWorkers, numWorkers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(workerQueueSize),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "ClientWorker-" + workerNum.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public String getHostname() {
+        return serverChannel.socket().getInetAddress().getHostName();
+    }
+
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    void submit(Runnable task) {
+        workers.execute(task);
+    }
+
+    void connectionClosed(ClientConnection connection) {
+        if (connections.remove(connection)) {
+            connectionCount.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("Error! Unable to establish connection. \n", e);
+                }
+                continue;
+            }
+
+            if (connectionCount.incrementAndGet() > server.getMaxConnections()) {
+                connectionCount.decrementAndGet();
+                rejectConnection(channel);
+                continue;
+            }
+
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+            } catch (IOException e) {
+                logger.error("Unable to configure client connection", e);
+                connectionCount.decrementAndGet();
+                closeQuietly(channel);
+                continue;
+            }
+
+            EventLoop eventLoop = eventLoops[nextEventLoop];
+            nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+
+            ClientConnection connection = new ClientConnection(channel, server, this, eventLoop);
+            connections.add(connection);
+            eventLoop.register(connection, channel);
+
+            logger.info("Connected to "
+                    + connection.getHostname()
+                    + ":" + connection.getPort());
+        }
+    }
+
+    private void rejectConnection(SocketChannel channel) {
+        logger.warn("Rejecting connection, already at the maximum of "
+                + server.getMaxConnections() + " connections");
+
+        JsonKVMessage res = new JsonKVMessage(StatusType.SERVER_ERROR);
+        res.setMessage("Too many connections");
+
+        try {
+            // The channel is still blocking, and the response fits in the socket buffer
+            channel.write(Connection.encodeMessage(res, Connection.PROTOCOL_VERSION, null));
+        } catch (IOException e) {
+            logger.debug("Unable to notify rejected client", e);
+        }
+
+        closeQuietly(channel);
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Error! Unable to close connection: ", e);
+        }
+    }
+
+    public void close() {
+        running = false;
+
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            logger.error("Error! Unable to close server socket", e);
+        }
+
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.close();
+        }
+
+        workers.shutdownNow();
+    }
+
+    /**
+     * Selector loop for a subset of the client connections. Other threads
+     * interact with it only through execute().
+     */
+    public class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Run a task on this event loop's thread
+         */
+        public void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+
+            // Once the loop has stopped, nothing else will run the task. A
+            // connection registered while the listener closes is closed here
+            if (!selector.isOpen()) {
+                runTasks();
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        private void register(ClientConnection connection, SocketChannel channel) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.setSelectionKey(key);
+                } catch (ClosedChannelException | ClosedSelectorException e) {
+                    connection.close();
+                }
+            });
+        }
+
+        private void close() {
+            execute(() -> {
+                if (!selector.isOpen()) return;
+
+                for (SelectionKey key : selector.keys()) {
+                    ((ClientConnection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    logger.error("Unable to close selector", e);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+
+                    runTasks();
+
+                    if (!selector.isOpen()) break;
+
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        ClientConnection connection = (ClientConnection) key.attachment();
+
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) {
+                    logger.error("Client event loop stopped", e);
+                }
+            }
+
+            // Tasks queued while the loop stopped
+            runTasks();
+        }
+    }
+}
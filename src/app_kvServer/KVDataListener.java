@@ -28,8 +28,14 @@ public class KVDataListener implements Runnable {
             {
                 Socket client = receiveSocket.accept();
                 logger.info("Receiving data at " + client.getLocalPort());
-                KVDataReceiver dataReceiver = new KVDataReceiver(receiverID, kvServer, client, replicator);
-                new Thread(dataReceiver).start();
+                if (replicator) {
+                    // Replication channels stay open, with one receiver each for their lifetime
+                    ReplicationChannel channel = new ReplicationChannel(client);
+                    new Thread(new KVReplicationReceiver(kvServer, channel)).start();
+                } else {
+                    KVDataReceiver dataReceiver = new KVDataReceiver(receiverID, kvServer, client);
+                    new Thread(dataReceiver).start();
+                }
                 logger.info("Receiving data at "
                         + receiveSocket.getLocalPort()
                         );
@@ -3,9 +3,8 @@ package app_kvServer;
 import org.apache.log4j.Logger;
 
 import java.io.*;
-import java.net.ServerSocket;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
@@ -14,58 +13,33 @@ public class KVDataReceiver implements Runnable {
     private final Socket client;
     private final KVServer kvServer;
     private final int id;
-    private boolean replicator;
 
-    public KVDataReceiver(int id, KVServer kvServer, Socket client, boolean replicator) {
+    public KVDataReceiver(int id, KVServer kvServer, Socket client) {
         this.id = id;
         this.client = client;
         this.kvServer = kvServer;
-        this.replicator = replicator;
     }
 
     @Override
     public void run() {
         try {
-
-            BufferedInputStream socketInput = new BufferedInputStream(client.getInputStream());
-            BufferedReader bufferedReader = new BufferedReader(
-                    new InputStreamReader(socketInput, StandardCharsets.UTF_8));
             Path tempPath = Files.createTempFile(String.valueOf(id) + kvServer.getServerName(), ".txt");
             String tempFileName = tempPath.toString();
-            String controlServer = "";
-
-            if (replicator) {
-                controlServer = bufferedReader.readLine();
-                logger.info("Receiving data to replicate from "
-                        + controlServer
-                );
-            } else {
-                logger.info("Receiving data");
-            }
 
-            BufferedOutputStream fileOutput = new BufferedOutputStream(new FileOutputStream(tempFileName));
-            BufferedWriter bufferedWriter = new BufferedWriter(
-                    new OutputStreamWriter(fileOutput, StandardCharsets.UTF_8));
+            logger.info("Receiving data");
 
-            String line;
-            while ((line = bufferedReader.readLine()) != null) {
-                bufferedWriter.write(line + System.lineSeparator());
+            // The data listener's socket is opened from a channel, so accepted sockets have one
+            try (SocketChannel channel = client.getChannel()) {
+                long received = DataTransfer.receive(channel, tempPath);
+                logger.info("Received " + received + " bytes of data");
+            } catch (IOException e) {
+                Files.deleteIfExists(tempPath);
+                throw e;
             }
 
-            bufferedWriter.close();
-            fileOutput.flush();
-
-            socketInput.close();
-            fileOutput.close();
-            client.close();
-
-            if (replicator) {
-                kvServer.replicateData(tempFileName, controlServer);
-            } else {
-                logger.info("Attempting to merge data after receiving");
-                kvServer.mergeNewData(tempFileName);
-                logger.info("Merged data after receiving.");
-            }
+            logger.info("Attempting to merge data after receiving");
+            kvServer.mergeNewData(tempFileName);
+            logger.info("Merged data after receiving.");
         } catch (IOException e) {
             logger.error("Receiving data failed: unable to connect with sender", e);
         }
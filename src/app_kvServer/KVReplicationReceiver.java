@@ -0,0 +1,86 @@
+package app_kvServer;
+
+import org.apache.log4j.Logger;
+import store.WriteLog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies the records a controller sends over a replication channel to its
+ * replicated data, for as long as the channel stays open.
+ */
+public class KVReplicationReceiver implements Runnable {
+    public static Logger logger = Logger.getLogger("KVReplicationReceiver");
+
+    private final KVServer kvServer;
+    private final ReplicationChannel channel;
+
+    public KVReplicationReceiver(KVServer kvServer, ReplicationChannel channel) {
+        this.kvServer = kvServer;
+        this.channel = channel;
+    }
+
+    @Override
+    public void run() {
+        String controlServer = null;
+
+        try {
+            ReplicationChannel.Frame hello = channel.readFrame();
+            if (hello == null || hello.getType() != ReplicationChannel.HELLO) {
+                logger.error("Replication channel from " + channel.getRemoteAddress() + " did not identify itself");
+                return;
+            }
+
+            controlServer = hello.getText();
+            logger.info("Receiving data to replicate from " + controlServer);
+
+            ReplicationChannel.Frame frame;
+            while ((frame = channel.readFrame()) != null) {
+                if (frame.getType() != ReplicationChannel.RECORDS) {
+                    logger.warn("Ignoring replication frame of type " + frame.getType());
+                    continue;
+                }
+
+                channel.sendAck(apply(controlServer, frame.getLines()));
+            }
+
+            logger.info("Replication channel from " + controlServer + " closed");
+        } catch (IOException e) {
+            logger.error("Replication channel from " + controlServer + " failed", e);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Apply a batch of lines. Write log entries carry a sequence number, and
+     * entries at or before the last one applied from this controller are
+     * resends, which are skipped.
+     *
+     * @return Sequence number of the last entry applied from the controller
+     */
+    private long apply(String controlServer, List<String> lines) {
+        long appliedSequence = kvServer.getAppliedSequence(controlServer);
+        long lastSequence = appliedSequence;
+
+        List<String> records = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            long sequence = WriteLog.parseSequence(line);
+            if (sequence == -1) {
+                records.add(line);
+            } else if (sequence > appliedSequence) {
+                records.add(WriteLog.parseRecord(line));
+                lastSequence = sequence;
+            }
+        }
+
+        if (records.isEmpty() || kvServer.replicateRecords(records, controlServer)) {
+            kvServer.setAppliedSequence(controlServer, lastSequence);
+            return lastSequence;
+        }
+
+        return appliedSequence;
+    }
+}
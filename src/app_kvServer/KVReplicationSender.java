@@ -0,0 +1,307 @@
+package app_kvServer;
+
+import ecs.ServerNode;
+import org.apache.log4j.Logger;
+import store.WriteLog;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Streams the write log to a single replicator over a long-lived
+ * replication channel, for as long as it stays a replicator of this server.
+ * <p>
+ * Entries are sent in batches: whatever is in the log once MAX_BATCH_SIZE
+ * entries are pending, or BATCH_WINDOW_MS after the first pending entry.
+ * Up to MAX_UNACKED_BATCHES batches are in flight at once. The replicator
+ * acknowledges each batch with the last sequence number it applied. If the
+ * channel fails, it is reopened and everything after that is sent again.
+ * <p>
+ * Whole files of key-values, such as a snapshot for a new replicator, are
+ * queued with sendFile() and go over the same channel, in order with the
+ * write log entries.
+ */
+public class KVReplicationSender implements Runnable {
+    public static Logger logger = Logger.getLogger("KVReplicationSender");
+
+    private static final int MAX_BATCH_SIZE = 512;
+    private static final int MAX_UNACKED_BATCHES = 4;
+    private static final long BATCH_WINDOW_MS = 5;
+    private static final long IDLE_WAIT_MS = 1000;
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final int FILE_CHUNK_SIZE = 256 * 1024;
+
+    private final ServerNode replicator;
+    private final KVServer kvServer;
+    private final WriteLog writeLog;
+
+    private final ConcurrentLinkedQueue<FileTransfer> fileTransfers = new ConcurrentLinkedQueue<>();
+
+    private volatile ReplicationChannel channel;
+    private int unackedBatches = 0;
+    private long sentSequence;
+
+    private volatile long ackedSequence;
+    private volatile boolean running = true;
+
+    /**
+     * @param replicator    Node to replicate to
+     * @param kvServer      Server the write log belongs to
+     * @param writeLog      Write log to stream
+     * @param startSequence Sequence number of the last entry the replicator
+     *                      already has
+     */
+    public KVReplicationSender(ServerNode replicator, KVServer kvServer, WriteLog writeLog, long startSequence) {
+        this.replicator = replicator;
+        this.kvServer = kvServer;
+        this.writeLog = writeLog;
+        this.ackedSequence = startSequence;
+        this.sentSequence = startSequence;
+    }
+
+    public ServerNode getReplicator() {
+        return replicator;
+    }
+
+    public long getAckedSequence() {
+        return ackedSequence;
+    }
+
+    /**
+     * Queue a file of key-values to send before any later write log entries
+     *
+     * @param path      File to send
+     * @param lock      Lock to hold for reading while sending the file, or null
+     * @param snapshot  Whether the file is a snapshot of the store, which
+     *                  waits for any data transfer to finish first
+     * @param remaining Senders still to send the file. The last one deletes
+     *                  it, or null to keep it
+     */
+    public void sendFile(String path, ReentrantReadWriteLock lock, boolean snapshot, AtomicInteger remaining) {
+        fileTransfers.add(new FileTransfer(path, lock, snapshot, remaining));
+        notifyWrite();
+    }
+
+    /**
+     * Wake the sender up after appending to the write log
+     */
+    public synchronized void notifyWrite() {
+        notifyAll();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        notifyAll();
+
+        // Unblock the sender if it is waiting for an acknowledgement
+        ReplicationChannel channel = this.channel;
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Wait until there are entries or files to send, then give more entries
+     * up to BATCH_WINDOW_MS to arrive so they go out together
+     */
+    private synchronized void awaitBatch() throws InterruptedException {
+        while (running && fileTransfers.isEmpty() && writeLog.getLastSequence() <= sentSequence) {
+            wait(IDLE_WAIT_MS);
+        }
+
+        long deadline = System.currentTimeMillis() + BATCH_WINDOW_MS;
+        long remaining;
+        while (running && fileTransfers.isEmpty() && writeLog.getLastSequence() - sentSequence < MAX_BATCH_SIZE
+                && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            wait(remaining);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                if (channel == null) {
+                    openChannel();
+                }
+
+                if (!fileTransfers.isEmpty()) {
+                    // Files go out in order with the log, so everything before them must be applied first
+                    awaitAcks(0);
+                    sendFile(fileTransfers.peek());
+                    fileTransfers.remove();
+                    continue;
+                }
+
+                List<String> batch = writeLog.read(sentSequence, MAX_BATCH_SIZE);
+                if (!batch.isEmpty()) {
+                    awaitAcks(MAX_UNACKED_BATCHES - 1);
+                    channel.sendRecords(batch);
+                    channel.flush();
+                    unackedBatches++;
+                    sentSequence = WriteLog.parseSequence(batch.get(batch.size() - 1));
+                    continue;
+                }
+
+                if (unackedBatches > 0) {
+                    awaitAcks(0);
+                    continue;
+                }
+
+                awaitBatch();
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                if (!running) break;
+
+                logger.error("Replication channel to " + replicator.getNodeName() + " failed, reconnecting", e);
+                closeChannel();
+                try {
+                    Thread.sleep(RETRY_DELAY_MS);
+                } catch (InterruptedException ignored) {
+                    break;
+                }
+            }
+        }
+
+        closeChannel();
+        logger.info("Stopped replicating to " + replicator.getNodeName());
+    }
+
+    private void openChannel() throws IOException {
+        channel = ReplicationChannel.connect(replicator.getNodeHost(), replicator.getReplicationReceivePort());
+        channel.sendHello(kvServer.getServerName());
+
+        // Anything sent but not acknowledged on the old channel is sent again
+        sentSequence = ackedSequence;
+        unackedBatches = 0;
+
+        logger.info("Opened replication channel to " + replicator.getNodeName());
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Read acknowledgements until at most the given number of batches are
+     * unacknowledged
+     */
+    private void awaitAcks(int maxUnacked) throws IOException, InterruptedException {
+        while (unackedBatches > maxUnacked) {
+            long acked = channel.readAck();
+            unackedBatches--;
+
+            if (acked > ackedSequence) {
+                ackedSequence = acked;
+                kvServer.replicationAcknowledged();
+            }
+        }
+
+        // The replicator may already have had entries this sender hadn't sent yet
+        sentSequence = Math.max(sentSequence, ackedSequence);
+
+        if (unackedBatches == 0 && ackedSequence < sentSequence) {
+            logger.warn(replicator.getNodeName() + " only applied entries up to " + ackedSequence
+                    + " of " + sentSequence + ", resending");
+            sentSequence = ackedSequence;
+            Thread.sleep(RETRY_DELAY_MS);
+        }
+    }
+
+    private void sendFile(FileTransfer transfer) throws IOException, InterruptedException {
+        if (transfer.snapshot) {
+            Object replicateSync = kvServer.getReplicateSync();
+            synchronized (replicateSync) {
+                while (running && !kvServer.getReadyToReplicate()) {
+                    replicateSync.wait(5000);
+                }
+            }
+        }
+
+        logger.info("Starting data transfer for replication at node " + replicator.getNodeName());
+
+        if (transfer.lock != null) transfer.lock.readLock().lock();
+        try (FileChannel file = FileChannel.open(Paths.get(transfer.path), StandardOpenOption.READ)) {
+            // The file is sent in chunks of whole lines, as read, without decoding it
+            ByteBuffer buffer = ByteBuffer.allocate(FILE_CHUNK_SIZE);
+            boolean endOfFile = false;
+            while (!endOfFile) {
+                endOfFile = file.read(buffer) < 0;
+
+                int chunkEnd = endOfFile ? buffer.position() : lastLineEnd(buffer);
+                if (chunkEnd < 0) {
+                    // A line longer than the buffer
+                    if (!buffer.hasRemaining()) buffer = grow(buffer);
+                    continue;
+                }
+
+                if (chunkEnd > 0) {
+                    awaitAcks(MAX_UNACKED_BATCHES - 1);
+                    channel.sendRecords(buffer.array(), chunkEnd);
+                    channel.flush();
+                    unackedBatches++;
+                }
+
+                // Keep the start of the next line
+                buffer.flip();
+                buffer.position(chunkEnd);
+                buffer.compact();
+            }
+
+            awaitAcks(0);
+        } finally {
+            if (transfer.lock != null) transfer.lock.readLock().unlock();
+        }
+
+        if (transfer.remaining != null && transfer.remaining.decrementAndGet() == 0) {
+            Files.deleteIfExists(Paths.get(transfer.path));
+        }
+
+        logger.info("Finished data transfer for replication at node " + replicator.getNodeName());
+    }
+
+    /**
+     * @return The position just after the last line separator read into the
+     * buffer, or -1 if there is none
+     */
+    private static int lastLineEnd(ByteBuffer buffer) {
+        byte[] bytes = buffer.array();
+        for (int i = buffer.position() - 1; i >= 0; i--) {
+            if (bytes[i] == '\n') return i + 1;
+        }
+        return -1;
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer) {
+        ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    private static class FileTransfer {
+        private final String path;
+        private final ReentrantReadWriteLock lock;
+        private final boolean snapshot;
+        private final AtomicInteger remaining;
+
+        private FileTransfer(String path, ReentrantReadWriteLock lock, boolean snapshot, AtomicInteger remaining) {
+            this.path = path;
+            this.lock = lock;
+            this.snapshot = snapshot;
+            this.remaining = remaining;
+        }
+    }
+}
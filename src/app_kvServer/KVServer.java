@@ -1,46 +1,66 @@
 package app_kvServer;
 
+import ecs.HashRange;
 import ecs.HashRing;
+import ecs.HashToken;
 import ecs.ServerNode;
 import ecs.ServerSettings;
 import logger.LogSetup;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import shared.messages.AdminMessage;
+import shared.messages.JsonKVMessage;
+import shared.messages.KVMessage;
+import store.KVLogStore;
 import store.KVSimpleStore;
 import store.KVStore;
 import store.KeyExpiredException;
 import store.KeyInvalidException;
+import store.WriteLog;
 
 import java.io.*;
 import java.net.BindException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
-import java.util.concurrent.CyclicBarrier;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class KVServer implements IKVServer, Runnable {
 
-    public static final Integer BUFFER_SIZE = 1024;
     private static final Logger logger = Logger.getLogger("KVServer");
     private static final int NUM_REPLICATORS = 2;
 
+    // Client connections are multiplexed over a few event loops, with requests
+    // processed on a bounded worker pool
+    private static final int NUM_EVENT_LOOPS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private static final int NUM_WORKERS = 2 * Runtime.getRuntime().availableProcessors();
+    private static final int WORKER_QUEUE_SIZE = 4096;
+
+    // A quarter of the workers, so one slow server can't hold them all
+    private static final int MAX_FORWARDS_PER_NODE = Math.max(1, NUM_WORKERS / 4);
+
     private boolean hasBeenInitialized = false;
 
     private boolean readyToReplicate = true;
     private final Object replicateSync = new Object();
 
     private final int port;
-    private final int cacheSize;
 
     private final KVStore kvStore;
-    private final CacheStrategy cacheStrategy;
+
+    // Null while caching is disabled. Only caches keys this server is responsible for
+    private volatile KVCache cache;
 
     private final String serverName;
     private final ECSConnection ecsConnection;
@@ -50,18 +70,31 @@ public class KVServer implements IKVServer, Runnable {
 
     private boolean running;
 
-    private ServerSocket serverSocket;
+    private KVClientListener clientListener;
     private ServerSocket dataReceiveSocket;
     private ServerSocket replicationReceiveSocket;
 
-    private final ArrayList<ClientConnection> connections = new ArrayList<>();
-
     private ServerStatus status;
+
+    // Hash ring the server is handing its ranges over for. While write locked,
+    // only writes to keys outside this server's ranges in it are refused. A
+    // null ring locks every key
+    private volatile HashRing writeLockedRing;
+
     private ServerNode[] replicators = new ServerNode[NUM_REPLICATORS];
     private ServerNode[] controllers = new ServerNode[NUM_REPLICATORS];
 
     private ServerSettings serverSettings;
 
+    // Streams the write log to each replicator, keyed by replicator name
+    private final Map<String, KVReplicationSender> replicationSenders = new ConcurrentHashMap<>();
+
+    // Last write log entry applied from each controller
+    private final Map<String, Long> appliedSequences = new ConcurrentHashMap<>();
+
+    // Sends requests for other servers' keys on to them, if enabled in the settings
+    private final RequestForwarder requestForwarder = new RequestForwarder(MAX_FORWARDS_PER_NODE);
+
 
     /**
      * Start KV Server at given port
@@ -72,14 +105,26 @@ public class KVServer implements IKVServer, Runnable {
      * @param zkPort     ZooKeeper port
      */
     public KVServer(int port, String serverName, String zkHost, int zkPort) throws IOException {
+        this(port, serverName, zkHost, zkPort, StorageEngine.SIMPLE);
+    }
+
+    /**
+     * Start KV Server at given port, with the given storage engine
+     *
+     * @param port          given port for storage server to operate
+     * @param zkHost        ZooKeeper host
+     * @param serverName    Server name
+     * @param zkPort        ZooKeeper port
+     * @param storageEngine KVStore implementation to persist data with
+     */
+    public KVServer(int port, String serverName, String zkHost, int zkPort, StorageEngine storageEngine) throws IOException {
         this.port = port;
-        this.kvStore = new KVSimpleStore(serverName);
+        this.kvStore = storageEngine == StorageEngine.LOG
+                ? new KVLogStore(serverName)
+                : new KVSimpleStore(serverName);
         this.status = ServerStatus.STOPPED;
         this.serverName = serverName;
 
-        this.cacheSize = 0;
-        this.cacheStrategy = CacheStrategy.None;
-
         this.clearStorage();
         this.clearReplicatedData();
 
@@ -114,17 +159,78 @@ public class KVServer implements IKVServer, Runnable {
 
     @Override
     public String getHostname() {
-        return serverSocket.getInetAddress().getHostName();
+        return clientListener.getHostname();
     }
 
     @Override
     public CacheStrategy getCacheStrategy() {
-        return cacheStrategy;
+        KVCache cache = this.cache;
+        return cache == null ? CacheStrategy.None : cache.getStrategy();
     }
 
     @Override
     public int getCacheSize() {
-        return cacheSize;
+        KVCache cache = this.cache;
+        return cache == null ? 0 : cache.getCapacity();
+    }
+
+    public KVCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Replace the cache if the strategy or size changed. Entries are not
+     * carried over to the new cache.
+     */
+    public void configureCache(CacheStrategy cacheStrategy, int cacheSize) {
+        if (cacheStrategy == null) cacheStrategy = CacheStrategy.None;
+        if (cacheSize <= 0) cacheStrategy = CacheStrategy.None;
+
+        if (cacheStrategy == getCacheStrategy() && (cacheStrategy == CacheStrategy.None || cacheSize == getCacheSize())) {
+            return;
+        }
+
+        if (cacheStrategy == CacheStrategy.None) {
+            this.cache = null;
+            logger.info("Cache disabled");
+        } else {
+            this.cache = new KVCache(cacheStrategy, cacheSize);
+            logger.info("Cache set to " + cacheStrategy + " with size " + cacheSize);
+        }
+    }
+
+    public void logCacheStats() {
+        KVCache cache = this.cache;
+        if (cache != null) {
+            logger.info(cache.toString());
+        }
+    }
+
+    public void logExpiryStats() {
+        logger.info(kvStore.getExpiryIndex().report(System.currentTimeMillis()));
+    }
+
+    public int getMaxConnections() {
+        return serverSettings.getMaxConnections();
+    }
+
+    public boolean isForwardingRequests() {
+        return serverSettings.getForwardRequests();
+    }
+
+    /**
+     * Forward a request for a key this server is not responsible for to the
+     * server that is, according to this server's hash ring
+     *
+     * @return The responsible server's response, or null if there is no
+     * other server to forward to or it could not be reached
+     */
+    public JsonKVMessage forwardRequest(JsonKVMessage req, HashToken keyHash) {
+        HashRing hashRing = getMetadata();
+        ServerNode node = hashRing == null ? null : hashRing.getNodeForKey(keyHash);
+        if (node == null || node.getNodeName().equals(serverName)) return null;
+
+        return requestForwarder.forward(node, req, hashRing.getEpoch());
     }
 
     @Override
@@ -136,25 +242,23 @@ public class KVServer implements IKVServer, Runnable {
         this.status = status;
     }
 
-    private static int getNonNullLength(ServerNode[] arr) {
-        int length = 0;
-        for (ServerNode node : arr) {
-            if (node != null) {
-                length++;
-            }
-        }
-        return length;
-    }
-
     @Override
     public boolean isNodeResponsible(String key) {
         return ecsConnection.isNodeResponsible(key);
     }
 
+    public boolean isNodeResponsible(HashToken keyHash) {
+        return ecsConnection.isNodeResponsible(keyHash);
+    }
+
     public boolean doesNodeReplicateKey(String key) {
         return ecsConnection.getCurrentNode().doesNodeReplicateKey(key);
     }
 
+    public boolean doesNodeReplicateKey(HashToken keyHash) {
+        return ecsConnection.getCurrentNode().doesNodeReplicateKey(keyHash);
+    }
+
     @Override
     public HashRing getMetadata() {
         return ecsConnection.getHashRing();
@@ -164,6 +268,7 @@ public class KVServer implements IKVServer, Runnable {
         this.serverSettings = serverSettings;
 
         kvStore.setReplicatorsExpireKeys(serverSettings.getReplicatorsExpireKeys());
+        configureCache(serverSettings.getCacheStrategy(), serverSettings.getCacheSize());
     }
 
     @Override
@@ -180,16 +285,42 @@ public class KVServer implements IKVServer, Runnable {
 
     @Override
     public void lockWrite() {
+        lockWrite(null);
+    }
+
+    /**
+     * Lock writes to the keys this server gives up in the updated hash ring,
+     * so the rest of its keys can still be written while they are sent away
+     *
+     * @param updatedHashRing Ring after the change, or null to lock every key
+     */
+    public void lockWrite(HashRing updatedHashRing) {
+        this.writeLockedRing = updatedHashRing;
         this.status = ServerStatus.WRITE_LOCKED;
-        logger.info("ServerStatus set to: WRITE_LOCKED");
+        logger.info("ServerStatus set to: WRITE_LOCKED"
+                + (updatedHashRing == null ? "" : " for ranges being handed over"));
     }
 
     @Override
     public void unlockWrite() {
         this.status = ServerStatus.ACTIVE;
+        this.writeLockedRing = null;
         logger.info("ServerStatus set to: ACTIVE");
     }
 
+    /**
+     * @return Whether writes to the key are refused by the write lock
+     */
+    public boolean isWriteLocked(HashToken keyHash) {
+        if (status != ServerStatus.WRITE_LOCKED) return false;
+
+        HashRing lockedRing = writeLockedRing;
+        if (lockedRing == null) return true;
+
+        ServerNode node = lockedRing.getNode(serverName);
+        return node == null || !node.isNodeResponsible(keyHash);
+    }
+
     public String getServerName() {
         return serverName;
     }
@@ -204,12 +335,16 @@ public class KVServer implements IKVServer, Runnable {
         return kvStore.getDataDir();
     }
 
-    public String getWriteLogPath(){
-        return kvStore.getWriteLogPath();
+    /**
+     * @return Sequence number of the last write log entry applied from the
+     * controller, or -1 if none were
+     */
+    public long getAppliedSequence(String controlServer) {
+        return appliedSequences.getOrDefault(controlServer, -1L);
     }
 
-    private ReentrantReadWriteLock getWriteLogLock() {
-        return kvStore.getWriteLogLock();
+    public void setAppliedSequence(String controlServer, long sequence) {
+        appliedSequences.merge(controlServer, sequence, Math::max);
     }
 
     @Override
@@ -219,26 +354,53 @@ public class KVServer implements IKVServer, Runnable {
 
     @Override
     public boolean inCache(String key) {
-        // TODO Auto-generated method stub
-        return false;
+        KVCache cache = this.cache;
+        return cache != null && cache.contains(key);
     }
 
     @Override
     public String getKV(String key) throws Exception {
+        return getKV(key, HashToken.of(key));
+    }
+
+    /**
+     * Get a key whose hash was already computed to route the request
+     */
+    public String getKV(String key, HashToken keyHash) throws Exception {
 
         // If ClientConnection did its job properly, key should be
         // on either this node, or one of the nodes it replicates.
-        if (isNodeResponsible(key)) {
+        if (isNodeResponsible(keyHash)) {
+            KVCache cache = this.cache;
+            if (cache == null) {
+                try {
+                    return this.kvStore.get(key, keyHash);
+                } catch (KeyExpiredException e) {
+                    updateReplicators();
+                    throw e;
+                }
+            }
+
+            String value = cache.get(key);
+            if (value != null) {
+                return value;
+            }
+
+            long stamp = cache.stamp();
             try {
-                return this.kvStore.get(key);
+                value = this.kvStore.get(key, keyHash);
             } catch (KeyExpiredException e) {
+                cache.invalidate(key);
                 updateReplicators();
                 throw e;
             }
 
+            cache.fill(key, value, this.kvStore.getExpiryTime(key), stamp);
+            return value;
+
         } else {
             for (ServerNode node : controllers) {
-                if (node.isNodeResponsible(key)) {
+                if (node.isNodeResponsible(keyHash)) {
                     return this.kvStore.get(key, node);
                 }
             }
@@ -249,13 +411,87 @@ public class KVServer implements IKVServer, Runnable {
 
     @Override
     public boolean putKV(String key, String value, Long expiryTime) throws Exception {
-        boolean exists = this.kvStore.put(key, value, expiryTime);
+        return putKV(key, HashToken.of(key), value, expiryTime);
+    }
+
+    /**
+     * Put a key whose hash was already computed to route the request
+     */
+    public boolean putKV(String key, HashToken keyHash, String value, Long expiryTime) throws Exception {
+        boolean exists = this.kvStore.put(key, keyHash, value, expiryTime);
+
+        // Invalidated rather than updated: the store's lock is released by
+        // now, so a concurrent write to the key could otherwise be cached
+        // after this one even though it reached the store first. The next
+        // read fills the cache from the store.
+        KVCache cache = this.cache;
+        if (cache != null) {
+            cache.invalidate(key);
+        }
+
         updateReplicators();
         return exists;
     }
 
+    /**
+     * Apply a batch of puts and deletes, in order. Each write is a message
+     * with a key, a value (null to delete), and the absolute expiry time in
+     * its TTL field, as in responses. Its status is set to the result.
+     * <p>
+     * The batch runs under a single acquisition of the storage lock, and is
+     * replicated with one flush of the write log rather than one per write.
+     *
+     * @throws FileNotFoundException If the storage file is gone
+     */
+    public void putKVBatch(List<JsonKVMessage> writes) throws FileNotFoundException {
+        KVCache cache = this.cache;
+
+        this.kvStore.beginWriteBatch();
+        try {
+            for (JsonKVMessage write : writes) {
+                String key = write.getKey();
+
+                if (write.getValue() == null) {
+                    try {
+                        this.kvStore.delete(key);
+                        write.setStatus(KVMessage.StatusType.DELETE_SUCCESS);
+                    } catch (FileNotFoundException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        write.setStatus(KVMessage.StatusType.DELETE_ERROR);
+                        write.setMessage(e.getMessage());
+                    }
+
+                    if (cache != null) cache.invalidate(key);
+                } else {
+                    try {
+                        boolean exists = this.kvStore.put(key, write.getValue(), write.getTTL());
+                        write.setStatus(exists ? KVMessage.StatusType.PUT_UPDATE : KVMessage.StatusType.PUT_SUCCESS);
+
+                        if (cache != null) cache.invalidate(key);
+                    } catch (FileNotFoundException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        write.setStatus(KVMessage.StatusType.PUT_ERROR);
+                        write.setMessage(e.getMessage());
+                    }
+                }
+            }
+        } finally {
+            this.kvStore.endWriteBatch();
+        }
+
+        updateReplicators();
+    }
+
     public void checkKeyExpiry() throws Exception {
         boolean keysExpired = this.kvStore.checkKeyExpiry();
+
+        KVCache cache = this.cache;
+        if (cache != null) {
+            cache.removeExpired(System.currentTimeMillis());
+        }
+
         if (keysExpired) {
             updateReplicators();
         }
@@ -263,18 +499,36 @@ public class KVServer implements IKVServer, Runnable {
 
     @Override
     public void deleteKV(String key) throws Exception {
-        this.kvStore.delete(key);
+        deleteKV(key, HashToken.of(key));
+    }
+
+    /**
+     * Delete a key whose hash was already computed to route the request
+     */
+    public void deleteKV(String key, HashToken keyHash) throws Exception {
+        try {
+            this.kvStore.delete(key, keyHash);
+        } finally {
+            KVCache cache = this.cache;
+            if (cache != null) {
+                cache.invalidate(key);
+            }
+        }
         updateReplicators();
     }
 
     @Override
     public void clearCache() {
-        // TODO Auto-generated method stub
+        KVCache cache = this.cache;
+        if (cache != null) {
+            cache.clear();
+        }
     }
 
     @Override
     public void clearStorage() throws IOException {
         this.kvStore.clear();
+        clearCache();
     }
 
     private void clearReplicatedData() {
@@ -292,7 +546,7 @@ public class KVServer implements IKVServer, Runnable {
 
         HashRing updatedHashRing = message.getMetadata();
         receiveNode = updatedHashRing.getNode(receiveNode.getNodeName());
-        String[] sendHashRange = receiveNode.getNodeHashRange();
+        List<HashRange> sendHashRanges = receiveNode.getNodeHashRanges();
 
         try {
 
@@ -310,46 +564,29 @@ public class KVServer implements IKVServer, Runnable {
                     + ": "
                     + port
                     + System.lineSeparator()
-                    + "Send Hash Range: "
-                    + Arrays.toString(sendHashRange)
+                    + "Send Hash Ranges: "
+                    + sendHashRanges
             );
-            String sendPath = kvStore.splitData(sendHashRange);
-            File sendFile = new File(sendPath);
-
-            byte[] buffer = new byte[BUFFER_SIZE];
-
-            Socket receiveSocket = new Socket(host, port);
-
-            BufferedOutputStream socketOutput = new BufferedOutputStream(receiveSocket.getOutputStream());
-            BufferedWriter bufferedWriter = new BufferedWriter(
-                    new OutputStreamWriter(socketOutput, StandardCharsets.UTF_8));
-
-            BufferedInputStream fileInput = new BufferedInputStream(new FileInputStream(sendFile));
-            BufferedReader bufferedReader = new BufferedReader(
-                    new InputStreamReader(fileInput, StandardCharsets.UTF_8));
-
-            String line;
-            while ((line = bufferedReader.readLine()) != null) {
-                bufferedWriter.write(line + System.lineSeparator());
+            Path sendPath = Paths.get(kvStore.splitData(sendHashRanges));
+            try {
+                long sent = DataTransfer.send(host, port, sendPath);
+                logger.info("Finished data transfer of " + sent + " bytes to node " + receiveNode.getNodeName());
+            } finally {
+                Files.deleteIfExists(sendPath);
             }
 
-            bufferedWriter.flush();
-            bufferedWriter.close();
-            bufferedReader.close();
-
-            socketOutput.close();
-            fileInput.close();
-            receiveSocket.close();
-
-            logger.info("Finished data transfer to node " + receiveNode.getNodeName());
-
         } catch (IOException e) {
             logger.error("Unable to send data to receiving node", e);
         }
     }
 
-    public void cleanUpData() {
-        kvStore.sendDataCleanup();
+    /**
+     * Drop the data sent to other nodes, keeping only the ranges this node
+     * is responsible for in the updated hash ring
+     */
+    public void cleanUpData(HashRing updatedHashRing) {
+        kvStore.sendDataCleanup(updatedHashRing.getHashRanges(serverName));
+        clearCache();
         synchronized (replicateSync){
             readyToReplicate = true;
             replicateSync.notifyAll();
@@ -357,11 +594,12 @@ public class KVServer implements IKVServer, Runnable {
         updateReplicators();
     }
 
-    public void mergeNewData(String tempFilePath) {
+    public synchronized void mergeNewData(String tempFilePath) {
         try {
             // This will delete the tempFile if the node is not initialized
             // will not delete if node is initialized, so the tempFile can be sent to the replicator
             this.kvStore.mergeData(tempFilePath, !this.hasBeenInitialized);
+            clearCache();
             if (!this.hasBeenInitialized) {
                 initializeReplicators();
             } else {
@@ -373,60 +611,139 @@ public class KVServer implements IKVServer, Runnable {
         }
     }
 
-    public void replicateData(String tempFilePath, String controlServer) {
-        kvStore.replicateData(tempFilePath, controlServer);
+    public boolean replicateRecords(List<String> records, String controlServer) {
+        return kvStore.replicateRecords(records, controlServer);
     }
 
     private void initializeReplicator(ServerNode replicator) {
-        CyclicBarrier deleteBarrier = new CyclicBarrier(1);
-        KVDataSender kvDataSender = new KVDataSender(
-                replicator,
-                this,
-                kvStore.getStoragePath(),
-                deleteBarrier,
-                kvStore.getStorageLock(),
-                true);
-        new Thread(kvDataSender).start();
+        // Entries appended while the snapshot is taken are replayed after it.
+        // Replicas apply them idempotently, so none are lost or doubled
+        long startSequence = kvStore.getWriteLog().getLastSequence();
+
+        String snapshotPath;
+        try {
+            snapshotPath = kvStore.snapshotData();
+        } catch (IOException e) {
+            logger.error("Unable to snapshot data to initialize replicator " + replicator.getNodeName(), e);
+            return;
+        }
+
+        KVReplicationSender sender = startReplicationSender(replicator, startSequence);
+        sender.sendFile(snapshotPath, kvStore.getStorageLock(), true, null);
     }
 
     private void initializeReplicators() {
-        for (int i = 0; i < NUM_REPLICATORS; i++){
-            ServerNode replicator = replicators[i];
+        for (ServerNode replicator : replicators) {
             if (replicator != null) {
                 initializeReplicator(replicator);
             }
         }
     }
 
+    /**
+     * Send a file of key-values to every replicator, over the replication
+     * channels so it stays in order with the write log. The file is deleted
+     * once every replicator has it.
+     */
     private void updateReplicators(String filePath, ReentrantReadWriteLock lock) {
-        ServerNode serverNode = ecsConnection.getHashRing().getNode(serverName);
-        int num_replicators = Math.max(getNonNullLength(replicators), 1);
-        CyclicBarrier deleteBarrier = new CyclicBarrier(num_replicators);
-        for (int i = 0; i < num_replicators; i++) {
-            ServerNode replicator = replicators[i];
-            if (replicator != null && replicator.compareTo(serverNode)!=0) {
-                logger.info(i + " replicating to " + replicator.getNodeName());
-                KVDataSender kvDataSender = new KVDataSender(
-                        replicator,
-                        this,
-                        filePath,
-                        deleteBarrier,
-                        lock
-                );
-                new Thread(kvDataSender).start();
+        synchronized (replicationSenders) {
+            AtomicInteger remaining = new AtomicInteger(replicationSenders.size());
+            for (KVReplicationSender sender : replicationSenders.values()) {
+                logger.info("Replicating " + filePath + " to " + sender.getReplicator().getNodeName());
+                sender.sendFile(filePath, lock, false, remaining);
             }
         }
-
     }
 
+    /**
+     * Let the replication senders know there are new write log entries.
+     * Without any replicators, the write log is truncated straight away.
+     */
     private void updateReplicators() {
-        updateReplicators(getWriteLogPath(), getWriteLogLock());
+        if (replicationSenders.isEmpty()) {
+            replicationAcknowledged();
+            return;
+        }
+
+        for (KVReplicationSender sender : replicationSenders.values()) {
+            sender.notifyWrite();
+        }
+    }
+
+    /**
+     * Truncate the write log up to the last entry every replicator has
+     * acknowledged
+     */
+    public void replicationAcknowledged() {
+        WriteLog writeLog = kvStore.getWriteLog();
+
+        synchronized (replicationSenders) {
+            long acked = writeLog.getLastSequence();
+            for (KVReplicationSender sender : replicationSenders.values()) {
+                acked = Math.min(acked, sender.getAckedSequence());
+            }
+            writeLog.truncate(acked);
+        }
+    }
+
+    /**
+     * Start streaming the write log to a replicator, replacing any previous
+     * sender for it
+     *
+     * @param startSequence Last write log entry the replicator already has
+     */
+    private KVReplicationSender startReplicationSender(ServerNode replicator, long startSequence) {
+        KVReplicationSender sender = new KVReplicationSender(
+                replicator, this, kvStore.getWriteLog(), startSequence);
+
+        synchronized (replicationSenders) {
+            KVReplicationSender previous = replicationSenders.put(replicator.getNodeName(), sender);
+            if (previous != null) {
+                previous.stop();
+            }
+        }
+
+        new Thread(sender, "ReplicationSender-" + replicator.getNodeName()).start();
+        return sender;
+    }
+
+    /**
+     * Stop streaming to nodes that are no longer replicators, and start
+     * streaming to any replicator without a sender. Senders to a replicator
+     * that moved to a new address reconnect to it, carrying on from the
+     * last entry it acknowledged.
+     */
+    private void updateReplicationSenders() {
+        synchronized (replicationSenders) {
+            replicationSenders.entrySet().removeIf(entry -> {
+                for (ServerNode replicator : replicators) {
+                    if (replicator != null && replicator.getNodeName().equals(entry.getKey())) {
+                        return false;
+                    }
+                }
+                entry.getValue().stop();
+                return true;
+            });
+
+            for (ServerNode replicator : replicators) {
+                if (replicator == null || replicator.getNodeName().equals(serverName)) continue;
+
+                KVReplicationSender sender = replicationSenders.get(replicator.getNodeName());
+                if (sender == null) {
+                    startReplicationSender(replicator, kvStore.getWriteLog().getLastSequence());
+                } else if (!sender.getReplicator().getNodeHost().equals(replicator.getNodeHost())
+                        || sender.getReplicator().getReplicationReceivePort() != replicator.getReplicationReceivePort()) {
+                    startReplicationSender(replicator, sender.getAckedSequence());
+                }
+            }
+        }
     }
 
     private void acquireReceivingPorts() {
         try {
             this.replicationReceiveSocket = new ServerSocket(0);
-            this.dataReceiveSocket = new ServerSocket(0);
+            // Opened from a channel, so data transfers can use the accepted socket's channel
+            this.dataReceiveSocket = ServerSocketChannel.open().bind(new InetSocketAddress(0)).socket();
 
             this.replicationReceivePort = this.replicationReceiveSocket.getLocalPort();
             this.dataReceivePort = this.dataReceiveSocket.getLocalPort();
@@ -439,8 +756,8 @@ public class KVServer implements IKVServer, Runnable {
     private boolean initializeServer() {
         logger.info("Initializing server...");
         try {
-            serverSocket = new ServerSocket(port);
-            logger.info("Server listening on port: " + serverSocket.getLocalPort());
+            clientListener = new KVClientListener(this, port, NUM_EVENT_LOOPS, NUM_WORKERS, WORKER_QUEUE_SIZE);
+            logger.info("Server listening on port: " + clientListener.getLocalPort());
             return true;
         } catch (IOException e) {
             String errorMsg = "Error! Cannot open server socket";
@@ -467,26 +784,14 @@ public class KVServer implements IKVServer, Runnable {
         initializeDataListeners();
 
         ScheduledExecutorService exec = Executors.newSingleThreadScheduledExecutor();
-        exec.scheduleAtFixedRate(new KVKeyExpiryChecker(this), 0, 30, TimeUnit.SECONDS);
-
-
-        if (serverSocket != null) {
-            while (isRunning()) {
-                try {
-                    Socket client = serverSocket.accept();
-
-                    ClientConnection connection = new ClientConnection(client, this);
-                    connections.add(connection);
-                    new Thread(connection).start();
+        // Expiry only looks at keys that are due, so it can run often
+        exec.scheduleAtFixedRate(new KVKeyExpiryChecker(this), 0, 1, TimeUnit.SECONDS);
+        exec.scheduleAtFixedRate(this::logCacheStats, 60, 60, TimeUnit.SECONDS);
+        exec.scheduleAtFixedRate(this::logExpiryStats, 60, 60, TimeUnit.SECONDS);
 
-                    logger.info("Connected to "
-                            + getHostname()
-                            + ":" + getPort());
 
-                } catch (IOException e) {
-                    logger.error("Error! Unable to establish connection. \n", e);
-                }
-            }
+        if (clientListener != null) {
+            clientListener.run();
         }
 
         logger.info("Server stopped");
@@ -500,10 +805,8 @@ public class KVServer implements IKVServer, Runnable {
     @Override
     public void kill() {
         running = false;
-        try {
-            serverSocket.close();
-        } catch (IOException e) {
-            logger.error("Error! Unable to close socket on port: " + port, e);
+        if (clientListener != null) {
+            clientListener.close();
         }
 
         System.exit(0);
@@ -511,17 +814,12 @@ public class KVServer implements IKVServer, Runnable {
 
     @Override
     public void close() {
-        running = false;
-
-        for (ClientConnection connection : connections) {
-            connection.close();
-        }
-
         kill();
     }
 
     public void processServerChange(AdminMessage.ServerChange change, HashRing newHashRing) {
         logger.info("Metadata update: " + change.toString());
+        requestForwarder.retain(newHashRing);
         ServerNode[] newReplicators = newHashRing.getReplicators(serverName, NUM_REPLICATORS);
         ServerNode[] newControllers  = newHashRing.getControllers(serverName, NUM_REPLICATORS);
 
@@ -530,50 +828,20 @@ public class KVServer implements IKVServer, Runnable {
 
         switch (change) {
             case ADDED:
-                if (!Arrays.equals(newReplicators, replicators)) {
-                    for (int i = 0; i < NUM_REPLICATORS; i++) {
-                        if (replicators[i] == null || !replicators[i].equals(newReplicators[i])){
-                            logger.info("Replicator added: " + newReplicators[i].getNodeName());
-                            processNewReplicator(newReplicators[i]);
-                            break;
-                        }
-                    }
-                }
-
-                if (!Arrays.equals(newControllers, controllers)) {
-                    for (int i = NUM_REPLICATORS-1; i >= 0; i--) {
-                        if (controllers [i] == null) {
-                            break;
-                        } else if (!controllers[i].equals(newControllers[i])) {
-                            logger.info("Controller removed: " + controllers[i].getNodeName());
-                            processOldController(controllers[i], i, change);
-                            break;
-                        }
-                    }
-                }
-
-                break;
             case DELETED:
             case DIED:
-                if (!Arrays.equals(newReplicators, replicators)) {
-                    for (int i = NUM_REPLICATORS-1; i >= 0; i--) {
-                        if (newReplicators[i] == null){
-                            break;
-                        } else if (replicators[i] == null || !replicators[i].equals(newReplicators[i])){
-                            logger.info("Replicator added: " + newReplicators[i].getNodeName());
-                            processNewReplicator(newReplicators[i]);
-                            break;
-                        }
+                // With virtual nodes, one change can add or remove several
+                for (ServerNode newReplicator : newReplicators) {
+                    if (newReplicator != null && !Arrays.asList(replicators).contains(newReplicator)) {
+                        logger.info("Replicator added: " + newReplicator.getNodeName());
+                        processNewReplicator(newReplicator);
                     }
                 }
 
-                if (!Arrays.equals(newControllers, controllers)) {
-                    for (int i = 0; i < NUM_REPLICATORS; i++) {
-                        if (controllers[i] != null && !controllers[i].equals(newControllers[i])) {
-                            logger.info("Controller removed: " + controllers[i].getNodeName());
-                            processOldController(controllers[i], i, change);
-                            break;
-                        }
+                for (ServerNode controller : controllers) {
+                    if (controller != null && !Arrays.asList(newControllers).contains(controller)) {
+                        logger.info("Controller removed: " + controller.getNodeName());
+                        processOldController(controller, newHashRing, change);
                     }
                 }
 
@@ -586,38 +854,39 @@ public class KVServer implements IKVServer, Runnable {
         }
         replicators = newReplicators;
         controllers = newControllers;
+
+        updateReplicationSenders();
     }
 
     public void processNewReplicator(ServerNode newReplicator) {
-        // newReplicatorIndex is either 0 or 1 (given that NUM_REPLICATORS is 2).
-        // 0 means it's the immediate successor, 1 means there's one other replicator between
-//        if (newReplicator.compareTo())
         initializeReplicator(newReplicator);
     }
 
-    public void processOldController(ServerNode oldController, int oldControllerIndex, AdminMessage.ServerChange change) {
-        // newControllerIndex is either 0 or 1 (given that NUM_REPLICATORS is 2).
-        // 0 means it's the immediate predecessor, 1 means there's one other controller between
-        if (oldControllerIndex == 0 && change == AdminMessage.ServerChange.DIED) {
-            logger.info("Merging replicated data into server data");
+    public void processOldController(ServerNode oldController, HashRing newHashRing, AdminMessage.ServerChange change) {
+        if (change == AdminMessage.ServerChange.DIED) {
+            // Take over whichever of the dead node's ranges this node is now
+            // responsible for. Its other ranges went to other replicators.
+            logger.info("Merging replicated data from " + oldController.getNodeName() + " into server data");
             try {
-                String replicateFilePath = kvStore.mergeReplicatedData(oldController);
-                //TODO: this lock should be specific to this file
+                String replicateFilePath = kvStore.mergeReplicatedData(
+                        oldController, newHashRing.getHashRanges(serverName));
+                clearCache();
                 updateReplicators(replicateFilePath, new ReentrantReadWriteLock());
             } catch (Exception e) {
                 logger.error("Failed to merge data after node death", e);
             }
-        } else {
-            logger.info("Deleting replicated data for node: " + oldController.getNodeName());
-            kvStore.deleteReplicatedData(oldController);
         }
+
+        logger.info("Deleting replicated data for node: " + oldController.getNodeName());
+        kvStore.deleteReplicatedData(oldController);
+        appliedSequences.remove(oldController.getNodeName());
     }
 
     public static void main(String[] args) {
         try {
-            if (args.length != 4) {
+            if (args.length != 4 && args.length != 5) {
                 System.err.println("Error! Invalid number of arguments");
-                System.err.println("Usage: KVServer <port> <server name> <zkHost> <zkPort>");
+                System.err.println("Usage: KVServer <port> <server name> <zkHost> <zkPort> [SIMPLE | LOG]");
                 System.exit(1);
             }
 
@@ -626,15 +895,27 @@ public class KVServer implements IKVServer, Runnable {
             String zkHost = args[2];
             int zkPort = Integer.parseInt(args[3]);
 
+            StorageEngine storageEngine = StorageEngine.SIMPLE;
+            if (args.length == 5) {
+                try {
+                    storageEngine = StorageEngine.valueOf(args[4].toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Error! Invalid storage engine " + args[4]);
+                    System.exit(1);
+                }
+            }
+
             try {
-                new LogSetup("logs/server_" + serverName + ".log", Level.ALL);
+                // Per-request messages are logged at DEBUG, so they cost nothing by default
+                Level logLevel = LogSetup.getLevel(System.getenv("KV_LOG_LEVEL"), Level.INFO);
+                new LogSetup("logs/server_" + serverName + ".log", logLevel);
             } catch (IOException e) {
                 System.err.println("Error! Unable to initialize logger.");
                 e.printStackTrace();
                 System.exit(1);
             }
 
-            KVServer server = new KVServer(port, serverName, zkHost, zkPort);
+            KVServer server = new KVServer(port, serverName, zkHost, zkPort, storageEngine);
             new Thread(server).start();
         } catch (IOException e){
             System.err.println("Error! Unable to initialize persistent storage file.");
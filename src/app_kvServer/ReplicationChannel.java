@@ -0,0 +1,158 @@
+package app_kvServer;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A long-lived connection between a controller and one of its replicators.
+ * <p>
+ * Messages are framed as a 1-byte type and a 4-byte length, followed by the
+ * payload:
+ * <pre>
+ *   HELLO    controller to replicator, once: the controller's name
+ *   RECORDS  controller to replicator: write log lines, one per line
+ *   ACK      replicator to controller, once per RECORDS: the last sequence
+ *            number applied from the controller (8 bytes)
+ * </pre>
+ */
+public class ReplicationChannel implements Closeable {
+    public static final byte HELLO = 1;
+    public static final byte RECORDS = 2;
+    public static final byte ACK = 3;
+
+    // Largest frame either side accepts
+    private static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    private final Socket socket;
+    private final DataInputStream input;
+    private final DataOutputStream output;
+
+    public ReplicationChannel(Socket socket) throws IOException {
+        this.socket = socket;
+        this.socket.setTcpNoDelay(true);
+        this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    public static ReplicationChannel connect(String host, int port) throws IOException {
+        return new ReplicationChannel(new Socket(host, port));
+    }
+
+    public void sendHello(String serverName) throws IOException {
+        writeFrame(HELLO, serverName.getBytes(StandardCharsets.UTF_8));
+        output.flush();
+    }
+
+    /**
+     * Send write log lines. Not flushed, so several frames can go out
+     * together; call flush() once done.
+     */
+    public void sendRecords(List<String> lines) throws IOException {
+        writeFrame(RECORDS, String.join("\n", lines).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Send lines already encoded as UTF-8 and separated by line separators,
+     * such as a chunk of a file. Not flushed.
+     */
+    public void sendRecords(byte[] lines, int length) throws IOException {
+        output.writeByte(RECORDS);
+        output.writeInt(length);
+        output.write(lines, 0, length);
+    }
+
+    public void sendAck(long sequence) throws IOException {
+        output.writeByte(ACK);
+        output.writeInt(Long.BYTES);
+        output.writeLong(sequence);
+        output.flush();
+    }
+
+    public void flush() throws IOException {
+        output.flush();
+    }
+
+    /**
+     * @return The sequence number of the next ACK
+     */
+    public long readAck() throws IOException {
+        byte type = input.readByte();
+        int length = input.readInt();
+        if (type != ACK || length != Long.BYTES) {
+            throw new IOException("Expected an acknowledgement, got frame type " + type);
+        }
+        return input.readLong();
+    }
+
+    /**
+     * Read the next frame
+     *
+     * @return The frame, or null if the other side closed the channel
+     */
+    public Frame readFrame() throws IOException {
+        byte type;
+        try {
+            type = input.readByte();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        int length = input.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid replication frame length " + length);
+        }
+
+        byte[] payload = new byte[length];
+        input.readFully(payload);
+        return new Frame(type, payload);
+    }
+
+    private void writeFrame(byte type, byte[] payload) throws IOException {
+        output.writeByte(type);
+        output.writeInt(payload.length);
+        output.write(payload);
+    }
+
+    public String getRemoteAddress() {
+        return socket.getInetAddress().getHostName() + ":" + socket.getPort();
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public static class Frame {
+        private final byte type;
+        private final byte[] payload;
+
+        private Frame(byte type, byte[] payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public String getText() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+
+        public List<String> getLines() {
+            List<String> lines = new ArrayList<>();
+            if (payload.length == 0) return lines;
+
+            for (String line : getText().split("\r?\n")) {
+                if (!line.isEmpty()) lines.add(line);
+            }
+            return lines;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package app_kvServer;
+
+import client.ConnectionPool;
+import ecs.HashRing;
+import ecs.ServerNode;
+import org.apache.log4j.Logger;
+import shared.Connection;
+import shared.messages.DeserializationException;
+import shared.messages.JsonKVMessage;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Forwards client requests to the server responsible for their key, over
+ * sockets pooled per server. Used from the worker threads of the client
+ * listener, each forwarded request having a socket to itself for its round
+ * trip.
+ * <p>
+ * Forwarded requests use the binary protocol and are flagged as forwarded.
+ * A server whose ring disagrees with this one's answers them with
+ * SERVER_NOT_RESPONSIBLE instead of forwarding them again.
+ * <p>
+ * A worker waiting on a slow or dead server cannot serve the keys this
+ * server owns, so forwards are bounded in time and in number per server.
+ * Past either bound the request is not forwarded, and the client is sent
+ * the ring to retry on its own, at the cost of an extra round trip for
+ * requests that a slow server would still have answered.
+ */
+public class RequestForwarder {
+    public static Logger logger = Logger.getLogger("RequestForwarder");
+
+    private static final int MAX_IDLE_PER_NODE = 4;
+    private static final long IDLE_TIMEOUT_MILLIS = 60000;
+
+    // A forwarded request holds a worker thread, so slow servers are given up
+    // on. The other server only has to read or write its own store.
+    private static final int TIMEOUT_MILLIS = 500;
+
+    // Each socket has one request in flight, so every request can use the same id
+    private static final int REQUEST_ID = 1;
+
+    private final ConnectionPool pool = new ConnectionPool(MAX_IDLE_PER_NODE, IDLE_TIMEOUT_MILLIS);
+
+    // Forwards each server may have in flight at once, by server name
+    private final int maxForwardsPerNode;
+    private final Map<String, Semaphore> forwardPermits = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxForwardsPerNode Most requests forwarded to one server at a
+     *                           time, which should leave workers free for
+     *                           the keys this server owns
+     */
+    public RequestForwarder(int maxForwardsPerNode) {
+        this.maxForwardsPerNode = maxForwardsPerNode;
+    }
+
+    /**
+     * Send a GET or PUT to another server and wait for its response
+     *
+     * @param node  Server to forward to
+     * @param req   Request from the client
+     * @param epoch Epoch of this server's hash ring
+     * @return The server's response, or null if it could not be reached or
+     * already has as many forwarded requests as allowed
+     */
+    public JsonKVMessage forward(ServerNode node, JsonKVMessage req, Long epoch) {
+        Semaphore permits = forwardPermits.computeIfAbsent(node.getNodeName(),
+                name -> new Semaphore(maxForwardsPerNode));
+        if (!permits.tryAcquire()) {
+            logger.debug("Not forwarding a request to " + node.getNodeName() + ", too many in flight");
+            return null;
+        }
+
+        try {
+            return send(node, req, epoch);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private JsonKVMessage send(ServerNode node, JsonKVMessage req, Long epoch) {
+        JsonKVMessage forwarded = new JsonKVMessage(req.getStatus());
+        forwarded.setKey(req.getKey());
+        forwarded.setValue(req.getValue());
+        forwarded.setTTL(req.getTTL());
+        forwarded.setEpoch(epoch);
+        forwarded.setForwarded(true);
+        forwarded.setRequestId(REQUEST_ID);
+
+        Socket socket;
+        try {
+            socket = pool.acquire(node);
+        } catch (IOException e) {
+            logger.warn("Unable to connect to " + node.getNodeName() + " to forward a request", e);
+            return null;
+        }
+
+        try {
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+
+            ByteBuffer packet = Connection.encodeMessage(forwarded, Connection.BINARY_PROTOCOL_VERSION, null);
+            OutputStream output = socket.getOutputStream();
+            output.write(packet.array(), 0, packet.limit());
+            output.flush();
+
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            byte[] header = new byte[Connection.HEADER_SIZE];
+            input.readFully(header);
+
+            int messageLength = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getInt(1);
+            if (messageLength < 0 || messageLength > ClientConnection.MAX_MESSAGE_SIZE) {
+                throw new IOException("Invalid message length " + messageLength);
+            }
+
+            byte[] body = new byte[messageLength];
+            input.readFully(body);
+
+            JsonKVMessage res = Connection.decodeMessage(ByteBuffer.wrap(header), ByteBuffer.wrap(body));
+            if (res.getRequestId() != REQUEST_ID) {
+                throw new IOException("Received response " + res.getRequestId() + " for request " + REQUEST_ID);
+            }
+
+            pool.release(node, socket);
+            return res;
+        } catch (IOException | DeserializationException e) {
+            logger.warn("Unable to forward a request to " + node.getNodeName(), e);
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Close the sockets to servers that left the ring or moved
+     */
+    public void retain(HashRing hashRing) {
+        pool.retain(hashRing);
+
+        Set<String> names = new HashSet<>();
+        for (ServerNode node : hashRing.getNodes()) {
+            names.add(node.getNodeName());
+        }
+        forwardPermits.keySet().retainAll(names);
+    }
+
+    public void close() {
+        pool.close();
+    }
+}
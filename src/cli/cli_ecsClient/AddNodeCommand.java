@@ -7,10 +7,12 @@ import shared.messages.KVMessage;
 
 public class AddNodeCommand extends AbstractCommand {
 
-    private final static String commandName = "addNode";
+    private final static String commandName = "addNode [<cacheStrategy> <cacheSize>]";
     private final static String commandDescription = "" +
             "\tCreate a new KVServer and add it to the storage service at an arbitrary position.";
-    private final static String commandParameters = "";
+    private final static String commandParameters = "" +
+            "\t\tcacheStrategy: optional, one of None, LRU, LFU or FIFO\n" +
+            "\t\tcacheSize: optional, integer, maximum number of key-values the server caches";
     private final static String commandOutput = "" +
             "\t\tstatus report: Once the server is created, it should provide a suitable notification to the user.";
     protected final static int expectedArgNum = 0;
@@ -21,8 +23,14 @@ public class AddNodeCommand extends AbstractCommand {
 
     @Override
     public void run(Object client, String[] tokens) throws Exception {
-        super.run(client, tokens);
-        IECSNode node = ((ECSClient) client).getECS().addNode();
+        IECSNode node;
+        if (tokens.length == expectedArgNum + 3) {
+            node = ((ECSClient) client).getECS().addNode(tokens[1], Integer.parseInt(tokens[2]));
+        } else {
+            super.run(client, tokens);
+            node = ((ECSClient) client).getECS().addNode();
+        }
+
         if (node != null) {
             System.out.println("Node added");
         } else {
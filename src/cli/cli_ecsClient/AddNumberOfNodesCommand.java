@@ -8,13 +8,15 @@ import java.util.Collection;
 
 public class AddNumberOfNodesCommand extends AbstractCommand {
 
-    private final static String commandName = "addNodes <numberOfNodes>";
+    private final static String commandName = "addNodes <numberOfNodes> [<cacheStrategy> <cacheSize>]";
     private final static String commandDescription = "" +
             "\tRandomly choose <numberOfNodes> servers from the available machines and start the KVServer by issuing an SSH call to the respective machine." +
             "\tThis call launches the storage server. For simplicity, locate the KVServer.jar in the same directory as the ECS." +
             "\tAll storage servers are initialized with the metadata and any persisted data, and remain in state stopped.";
     private final static String commandParameters = "" +
-            "\t\tnumberOfNodes: integer, number of nodes to add";
+            "\t\tnumberOfNodes: integer, number of nodes to add\n" +
+            "\t\tcacheStrategy: optional, one of None, LRU, LFU or FIFO\n" +
+            "\t\tcacheSize: optional, integer, maximum number of key-values each server caches";
     private final static String commandOutput = "" +
             "\t\tstatus report: Once the nodes are added, it should provide a suitable notification to the user.";
     protected final static int expectedArgNum = 1;
@@ -25,9 +27,15 @@ public class AddNumberOfNodesCommand extends AbstractCommand {
 
     @Override
     public void run(Object client, String[] tokens) throws Exception {
-        super.run(client, tokens);
-        int numberOfNodes = Integer.parseInt(tokens[1]);
-        Collection<ServerNode> nodes = ((ECSClient) client).getECS().addNodes(numberOfNodes);
+        Collection<ServerNode> nodes;
+        if (tokens.length == expectedArgNum + 3) {
+            int numberOfNodes = Integer.parseInt(tokens[1]);
+            nodes = ((ECSClient) client).getECS().addNodes(numberOfNodes, tokens[2], Integer.parseInt(tokens[3]));
+        } else {
+            super.run(client, tokens);
+            int numberOfNodes = Integer.parseInt(tokens[1]);
+            nodes = ((ECSClient) client).getECS().addNodes(numberOfNodes);
+        }
         if (nodes == null || nodes.size() == 0) {
             System.out.println("Unable to add any new nodes");
         } else {
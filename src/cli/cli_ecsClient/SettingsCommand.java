@@ -10,7 +10,8 @@ public class SettingsCommand extends AbstractCommand  {
             "\tSets the given configuration option";
     private final static String commandParameters = "" +
             "\t\tsettings:" +
-            "\t\t\treplicatorsExpireKeys: 'on' or 'off' to allow replicators to expire keys relative to their local clocks";
+            "\t\t\treplicatorsExpireKeys: 'on' or 'off' to allow replicators to expire keys relative to their local clocks\n" +
+            "\t\t\tmaxConnections: integer, maximum number of client connections each server accepts";
     private final static String commandOutput = "" +
             "\t\tstatus message: provides a notification if the settings update was successful or not";
     protected final static int expectedArgNum = 2;
@@ -40,6 +41,18 @@ public class SettingsCommand extends AbstractCommand  {
                 System.out.println("Something went wrong updating the setting");
             }
 
+        } else if (tokens[1].equals("maxConnections")) {
+            int maxConnections = Integer.parseInt(tokens[2]);
+            if (maxConnections <= 0) {
+                throw new Exception("Invalid value " + tokens[2]);
+            }
+
+            if (ecs.setMaxConnections(maxConnections)) {
+                System.out.println("Setting updated");
+            } else {
+                System.out.println("Something went wrong updating the setting");
+            }
+
         } else {
             System.err.println("Invalid setting");
         }
@@ -0,0 +1,176 @@
+package client;
+
+import ecs.HashRing;
+import ecs.ServerNode;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Open sockets to the servers of a ring, keyed by server name, so a client
+ * moving between servers reuses a socket instead of connecting again.
+ * <p>
+ * Each server keeps at most maxIdlePerNode idle sockets. Sockets idle for
+ * longer than idleTimeoutMillis are closed, as are the sockets to servers
+ * that leave the ring or move to another address.
+ */
+public class ConnectionPool {
+	public static Logger logger = Logger.getLogger("ConnectionPool");
+
+	private final int maxIdlePerNode;
+	private final long idleTimeoutMillis;
+
+	// Idle sockets by server name, most recently released last
+	private final Map<String, ArrayDeque<IdleSocket>> idle = new HashMap<>();
+
+	public ConnectionPool(int maxIdlePerNode, long idleTimeoutMillis) {
+		this.maxIdlePerNode = maxIdlePerNode;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/**
+	 * Take an idle socket to the server, or connect a new one if there are none
+	 */
+	public Socket acquire(ServerNode node) throws IOException {
+		synchronized (this) {
+			evictExpired(System.currentTimeMillis());
+
+			ArrayDeque<IdleSocket> sockets = idle.get(node.getNodeName());
+			while (sockets != null && !sockets.isEmpty()) {
+				IdleSocket idleSocket = sockets.pollLast();
+				if (idleSocket.isFor(node) && idleSocket.isUsable()) {
+					return idleSocket.socket;
+				}
+				close(idleSocket.socket);
+			}
+		}
+
+		return new Socket(node.getNodeHost(), node.getNodePort());
+	}
+
+	/**
+	 * Return a socket that is no longer in use. It is closed if the server
+	 * already has enough idle sockets.
+	 */
+	public synchronized void release(ServerNode node, Socket socket) {
+		long now = System.currentTimeMillis();
+		evictExpired(now);
+
+		ArrayDeque<IdleSocket> sockets = idle.computeIfAbsent(node.getNodeName(), name -> new ArrayDeque<>());
+		if (sockets.size() >= maxIdlePerNode || socket.isClosed()) {
+			close(socket);
+			return;
+		}
+
+		sockets.addLast(new IdleSocket(socket, node.getNodeHost(), node.getNodePort(), now));
+	}
+
+	/**
+	 * Close the idle sockets to servers that are not in the ring, or are at
+	 * a different address in it
+	 */
+	public synchronized void retain(HashRing hashRing) {
+		Map<String, ServerNode> nodes = new HashMap<>();
+		for (ServerNode node : hashRing.getNodes()) {
+			nodes.put(node.getNodeName(), node);
+		}
+
+		Iterator<Map.Entry<String, ArrayDeque<IdleSocket>>> it = idle.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, ArrayDeque<IdleSocket>> entry = it.next();
+			ServerNode node = nodes.get(entry.getKey());
+
+			Iterator<IdleSocket> sockets = entry.getValue().iterator();
+			while (sockets.hasNext()) {
+				IdleSocket idleSocket = sockets.next();
+				if (node == null || !idleSocket.isFor(node)) {
+					close(idleSocket.socket);
+					sockets.remove();
+				}
+			}
+
+			if (entry.getValue().isEmpty()) it.remove();
+		}
+	}
+
+	/**
+	 * @return Number of idle sockets held for the server
+	 */
+	public synchronized int idleCount(String nodeName) {
+		ArrayDeque<IdleSocket> sockets = idle.get(nodeName);
+		return sockets == null ? 0 : sockets.size();
+	}
+
+	/**
+	 * Close every idle socket. The pool can still be used afterwards.
+	 */
+	public synchronized void close() {
+		for (ArrayDeque<IdleSocket> sockets : idle.values()) {
+			for (IdleSocket idleSocket : sockets) {
+				close(idleSocket.socket);
+			}
+		}
+		idle.clear();
+	}
+
+	private void evictExpired(long now) {
+		Iterator<ArrayDeque<IdleSocket>> it = idle.values().iterator();
+		while (it.hasNext()) {
+			ArrayDeque<IdleSocket> sockets = it.next();
+
+			// Sockets are released in order, so the oldest are first
+			while (!sockets.isEmpty() && now - sockets.peekFirst().idleSince > idleTimeoutMillis) {
+				close(sockets.pollFirst().socket);
+			}
+
+			if (sockets.isEmpty()) it.remove();
+		}
+	}
+
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			logger.warn("Unable to close pooled connection", e);
+		}
+	}
+
+	private static class IdleSocket {
+		private final Socket socket;
+		private final String host;
+		private final int port;
+		private final long idleSince;
+
+		private IdleSocket(Socket socket, String host, int port, long idleSince) {
+			this.socket = socket;
+			this.host = host;
+			this.port = port;
+			this.idleSince = idleSince;
+		}
+
+		private boolean isFor(ServerNode node) {
+			return host.equals(node.getNodeHost()) && port == node.getNodePort();
+		}
+
+		/**
+		 * A server closing the connection is only seen on the next read, but
+		 * a socket with unread bytes waiting is out of step with its server
+		 */
+		private boolean isUsable() {
+			if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+				return false;
+			}
+
+			try {
+				return socket.getInputStream().available() == 0;
+			} catch (IOException e) {
+				return false;
+			}
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package client;
+
+import shared.messages.KVMessage;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous counterpart of KVCommInterface. Implementations are safe to
+ * share between threads, and any number of requests can be in flight at
+ * once.
+ */
+public interface KVAsyncCommInterface {
+
+	/**
+	 * Establishes a connection to the KV Server.
+	 *
+	 * @throws Exception
+	 *             if connection could not be established.
+	 */
+	public void connect() throws Exception;
+
+	/**
+	 * disconnects the client from every server. Requests still in flight
+	 * complete exceptionally.
+	 */
+	public void disconnect();
+
+	/**
+	 * Inserts a key-value pair into the KVServer.
+	 *
+	 * @param key
+	 *            the key that identifies the given value.
+	 * @param value
+	 *            the value that is indexed by the given key.
+	 * @return a future of the message that confirms the insertion of the
+	 *         tuple or an error. It completes exceptionally if the request
+	 *         cannot be sent to any server.
+	 */
+	public CompletableFuture<KVMessage> putAsync(String key, String value);
+	public CompletableFuture<KVMessage> putTTLAsync(String key, String value, Long ttl);
+
+	/**
+	 * Retrieves the value for a given key from the KVServer.
+	 *
+	 * @param key
+	 *            the key that identifies the value.
+	 * @return a future of the value, which is indexed by the given key. It
+	 *         completes exceptionally if the request cannot be sent to any
+	 *         server.
+	 */
+	public CompletableFuture<KVMessage> getAsync(String key);
+}
@@ -0,0 +1,828 @@
+package client;
+
+import ecs.HashRing;
+import ecs.HashToken;
+import ecs.ServerNode;
+import org.apache.log4j.Logger;
+import shared.Connection;
+import shared.messages.DeserializationException;
+import shared.messages.JsonKVMessage;
+import shared.messages.KVMessage;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client for the storage service that any number of threads can share.
+ * <p>
+ * A single event loop thread owns one non-blocking connection per server.
+ * Requests to the same server are pipelined on its connection, and matched
+ * to responses by request id, since servers answer a connection's requests
+ * in order. Writes go to the server responsible for their key, and reads
+ * to the server the read policy picks from it and its replicas.
+ * SERVER_NOT_RESPONSIBLE responses are retried with the metadata they
+ * carry, and if a server drops its connection, its requests move on to the
+ * next server on the ring, as KVStoreConnection does.
+ * <p>
+ * GETs can be hedged: if a GET has no response after a delay, the same GET
+ * goes to another server holding the key, and the first successful response
+ * answers it. The delay is a percentile of recent GET latencies, so only the
+ * slowest GETs are sent twice. Servers have no way to cancel a request, so
+ * the response that loses is discarded when it arrives.
+ * <p>
+ * Requests use the binary protocol. Futures are completed on the event loop
+ * thread, so callbacks attached to them should not block.
+ */
+public class KVAsyncStoreConnection implements KVAsyncCommInterface {
+	public static Logger logger = Logger.getLogger("KVAsyncStoreConnection");
+
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+
+	// Number of recent GET latencies the hedge delay is taken from
+	private static final int LATENCY_WINDOW = 1024;
+
+	private final String hostname;
+	private final int port;
+
+	private Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private volatile boolean running = false;
+
+	// Only used on the event loop thread
+	private HashRing hashRing;
+	private final Map<String, ServerChannel> channels = new HashMap<>();
+
+	// Set when a server forwarding requests hints at a newer ring
+	private boolean hashRingStale = false;
+	private int lastRequestId = 0;
+
+	// Picks which of the servers holding a key reads go to
+	private volatile ReplicaSelector readSelector = new ReplicaSelector(ReadPolicy.PRIMARY);
+
+	// Hedging is off while the percentile is 0
+	private volatile double hedgePercentile = 0;
+	private volatile long minHedgeDelayNanos = 0;
+	private final LatencyWindow getLatencies = new LatencyWindow(LATENCY_WINDOW);
+	private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+
+	private final AtomicLong hedgesSent = new AtomicLong();
+	private final AtomicLong hedgesWon = new AtomicLong();
+
+	/**
+	 * @param hostname the address of any KVServer, used until the client
+	 *                 receives the metadata
+	 * @param port     the port of the KVServer
+	 */
+	public KVAsyncStoreConnection(String hostname, int port) {
+		this.hostname = hostname;
+		this.port = port;
+	}
+
+	@Override
+	public void connect() throws IOException {
+		if (running) return;
+
+		// Connect to the first server before returning, so an unreachable
+		// server is reported here rather than by every request
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(hostname, port));
+		selector = Selector.open();
+		running = true;
+
+		execute(() -> {
+			try {
+				register(address(hostname, port), null, channel, true);
+			} catch (IOException e) {
+				logger.error("Unable to register connection to " + hostname + ":" + port, e);
+			}
+		});
+
+		Thread thread = new Thread(this::runEventLoop, "KVAsyncStoreConnection");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void setReadPolicy(ReadPolicy policy) {
+		readSelector = new ReplicaSelector(policy);
+	}
+
+	/**
+	 * Hedge GETs that take longer than the given percentile of recent GET
+	 * latencies
+	 *
+	 * @param percentile     Percentile of GET latency to wait for, between 0
+	 *                       and 100. 0 turns hedging off.
+	 * @param minDelayMillis Shortest time to wait before hedging, which also
+	 *                       applies before any latencies are known
+	 */
+	public void setHedging(double percentile, long minDelayMillis) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("Invalid percentile " + percentile);
+		}
+
+		this.minHedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+		this.hedgePercentile = percentile;
+	}
+
+	/**
+	 * @return Number of GETs sent to a second server because the first was slow
+	 */
+	public long getHedgesSent() {
+		return hedgesSent.get();
+	}
+
+	/**
+	 * @return Number of hedged GETs answered by the second server
+	 */
+	public long getHedgesWon() {
+		return hedgesWon.get();
+	}
+
+	@Override
+	public void disconnect() {
+		if (!running) return;
+		running = false;
+
+		execute(() -> {
+			for (ServerChannel channel : new ArrayList<>(channels.values())) {
+				channel.close(new IOException("Connection closed"));
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				logger.error("Unable to close selector", e);
+			}
+		});
+	}
+
+	@Override
+	public CompletableFuture<KVMessage> putAsync(String key, String value) {
+		return putTTLAsync(key, value, null);
+	}
+
+	@Override
+	public CompletableFuture<KVMessage> putTTLAsync(String key, String value, Long ttl) {
+		JsonKVMessage req = new JsonKVMessage(KVMessage.StatusType.PUT);
+		req.setKey(key);
+		req.setValue(value);
+		req.setTTL(ttl);
+		return submit(req);
+	}
+
+	@Override
+	public CompletableFuture<KVMessage> getAsync(String key) {
+		JsonKVMessage req = new JsonKVMessage(KVMessage.StatusType.GET);
+		req.setKey(key);
+		return submit(req);
+	}
+
+	private CompletableFuture<KVMessage> submit(JsonKVMessage message) {
+		Request request = new Request(message, HashToken.of(message.getKey()));
+
+		if (!running) {
+			request.future.completeExceptionally(new IOException("Not connected"));
+		} else {
+			execute(() -> {
+				send(request);
+				scheduleHedge(request);
+			});
+
+			// The event loop may have stopped before the task was queued, and
+			// then never runs it. If it does run, send() finds the future done.
+			if (!running) {
+				request.future.completeExceptionally(new IOException("Connection closed"));
+			}
+		}
+
+		return request.future;
+	}
+
+	/**
+	 * Run a task on the event loop thread
+	 */
+	private void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	private void runEventLoop() {
+		try {
+			while (selector.isOpen()) {
+				Timer timer = timers.peek();
+				if (timer == null) {
+					selector.select();
+				} else {
+					long wait = timer.deadline - System.nanoTime();
+					if (wait > 0) {
+						// Round up, so the timer is due when select() returns
+						selector.select(TimeUnit.NANOSECONDS.toMillis(wait + 999999));
+					} else {
+						selector.selectNow();
+					}
+				}
+
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+
+				long now = System.nanoTime();
+				while (!timers.isEmpty() && timers.peek().deadline <= now) {
+					timers.poll().task.run();
+				}
+
+				if (!selector.isOpen()) break;
+
+				for (SelectionKey key : selector.selectedKeys()) {
+					ServerChannel channel = (ServerChannel) key.attachment();
+
+					if (key.isValid() && key.isConnectable()) {
+						channel.onConnectable();
+					}
+					if (key.isValid() && key.isWritable()) {
+						channel.onWritable();
+					}
+					if (key.isValid() && key.isReadable()) {
+						channel.onReadable();
+					}
+				}
+				selector.selectedKeys().clear();
+			}
+		} catch (IOException | ClosedSelectorException e) {
+			if (running) {
+				logger.error("Client event loop stopped", e);
+			}
+		}
+
+		// Anything submitted while the loop was stopping will never be sent
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	/**
+	 * Send a request to the server it should go to next
+	 */
+	private void send(Request request) {
+		// The other request of a hedged GET already answered it
+		if (request.future.isDone()) return;
+
+		if (!running) {
+			fail(request, new IOException("Connection closed"));
+			return;
+		}
+
+		ServerNode node = request.target;
+		if (node == null && hashRing != null) {
+			node = request.message.getStatus() == KVMessage.StatusType.GET
+					? readSelector.select(hashRing, request.keyHash)
+					: hashRing.getNodeForKey(request.keyHash);
+		}
+
+		ServerChannel channel;
+		try {
+			channel = getChannel(node);
+		} catch (IOException e) {
+			logger.warn("Unable to connect to " + (node == null ? hostname + ":" + port : node.getNodeName()));
+			failOver(request, node, e);
+			return;
+		}
+
+		request.sentTo = node;
+		channel.send(request);
+	}
+
+	/**
+	 * Retry a request whose server could not be reached on the next server
+	 * on the ring, trying each server at most once
+	 */
+	private void failOver(Request request, ServerNode failedNode, IOException cause) {
+		request.attempts++;
+
+		ServerNode node = failedNode == null || hashRing == null ? null : hashRing.getNode(failedNode.getNodeName());
+		if (node == null || request.attempts >= hashRing.getNodes().size()) {
+			fail(request, cause);
+			return;
+		}
+
+		request.target = node.getSuccessor();
+		send(request);
+	}
+
+	private void onResponse(Request request, JsonKVMessage res) {
+		if (res.getMetadata() != null
+				&& (hashRing == null || res.getMetadata().getEpoch() >= hashRing.getEpoch())) {
+			hashRing = res.getMetadata();
+			hashRingStale = false;
+			readSelector.retain(hashRing);
+		} else if (res.getMetadata() == null && res.getEpoch() != null
+				&& hashRing != null && res.getEpoch() > hashRing.getEpoch()) {
+			// Forwarded responses only carry the server's epoch, and the
+			// metadata is asked for with the next request
+			hashRingStale = true;
+		}
+
+		if (res.getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE && hashRing != null
+				&& request.attempts < hashRing.getNodes().size()) {
+			// Route again with the updated metadata
+			request.attempts++;
+			request.target = null;
+			send(request);
+			return;
+		}
+
+		complete(request, res);
+	}
+
+	private void complete(Request request, KVMessage res) {
+		HedgedGet hedge = request.hedge;
+		if (hedge == null) {
+			request.future.complete(res);
+			return;
+		}
+
+		hedge.pending--;
+		boolean success = res.getStatus() == KVMessage.StatusType.GET_SUCCESS;
+
+		if (success || hedge.pending == 0) {
+			KVMessage answer = success || hedge.fallback == null ? res : hedge.fallback;
+			// Counted first, so the count is up to date when the future completes
+			if (request.isHedge && answer == res && !request.future.isDone()) {
+				hedgesWon.incrementAndGet();
+			}
+			request.future.complete(answer);
+			abandonOthers(request);
+		} else if (hedge.fallback == null) {
+			// Wait for the other request in case it succeeds
+			hedge.fallback = res;
+		}
+	}
+
+	private void fail(Request request, Throwable cause) {
+		HedgedGet hedge = request.hedge;
+		if (hedge == null) {
+			request.future.completeExceptionally(cause);
+			return;
+		}
+
+		hedge.pending--;
+		if (hedge.pending == 0) {
+			if (hedge.fallback != null) {
+				request.future.complete(hedge.fallback);
+			} else {
+				request.future.completeExceptionally(cause);
+			}
+		}
+	}
+
+	/**
+	 * Stop waiting for the other request of an answered hedged GET, so its
+	 * connection drops the response when it arrives
+	 */
+	private void abandonOthers(Request answered) {
+		for (Request other : answered.hedge.requests) {
+			if (other != answered && other.channel != null) {
+				other.channel.abandon(other);
+			}
+		}
+	}
+
+	/**
+	 * Send a GET to a second server if the first has not answered it after
+	 * the hedge delay
+	 */
+	private void scheduleHedge(Request request) {
+		double percentile = hedgePercentile;
+		if (percentile == 0 || request.message.getStatus() != KVMessage.StatusType.GET
+				|| request.future.isDone()) {
+			return;
+		}
+
+		request.hedge = new HedgedGet();
+		request.hedge.requests.add(request);
+		long delay = Math.max(minHedgeDelayNanos, getLatencies.percentile(percentile));
+		timers.add(new Timer(System.nanoTime() + delay, () -> sendHedge(request)));
+	}
+
+	private void sendHedge(Request request) {
+		if (request.future.isDone() || hashRing == null || request.sentTo == null) return;
+
+		// Any of the other servers holding the key can answer it
+		List<ServerNode> candidates = new ArrayList<>(ServerNode.NUM_REPLICAS + 1);
+		candidates.add(hashRing.getNodeForKey(request.keyHash));
+		candidates.addAll(hashRing.getReplicasForKey(request.keyHash, ServerNode.NUM_REPLICAS));
+
+		for (ServerNode candidate : candidates) {
+			if (candidate == null || candidate.getNodeName().equals(request.sentTo.getNodeName())) continue;
+
+			JsonKVMessage req = new JsonKVMessage(KVMessage.StatusType.GET);
+			req.setKey(request.message.getKey());
+
+			Request hedgeRequest = new Request(req, request.keyHash, request.future);
+			hedgeRequest.hedge = request.hedge;
+			hedgeRequest.isHedge = true;
+			hedgeRequest.target = candidate;
+
+			request.hedge.pending++;
+			request.hedge.requests.add(hedgeRequest);
+			hedgesSent.incrementAndGet();
+			send(hedgeRequest);
+			return;
+		}
+	}
+
+	private int nextRequestId() {
+		if (++lastRequestId == 0) lastRequestId++;
+		return lastRequestId;
+	}
+
+	private static String address(String host, int port) {
+		return host + ":" + port;
+	}
+
+	/**
+	 * @param node Server to connect to, or null for the server given to the
+	 *             constructor
+	 * @return The open connection to the server, connecting if there is none
+	 */
+	private ServerChannel getChannel(ServerNode node) throws IOException {
+		String host = node == null ? hostname : node.getNodeHost();
+		int port = node == null ? this.port : node.getNodePort();
+		String address = address(host, port);
+
+		ServerChannel channel = channels.get(address);
+		if (channel != null) return channel;
+
+		SocketChannel socketChannel = SocketChannel.open();
+		try {
+			socketChannel.configureBlocking(false);
+			boolean connected = socketChannel.connect(new InetSocketAddress(host, port));
+			return register(address, node, socketChannel, connected);
+		} catch (IOException e) {
+			socketChannel.close();
+			throw e;
+		}
+	}
+
+	private ServerChannel register(String address, ServerNode node, SocketChannel socketChannel,
+	                               boolean connected) throws IOException {
+		socketChannel.configureBlocking(false);
+		socketChannel.socket().setTcpNoDelay(true);
+
+		ServerChannel channel = new ServerChannel(address, node, socketChannel, connected);
+		channel.selectionKey = socketChannel.register(selector,
+				connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, channel);
+		channels.put(address, channel);
+
+		return channel;
+	}
+
+	private static class Request {
+		private final JsonKVMessage message;
+		private final HashToken keyHash;
+		private final CompletableFuture<KVMessage> future;
+
+		// Server to send to instead of the one routing picks, after that one
+		// could not be reached or for a hedged GET
+		private ServerNode target;
+		private int attempts = 0;
+
+		// Server the request was last routed to, and when it was sent
+		private ServerNode sentTo;
+		private long sentAt;
+
+		// Connection the request is waiting for a response on
+		private ServerChannel channel;
+
+		// Shared by both requests of a hedged GET
+		private HedgedGet hedge;
+		private boolean isHedge = false;
+
+		private Request(JsonKVMessage message, HashToken keyHash) {
+			this(message, keyHash, new CompletableFuture<>());
+		}
+
+		private Request(JsonKVMessage message, HashToken keyHash, CompletableFuture<KVMessage> future) {
+			this.message = message;
+			this.keyHash = keyHash;
+			this.future = future;
+		}
+	}
+
+	/**
+	 * State of a GET that may be sent to two servers
+	 */
+	private static class HedgedGet {
+		// Requests sent that have not been answered
+		private int pending = 1;
+
+		// First unsuccessful response, used if neither request succeeds
+		private KVMessage fallback;
+
+		// The original request, and the hedge once it is sent
+		private final List<Request> requests = new ArrayList<>(2);
+	}
+
+	private static class Timer implements Comparable<Timer> {
+		private final long deadline;
+		private final Runnable task;
+
+		private Timer(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(Timer other) {
+			return Long.compare(deadline, other.deadline);
+		}
+	}
+
+	/**
+	 * The most recent latencies, for taking percentiles of
+	 */
+	private static class LatencyWindow {
+		private final long[] samples;
+		private int count = 0;
+		private int next = 0;
+
+		// Percentiles are recomputed after this many new samples
+		private static final int RECOMPUTE_INTERVAL = 64;
+		private int sinceSorted = RECOMPUTE_INTERVAL;
+		private long[] sorted = new long[0];
+
+		private LatencyWindow(int size) {
+			this.samples = new long[size];
+		}
+
+		private void add(long latencyNanos) {
+			samples[next] = latencyNanos;
+			next = (next + 1) % samples.length;
+			count = Math.min(count + 1, samples.length);
+			sinceSorted++;
+		}
+
+		/**
+		 * @return The latency at the given percentile, or 0 if there are none
+		 */
+		private long percentile(double percentile) {
+			if (count == 0) return 0;
+
+			if (sinceSorted >= RECOMPUTE_INTERVAL || sorted.length != count) {
+				sorted = Arrays.copyOf(samples, count);
+				Arrays.sort(sorted);
+				sinceSorted = 0;
+			}
+
+			int index = (int) Math.ceil(percentile / 100 * count) - 1;
+			return sorted[Math.max(0, Math.min(count - 1, index))];
+		}
+	}
+
+	/**
+	 * Connection to one server, with the requests sent on it that are
+	 * waiting for a response
+	 */
+	private class ServerChannel {
+		private final String address;
+		private final ServerNode node;
+		private final SocketChannel channel;
+		private SelectionKey selectionKey;
+		private boolean connected;
+
+		// Kept in write mode: position is the number of bytes received but not yet processed
+		private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+
+		// Requests waiting for a response, by request id, in the order they were sent
+		private final LinkedHashMap<Integer, Request> inFlight = new LinkedHashMap<>();
+
+		// Send times of requests answered by another server, whose responses are dropped
+		private final Map<Integer, Long> abandoned = new HashMap<>();
+
+		private ServerChannel(String address, ServerNode node, SocketChannel channel, boolean connected) {
+			this.address = address;
+			this.node = node;
+			this.channel = channel;
+			this.connected = connected;
+		}
+
+		private void send(Request request) {
+			JsonKVMessage req = request.message;
+			// The server only attaches metadata if this epoch is stale, and
+			// always attaches it if there is none
+			req.setEpoch(hashRing == null || hashRingStale ? null : hashRing.getEpoch());
+			req.setRequestId(nextRequestId());
+
+			request.sentAt = System.nanoTime();
+			if (node != null) readSelector.onRequestSent(node);
+
+			request.channel = this;
+			inFlight.put(req.getRequestId(), request);
+			writeQueue.add(Connection.encodeMessage(req, Connection.BINARY_PROTOCOL_VERSION, null));
+
+			if (connected) {
+				try {
+					flushWrites();
+				} catch (IOException e) {
+					close(e);
+				}
+			}
+		}
+
+		/**
+		 * Stop waiting for a request's response, which is dropped when it arrives
+		 */
+		private void abandon(Request request) {
+			int requestId = request.message.getRequestId();
+			if (inFlight.remove(requestId, request)) {
+				abandoned.put(requestId, request.sentAt);
+			}
+		}
+
+		private void onConnectable() {
+			try {
+				connected = channel.finishConnect();
+				if (connected) flushWrites();
+			} catch (IOException e) {
+				close(e);
+			}
+		}
+
+		private void onWritable() {
+			try {
+				flushWrites();
+			} catch (IOException e) {
+				close(e);
+			}
+		}
+
+		private void onReadable() {
+			try {
+				while (true) {
+					if (!readBuffer.hasRemaining()) {
+						growReadBuffer(readBuffer.capacity() * 2);
+					}
+
+					int bytesRead = channel.read(readBuffer);
+					if (bytesRead == -1) {
+						close(new IOException("Connection terminated"));
+						return;
+					}
+					if (bytesRead == 0) break;
+				}
+
+				processResponses();
+			} catch (IOException e) {
+				close(e);
+			}
+		}
+
+		private void flushWrites() throws IOException {
+			while (!writeQueue.isEmpty()) {
+				ByteBuffer buffer = writeQueue.peek();
+				channel.write(buffer);
+
+				if (buffer.hasRemaining()) {
+					// The socket send buffer is full, wait until it drains
+					break;
+				}
+
+				writeQueue.poll();
+			}
+
+			selectionKey.interestOps(SelectionKey.OP_READ
+					| (writeQueue.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+		}
+
+		private void growReadBuffer(int capacity) {
+			ByteBuffer grown = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+			readBuffer.flip();
+			grown.put(readBuffer);
+			readBuffer = grown;
+		}
+
+		/**
+		 * Complete the requests whose responses have been received in full
+		 */
+		private void processResponses() throws IOException {
+			while (readBuffer.position() >= Connection.HEADER_SIZE) {
+				int messageLength = readBuffer.getInt(1);
+				if (messageLength < 0) {
+					throw new IOException("Invalid message length " + messageLength);
+				}
+
+				int packetLength = Connection.HEADER_SIZE + messageLength;
+				if (readBuffer.position() < packetLength) {
+					if (readBuffer.capacity() < packetLength) {
+						growReadBuffer(packetLength);
+					}
+					return;
+				}
+
+				int requestId = readBuffer.getInt(Connection.REQUEST_ID_OFFSET);
+				byte[] packet = new byte[packetLength];
+				readBuffer.flip();
+				readBuffer.get(packet);
+				readBuffer.compact();
+
+				Long abandonedAt = abandoned.remove(requestId);
+				if (abandonedAt != null) {
+					// The other server of a hedged GET already answered it
+					recordLatency(System.nanoTime() - abandonedAt, true);
+					continue;
+				}
+
+				Request request = requestId == 0 ? pollOldest() : inFlight.remove(requestId);
+				if (request == null) {
+					throw new IOException("Received response " + requestId + " with no request in flight");
+				}
+
+				JsonKVMessage res;
+				try {
+					res = Connection.decodeMessage(ByteBuffer.wrap(packet, 0, Connection.HEADER_SIZE),
+							ByteBuffer.wrap(packet, Connection.HEADER_SIZE, messageLength));
+				} catch (DeserializationException e) {
+					logger.error(e.getMessage());
+					if (node != null) readSelector.onRequestFailed(node);
+					fail(request, e);
+					continue;
+				}
+
+				recordLatency(System.nanoTime() - request.sentAt,
+						request.message.getStatus() == KVMessage.StatusType.GET);
+				onResponse(request, res);
+			}
+		}
+
+		/**
+		 * @return The request sent first that is still waiting, for servers
+		 * which do not echo request ids
+		 */
+		private Request pollOldest() {
+			Iterator<Request> requests = inFlight.values().iterator();
+			if (!requests.hasNext()) return null;
+
+			Request request = requests.next();
+			requests.remove();
+			return request;
+		}
+
+		private void recordLatency(long latency, boolean isGet) {
+			if (node != null) readSelector.onResponse(node, latency);
+			if (isGet) getLatencies.add(latency);
+		}
+
+		/**
+		 * Close the connection and retry its requests elsewhere
+		 */
+		private void close(IOException cause) {
+			if (channels.get(address) == this) {
+				channels.remove(address);
+			}
+
+			selectionKey.cancel();
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.error("Error! Unable to close connection: ", e);
+			}
+
+			if (running) {
+				logger.warn("Connection to " + address + " closed: " + cause.getMessage());
+			}
+
+			if (node != null) {
+				for (int i = 0; i < abandoned.size(); i++) {
+					readSelector.onRequestFailed(node);
+				}
+			}
+			abandoned.clear();
+
+			Request request;
+			while ((request = pollOldest()) != null) {
+				if (node != null) readSelector.onRequestFailed(node);
+				failOver(request, node, cause);
+			}
+		}
+	}
+}
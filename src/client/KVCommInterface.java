@@ -2,6 +2,9 @@ package client;
 
 import shared.messages.KVMessage;
 
+import java.util.List;
+import java.util.Map;
+
 public interface KVCommInterface {
 
 	/**
@@ -43,4 +46,56 @@ public interface KVCommInterface {
 	 *             KV server).
 	 */
 	public KVMessage get(String key) throws Exception;
+
+	/**
+	 * Retrieves the values for several keys, batching the keys held by the
+	 * same server into a single request.
+	 *
+	 * @param keys
+	 *            the keys to retrieve.
+	 * @return one message per key, in the same order as the keys.
+	 * @throws Exception
+	 *             if the command cannot be executed (e.g. not connected to any
+	 *             KV server).
+	 */
+	public List<KVMessage> mget(List<String> keys) throws Exception;
+
+	/**
+	 * Inserts several key-value pairs, batching the pairs held by the same
+	 * server into a single request.
+	 *
+	 * @param pairs
+	 *            the key-value pairs to insert.
+	 * @return one message per pair, in the iteration order of the map.
+	 * @throws Exception
+	 *             if the command cannot be executed (e.g. not connected to any
+	 *             KV server).
+	 */
+	public List<KVMessage> mput(Map<String, String> pairs) throws Exception;
+
+	/**
+	 * Deletes several keys, batching the keys held by the same server into a
+	 * single request.
+	 *
+	 * @param keys
+	 *            the keys to delete.
+	 * @return one message per key, in the same order as the keys.
+	 * @throws Exception
+	 *             if the command cannot be executed (e.g. not connected to any
+	 *             KV server).
+	 */
+	public List<KVMessage> mdelete(List<String> keys) throws Exception;
+
+	/**
+	 * Sends several requests to the connected server without waiting for
+	 * each reply before sending the next.
+	 *
+	 * @param requests
+	 *            the requests to send.
+	 * @return the responses, in the same order as the requests.
+	 * @throws Exception
+	 *             if the requests cannot be sent (e.g. not connected to any
+	 *             KV server).
+	 */
+	public List<KVMessage> pipeline(List<? extends KVMessage> requests) throws Exception;
 }
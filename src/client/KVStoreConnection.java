@@ -2,6 +2,7 @@ package client;
 
 import ecs.ServerNode;
 import ecs.HashRing;
+import ecs.HashToken;
 import org.apache.log4j.Logger;
 import shared.Connection;
 import shared.messages.DeserializationException;
@@ -10,14 +11,38 @@ import shared.messages.KVMessage;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class KVStoreConnection extends Connection implements KVCommInterface {
 	public static Logger logger = Logger.getLogger("KVStoreConnection");
 	private HashRing hashRing;
 	private ServerNode currentNode;
+
+	// Set when a server forwarding requests hints at a newer ring
+	private boolean hashRingStale = false;
 	private boolean retry = false;
 	private int retryAttempts = 0;
 
+	// Most requests pipeline() sends before waiting for a reply
+	private static final int PIPELINE_WINDOW = 64;
+
+	// Connections to servers other than the current one are kept open in
+	// the pool, so routing a request to another server doesn't reconnect
+	private static final int MAX_IDLE_PER_NODE = 2;
+	private static final long IDLE_TIMEOUT_MILLIS = 60000;
+	private final ConnectionPool pool = new ConnectionPool(MAX_IDLE_PER_NODE, IDLE_TIMEOUT_MILLIS);
+
+	// Picks which of the servers holding a key get() reads it from
+	private ReplicaSelector readSelector = new ReplicaSelector(ReadPolicy.PRIMARY);
+
+	// Id of the last request sent. 0 is left for servers that don't echo ids
+	private int lastRequestId = 0;
+
 	/**
 	 * Initialize KVStore with address and port of KVServer
 	 * @param hostname the address of the KVServer
@@ -26,28 +51,135 @@ public class KVStoreConnection extends Connection implements KVCommInterface {
 	public KVStoreConnection(String hostname, int port) {
 		this.hostname = hostname;
 		this.port = port;
+		this.protocolVersion = BINARY_PROTOCOL_VERSION;
 	}
 
 	@Override
 	public void connect() throws Exception {
-		socket = new Socket(hostname, port);
-		input = socket.getInputStream();
-		output = socket.getOutputStream();
+		useSocket(new Socket(hostname, port));
+	}
+
+	public void setReadPolicy(ReadPolicy policy) {
+		readSelector = new ReplicaSelector(policy);
+	}
+
+	/**
+	 * Close the current connection and every pooled one
+	 */
+	@Override
+	public void disconnect() {
+		dropConnection();
+		pool.close();
+	}
+
+	private void useSocket(Socket socket) throws IOException {
+		this.socket = socket;
+		this.input = socket.getInputStream();
+		this.output = socket.getOutputStream();
+	}
+
+	/**
+	 * Close the current connection instead of returning it to the pool,
+	 * for instance because the server terminated it
+	 */
+	private void dropConnection() {
+		super.disconnect();
+		socket = null;
+	}
+
+	/**
+	 * Send a request and receive its response.
+	 * <p>
+	 * Requests start out with the binary protocol. Servers that only speak
+	 * JSON reject them as a bad request in JSON, in which case this
+	 * connection falls back to JSON for good and resends the request.
+	 */
+	private JsonKVMessage sendRequest(JsonKVMessage req) throws IOException, DeserializationException {
+		req.setEpoch(knownEpoch());
+		req.setRequestId(nextRequestId());
+
+		sendMessage(req);
+		JsonKVMessage res = receiveMessage();
+		checkRequestId(req.getRequestId(), res);
+
+		if (protocolVersion == BINARY_PROTOCOL_VERSION
+				&& receivedProtocolVersion != BINARY_PROTOCOL_VERSION
+				&& res.getStatus() == KVMessage.StatusType.BAD_REQUEST) {
+			logger.info("Server does not support the binary protocol, falling back to JSON");
+			protocolVersion = PROTOCOL_VERSION;
+
+			sendMessage(req);
+			res = receiveMessage();
+			checkRequestId(req.getRequestId(), res);
+		}
+
+		return res;
 	}
 
+	/**
+	 * @return Epoch to send with requests. The server only attaches
+	 * metadata if it is stale, and always attaches it if there is none.
+	 */
+	private Long knownEpoch() {
+		return hashRing == null || hashRingStale ? null : hashRing.getEpoch();
+	}
+
+	private int nextRequestId() {
+		if (++lastRequestId == 0) lastRequestId++;
+		return lastRequestId;
+	}
+
+	private static void checkRequestId(int requestId, KVMessage res) throws IOException {
+		if (res.getRequestId() != 0 && res.getRequestId() != requestId) {
+			throw new IOException("Received response " + res.getRequestId()
+					+ " for request " + requestId);
+		}
+	}
+
+	private void updateMetadata(KVMessage res) {
+		if (res.getMetadata() == null) {
+			// Forwarded responses only carry the server's epoch, and the
+			// metadata is asked for with the next request
+			if (res.getEpoch() != null && hashRing != null && res.getEpoch() > hashRing.getEpoch()) {
+				hashRingStale = true;
+			}
+		} else {
+			hashRing = res.getMetadata();
+			hashRingStale = false;
+			if (currentNode != null) {
+				currentNode = hashRing.getNode(currentNode.getNodeName());
+			}
+			pool.retain(hashRing);
+			readSelector.retain(hashRing);
+		}
+	}
+
+	/**
+	 * Move to another server. The current connection goes back to the pool,
+	 * and the server's pooled connection is used if it has one.
+	 */
 	private void switchServers(ServerNode node) throws Exception {
+		if (socket != null) {
+			if (currentNode != null) {
+				pool.release(currentNode, socket);
+				socket = null;
+			} else {
+				// Connected by address before the ring was known
+				dropConnection();
+			}
+		}
+
 		this.hostname = node.getNodeHost();
 		this.port = node.getNodePort();
-		this.disconnect();
-		this.connect();
+		useSocket(pool.acquire(node));
 	}
 
 	private void switchToSuccessor() throws Exception {
 		if (hashRing == null) return;
 
 		ServerNode successor = currentNode.getSuccessor();
-		this.currentNode = successor;
 		switchServers(successor);
+		this.currentNode = successor;
 	}
 
 	@Override
@@ -61,8 +193,9 @@ public class KVStoreConnection extends Connection implements KVCommInterface {
 		if (!retry) {
 			if (hashRing != null) {
 
-				ServerNode responsibleNode = hashRing.getNodeForKey(key);
-				if (currentNode == null || !currentNode.isNodeResponsible(key)) {
+				HashToken keyToken = HashToken.of(key);
+				ServerNode responsibleNode = hashRing.getNodeForKey(keyToken);
+				if (currentNode == null || socket == null || !currentNode.isNodeResponsible(keyToken)) {
 					switchServers(responsibleNode);
 					this.currentNode = responsibleNode;
 				}
@@ -75,12 +208,8 @@ public class KVStoreConnection extends Connection implements KVCommInterface {
 		}
 
 		try {
-			sendMessage(req);
-			res = receiveMessage();
-			hashRing = res.getMetadata();
-			if (hashRing != null && currentNode != null) {
-				currentNode = hashRing.getNode(currentNode.getNodeName());
-			}
+			res = sendRequest(req);
+			updateMetadata(res);
 
 			retry = false;
 			if (res.getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
@@ -101,6 +230,7 @@ public class KVStoreConnection extends Connection implements KVCommInterface {
 
 			// Server has terminated the connection
 			if (hashRing == null) throw e;
+			dropConnection();
 
 			if (retryAttempts == hashRing.getNodes().size()) {
 				retry = false;
@@ -128,10 +258,12 @@ public class KVStoreConnection extends Connection implements KVCommInterface {
 		if (!retry) {
 			if (hashRing != null) {
 
-				ServerNode responsibleNode = hashRing.getNodeForKey(key);
-				if (currentNode == null || (!currentNode.doesNodeReplicateKey(key) && !currentNode.isNodeResponsible(key))) {
-					switchServers(responsibleNode);
-					this.currentNode = responsibleNode;
+				HashToken keyToken = HashToken.of(key);
+				ServerNode readNode = readSelector.select(hashRing, keyToken);
+				if (currentNode == null || socket == null
+						|| !currentNode.getNodeName().equals(readNode.getNodeName())) {
+					switchServers(readNode);
+					this.currentNode = readNode;
 				}
 			}
 
@@ -141,15 +273,13 @@ public class KVStoreConnection extends Connection implements KVCommInterface {
 			retryAttempts++;
 		}
 
+		ServerNode readNode = currentNode;
 		try {
-			sendMessage(req);
-			res = receiveMessage();
-			// TODO: Have a way to request metadata from the server after retries,
-			//  rather than always sending it to save network traffic
-			hashRing = res.getMetadata();
-			if (hashRing != null && currentNode != null) {
-				currentNode = hashRing.getNode(currentNode.getNodeName());
-			}
+			long start = System.nanoTime();
+			if (readNode != null) readSelector.onRequestSent(readNode);
+			res = sendRequest(req);
+			if (readNode != null) readSelector.onResponse(readNode, System.nanoTime() - start);
+			updateMetadata(res);
 
 			retry = false;
 			if (res.getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
@@ -162,11 +292,13 @@ public class KVStoreConnection extends Connection implements KVCommInterface {
 			res.setKey(key);
 			res.setMessage(e.getMessage());
 		} catch (IOException e) {
+			if (readNode != null) readSelector.onRequestFailed(readNode);
 			if (!e.getMessage().equals("Connection terminated"))
 				throw e;
 
 			// Server has terminated the connection
 			if (hashRing == null) throw e;
+			dropConnection();
 
 			if (retryAttempts == hashRing.getNodes().size()) {
 				retry = false;
@@ -179,4 +311,152 @@ public class KVStoreConnection extends Connection implements KVCommInterface {
 
 		return res;
 	}
+
+	@Override
+	public List<KVMessage> mget(List<String> keys) throws Exception {
+		List<JsonKVMessage> entries = new ArrayList<>(keys.size());
+		for (String key : keys) {
+			JsonKVMessage entry = new JsonKVMessage();
+			entry.setKey(key);
+			entries.add(entry);
+		}
+
+		return sendBatch(KVMessage.StatusType.MGET, entries);
+	}
+
+	@Override
+	public List<KVMessage> mput(Map<String, String> pairs) throws Exception {
+		List<JsonKVMessage> entries = new ArrayList<>(pairs.size());
+		for (Map.Entry<String, String> pair : pairs.entrySet()) {
+			JsonKVMessage entry = new JsonKVMessage();
+			entry.setKey(pair.getKey());
+			entry.setValue(pair.getValue());
+			entries.add(entry);
+		}
+
+		return sendBatch(KVMessage.StatusType.MPUT, entries);
+	}
+
+	@Override
+	public List<KVMessage> mdelete(List<String> keys) throws Exception {
+		List<JsonKVMessage> entries = new ArrayList<>(keys.size());
+		for (String key : keys) {
+			JsonKVMessage entry = new JsonKVMessage();
+			entry.setKey(key);
+			entries.add(entry);
+		}
+
+		return sendBatch(KVMessage.StatusType.MDELETE, entries);
+	}
+
+	/**
+	 * Send one batch request to each server responsible for some of the
+	 * entries. Entries a server turns out not to be responsible for, for
+	 * instance because the metadata was stale, are retried one at a time.
+	 */
+	private List<KVMessage> sendBatch(KVMessage.StatusType type, List<JsonKVMessage> entries) throws Exception {
+		KVMessage[] results = new KVMessage[entries.size()];
+
+		// Group the entries by responsible server, in order of first appearance
+		Map<String, Batch> batches = new LinkedHashMap<>();
+		for (int i = 0; i < entries.size(); i++) {
+			ServerNode node = hashRing == null ? null : hashRing.getNodeForKey(entries.get(i).getKey());
+			String name = node == null ? null : node.getNodeName();
+			batches.computeIfAbsent(name, k -> new Batch(node)).indices.add(i);
+		}
+
+		for (Batch batch : batches.values()) {
+			if (batch.node != null && (currentNode == null || socket == null
+					|| !currentNode.getNodeName().equals(batch.node.getNodeName()))) {
+				switchServers(batch.node);
+				this.currentNode = batch.node;
+			}
+
+			List<JsonKVMessage> batchEntries = new ArrayList<>(batch.indices.size());
+			for (int index : batch.indices) {
+				batchEntries.add(entries.get(index));
+			}
+
+			JsonKVMessage req = new JsonKVMessage(type);
+			req.setEntries(batchEntries);
+
+			List<JsonKVMessage> batchResults = null;
+			try {
+				JsonKVMessage res = sendRequest(req);
+				updateMetadata(res);
+
+				if (res.getStatus() == KVMessage.StatusType.BATCH_RESULT && res.getEntries() != null
+						&& res.getEntries().size() == batchEntries.size()) {
+					batchResults = res.getEntries();
+				}
+			} catch (DeserializationException e) {
+				logger.error(e.getMessage());
+			}
+
+			for (int i = 0; i < batch.indices.size(); i++) {
+				JsonKVMessage entry = batchEntries.get(i);
+				JsonKVMessage result = batchResults == null ? null : batchResults.get(i);
+
+				if (result == null || result.getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
+					results[batch.indices.get(i)] = sendSingle(type, entry);
+				} else {
+					results[batch.indices.get(i)] = result;
+				}
+			}
+		}
+
+		return Arrays.asList(results);
+	}
+
+	private KVMessage sendSingle(KVMessage.StatusType type, JsonKVMessage entry) throws Exception {
+		switch (type) {
+			case MGET:
+				return get(entry.getKey());
+			case MDELETE:
+				return put(entry.getKey(), "null");
+			default:
+				return putTTL(entry.getKey(), entry.getValue(), entry.getTTL());
+		}
+	}
+
+	/**
+	 * Send every request before reading its response, keeping up to
+	 * PIPELINE_WINDOW requests in flight. The server answers requests on a
+	 * connection in order, and each response carries the id of its request.
+	 * <p>
+	 * Requests all go to the connected server, and are not retried if it is
+	 * not responsible for them.
+	 */
+	@Override
+	public List<KVMessage> pipeline(List<? extends KVMessage> requests) throws Exception {
+		List<KVMessage> responses = new ArrayList<>(requests.size());
+		ArrayDeque<Integer> inFlight = new ArrayDeque<>();
+		int sent = 0;
+
+		while (responses.size() < requests.size()) {
+			while (sent < requests.size() && inFlight.size() < PIPELINE_WINDOW) {
+				KVMessage req = requests.get(sent++);
+				req.setEpoch(knownEpoch());
+				req.setRequestId(nextRequestId());
+				inFlight.add(req.getRequestId());
+				sendMessage(req);
+			}
+
+			JsonKVMessage res = receiveMessage();
+			checkRequestId(inFlight.remove(), res);
+			updateMetadata(res);
+			responses.add(res);
+		}
+
+		return responses;
+	}
+
+	private static class Batch {
+		private final ServerNode node;
+		private final List<Integer> indices = new ArrayList<>();
+
+		private Batch(ServerNode node) {
+			this.node = node;
+		}
+	}
 }
@@ -0,0 +1,12 @@
+package client;
+
+/**
+ * Which of the servers holding a key a client reads it from. Every policy
+ * but PRIMARY reads from replicas as well, which may not have the latest
+ * write yet.
+ */
+public enum ReadPolicy {
+	PRIMARY,            // Only the server responsible for the key
+	ROUND_ROBIN,        // The server responsible and its replicas, in turn
+	LEAST_OUTSTANDING   // The server with the fewest requests in flight, weighted by its latency
+}
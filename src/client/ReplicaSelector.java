@@ -0,0 +1,116 @@
+package client;
+
+import ecs.HashRing;
+import ecs.HashToken;
+import ecs.ServerNode;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Picks the server a read goes to, out of the server responsible for the
+ * key and its replicas, according to a ReadPolicy.
+ * <p>
+ * For LEAST_OUTSTANDING, it counts the requests in flight to each server
+ * and keeps an exponentially weighted moving average of their latency. A
+ * server costs (outstanding + 1) * average latency, and reads go to the
+ * cheapest one. Servers with no latency yet cost nothing, so each one is
+ * tried.
+ * <p>
+ * Not thread-safe. Each client uses it from one thread at a time.
+ */
+public class ReplicaSelector {
+	// Weight of the newest latency sample in the moving average
+	private static final double EWMA_WEIGHT = 0.2;
+
+	private final ReadPolicy policy;
+	private int nextRead = 0;
+	private final Map<String, ServerStats> stats = new HashMap<>();
+
+	public ReplicaSelector(ReadPolicy policy) {
+		this.policy = policy;
+	}
+
+	public ReadPolicy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return The server to read the key from, or null if the ring is empty
+	 */
+	public ServerNode select(HashRing hashRing, HashToken keyHash) {
+		ServerNode primary = hashRing.getNodeForKey(keyHash);
+		if (policy == ReadPolicy.PRIMARY || primary == null) return primary;
+
+		List<ServerNode> candidates = new ArrayList<>(ServerNode.NUM_REPLICAS + 1);
+		candidates.add(primary);
+		candidates.addAll(hashRing.getReplicasForKey(keyHash, ServerNode.NUM_REPLICAS));
+
+		if (policy == ReadPolicy.ROUND_ROBIN) {
+			nextRead = (nextRead + 1) & Integer.MAX_VALUE;
+			return candidates.get(nextRead % candidates.size());
+		}
+
+		ServerNode best = null;
+		double bestCost = Double.MAX_VALUE;
+		for (ServerNode candidate : candidates) {
+			ServerStats candidateStats = stats.get(candidate.getNodeName());
+			double cost = candidateStats == null ? 0
+					: (candidateStats.outstanding + 1) * candidateStats.averageLatency;
+
+			if (cost < bestCost) {
+				best = candidate;
+				bestCost = cost;
+			}
+		}
+
+		return best;
+	}
+
+	public void onRequestSent(ServerNode node) {
+		stats.computeIfAbsent(node.getNodeName(), name -> new ServerStats()).outstanding++;
+	}
+
+	/**
+	 * @param latencyNanos Time from sending the request to receiving its response
+	 */
+	public void onResponse(ServerNode node, long latencyNanos) {
+		ServerStats nodeStats = stats.get(node.getNodeName());
+		if (nodeStats == null) return;
+
+		nodeStats.outstanding = Math.max(0, nodeStats.outstanding - 1);
+		nodeStats.averageLatency = nodeStats.averageLatency == 0
+				? latencyNanos
+				: nodeStats.averageLatency + EWMA_WEIGHT * (latencyNanos - nodeStats.averageLatency);
+	}
+
+	/**
+	 * Stop counting a request that will get no response from the server
+	 */
+	public void onRequestFailed(ServerNode node) {
+		ServerStats nodeStats = stats.get(node.getNodeName());
+		if (nodeStats != null) {
+			nodeStats.outstanding = Math.max(0, nodeStats.outstanding - 1);
+		}
+	}
+
+	/**
+	 * Forget the servers that are no longer in the ring
+	 */
+	public void retain(HashRing hashRing) {
+		Set<String> names = new HashSet<>();
+		for (ServerNode node : hashRing.getNodes()) {
+			names.add(node.getNodeName());
+		}
+		stats.keySet().retainAll(names);
+	}
+
+	private static class ServerStats {
+		private int outstanding = 0;
+		private double averageLatency = 0;
+	}
+}
@@ -12,11 +12,22 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
 public class ECS implements IECS {
     private static final Logger logger = Logger.getLogger("ECS");
     private boolean DEBUG;
 
+    // Storage engine the KVServers are launched with
+    private final IKVServer.StorageEngine storageEngine;
+
+    // Positions each server takes on the hash ring
+    private final int virtualNodes;
+
+    // Runs data transfers between several pairs of nodes at once
+    private final ExecutorService transferExecutor = Executors.newCachedThreadPool();
+
     // ZooKeeper is assumed to be running on the default port
     // on this machine
     private final String zkHost;
@@ -33,11 +44,15 @@ public class ECS implements IECS {
     private HashMap<String, ServerNode> configMap = new HashMap<>();
 
     // Queue of inactive ServerNode
-    private Queue<ServerNode> nodePool = new LinkedList<>();
+    private Queue<ServerNode> nodePool = new ConcurrentLinkedQueue<>();
 
     // Hash ring of active nodes
     private HashRing hashRing;
 
+    // Epoch of the last metadata sent out. Starts from the clock, so epochs
+    // keep increasing if the ECS is restarted
+    private final AtomicLong metadataEpoch = new AtomicLong(System.currentTimeMillis());
+
     // Set of active nodes, updated faster than the hash ring
     private Set<String> activeNodeSet = new HashSet<>();
 
@@ -58,6 +73,12 @@ public class ECS implements IECS {
             logger.info("== ECS running in Debug mode ==");
         }
 
+        String storage_env = System.getenv().getOrDefault("KV_STORAGE_ENGINE", "SIMPLE");
+        this.storageEngine = IKVServer.StorageEngine.valueOf(storage_env.toUpperCase());
+
+        String virtual_nodes_env = System.getenv().getOrDefault("KV_VIRTUAL_NODES", "1");
+        this.virtualNodes = Integer.parseInt(virtual_nodes_env);
+
 
         // Read in the config file
         try {
@@ -101,6 +122,7 @@ public class ECS implements IECS {
 
 
         hashRing = new HashRing();
+        hashRing.setVirtualNodes(virtualNodes);
 
         zkConnection = new ZooKeeperConnection();
 
@@ -204,11 +226,29 @@ public class ECS implements IECS {
         return addNode(cacheStrategy, cacheSize);
     }
 
-    public boolean setReplicatorsExpireKeys(boolean value) {
+    /**
+     * Parse a cache strategy name, case insensitive. Unknown or empty names
+     * disable the cache.
+     */
+    private static IKVServer.CacheStrategy parseCacheStrategy(String cacheStrategy) {
+        for (IKVServer.CacheStrategy strategy : IKVServer.CacheStrategy.values()) {
+            if (strategy.name().equalsIgnoreCase(cacheStrategy)) {
+                return strategy;
+            }
+        }
+
+        if (cacheStrategy != null && !cacheStrategy.isEmpty()) {
+            logger.warn("Unknown cache strategy " + cacheStrategy + ", disabling the cache");
+        }
+
+        return IKVServer.CacheStrategy.None;
+    }
+
+    public boolean setMaxConnections(int value) {
         boolean success = true;
 
         for (ServerNode node : hashRing.getNodes()) {
-            node.getServerSettings().setReplicatorsExpireKeys(value);
+            node.getServerSettings().setMaxConnections(value);
         }
 
         try {
@@ -221,172 +261,176 @@ public class ECS implements IECS {
         return success;
     }
 
-    @Override
-    public ServerNode addNode(String cacheStrategy, int cacheSize) {
-        List<ServerNode> nodes = (List<ServerNode>) setupNodes(1, cacheStrategy, cacheSize);
-        if (nodes == null) return null;
-
-        ServerNode node = nodes.get(0);
-
-        HashRing updatedHashRing = hashRing.copy();
-        updatedHashRing.addNode(node);
+    public boolean setReplicatorsExpireKeys(boolean value) {
+        boolean success = true;
 
-        // Initialize the server
-        AdminMessage adminMessage = new AdminMessage(AdminMessage.Action.INIT);
+        for (ServerNode node : hashRing.getNodes()) {
+            node.getServerSettings().setReplicatorsExpireKeys(value);
+        }
 
         try {
-            AdminMessage response = zkConnection.sendAdminMessage(
-                    node.getNodeName(), adminMessage, 20000
-            );
-
-            if (response.getAction() == AdminMessage.Action.ACK) {
-                ServerNode receiver = response.getReceiver();
-                node.setDataReceivePort(receiver.getDataReceivePort());
-                node.setReplicationReceivePort(receiver.getReplicationReceivePort());
-                logger.info("Server " + node.getNodeName() + " initialized");
-            } else {
-                logger.error("Server " + node.getNodeName() + " failed to initialize");
-                logger.debug(response.getMessage());
-                shutdownNode(node);
-                return null;
-            }
-        } catch (KeeperException | InterruptedException e) {
-            logger.error("Failed to send admin message to initialize " + node.getNodeName(), e);
-            shutdownNode(node);
-            return null;
-        } catch (TimeoutException e) {
-            logger.error("Timeout while trying to send admin message to initialize " + node.getNodeName());
-            shutdownNode(node);
-            return null;
+            updateGlobalMetadata(null, AdminMessage.ServerChange.SETTINGS);
+        } catch (KeeperException | InterruptedException | TimeoutException e) {
+            logger.error("Failed to update global metadata change server setting", e);
+            success = false;
         }
 
-        // Set the metadata for the added server
-        adminMessage.setAction(AdminMessage.Action.SET_METADATA);
-        adminMessage.setMetadata(updatedHashRing);
-        adminMessage.setChangedServer(node);
-        adminMessage.setServerChange(AdminMessage.ServerChange.ADDED);
+        return success;
+    }
 
-        try {
-            AdminMessage response = zkConnection.sendAdminMessage(node.getNodeName(), adminMessage, 20000);
+    /**
+     * Have servers forward requests for keys they are not responsible for
+     * to the server that is, instead of sending the client the metadata to
+     * retry with
+     */
+    public boolean setForwardRequests(boolean value) {
+        boolean success = true;
 
-            if (response.getAction() == AdminMessage.Action.ACK) {
-                logger.info("Set metadata for server " + node.getNodeName());
-            } else {
-                logger.error("Could not set metadata for server " + node.getNodeName());
-                shutdownNode(node);
-                return null;
-            }
+        for (ServerNode node : hashRing.getNodes()) {
+            node.getServerSettings().setForwardRequests(value);
+        }
 
-        } catch (KeeperException | InterruptedException e) {
-            logger.error("Failed to send admin message to set metadata for " + node.getNodeName(), e);
-            shutdownNode(node);
-            return null;
-        } catch (TimeoutException e) {
-            logger.error("Timeout while trying to send admin message to set metadata for " + node.getNodeName());
-            shutdownNode(node);
-            return null;
+        try {
+            updateGlobalMetadata(null, AdminMessage.ServerChange.SETTINGS);
+        } catch (KeeperException | InterruptedException | TimeoutException e) {
+            logger.error("Failed to update global metadata change server setting", e);
+            success = false;
         }
 
-        // Start the server
-        adminMessage.setAction(AdminMessage.Action.START);
-        node.setStatus(IKVServer.ServerStatus.ACTIVE);
-        adminMessage.setMetadata(null);
+        return success;
+    }
 
-        try {
-            AdminMessage response = zkConnection.sendAdminMessage(node.getNodeName(), adminMessage, 20000);
+    @Override
+    public ServerNode addNode(String cacheStrategy, int cacheSize) {
+        Collection<ServerNode> nodes = addNodes(1, cacheStrategy, cacheSize);
+        return nodes.isEmpty() ? null : nodes.iterator().next();
+    }
 
-            if (response.getAction() == AdminMessage.Action.ACK) {
-                logger.info("Started server " + node.getNodeName());
-            } else {
-                logger.error("Could not start server " + node.getNodeName());
-                shutdownNode(node);
-                return null;
-            }
+    @Override
+    public Collection<ServerNode> addNodes(int count) {
+        return addNodes(count, cacheStrategy, cacheSize);
+    }
 
-        } catch (KeeperException | InterruptedException e) {
-            logger.error("Failed to send admin message to start server " + node.getNodeName(), e);
-            shutdownNode(node);
-            return null;
-        } catch (TimeoutException e) {
-            logger.error("Timeout while trying to send admin message to start server " + node.getNodeName());
-            shutdownNode(node);
-            return null;
-        }
+    /**
+     * Add several nodes to the ring as one change. The nodes are launched and
+     * initialized in parallel, and data moves into all of them at once.
+     * Metadata goes out to the cluster once, after all data has moved.
+     *
+     * @return The nodes added. Nodes that fail to come up are shut down and
+     * left out of the ring. If data fails to move or the metadata fails to
+     * go out, the change is rolled back and no nodes are added.
+     */
+    @Override
+    public Collection<ServerNode> addNodes(int count, String cacheStrategy, int cacheSize) {
+        Collection<ServerNode> launched = setupNodes(count, cacheStrategy, cacheSize);
+        if (launched == null) return new ArrayList<>();
 
-        ServerNode successor = node.getSuccessor();
-        assert successor != null;
+        // Initialize the servers, which gives us their data receive ports
+        List<ServerNode> initialized = filterNodesInParallel(launched, this::initNode);
 
-        if (updatedHashRing.getNodes().size() > 1) {
-            // Invoke data transfer to its successor
-            assert !successor.getNodeName().equals(node.getNodeName());
+        HashRing updatedHashRing = hashRing.copy();
+        for (ServerNode node : initialized) {
+            updatedHashRing.addNode(node);
+        }
+        updatedHashRing.setEpoch(metadataEpoch.incrementAndGet());
 
-            if (!setWriteLock(successor, true)) return null;
+        // Set the metadata for the added servers and start them
+        List<ServerNode> nodes = filterNodesInParallel(initialized, node -> startNode(node, updatedHashRing));
+        for (ServerNode node : initialized) {
+            if (!nodes.contains(node)) {
+                updatedHashRing.removeNode(node.getNodeName());
+            }
+        }
+        if (nodes.isEmpty()) return nodes;
+
+        // The new nodes take their ranges from whichever nodes held them before.
+        // With virtual nodes, one source may hand ranges to several new nodes
+        Map<ServerNode, List<ServerNode>> targetsBySource = new LinkedHashMap<>();
+        for (ServerNode node : nodes) {
+            List<HashRange> ranges = updatedHashRing.getNode(node.getNodeName()).getNodeHashRanges();
+            for (ServerNode source : getRangeOwners(ranges, hashRing)) {
+                targetsBySource.computeIfAbsent(source, s -> new ArrayList<>()).add(node);
+            }
+        }
+        Set<ServerNode> sources = targetsBySource.keySet();
 
-            // Invoke data transfer
-            if (!moveDataBetweenNodes(successor, node, updatedHashRing)) return null;
+        // Sources only refuse writes to the ranges they are handing over
+        if (!forEachNodeInParallel(sources, source -> setWriteLock(source, true, updatedHashRing))) {
+            return abortAddNodes(sources, nodes);
         }
 
+        // Invoke data transfer. Sources keep their copy of the data until the
+        // end, so a failure here only needs the new nodes to go away
+        if (!moveData(targetsBySource, updatedHashRing)) return abortAddNodes(sources, nodes);
+
         // Once all data has been transferred, send global metadata updates
+        HashRing previousHashRing = hashRing;
         hashRing = updatedHashRing;
 
         try {
-            updateGlobalMetadata(node, AdminMessage.ServerChange.ADDED);
+            updateGlobalMetadata(nodes.size() == 1 ? nodes.get(0) : null, AdminMessage.ServerChange.ADDED);
         } catch (KeeperException | InterruptedException | TimeoutException e) {
             logger.error("Failed to update global metadata", e);
-            return null;
-        }
-
-        if (updatedHashRing.getNodes().size() > 1) {
-            // Release the write lock on the successor servers and remove old data
-            if (!setWriteLock(successor, false)) return null;
 
-            adminMessage.setAction(AdminMessage.Action.CLEANUP_DATA);
-
-            try {
-                AdminMessage response = zkConnection.sendAdminMessage(successor.getNodeName(), adminMessage, 20000);
+            // Some servers may have the new ring already, so the old one goes out again
+            hashRing = previousHashRing;
+            publishRolledBackMetadata();
+            return abortAddNodes(sources, nodes);
+        }
 
-                if (response.getAction() == AdminMessage.Action.ACK) {
-                    logger.info("Data transfer cleanup complete on " + successor.getNodeName());
-                } else {
-                    logger.error("Could not clean up transfer data on " + successor.getNodeName());
-                    // TODO: Rollback
-                    return null;
-                }
+        // The nodes are in the ring now, so later failures only leave old data behind
+        if (!forEachNodeInParallel(sources, source -> setWriteLock(source, false)
+                && cleanUpData(source, updatedHashRing))) {
+            logger.error("Failed to unlock or clean up a server after adding nodes");
+        }
 
-            } catch (KeeperException | InterruptedException e) {
-                logger.error("Failed to send admin message to cleanup transfer data on " + successor.getNodeName(), e);
-                return null;
-            } catch (TimeoutException e) {
-                logger.error("Timeout while trying to send admin message to cleanup transfer data on " + successor.getNodeName());
-                return null;
-            }
+        for (ServerNode node : nodes) {
+            activeNodeSet.add(node.getNodeName());
+            logger.info("Successfully launched node " + node.getNodeName());
         }
 
-        activeNodeSet.add(node.getNodeName());
+        return nodes;
+    }
 
-        logger.info("Successfully launched node " + node.getNodeName());
+    /**
+     * Roll back an addNodes that failed before its nodes joined the ring.
+     * The sources are unlocked, and the new nodes are shut down, which puts
+     * them back in the pool.
+     *
+     * @return No nodes, for addNodes to return
+     */
+    private Collection<ServerNode> abortAddNodes(Collection<ServerNode> sources, Collection<ServerNode> nodes) {
+        logger.error("Failed to add nodes, rolling back");
 
-        return node;
-    }
+        if (!forEachNodeInParallel(sources, source -> setWriteLock(source, false))) {
+            logger.error("Failed to unlock a server while rolling back");
+        }
+        if (!forEachNodeInParallel(nodes, this::shutdownNode)) {
+            logger.error("Failed to shut down a new node while rolling back");
+        }
 
-    @Override
-    public Collection<ServerNode> addNodes(int count) {
-        return addNodes(count, cacheStrategy, cacheSize);
+        return new ArrayList<>();
     }
 
-    @Override
-    public Collection<ServerNode> addNodes(int count, String cacheStrategy, int cacheSize) {
-        List<ServerNode> nodes = new ArrayList<>();
-
-        for (int i = 0; i < count; i++) {
-            ServerNode node = addNode(cacheStrategy, cacheSize);
-            if (node == null) continue;
-            nodes.add(node);
+    /**
+     * Send the current ring to every node again, after a change that may
+     * have partly gone out was rolled back
+     */
+    private void publishRolledBackMetadata() {
+        try {
+            updateGlobalMetadata(null, AdminMessage.ServerChange.SETTINGS);
+        } catch (KeeperException | InterruptedException | TimeoutException e) {
+            logger.error("Failed to restore global metadata", e);
         }
-
-        return nodes;
     }
 
+    /**
+     * Launch nodes from the offline pool. The nodes start in parallel, so
+     * adding several costs about as long as adding one.
+     *
+     * @return The nodes launched. Nodes that fail to launch go back to the
+     * pool, so fewer than count may be returned.
+     */
     @Override
     public Collection<ServerNode> setupNodes(int count, String cacheStrategy, int cacheSize) {
         if (count > nodePool.size()) {
@@ -396,127 +440,218 @@ public class ECS implements IECS {
 
         List<ServerNode> nodes = new ArrayList<>();
 
-        // Get any extra nodes from the offline pool, and start them
+        // Get any extra nodes from the offline pool
         while (count > 0 && nodePool.size() > 0) {
             ServerNode node = nodePool.poll();
             node.setStatus(IKVServer.ServerStatus.STOPPED);
 
-            // Before bringing up the node, create ZNodes for it. We don't care
-            // if these stick around if the node fails to launch for some reason
-            String zkNodePath = ZooKeeperConnection.ZK_SERVER_ROOT + "/" + node.getNodeName();
-            String zkAdminPath = zkNodePath + "/admin";
+            // The server picks up its cache settings from the first metadata update
+            node.getServerSettings().setCacheStrategy(parseCacheStrategy(cacheStrategy));
+            node.getServerSettings().setCacheSize(cacheSize);
 
-            AdminMessage adminMessage = new AdminMessage(AdminMessage.Action.NOP);
+            nodes.add(node);
+            count--;
+        }
 
-            try {
-                zkConnection.createOrReset(zkNodePath, "hi", CreateMode.PERSISTENT);
-                zkConnection.createOrReset(zkAdminPath, adminMessage.serialize(), CreateMode.PERSISTENT);
-            } catch (KeeperException | InterruptedException e) {
-                logger.error("Failed to create KVServer and admin ZNodes for node " + node.getNodeName(), e);
-                continue;
-            }
+        return filterNodesInParallel(nodes, this::launchNode);
+    }
+
+    /**
+     * Start a node's server and wait for its heartbeat
+     *
+     * @return success
+     */
+    private boolean launchNode(ServerNode node) {
+        // Before bringing up the node, create ZNodes for it. We don't care
+        // if these stick around if the node fails to launch for some reason
+        String zkNodePath = ZooKeeperConnection.ZK_SERVER_ROOT + "/" + node.getNodeName();
+        String zkAdminPath = zkNodePath + "/admin";
 
-            String javaCmd = String.join(" ",
-                    "java -jar",
-                    remotePath,
-                    String.valueOf(node.getNodePort()),
-                    node.getNodeName(),
-                    zkHost,
-                    String.valueOf(zkPort));
+        AdminMessage adminMessage = new AdminMessage(AdminMessage.Action.NOP);
 
-            boolean isLocal = node.getNodeHost().equals("127.0.0.1") || node.getNodeHost().equals("localhost");
+        try {
+            zkConnection.createOrReset(zkNodePath, "hi", CreateMode.PERSISTENT);
+            zkConnection.createOrReset(zkAdminPath, adminMessage.serialize(), CreateMode.PERSISTENT);
+        } catch (KeeperException | InterruptedException e) {
+            logger.error("Failed to create KVServer and admin ZNodes for node " + node.getNodeName(), e);
+            return false;
+        }
 
-            String cmd;
+        String javaCmd = String.join(" ",
+                "java -jar",
+                remotePath,
+                String.valueOf(node.getNodePort()),
+                node.getNodeName(),
+                zkHost,
+                String.valueOf(zkPort),
+                storageEngine.toString());
+
+        boolean isLocal = node.getNodeHost().equals("127.0.0.1") || node.getNodeHost().equals("localhost");
+
+        String cmd;
+
+        if (isLocal) {
+            cmd = javaCmd;
+        } else {
+            cmd = String.join(" ",
+                    "ssh -o StrictHostKeyChecking=no -n",
+                    node.getNodeHost(),
+                    "nohup",
+                    javaCmd,
+                    "&");
+        }
 
-            if (isLocal) {
-                cmd = javaCmd;
-            } else {
-                cmd = String.join(" ",
-                        "ssh -o StrictHostKeyChecking=no -n",
-                        node.getNodeHost(),
-                        "nohup",
-                        javaCmd,
-                        "&");
-            }
+        // Setup the watcher for the server coming online before we launch it
+        String zkHeartbeatPath = ZooKeeperConnection.ZK_HEARTBEAT_ROOT + "/" + node.getNodeName();
 
-            // Setup the watcher for the server coming online before we launch it
-            String zkHeartbeatPath = ZooKeeperConnection.ZK_HEARTBEAT_ROOT + "/" + node.getNodeName();
+        // Signal for successful connections, to synchronize otherwise async watchers
+        CountDownLatch sig = new CountDownLatch(1);
 
-            // Signal for successful connections, to synchronize otherwise async watchers
-            CountDownLatch sig = new CountDownLatch(1);
+        Process p = null;
+        try {
+            // Watcher for heartbeat coming online
+            zk.exists(zkHeartbeatPath, event -> sig.countDown());
 
-            Process p = null;
             try {
-                // Watcher for heartbeat coming online
-                zk.exists(zkHeartbeatPath, event -> sig.countDown());
 
-                try {
+                // Start the server
+                if (DEBUG && isLocal) {
+                    KVServer server = new KVServer(node.getNodePort(), node.getNodeName(), zkHost, zkPort, storageEngine);
+                    new Thread(server).start();
 
-                    // Start the server
-                    if (DEBUG && isLocal) {
-                        KVServer server = new KVServer(node.getNodePort(), node.getNodeName(), zkHost, zkPort);
-                        new Thread(server).start();
+                    logger.info("New debug KVServer thread started. Logs for server "
+                            + node.getNodeName() + " will be combined with the ECS logs.");
+                } else {
+                    p = Runtime.getRuntime().exec(cmd);
 
-                        logger.info("New debug KVServer thread started. Logs for server "
-                                + node.getNodeName() + " will be combined with the ECS logs.");
+                    if (isLocal) {
+                        logger.info("Local KVServer started with process " + p.pid());
                     } else {
-                        p = Runtime.getRuntime().exec(cmd);
-
-                        if (isLocal) {
-                            logger.info("Local KVServer started with process " + p.pid());
-                        } else {
-                            logger.info("Remote KVServer started on " + node.getNodeHost() + ":" + node.getNodePort());
-                        }
+                        logger.info("Remote KVServer started on " + node.getNodeHost() + ":" + node.getNodePort());
                     }
-
-                } catch (IOException e) {
-                    logger.error("Unable to launch node " + node.getNodeName() + " on host " + node.getNodeHost(), e);
-                    nodePool.add(node);
-                    continue;
                 }
 
-                boolean success = sig.await(20000, TimeUnit.MILLISECONDS);
+            } catch (IOException e) {
+                logger.error("Unable to launch node " + node.getNodeName() + " on host " + node.getNodeHost(), e);
+                nodePool.add(node);
+                return false;
+            }
 
-                if (!success) {
-                    // Something crashed in the remote process, print its stderr for debugging
-                    try {
-                        BufferedReader buf = new BufferedReader(new InputStreamReader(p.getErrorStream()));
-                        String line;
-                        while ((line = buf.readLine()) != null)
-                            System.err.println(line);
-                    } catch (IOException ignored) {}
-                    
-                    logger.error("Timeout while waiting to start server " + node.getNodeName());
-
-                    nodePool.add(node);
-                    p.destroy();
-                    continue;
-                }
+            boolean success = sig.await(20000, TimeUnit.MILLISECONDS);
+
+            if (!success) {
+                // Something crashed in the remote process, print its stderr for debugging
+                try {
+                    BufferedReader buf = new BufferedReader(new InputStreamReader(p.getErrorStream()));
+                    String line;
+                    while ((line = buf.readLine()) != null)
+                        System.err.println(line);
+                } catch (IOException ignored) {}
+
+                logger.error("Timeout while waiting to start server " + node.getNodeName());
 
-            } catch (KeeperException | InterruptedException e) {
-                logger.error("Error waiting for heartbeat thread for server " + node.getNodeName());
                 nodePool.add(node);
-                if (p != null) p.destroy();
-                continue;
+                p.destroy();
+                return false;
             }
 
-            // Setup the watcher for when the heatbeat node dies
-            try {
-                zk.exists(zkHeartbeatPath, new HeartbeatDeathWatcher());
-            } catch (InterruptedException | KeeperException e) {
-                logger.fatal("Failed to set heartbeat watcher for server " + node.getNodeName());
-                nodePool.add(node);
-                if (p != null) p.destroy();
-                continue;
+        } catch (KeeperException | InterruptedException e) {
+            logger.error("Error waiting for heartbeat thread for server " + node.getNodeName());
+            nodePool.add(node);
+            if (p != null) p.destroy();
+            return false;
+        }
+
+        // Setup the watcher for when the heatbeat node dies
+        try {
+            zk.exists(zkHeartbeatPath, new HeartbeatDeathWatcher());
+        } catch (InterruptedException | KeeperException e) {
+            logger.fatal("Failed to set heartbeat watcher for server " + node.getNodeName());
+            nodePool.add(node);
+            if (p != null) p.destroy();
+            return false;
+        }
+
+        logger.info("Server " + node.getNodeName() + " has been started");
+
+        return true;
+    }
+
+    /**
+     * Initialize a launched node, recording the ports it receives data on.
+     * The node is shut down if it fails.
+     *
+     * @return success
+     */
+    private boolean initNode(ServerNode node) {
+        AdminMessage adminMessage = new AdminMessage(AdminMessage.Action.INIT);
+
+        try {
+            AdminMessage response = zkConnection.sendAdminMessage(
+                    node.getNodeName(), adminMessage, 20000
+            );
+
+            if (response.getAction() == AdminMessage.Action.ACK) {
+                ServerNode receiver = response.getReceiver();
+                node.setDataReceivePort(receiver.getDataReceivePort());
+                node.setReplicationReceivePort(receiver.getReplicationReceivePort());
+                logger.info("Server " + node.getNodeName() + " initialized");
+            } else {
+                logger.error("Server " + node.getNodeName() + " failed to initialize");
+                logger.debug(response.getMessage());
+                shutdownNode(node);
+                return false;
             }
+        } catch (KeeperException | InterruptedException e) {
+            logger.error("Failed to send admin message to initialize " + node.getNodeName(), e);
+            shutdownNode(node);
+            return false;
+        } catch (TimeoutException e) {
+            logger.error("Timeout while trying to send admin message to initialize " + node.getNodeName());
+            shutdownNode(node);
+            return false;
+        }
 
-            logger.info("Server " + node.getNodeName() + " has been started");
+        return true;
+    }
 
-            nodes.add(node);
-            count--;
+    /**
+     * Send an initialized node its metadata and start it. The node is shut
+     * down if either fails.
+     *
+     * @return success
+     */
+    private boolean startNode(ServerNode node, HashRing updatedHashRing) {
+        if (!setMetadata(node, updatedHashRing, node, AdminMessage.ServerChange.ADDED)) {
+            shutdownNode(node);
+            return false;
         }
 
-        return nodes;
+        AdminMessage adminMessage = new AdminMessage(AdminMessage.Action.START);
+        node.setStatus(IKVServer.ServerStatus.ACTIVE);
+
+        try {
+            AdminMessage response = zkConnection.sendAdminMessage(node.getNodeName(), adminMessage, 20000);
+
+            if (response.getAction() == AdminMessage.Action.ACK) {
+                logger.info("Started server " + node.getNodeName());
+            } else {
+                logger.error("Could not start server " + node.getNodeName());
+                shutdownNode(node);
+                return false;
+            }
+
+        } catch (KeeperException | InterruptedException e) {
+            logger.error("Failed to send admin message to start server " + node.getNodeName(), e);
+            shutdownNode(node);
+            return false;
+        } catch (TimeoutException e) {
+            logger.error("Timeout while trying to send admin message to start server " + node.getNodeName());
+            shutdownNode(node);
+            return false;
+        }
+
+        return true;
     }
 
     @Override
@@ -525,107 +660,130 @@ public class ECS implements IECS {
         return false;
     }
 
+    /**
+     * Remove several nodes from the ring as one change. Their data moves to
+     * the remaining nodes in parallel, and metadata goes out to the cluster
+     * once, after all data has moved. If that fails, the change is rolled
+     * back and the nodes stay in the ring.
+     *
+     * @return success
+     */
     @Override
     public boolean removeNodes(Collection<String> nodeNames) {
-        boolean success = true;
-
+        List<ServerNode> nodes = new ArrayList<>();
         for (String nodeName : nodeNames) {
-            success = success && removeNode(nodeName);
+            ServerNode node = hashRing.getNode(nodeName);
+            if (node == null) {
+                logger.error("Node " + nodeName + " is not running");
+                return false;
+            }
+            if (!nodes.contains(node)) nodes.add(node);
         }
 
-        return success;
-    }
+        if (nodes.isEmpty()) return true;
 
-    public boolean removeNode(String nodeName) {
-        ServerNode node = hashRing.getNode(nodeName);
-        if (node == null) {
-            logger.error("Node " + nodeName + " is not running");
+        if (nodes.size() >= hashRing.getNodes().size()) {
+            logger.error("Cannot remove every node, would result in permanent data loss");
             return false;
         }
 
-        if (hashRing.getNodes().size() == 1) {  // == 0 is captured by node == null as well
-            logger.error("Cannot remove last node, would result in permanent data loss");
-            return false;
+        // Immediately remove the nodes from the set of active nodes,
+        // prior to them being fully removed from the hash ring
+        for (ServerNode node : nodes) {
+            activeNodeSet.remove(node.getNodeName());
         }
 
-        // Immediately remove the node from the set of active nodes,
-        // prior to it being fully removed from the hash ring
-        activeNodeSet.remove(nodeName);
-
-        ServerNode successor = node.getSuccessor();
-
         HashRing updatedHashRing = hashRing.copy();
-        updatedHashRing.removeNode(nodeName);
-
-        // Refresh the hash range of the successor
-        successor = updatedHashRing.getNode(successor.getNodeName());
-
-        // Write lock the node to be deleted
-        if (!setWriteLock(node, true)) return false;
+        for (ServerNode node : nodes) {
+            updatedHashRing.removeNode(node.getNodeName());
+        }
 
-        // Send updated metadata to successor server
-        AdminMessage adminMessage = new AdminMessage(AdminMessage.Action.SET_METADATA);
-        adminMessage.setMetadata(updatedHashRing);
-        adminMessage.setChangedServer(node);
-        adminMessage.setServerChange(AdminMessage.ServerChange.DELETED);
+        // Each of a node's ranges goes to whichever node is after it in the
+        // updated ring. With virtual nodes, that spreads them over many nodes
+        Map<ServerNode, List<ServerNode>> targetsBySource = new LinkedHashMap<>();
+        Set<ServerNode> targets = new LinkedHashSet<>();
+        for (ServerNode node : nodes) {
+            List<ServerNode> nodeTargets = getRangeOwners(node.getNodeHashRanges(), updatedHashRing);
+            targetsBySource.put(node, nodeTargets);
+            targets.addAll(nodeTargets);
+        }
 
-        try {
-            AdminMessage response = zkConnection.sendAdminMessage(successor.getNodeName(), adminMessage, 20000);
+        // Write lock the nodes to be deleted
+        if (!forEachNodeInParallel(nodes, node -> setWriteLock(node, true))) {
+            return abortRemoveNodes(nodes, Collections.emptyList());
+        }
 
-            if (response.getAction() == AdminMessage.Action.ACK) {
-                logger.info("Set metadata for server " + successor.getNodeName());
-            } else {
-                logger.error("Could not set metadata for server " + successor.getNodeName());
-                return false;
-            }
+        // Send updated metadata to the servers taking over their ranges
+        updatedHashRing.setEpoch(metadataEpoch.incrementAndGet());
+        ServerNode changedNode = nodes.size() == 1 ? nodes.get(0) : null;
 
-        } catch (KeeperException | InterruptedException e) {
-            logger.error("Failed to send admin message to set metadata for " + successor.getNodeName(), e);
-            return false;
-        } catch (TimeoutException e) {
-            logger.error("Timeout while trying to send admin message to set metadata for " + successor.getNodeName());
-            return false;
+        if (!forEachNodeInParallel(targets, target ->
+                setMetadata(target, updatedHashRing, changedNode, AdminMessage.ServerChange.DELETED))) {
+            return abortRemoveNodes(nodes, targets);
         }
 
-        // Transfer data from the node to be removed to its successor
-        node.setPredecessor(null);  // Also sets the hash range to null
-        if (!moveDataBetweenNodes(node, successor, updatedHashRing)) return false;
+        // Transfer data from the nodes to be removed to the servers taking over
+        for (ServerNode node : nodes) {
+            node.setPredecessor(null);  // Also sets the hash range to null
+        }
+        if (!moveData(targetsBySource, updatedHashRing)) return abortRemoveNodes(nodes, targets);
 
         // Once all data has been transferred, send global metadata updates
+        HashRing previousHashRing = hashRing;
         hashRing = updatedHashRing;
 
         try {
-            updateGlobalMetadata(node, AdminMessage.ServerChange.DELETED);
+            updateGlobalMetadata(changedNode, AdminMessage.ServerChange.DELETED);
         } catch (KeeperException | InterruptedException | TimeoutException e) {
             logger.error("Failed to update global metadata");
-            return false;
+            hashRing = previousHashRing;
+            return abortRemoveNodes(nodes, hashRing.getNodes());
         }
 
-        // Clean up the data from the old server (and reset the write lock for good measure)
-        if (!setWriteLock(node, false)) return false;
+        // Clean up the data from the old servers (and reset the write lock for good measure)
+        return forEachNodeInParallel(nodes, node -> setWriteLock(node, false)
+                && cleanUpData(node, updatedHashRing)
+                && shutdownNode(node));
+    }
 
-        adminMessage.setAction(AdminMessage.Action.CLEANUP_DATA);
+    /**
+     * Roll back a removeNodes that failed before the nodes left the ring.
+     * The nodes are unlocked and active again. Servers that may have the
+     * updated ring get the current one back, and drop any data moved to
+     * them for ranges they do not hold in it.
+     *
+     * @param targets Servers that may have been sent the updated ring
+     * @return false, for removeNodes to return
+     */
+    private boolean abortRemoveNodes(Collection<ServerNode> nodes, Collection<ServerNode> targets) {
+        logger.error("Failed to remove nodes, rolling back");
 
-        try {
-            AdminMessage response = zkConnection.sendAdminMessage(node.getNodeName(), adminMessage, 20000);
+        // Moving data cleared the nodes' predecessors
+        hashRing.rebuildHashRingLinkedList();
 
-            if (response.getAction() == AdminMessage.Action.ACK) {
-                logger.info("Data transfer cleanup complete on " + node.getNodeName());
-            } else {
-                logger.error("Could not clean up transfer data on " + node.getNodeName());
-                return false;
+        if (!targets.isEmpty()) {
+            publishRolledBackMetadata();
+
+            List<ServerNode> remaining = new ArrayList<>(targets);
+            remaining.removeAll(nodes);
+            if (!forEachNodeInParallel(remaining, target -> cleanUpData(target, hashRing))) {
+                logger.error("Failed to clean up moved data while rolling back");
             }
+        }
 
-        } catch (KeeperException | InterruptedException e) {
-            logger.error("Failed to send admin message to cleanup transfer data on " + node.getNodeName(), e);
-            return false;
-        } catch (TimeoutException e) {
-            logger.error("Timeout while trying to send admin message to cleanup transfer data on " + node.getNodeName());
-            return false;
+        if (!forEachNodeInParallel(nodes, node -> setWriteLock(node, false))) {
+            logger.error("Failed to unlock a server while rolling back");
         }
 
-        return shutdownNode(node);
+        for (ServerNode node : nodes) {
+            activeNodeSet.add(node.getNodeName());
+        }
+
+        return false;
+    }
 
+    public boolean removeNode(String nodeName) {
+        return removeNodes(Collections.singletonList(nodeName));
     }
 
     /**
@@ -700,29 +858,103 @@ public class ECS implements IECS {
         return null;
     }
 
-    private boolean moveDataBetweenNodes(ServerNode fromNode, ServerNode toNode, HashRing updatedHashRing) {
-        boolean success;
+    /**
+     * Find the nodes responsible for the given hash ranges in a hash ring
+     *
+     * @return The distinct nodes owning the upper bound of each range. Each
+     * range lies within a single node's range on the ring, since one of the
+     * two rings only has nodes added to the other.
+     */
+    private static List<ServerNode> getRangeOwners(List<HashRange> hashRanges, HashRing ring) {
+        List<ServerNode> owners = new ArrayList<>();
+
+        for (HashRange hashRange : hashRanges) {
+            ServerNode owner = ring.getNodeForKey(hashRange.getUpper());
+            if (owner != null && !owners.contains(owner)) {
+                owners.add(owner);
+            }
+        }
+
+        return owners;
+    }
+
+    /**
+     * Run an action against several nodes at once
+     *
+     * @return Whether the action succeeded on every node
+     */
+    private boolean forEachNodeInParallel(Collection<ServerNode> nodes, Predicate<ServerNode> action) {
+        return filterNodesInParallel(nodes, action).size() == nodes.size();
+    }
+
+    /**
+     * Run an action against several nodes at once
+     *
+     * @return The nodes the action succeeded on, in their original order
+     */
+    private List<ServerNode> filterNodesInParallel(Collection<ServerNode> nodes, Predicate<ServerNode> action) {
+        List<ServerNode> submitted = new ArrayList<>(nodes);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (ServerNode node : submitted) {
+            results.add(transferExecutor.submit(() -> action.test(node)));
+        }
 
+        List<ServerNode> succeeded = new ArrayList<>();
+        for (int i = 0; i < submitted.size(); i++) {
+            try {
+                if (results.get(i).get()) {
+                    succeeded.add(submitted.get(i));
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                logger.error("Failed to wait for node " + submitted.get(i).getNodeName(), e);
+            }
+        }
+
+        return succeeded;
+    }
+
+    /**
+     * Move data from each source node to its target nodes. Sources send in
+     * parallel, but each one sends to its targets in turn, since a server
+     * handles admin messages one at a time
+     */
+    private boolean moveData(Map<ServerNode, List<ServerNode>> targetsBySource, HashRing updatedHashRing) {
+        Set<ServerNode> targets = new LinkedHashSet<>();
+        for (List<ServerNode> sourceTargets : targetsBySource.values()) {
+            targets.addAll(sourceTargets);
+        }
+
+        if (!forEachNodeInParallel(targets, this::prepareToReceive)) return false;
+
+        updatedHashRing.setEpoch(metadataEpoch.incrementAndGet());
+        return forEachNodeInParallel(targetsBySource.keySet(), source -> {
+            for (ServerNode target : targetsBySource.get(source)) {
+                if (!nodeMoveData(source, target, updatedHashRing)) return false;
+            }
+            return true;
+        });
+    }
+
+    private boolean prepareToReceive(ServerNode toNode) {
         try {
             AdminMessage message = new AdminMessage(AdminMessage.Action.RECEIVE_DATA);
             AdminMessage response = zkConnection.sendAdminMessage(toNode.getNodeName(), message, 20000);
 
             if (response.getAction() == AdminMessage.Action.ACK) {
                 logger.info("Ready to receive data at server " + toNode.getNodeName());
-                success = nodeMoveData(fromNode, toNode, updatedHashRing);
             } else {
                 logger.error("Could not receive data at server " + toNode.getNodeName());
-                success = false;
+                return false;
             }
         } catch (KeeperException | InterruptedException e) {
             logger.error("Failed to send admin message to receive data at " + toNode.getNodeName(), e);
-            success = false;
+            return false;
         } catch (TimeoutException e) {
             logger.error("Timeout while trying to send admin message to receive data at " + toNode.getNodeName());
-            success = false;
+            return false;
         }
 
-        return success;
+        return true;
     }
 
     private boolean nodeMoveData(ServerNode fromNode, ServerNode toNode, HashRing updatedHashRing) {
@@ -753,18 +985,91 @@ public class ECS implements IECS {
         return success;
     }
 
+    /**
+     * Have a node drop the data it sent away, keeping only its ranges in
+     * the updated hash ring
+     *
+     * @return success
+     */
+    private boolean cleanUpData(ServerNode node, HashRing updatedHashRing) {
+        AdminMessage message = new AdminMessage(AdminMessage.Action.CLEANUP_DATA);
+        message.setMetadata(updatedHashRing);
+
+        try {
+            AdminMessage response = zkConnection.sendAdminMessage(node.getNodeName(), message, 20000);
+
+            if (response.getAction() == AdminMessage.Action.ACK) {
+                logger.info("Data transfer cleanup complete on " + node.getNodeName());
+            } else {
+                logger.error("Could not clean up transfer data on " + node.getNodeName());
+                return false;
+            }
+
+        } catch (KeeperException | InterruptedException e) {
+            logger.error("Failed to send admin message to cleanup transfer data on " + node.getNodeName(), e);
+            return false;
+        } catch (TimeoutException e) {
+            logger.error("Timeout while trying to send admin message to cleanup transfer data on " + node.getNodeName());
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Send a node the metadata for a change to the ring
+     *
+     * @return success
+     */
+    private boolean setMetadata(ServerNode node, HashRing metadata, ServerNode changedNode,
+                                AdminMessage.ServerChange change) {
+        AdminMessage adminMessage = new AdminMessage(AdminMessage.Action.SET_METADATA);
+        adminMessage.setMetadata(metadata);
+        adminMessage.setChangedServer(changedNode);
+        adminMessage.setServerChange(change);
+
+        try {
+            AdminMessage response = zkConnection.sendAdminMessage(node.getNodeName(), adminMessage, 20000);
+
+            if (response.getAction() == AdminMessage.Action.ACK) {
+                logger.info("Set metadata for server " + node.getNodeName());
+            } else {
+                logger.error("Could not set metadata for server " + node.getNodeName());
+                return false;
+            }
+
+        } catch (KeeperException | InterruptedException e) {
+            logger.error("Failed to send admin message to set metadata for " + node.getNodeName(), e);
+            return false;
+        } catch (TimeoutException e) {
+            logger.error("Timeout while trying to send admin message to set metadata for " + node.getNodeName());
+            return false;
+        }
+
+        return true;
+    }
+
+    private boolean setWriteLock(ServerNode node, boolean lock) {
+        return setWriteLock(node, lock, null);
+    }
+
     /**
      * Set or unset the write lock for the given node
      *
-     * @param node The node to set the status on
-     * @param lock True to set the lock, false to unset
+     * @param node            The node to set the status on
+     * @param lock            True to set the lock, false to unset
+     * @param updatedHashRing If set, only lock the ranges the node hands over
+     *                        in this ring
      * @return success status
      */
-    private boolean setWriteLock(ServerNode node, boolean lock) {
+    private boolean setWriteLock(ServerNode node, boolean lock, HashRing updatedHashRing) {
 
         AdminMessage message = new AdminMessage(
                 lock ? AdminMessage.Action.WRITE_LOCK : AdminMessage.Action.WRITE_UNLOCK
         );
+        if (lock) {
+            message.setMetadata(updatedHashRing);
+        }
 
         try {
             AdminMessage response = zkConnection.sendAdminMessage(node.getNodeName(), message, 20000);
@@ -792,6 +1097,8 @@ public class ECS implements IECS {
      *
      */
     private void updateGlobalMetadata(ServerNode nodeChanged, AdminMessage.ServerChange changeAction) throws KeeperException, InterruptedException, TimeoutException {
+        hashRing.setEpoch(metadataEpoch.incrementAndGet());
+
         for (ServerNode node : hashRing.getNodes()) {
             AdminMessage message = new AdminMessage(AdminMessage.Action.SET_METADATA);
             message.setMetadata(hashRing);
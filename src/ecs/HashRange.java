@@ -0,0 +1,109 @@
+package ecs;
+
+import java.util.List;
+
+/**
+ * A range of positions on the hash ring, with both bounds inclusive. The
+ * range wraps around the end of the ring when upper &lt;= lower.
+ * <p>
+ * Ranges are compared as tokens; hex strings are only used for metadata
+ * and logs, see fromHex() and toHex().
+ */
+public final class HashRange {
+    private final HashToken lower;
+    private final HashToken upper;
+
+    public HashRange(HashToken lower, HashToken upper) {
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    /**
+     * @param hashRange [lower bound, upper bound] hex hashes, as returned by getNodeHashRange()
+     */
+    public static HashRange fromHex(String[] hashRange) {
+        return new HashRange(HashToken.fromHex(hashRange[0]), HashToken.fromHex(hashRange[1]));
+    }
+
+    /**
+     * @return Whether the hash falls in one of the ranges
+     */
+    public static boolean anyContains(List<HashRange> hashRanges, HashToken hash) {
+        for (HashRange hashRange : hashRanges) {
+            if (hashRange.contains(hash)) return true;
+        }
+        return false;
+    }
+
+    public HashToken getLower() {
+        return lower;
+    }
+
+    public HashToken getUpper() {
+        return upper;
+    }
+
+    private boolean wraps() {
+        return upper.compareTo(lower) <= 0;
+    }
+
+    public boolean contains(HashToken hash) {
+        if (wraps()) {
+            return lower.compareTo(hash) <= 0 || hash.compareTo(upper) <= 0;
+        } else {
+            return lower.compareTo(hash) <= 0 && hash.compareTo(upper) <= 0;
+        }
+    }
+
+    /**
+     * @param other A range which does not wrap around the ring
+     * @return Whether every hash in the other range falls in this one
+     */
+    public boolean contains(HashRange other) {
+        if (wraps()) {
+            // The other range is on one side of the end of the ring
+            return upper.equals(lower)
+                    || lower.compareTo(other.lower) <= 0
+                    || other.upper.compareTo(upper) <= 0;
+        } else {
+            return lower.compareTo(other.lower) <= 0 && other.upper.compareTo(upper) <= 0;
+        }
+    }
+
+    /**
+     * @param other A range which does not wrap around the ring
+     * @return Whether any hash in the other range falls in this one
+     */
+    public boolean overlaps(HashRange other) {
+        if (wraps()) {
+            return lower.compareTo(other.upper) <= 0 || other.lower.compareTo(upper) <= 0;
+        } else {
+            return lower.compareTo(other.upper) <= 0 && other.lower.compareTo(upper) <= 0;
+        }
+    }
+
+    /**
+     * @return [lower bound, upper bound] as hex hashes
+     */
+    public String[] toHex() {
+        return new String[]{lower.toHex(), upper.toHex()};
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof HashRange)) return false;
+
+        HashRange range = (HashRange) other;
+        return lower.equals(range.lower) && upper.equals(range.upper);
+    }
+
+    @Override
+    public int hashCode() {
+        return lower.hashCode() * 31 + upper.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "[" + lower.toHex() + ", " + upper.toHex() + "]";
+    }
+}
@@ -3,20 +3,41 @@ package ecs;
 import com.google.gson.Gson;
 import org.apache.log4j.Logger;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.*;
 
 /**
  * Class for tracking the Hash Ring used for persistent storage
  * <p>
  * Nodes are stored in two places: In a sorted ArrayList,
- * and as an actual linked list. The ArrayList's only purpose
- * is to support serialization and deserialization.
+ * and as an actual linked list. The ArrayList is what gets
+ * serialized, and backs the lookup index.
+ * <p>
+ * Each node takes virtualNodes positions (tokens) on the ring: its own
+ * hash, and the hashes of "name#1", "name#2", and so on. A key belongs to
+ * the node owning the first token at or after the key's hash, and is
+ * replicated on the next distinct nodes after that token.
+ * <p>
+ * The lookup index is rebuilt whenever the ring changes: a sorted
+ * array of every token and the node owning it, searched with a binary
+ * search to route keys, and a map from node name to node.
  */
 public class HashRing {
     private static final Logger logger = Logger.getLogger("HashRing");
+    private static final Gson gson = new Gson();
     private ArrayList<ServerNode> serverNodes = new ArrayList<>();
 
+    // Number of tokens per node. Every server and client must agree on it,
+    // so it travels with the metadata
+    private int virtualNodes = 1;
+
+    private transient HashToken[] tokens = new HashToken[0];
+    private transient ServerNode[] tokenNodes = new ServerNode[0];
+    private transient HashMap<String, ServerNode> nodesByName = new HashMap<>();
+
+    // Bumped by the ECS every time it sends out metadata, so clients can
+    // tell whether their copy of the ring is stale
+    private long epoch = 0;
+
     public HashRing() {
     }
 
@@ -50,31 +71,95 @@ public class HashRing {
         }
     }
 
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    /**
+     * Set the number of tokens each node takes on the ring. This moves
+     * almost every key, so it should only be changed on an empty ring.
+     */
+    public void setVirtualNodes(int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("Nodes need at least one token, got " + virtualNodes);
+        }
+
+        this.virtualNodes = virtualNodes;
+        rebuildIndex();
+    }
+
     public ArrayList<ServerNode> getNodes() {
         return serverNodes;
     }
 
-    public ServerNode getNode(String nodeName) {
+    /**
+     * @return The ring position of a node's given virtual node. The first
+     * is the node's own hash.
+     */
+    private static HashToken virtualNodeToken(ServerNode node, int virtualNode) {
+        if (virtualNode == 0) {
+            return node.getNodeToken();
+        }
+        return HashToken.of(node.getNodeName() + "#" + virtualNode);
+    }
+
+    /**
+     * Rebuild the lookup index from serverNodes
+     */
+    private void rebuildIndex() {
+        TreeMap<HashToken, ServerNode> positions = new TreeMap<>();
+        nodesByName = new HashMap<>();
+
         for (ServerNode node : serverNodes) {
-            if (node.getNodeName().equals(nodeName)) {
-                return node;
+            nodesByName.put(node.getNodeName(), node);
+            node.setHashRing(this);
+
+            for (int i = 0; i < virtualNodes; i++) {
+                positions.put(virtualNodeToken(node, i), node);
             }
         }
 
-        logger.error("Node " + nodeName + " not found");
+        HashToken[] tokens = new HashToken[positions.size()];
+        ServerNode[] tokenNodes = new ServerNode[positions.size()];
+        int i = 0;
+        for (Map.Entry<HashToken, ServerNode> position : positions.entrySet()) {
+            tokens[i] = position.getKey();
+            tokenNodes[i] = position.getValue();
+            i++;
+        }
 
-        return null;
+        this.tokens = tokens;
+        this.tokenNodes = tokenNodes;
     }
 
-    public void addNode(ServerNode node) {
-        // Insert into the array list
-        serverNodes.add(node);
+    public ServerNode getNode(String nodeName) {
+        ServerNode node = nodesByName.get(nodeName);
 
-        // Not super efficient, but oh well
-        Collections.sort(serverNodes);
+        if (node == null) {
+            logger.error("Node " + nodeName + " not found");
+        }
+
+        return node;
+    }
+
+    public void addNode(ServerNode node) {
+        // Insert into the array list, keeping it sorted
+        int index = Collections.binarySearch(serverNodes, node);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        serverNodes.add(index, node);
+        rebuildIndex();
 
         // Find the predecessor and successor nodes
-        int index = serverNodes.indexOf(node);
 
         int predecessorIdx = index == 0 ? serverNodes.size() - 1 : index - 1;
         int successorIdx = index == serverNodes.size() - 1 ? 0 : index + 1;
@@ -96,6 +181,7 @@ public class HashRing {
 
         ServerNode node = serverNodes.get(index);
         serverNodes.remove(index);
+        rebuildIndex();
 
         ServerNode predecessor = node.getPredecessor();
         ServerNode successor = node.getSuccessor();
@@ -106,14 +192,8 @@ public class HashRing {
     }
 
     public void removeNode(String nodeName) {
-        int idx = -1;
-
-        for (int i = 0; i < serverNodes.size(); i++) {
-            if (serverNodes.get(i).getNodeName().equals(nodeName)) {
-                idx = i;
-                break;
-            }
-        }
+        ServerNode node = nodesByName.get(nodeName);
+        int idx = node == null ? -1 : Collections.binarySearch(serverNodes, node);
 
         if (idx < 0) {
             logger.error("Cannot remove node " + nodeName + ". Node not found.");
@@ -123,26 +203,116 @@ public class HashRing {
     }
 
     public ServerNode getNodeForKey(String key) {
-        for (ServerNode node : serverNodes) {
-            if (node.isNodeResponsible(key)) {
-                return node;
+        return getNodeForKey(HashToken.of(key));
+    }
+
+    /**
+     * Find the node responsible for a key: the first node at or after the
+     * key's hash, wrapping around to the first node on the ring.
+     *
+     * @param keyToken Hash of the key, from HashToken.of()
+     * @return The responsible node, or null if the ring is empty
+     */
+    public ServerNode getNodeForKey(HashToken keyToken) {
+        int index = tokenIndex(keyToken);
+        return index < 0 ? null : tokenNodes[index];
+    }
+
+    /**
+     * @return Index of the first token at or after the given hash, wrapping
+     * around to 0, or -1 if the ring is empty
+     */
+    private int tokenIndex(HashToken keyToken) {
+        if (tokens.length == 0) {
+            return -1;
+        }
+
+        int index = Arrays.binarySearch(tokens, keyToken);
+        if (index < 0) {
+            index = -index - 1;
+        }
+
+        return index == tokens.length ? 0 : index;
+    }
+
+    /**
+     * Find the nodes a key is replicated on: the first numReplicas distinct
+     * nodes after the token owning it, other than its owner
+     */
+    public List<ServerNode> getReplicasForKey(HashToken keyToken, int numReplicas) {
+        int index = tokenIndex(keyToken);
+        return index < 0 ? new ArrayList<>() : preferenceList(index, numReplicas);
+    }
+
+    /**
+     * @return The first numReplicas distinct nodes after the given token,
+     * other than the token's owner
+     */
+    private List<ServerNode> preferenceList(int tokenIndex, int numReplicas) {
+        List<ServerNode> replicas = new ArrayList<>(numReplicas);
+        ServerNode owner = tokenNodes[tokenIndex];
+
+        for (int i = 1; i < tokens.length && replicas.size() < numReplicas; i++) {
+            ServerNode node = tokenNodes[(tokenIndex + i) % tokens.length];
+            if (node != owner && !replicas.contains(node)) {
+                replicas.add(node);
             }
         }
 
-        return null;
+        return replicas;
+    }
+
+    /**
+     * Find the hash ranges a node is responsible for. Runs of consecutive
+     * tokens owned by the node are merged into a single range.
+     *
+     * @return List of ranges, bounds inclusive. Empty if the node is not on the ring.
+     */
+    public List<HashRange> getHashRanges(String nodeName) {
+        List<HashRange> ranges = new ArrayList<>();
+        ServerNode node = nodesByName.get(nodeName);
+        if (node == null) {
+            return ranges;
+        }
+
+        int count = tokens.length;
+        for (int start = 0; start < count; start++) {
+            if (tokenNodes[start] != node || (count > 1 && tokenNodes[(start + count - 1) % count] == node)) {
+                continue;
+            }
+
+            int end = start;
+            while (end - start < count - 1 && tokenNodes[(end + 1) % count] == node) {
+                end++;
+            }
+
+            HashToken lower = tokens[(start + count - 1) % count].next();
+            ranges.add(new HashRange(lower, tokens[end % count]));
+        }
+
+        if (ranges.isEmpty()) {
+            // The node owns every token, so the whole ring
+            HashToken last = tokens[count - 1];
+            ranges.add(new HashRange(last.next(), last));
+        }
+
+        return ranges;
     }
 
     public String serialize() {
-        return new Gson().toJson(this);
+        return gson.toJson(this);
     }
 
     public void rebuildHashRingLinkedList() {
         rebuildNodeLinkedList(this.serverNodes);
+        rebuildIndex();
     }
 
     public void deserialize(String json) {
-        HashRing hashRingFromJson = new Gson().fromJson(json, HashRing.class);
+        HashRing hashRingFromJson = gson.fromJson(json, HashRing.class);
         this.serverNodes = hashRingFromJson.serverNodes;
+        this.epoch = hashRingFromJson.epoch;
+        this.virtualNodes = hashRingFromJson.virtualNodes;
         Collections.sort(serverNodes);
 
         // The deserialized nodes won't have their successors and
@@ -164,38 +334,81 @@ public class HashRing {
 
         HashRing copyHashRing = new HashRing();
         copyHashRing.serverNodes = copyNodes;
+        copyHashRing.epoch = this.epoch;
+        copyHashRing.virtualNodes = this.virtualNodes;
+        copyHashRing.rebuildIndex();
 
         return copyHashRing;
     }
 
+    /**
+     * Find the nodes holding replicas of the given node's data: for each of
+     * its tokens, the next num_replicators distinct nodes after it.
+     *
+     * @return The replicators, nearest first. Padded with nulls to at least
+     * num_replicators entries.
+     */
     public ServerNode[] getReplicators(String nodeName, int num_replicators) {
-        ServerNode[] replicators = new ServerNode[num_replicators];
         ServerNode currentNode = this.getNode(nodeName);
-        ServerNode successorNode = currentNode.getSuccessor();
+        LinkedHashSet<ServerNode> replicators = new LinkedHashSet<>();
 
-        for (int i=0; i<num_replicators; i++) {
-            if (successorNode.equals(currentNode)) {
-                logger.info("The nodes are equal");
-                break;
-            }
-            replicators[i] = successorNode;
-            successorNode = successorNode.getSuccessor();
+        for (int index : nodeTokenIndexes(currentNode)) {
+            replicators.addAll(preferenceList(index, num_replicators));
         }
-        return replicators;
+
+        return replicators.toArray(new ServerNode[Math.max(num_replicators, replicators.size())]);
     }
 
+    /**
+     * Find the nodes the given node holds replicas for: every node that has
+     * it as one of its replicators.
+     *
+     * @return The controllers, nearest first. Padded with nulls to at least
+     * num_controllers entries.
+     */
     public ServerNode[] getControllers(String nodeName, int num_controllers) {
-        ServerNode[] controllers = new ServerNode[num_controllers];
         ServerNode currentNode = this.getNode(nodeName);
-        ServerNode predNode = currentNode.getPredecessor();
+        LinkedHashSet<ServerNode> controllers = new LinkedHashSet<>();
+
+        int[] indexes = nodeTokenIndexes(currentNode);
+        if (indexes.length > 0) {
+            // Walk backwards around the ring from the node's own hash
+            int count = tokens.length;
+            for (int i = 1; i < count; i++) {
+                int index = (indexes[0] - i + count) % count;
+                ServerNode owner = tokenNodes[index];
+
+                if (owner != currentNode && !controllers.contains(owner)
+                        && preferenceList(index, num_controllers).contains(currentNode)) {
+                    controllers.add(owner);
+                }
+            }
+        }
 
-        for (int i=0; i<num_controllers; i++) {
-            if (predNode.equals(currentNode)) {
-                break;
+        return controllers.toArray(new ServerNode[Math.max(num_controllers, controllers.size())]);
+    }
+
+    /**
+     * @return Indexes of the node's tokens, starting from its own hash and
+     * going around the ring
+     */
+    private int[] nodeTokenIndexes(ServerNode node) {
+        if (node == null) {
+            return new int[0];
+        }
+
+        int count = tokens.length;
+        int first = Arrays.binarySearch(tokens, node.getNodeToken());
+        int[] indexes = new int[virtualNodes];
+        int found = 0;
+
+        for (int i = 0; i < count && found < virtualNodes; i++) {
+            int index = (first + i) % count;
+            if (tokenNodes[index] == node) {
+                indexes[found++] = index;
             }
-            controllers[i] = predNode;
-            predNode = predNode.getPredecessor();
         }
-        return controllers;
+
+        return Arrays.copyOf(indexes, found);
     }
 }
@@ -0,0 +1,134 @@
+package ecs;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A 128-bit MD5 hash, held as two unsigned longs so positions on the ring
+ * can be compared without going through hex strings.
+ * <p>
+ * Tokens order the same way as the 32 character lowercase hex strings
+ * produced by ServerNode.md5Hash().
+ */
+public final class HashToken implements Comparable<HashToken> {
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // MD5 is required of every Java platform
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final long high;
+    private final long low;
+
+    public HashToken(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * @param data String to hash
+     * @return The MD5 hash of the string's bytes
+     */
+    public static HashToken of(String data) {
+        return fromDigest(digest(data));
+    }
+
+    /**
+     * @param hex 32 character hex string, as returned by ServerNode.md5Hash()
+     * @return The token with the same value
+     */
+    public static HashToken fromHex(String hex) {
+        if (hex.length() != 32) {
+            throw new IllegalArgumentException("Invalid hash " + hex);
+        }
+
+        return new HashToken(Long.parseUnsignedLong(hex.substring(0, 16), 16),
+                Long.parseUnsignedLong(hex.substring(16), 16));
+    }
+
+    static byte[] digest(String data) {
+        MessageDigest md5 = MD5.get();
+        md5.reset();
+        return md5.digest(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static HashToken fromDigest(byte[] digest) {
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 8; i++) {
+            high = (high << 8) | (digest[i] & 0xFF);
+            low = (low << 8) | (digest[i + 8] & 0xFF);
+        }
+        return new HashToken(high, low);
+    }
+
+    public long getHigh() {
+        return high;
+    }
+
+    public long getLow() {
+        return low;
+    }
+
+    /**
+     * @return The next position on the ring, wrapping around to 0
+     */
+    public HashToken next() {
+        return low == -1L ? new HashToken(high + 1, 0) : new HashToken(high, low + 1);
+    }
+
+    /**
+     * Check if this token falls in the range (lower, upper], wrapping around
+     * the end of the ring when upper &lt;= lower
+     */
+    public boolean inRange(HashToken lower, HashToken upper) {
+        if (upper.compareTo(lower) <= 0) {
+            return lower.compareTo(this) < 0 || compareTo(upper) <= 0;
+        } else {
+            return lower.compareTo(this) < 0 && compareTo(upper) <= 0;
+        }
+    }
+
+    public String toHex() {
+        StringBuilder sb = new StringBuilder(32);
+        appendHex(sb, high);
+        appendHex(sb, low);
+        return sb.toString();
+    }
+
+    private static void appendHex(StringBuilder sb, long value) {
+        String hex = Long.toHexString(value);
+        for (int i = hex.length(); i < 16; i++) {
+            sb.append('0');
+        }
+        sb.append(hex);
+    }
+
+    @Override
+    public int compareTo(HashToken other) {
+        int result = Long.compareUnsigned(high, other.high);
+        return result != 0 ? result : Long.compareUnsigned(low, other.low);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof HashToken)) return false;
+
+        HashToken token = (HashToken) other;
+        return high == token.high && low == token.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(high) * 31 + Long.hashCode(low);
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+}
@@ -3,13 +3,15 @@ package ecs;
 import app_kvServer.IKVServer;
 import org.apache.log4j.Logger;
 
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class ServerNode implements IECSNode, Comparable<ServerNode> {
     public static final Logger logger = Logger.getLogger("ServerNode");
-    public static BigInteger HASH_MAX = new BigInteger("FFFFFFFFFFFFFFFFFFFFFFFFFFFFFFFF", 16);
+
+    // Nodes each key is replicated on, besides the one responsible for it
+    public static final int NUM_REPLICAS = 2;
+
     private final String name;
     private final String hostname;
     private final int port;
@@ -23,6 +25,13 @@ public class ServerNode implements IECSNode, Comparable<ServerNode> {
     private transient ServerNode predecessor;
     private transient ServerNode successor;
 
+    // Numeric form of nodeHash, worked out on first use since Gson skips the constructor
+    private transient HashToken nodeToken;
+
+    // Ring this node was last placed on, which decides its hash ranges once
+    // nodes have several tokens each
+    private transient HashRing hashRing;
+
     public ServerNode(String name, String hostname, int port) {
         this.name = name;
         this.hostname = hostname;
@@ -34,42 +43,7 @@ public class ServerNode implements IECSNode, Comparable<ServerNode> {
     }
 
     public static String md5Hash(String data) {
-        try {
-            MessageDigest md5 = MessageDigest.getInstance("MD5");
-            md5.update(data.getBytes());
-            byte[] digest = md5.digest();
-
-            // Convert the digest into a string of hex characters
-            StringBuilder sb = new StringBuilder();
-            for (byte b : digest) {
-                sb.append(Integer.toHexString((b & 0xFF) | 0x100), 1, 3);
-            }
-            return sb.toString();
-
-        } catch (NoSuchAlgorithmException e) {
-            // This will never happen since MD5 is hard-coded, but welcome to Java
-            return "00000000000000000000000000000000";
-        }
-    }
-
-    /**
-     * Check if the given hash falls within the hash range
-     *
-     * @param hash      Hash value to check
-     * @param hashRange List of [lower bound, upper bound] hashes, inclusive
-     * @return True if the hash is in the range, false otherwise
-     */
-    public static boolean hashInRange(String hash, String[] hashRange) {
-        if (hashRange == null) return false;
-
-        String lower = hashRange[0];
-        String upper = hashRange[1];
-
-        if (upper.compareTo(lower) <= 0) {
-            return lower.compareTo(hash) <= 0 || upper.compareTo(hash) >= 0;
-        } else {
-            return lower.compareTo(hash) <= 0 && upper.compareTo(hash) >= 0;
-        }
+        return HashToken.of(data).toHex();
     }
 
     public String getNodeName() {
@@ -112,6 +86,13 @@ public class ServerNode implements IECSNode, Comparable<ServerNode> {
         return this.nodeHash;
     }
 
+    public HashToken getNodeToken() {
+        if (nodeToken == null) {
+            nodeToken = HashToken.fromHex(nodeHash);
+        }
+        return nodeToken;
+    }
+
     public int getDataReceivePort() {
         return dataReceivePort;
     }
@@ -128,6 +109,10 @@ public class ServerNode implements IECSNode, Comparable<ServerNode> {
         this.replicationReceivePort = replicationReceivePort;
     }
 
+    void setHashRing(HashRing hashRing) {
+        this.hashRing = hashRing;
+    }
+
     public ServerSettings getServerSettings() {
         return serverSettings;
     }
@@ -137,7 +122,9 @@ public class ServerNode implements IECSNode, Comparable<ServerNode> {
     }
 
     /**
-     * Return an array of hashes this node is responsible for.
+     * Return an array of hashes this node is responsible for. With virtual
+     * nodes, this is only the range ending at the node's own hash; see
+     * getNodeHashRanges().
      *
      * @return Array of two strings representing the lower bound and upper bound hashes
      * that this node is responsible for, both inclusive
@@ -147,52 +134,75 @@ public class ServerNode implements IECSNode, Comparable<ServerNode> {
             return null;
         }
 
-        BigInteger startingHashValue = new BigInteger(predecessor.getNodeHash(), 16)
-                .add(BigInteger.ONE)
-                .mod(HASH_MAX);
+        if (hashRing != null) {
+            for (HashRange hashRange : getNodeHashRanges()) {
+                if (hashRange.contains(getNodeToken())) return hashRange.toHex();
+            }
+        }
 
-        StringBuilder startingHash = new StringBuilder(startingHashValue.toString(16));
+        return new String[]{predecessor.getNodeToken().next().toHex(), this.getNodeHash()};
+    }
 
-        while (startingHash.length() < 32) {
-            startingHash.insert(0, "0");
+    /**
+     * Return every range of hashes this node is responsible for, one per
+     * run of its tokens on the ring.
+     *
+     * @return List of ranges, bounds inclusive
+     */
+    public List<HashRange> getNodeHashRanges() {
+        if (hashRing != null) {
+            return hashRing.getHashRanges(name);
         }
 
-
-        return new String[]{startingHash.toString(), this.getNodeHash()};
+        List<HashRange> hashRanges = new ArrayList<>();
+        if (predecessor != null) {
+            hashRanges.add(new HashRange(predecessor.getNodeToken().next(), getNodeToken()));
+        }
+        return hashRanges;
     }
 
     public boolean isNodeResponsible(String key) {
-        String keyHash = md5Hash(key);
+        return isNodeResponsible(HashToken.of(key));
+    }
 
-        if (predecessor == null || predecessor.getNodeHash().equals(this.getNodeHash())) {
+    /**
+     * @param keyToken Hash of the key, from HashToken.of()
+     * @return True if this node is responsible for the key
+     */
+    public boolean isNodeResponsible(HashToken keyToken) {
+        if (hashRing != null) {
+            return hashRing.getNodeForKey(keyToken) == this;
+        }
+
+        if (predecessor == null || predecessor.getNodeToken().equals(this.getNodeToken())) {
             // This is the only server
             return true;
         }
 
-        String thisHash = this.getNodeHash();
-        String predecessorHash = this.predecessor.getNodeHash();
-
-        if (predecessorHash.compareTo(thisHash) > 0) {
-            // Handle the special case where we loop over the ring boundary
-            return predecessorHash.compareTo(keyHash) < 0 || keyHash.compareTo(thisHash) <= 0;
-        } else {
-            return predecessorHash.compareTo(keyHash) < 0 && keyHash.compareTo(thisHash) <= 0;
-        }
+        return keyToken.inRange(predecessor.getNodeToken(), this.getNodeToken());
     }
 
     public boolean doesNodeReplicateKey(String key) {
+        return doesNodeReplicateKey(HashToken.of(key));
+    }
+
+    public boolean doesNodeReplicateKey(HashToken keyToken) {
+        if (hashRing != null) {
+            return hashRing.getReplicasForKey(keyToken, NUM_REPLICAS).contains(this);
+        }
+
         // A node replicates keys for its two predecessors
 
-        if (predecessor == null || predecessor.getNodeHash().equals(this.getNodeHash())) {
+        if (predecessor == null || predecessor.getNodeToken().equals(this.getNodeToken())) {
             return false;
         }
 
-        return predecessor.isNodeResponsible(key) || predecessor.getPredecessor().isNodeResponsible(key);
+        return predecessor.isNodeResponsible(keyToken) || predecessor.getPredecessor().isNodeResponsible(keyToken);
     }
 
     @Override
     public int compareTo(ServerNode other) {
-        return this.getNodeHash().compareTo(other.getNodeHash());
+        return this.getNodeToken().compareTo(other.getNodeToken());
     }
 
     @Override
@@ -218,6 +228,7 @@ public class ServerNode implements IECSNode, Comparable<ServerNode> {
         copyNode.status = this.status;
         copyNode.dataReceivePort = this.dataReceivePort;
         copyNode.replicationReceivePort = this.replicationReceivePort;
+        copyNode.serverSettings = this.serverSettings;
 
         return copyNode;
     }
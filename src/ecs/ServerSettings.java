@@ -1,10 +1,22 @@
 package ecs;
 
+import app_kvServer.IKVServer;
+
 public class ServerSettings {
+    public static final int DEFAULT_MAX_CONNECTIONS = 1000;
+
     private boolean replicatorsExpireKeys;
+    private IKVServer.CacheStrategy cacheStrategy;
+    private int cacheSize;
+    private int maxConnections;
+    private boolean forwardRequests;
 
     public ServerSettings() {
         replicatorsExpireKeys = false;
+        cacheStrategy = IKVServer.CacheStrategy.None;
+        cacheSize = 0;
+        maxConnections = DEFAULT_MAX_CONNECTIONS;
+        forwardRequests = false;
     }
 
     public void setReplicatorsExpireKeys(boolean replicatorsExpireKeys) {
@@ -14,4 +26,36 @@ public class ServerSettings {
     public boolean getReplicatorsExpireKeys() {
         return this.replicatorsExpireKeys;
     }
+
+    public void setCacheStrategy(IKVServer.CacheStrategy cacheStrategy) {
+        this.cacheStrategy = cacheStrategy;
+    }
+
+    public IKVServer.CacheStrategy getCacheStrategy() {
+        return this.cacheStrategy;
+    }
+
+    public void setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    public int getCacheSize() {
+        return this.cacheSize;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public int getMaxConnections() {
+        return this.maxConnections;
+    }
+
+    public void setForwardRequests(boolean forwardRequests) {
+        this.forwardRequests = forwardRequests;
+    }
+
+    public boolean getForwardRequests() {
+        return this.forwardRequests;
+    }
 }
@@ -11,12 +11,17 @@ public class LogSetup {
 
     public static final String UNKNOWN_LEVEL = "UnknownLevel";
     private static final Logger logger = Logger.getRootLogger();
+
+    // Events queued for the appenders before logging threads block, or
+    // events are dropped if KV_LOG_BLOCKING is 0
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
     private final String logdir;
 
     /**
      * Initializes the logging for the echo server. Logs are appended to the
      * console output and written into a separated server log file at a given
-     * destination.
+     * destination. Both are written by a background thread, so logging
+     * threads only queue each event.
      *
      * @param logdir the destination (i.e. directory + filename) for the
      *               persistent logging information.
@@ -53,13 +58,38 @@ public class LogSetup {
         return "ALL | DEBUG | INFO | WARN | ERROR | FATAL | OFF";
     }
 
+    /**
+     * @param levelString Level name, or null
+     * @param defaultLevel Level to use if the name is missing or invalid
+     */
+    public static Level getLevel(String levelString, Level defaultLevel) {
+        if (levelString == null || !isValidLevel(levelString.toUpperCase())) {
+            return defaultLevel;
+        }
+        return Level.toLevel(levelString.toUpperCase());
+    }
+
     private void initialize(Level level) throws IOException {
         PatternLayout layout = new PatternLayout("%d{ISO8601} %-5p [%t] %c: %m%n");
         FileAppender fileAppender = new FileAppender(layout, logdir, true);
 
         ConsoleAppender consoleAppender = new ConsoleAppender(layout);
-        logger.addAppender(consoleAppender);
-        logger.addAppender(fileAppender);
+
+        String bufferSizeEnv = System.getenv().getOrDefault("KV_LOG_BUFFER_SIZE", String.valueOf(DEFAULT_BUFFER_SIZE));
+        String blockingEnv = System.getenv().getOrDefault("KV_LOG_BLOCKING", "1");
+
+        AsyncAppender asyncAppender = new AsyncAppender();
+        asyncAppender.setBufferSize(Integer.parseInt(bufferSizeEnv));
+        // When not blocking, a full queue drops events and logs how many were dropped
+        asyncAppender.setBlocking(!blockingEnv.equals("0"));
+        asyncAppender.setLocationInfo(false);
+        asyncAppender.addAppender(consoleAppender);
+        asyncAppender.addAppender(fileAppender);
+
+        logger.addAppender(asyncAppender);
         logger.setLevel(level);
+
+        // Write out the queued events before exiting
+        Runtime.getRuntime().addShutdownHook(new Thread(LogManager::shutdown));
     }
 }
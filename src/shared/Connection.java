@@ -1,6 +1,7 @@
 package shared;
 
 import org.apache.log4j.Logger;
+import shared.messages.BinaryMessageCodec;
 import shared.messages.DeserializationException;
 import shared.messages.JsonKVMessage;
 import shared.messages.KVMessage;
@@ -21,7 +22,13 @@ public abstract class Connection {
 
     // Header size in bytes
     public static final int HEADER_SIZE = 16;
+
+    // Version 1 bodies are JSON, version 2 use the BinaryMessageCodec
     public static final byte PROTOCOL_VERSION = 1;
+    public static final byte BINARY_PROTOCOL_VERSION = BinaryMessageCodec.PROTOCOL_VERSION;
+
+    // Offset of the 4-byte request id in the header, for every protocol version
+    public static final int REQUEST_ID_OFFSET = 7;
 
     protected String hostname;
     protected int port;
@@ -30,47 +37,127 @@ public abstract class Connection {
     protected InputStream input;
     protected OutputStream output;
 
+    // Protocol version used by sendMessage
+    protected byte protocolVersion = PROTOCOL_VERSION;
+
+    // Protocol version of the last message received
+    protected byte receivedProtocolVersion = PROTOCOL_VERSION;
+
+    // Reused between messages, since a connection sends and receives one message at a time
+    private ByteBuffer sendBuffer;
+    private final ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer receiveBuffer;
+
+    public void setProtocolVersion(byte protocolVersion) {
+        this.protocolVersion = protocolVersion;
+    }
+
     /**
      * Send a message using this connection's socket.
      * <p>
-     * Serialized message strings are decoded and sent as bytes. The packet
-     * begins with a 16-byte header. The first byte indicates the protocol
-     * version (here, 1). The next 4 bytes indicate the size of the message
-     * body (little endian). The remaining 11 bytes are currently unused.
+     * The packet begins with a 16-byte header. The first byte indicates the
+     * protocol version. The next 4 bytes indicate the size of the message
+     * body (little endian). Bytes 7 to 10 hold the request id, which a
+     * response copies from its request. For version 1, the other header
+     * bytes are unused and the body is the JSON serialized message. Version 2
+     * is described in BinaryMessageCodec.
      *
      * @param message The message to send
      * @throws IOException Exceptions to do with the output buffer
      */
     public void sendMessage(KVMessage message) throws IOException {
-        String msgContent = message.serialize();
-        byte[] rawMsgBytes = msgContent.getBytes();
+        sendBuffer = encodeMessage(message, protocolVersion, sendBuffer);
 
-        ByteBuffer msgBuffer = ByteBuffer.allocate(rawMsgBytes.length + HEADER_SIZE);
-        msgBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        // Send the message
+        output.write(sendBuffer.array(), 0, sendBuffer.limit());
+        output.flush();
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("SEND \t<"
+                    + socket.getInetAddress().getHostName() + ":"
+                    + socket.getPort() + ">: '"
+                    + describeMessage(message, protocolVersion) + "'");
+        }
+    }
+
+    /**
+     * Encode a message, header included, with the given protocol version.
+     *
+     * @param message Message to encode
+     * @param version Protocol version to encode with
+     * @param buffer  Buffer to reuse, or null. A larger buffer is allocated
+     *                if it is too small.
+     * @return Buffer holding the packet between position 0 and its limit
+     */
+    public static ByteBuffer encodeMessage(KVMessage message, byte version, ByteBuffer buffer) {
+        if (version == BINARY_PROTOCOL_VERSION) {
+            return BinaryMessageCodec.encode(message, buffer);
+        }
+
+        byte[] rawMsgBytes = message.serialize().getBytes();
+
+        int packetLength = rawMsgBytes.length + HEADER_SIZE;
+        if (buffer == null || buffer.capacity() < packetLength) {
+            buffer = ByteBuffer.allocate(packetLength);
+        }
+        buffer.clear();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
 
         // Add the 16-byte header to the beginning of the message
-        msgBuffer.put(PROTOCOL_VERSION);
-        msgBuffer.putInt(rawMsgBytes.length);
+        buffer.put(PROTOCOL_VERSION);
+        buffer.putInt(rawMsgBytes.length);
 
-        for (int i = msgBuffer.position(); i < HEADER_SIZE; i++) {
-            msgBuffer.put((byte) 0);
+        for (int i = buffer.position(); i < HEADER_SIZE; i++) {
+            buffer.put((byte) 0);
         }
+        buffer.putInt(REQUEST_ID_OFFSET, message.getRequestId());
 
         // Add the rest of the message
-        msgBuffer.put(rawMsgBytes, 0, rawMsgBytes.length);
+        buffer.put(rawMsgBytes, 0, rawMsgBytes.length);
 
-        byte[] msgBytes = msgBuffer.array();
+        buffer.flip();
+        return buffer;
+    }
 
-        // Send the message
-        output.write(msgBytes, 0, msgBytes.length);
-        output.flush();
+    /**
+     * Decode a message according to the protocol version in its header.
+     * Unknown versions are treated as JSON.
+     *
+     * @param header Buffer holding the 16-byte header, from position 0
+     * @param body   Buffer holding exactly the body, from its current position
+     * @return The decoded message
+     * @throws DeserializationException For issues decoding the message payload
+     */
+    public static JsonKVMessage decodeMessage(ByteBuffer header, ByteBuffer body) throws DeserializationException {
+        byte version = header.get(0);
+        JsonKVMessage message;
+
+        if (version == BINARY_PROTOCOL_VERSION) {
+            message = BinaryMessageCodec.decode(header, body);
+        } else {
+            if (version != PROTOCOL_VERSION) {
+                logger.warn("Received an invalid protocol version " + version
+                        + ", behaviour may be undefined");
+            }
 
-        logger.info("SEND \t<"
-                + socket.getInetAddress().getHostName() + ":"
-                + socket.getPort() + ">: '"
-                + msgContent + "'");
+            String msg = new String(body.array(), body.arrayOffset() + body.position(), body.remaining());
+            message = new JsonKVMessage(msg);
+        }
+
+        message.setRequestId(header.order(ByteOrder.LITTLE_ENDIAN).getInt(REQUEST_ID_OFFSET));
+        return message;
     }
 
+    /**
+     * @return Text to log for a message. Binary messages are not serialized
+     * to JSON just to be logged.
+     */
+    public static String describeMessage(KVMessage message, byte version) {
+        if (version == BINARY_PROTOCOL_VERSION) {
+            return message.getStatus() + " " + message.getKey();
+        }
+        return message.serialize();
+    }
 
     /**
      * Receive a message from this connection's socket.
@@ -82,9 +169,7 @@ public abstract class Connection {
      * @throws DeserializationException For issues decoding the message payload
      */
     public JsonKVMessage receiveMessage() throws IOException, DeserializationException {
-        byte[] headerBytes = new byte[16];
-
-        int headerLen = input.read(headerBytes, 0, HEADER_SIZE);
+        int headerLen = readFully(headerBuffer.array(), HEADER_SIZE);
 
         if (headerLen == -1) {
             throw new IOException("Connection terminated");
@@ -92,35 +177,54 @@ public abstract class Connection {
             throw new IOException("Failed to read message header");
         }
 
-        ByteBuffer headerBuffer = ByteBuffer.wrap(headerBytes);
-        headerBuffer.order(ByteOrder.LITTLE_ENDIAN);
-        byte protocolVersion = headerBuffer.get();
+        receivedProtocolVersion = headerBuffer.get(0);
+        int messageLength = headerBuffer.getInt(1);
 
-        if (protocolVersion != PROTOCOL_VERSION) {
-            logger.warn("Received an invalid protocol version " + protocolVersion
-                    + ", behaviour may be undefined");
+        if (messageLength < 0) {
+            throw new IOException("Invalid message length " + messageLength);
         }
 
-        int messageLength = headerBuffer.getInt();
-
-        byte[] msgBytes = new byte[messageLength];
+        if (receiveBuffer == null || receiveBuffer.capacity() < messageLength) {
+            receiveBuffer = ByteBuffer.allocate(messageLength);
+        }
+        receiveBuffer.clear();
 
-        if (input.read(msgBytes, 0, messageLength) != messageLength) {
+        if (readFully(receiveBuffer.array(), messageLength) != messageLength) {
             throw new IOException("Failed to read message body");
         }
+        receiveBuffer.limit(messageLength);
 
-        String msg = new String(msgBytes);
-
-        JsonKVMessage message = new JsonKVMessage(msg);
+        JsonKVMessage message = decodeMessage(headerBuffer, receiveBuffer);
 
-        logger.info("RECEIVE \t<"
-                + socket.getInetAddress().getHostAddress() + ":"
-                + socket.getPort() + ">: "
-                + msg + "'");
+        if (logger.isDebugEnabled()) {
+            logger.debug("RECEIVE \t<"
+                    + socket.getInetAddress().getHostAddress() + ":"
+                    + socket.getPort() + ">: "
+                    + describeMessage(message, receivedProtocolVersion) + "'");
+        }
 
         return message;
     }
 
+    /**
+     * Read until the buffer has the given number of bytes or the stream ends
+     *
+     * @return Number of bytes read, or -1 if the stream ended before any
+     */
+    private int readFully(byte[] buffer, int length) throws IOException {
+        int total = 0;
+
+        while (total < length) {
+            int read = input.read(buffer, total, length - total);
+            if (read == -1) {
+                return total == 0 && length > 0 ? -1 : total;
+            }
+            total += read;
+        }
+
+        return total;
+    }
+
     public void disconnect() {
         try {
             if (socket != null) {
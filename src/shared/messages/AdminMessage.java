@@ -5,6 +5,7 @@ import ecs.ServerNode;
 import ecs.HashRing;
 
 public class AdminMessage implements Serializable {
+    private static final Gson gson = new Gson();
 
     public enum Action {
         NOP,              // Do nothing
@@ -35,7 +36,7 @@ public class AdminMessage implements Serializable {
     private Action action;              // Required for all messages
     private String uuid;                // Required for all messages
     private String message;             // Only required for errors
-    private HashRing hashRing;          // Used by SET_METADATA, MOVE_DATA
+    private HashRing hashRing;          // Used by SET_METADATA, MOVE_DATA, WRITE_LOCK
     private ServerChange serverChange;  // Used by SET_METADATA
     private ServerNode changedServer;   // Used by SET_METADATA
 
@@ -123,11 +124,11 @@ public class AdminMessage implements Serializable {
     }
 
     public String serialize() {
-        return new Gson().toJson(this);
+        return gson.toJson(this);
     }
 
     public void deserialize(String json) {
-        AdminMessage adminMessage = new Gson().fromJson(json, AdminMessage.class);
+        AdminMessage adminMessage = gson.fromJson(json, AdminMessage.class);
 
         this.action = adminMessage.action;
         this.uuid = adminMessage.uuid;
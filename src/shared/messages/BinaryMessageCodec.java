@@ -0,0 +1,270 @@
+package shared.messages;
+
+import ecs.HashRing;
+import shared.Connection;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary encoding of KV messages, used for protocol version 2.
+ * <p>
+ * The fixed fields live in the otherwise unused bytes of the 16-byte
+ * header, after the version byte and the 4-byte body length:
+ * <pre>
+ *   5      status (StatusType ordinal)
+ *   6      flags (bit 0 set if a TTL is present, bit 1 for an epoch,
+ *          bit 2 for batch entries, bit 3 for a forwarded request)
+ *   7-10   request id (little endian int)
+ *   11-15  unused
+ * </pre>
+ * The body starts with the epoch and TTL (8 bytes each) if their flags are
+ * set. Next are the lengths of the key, value, message and metadata
+ * (4-byte ints, -1 for null), followed by their UTF-8 bytes. Metadata is
+ * the JSON encoded hash ring.
+ * <p>
+ * Batch entries come last: their count (4-byte int), then for each entry
+ * its status (0xFF if none) and flags (1 byte each), its TTL if flagged, and the lengths
+ * and bytes of its key, value and message.
+ */
+public final class BinaryMessageCodec {
+    public static final byte PROTOCOL_VERSION = 2;
+
+    private static final int STATUS_OFFSET = 5;
+    private static final int FLAGS_OFFSET = 6;
+
+    private static final byte FLAG_TTL = 1;
+    private static final byte FLAG_EPOCH = 2;
+    private static final byte FLAG_ENTRIES = 4;
+    private static final byte FLAG_FORWARDED = 8;
+
+    // Entries of batch requests only need a key, and may have no status
+    private static final byte NO_STATUS = (byte) 0xFF;
+
+    private static final KVMessage.StatusType[] statusTypes = KVMessage.StatusType.values();
+
+    private BinaryMessageCodec() {
+    }
+
+    /**
+     * Encode a message, header included, into the given buffer.
+     *
+     * @param message Message to encode
+     * @param buffer  Buffer to reuse, or null. A larger buffer is allocated
+     *                if it is too small.
+     * @return Buffer holding the packet between position 0 and its limit
+     */
+    public static ByteBuffer encode(KVMessage message, ByteBuffer buffer) {
+        Fields fields = new Fields(message);
+        byte[] metadata = message.getMetadata() == null ? null : toBytes(message.getMetadata().serialize());
+
+        List<? extends KVMessage> entries = message.getEntries();
+        List<Fields> entryFields = null;
+
+        Long epoch = message.getEpoch();
+
+        byte flags = fields.flags;
+        if (epoch != null) flags |= FLAG_EPOCH;
+        if (entries != null) flags |= FLAG_ENTRIES;
+        if (message.isForwarded()) flags |= FLAG_FORWARDED;
+
+        int bodyLength = (epoch == null ? 0 : Long.BYTES)
+                + fields.length()
+                + Integer.BYTES + length(metadata);
+
+        if (entries != null) {
+            entryFields = new ArrayList<>(entries.size());
+            bodyLength += Integer.BYTES;
+
+            for (KVMessage entry : entries) {
+                Fields entryField = new Fields(entry);
+                entryFields.add(entryField);
+                bodyLength += 2 + entryField.length();
+            }
+        }
+
+        int packetLength = Connection.HEADER_SIZE + bodyLength;
+        if (buffer == null || buffer.capacity() < packetLength) {
+            buffer = ByteBuffer.allocate(packetLength);
+        }
+        buffer.clear();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.put(PROTOCOL_VERSION);
+        buffer.putInt(bodyLength);
+        buffer.put((byte) message.getStatus().ordinal());
+        buffer.put(flags);
+        buffer.putInt(message.getRequestId());
+        for (int i = buffer.position(); i < Connection.HEADER_SIZE; i++) {
+            buffer.put((byte) 0);
+        }
+
+        if (epoch != null) buffer.putLong(epoch);
+        fields.write(buffer);
+        putBytes(buffer, metadata);
+
+        if (entryFields != null) {
+            buffer.putInt(entryFields.size());
+            for (Fields entryField : entryFields) {
+                buffer.put(entryField.status == null ? NO_STATUS : (byte) entryField.status.ordinal());
+                buffer.put(entryField.flags);
+                entryField.write(buffer);
+            }
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Decode a message. The request id is left for the caller to read from
+     * the header.
+     *
+     * @param header Buffer holding the 16-byte header, from position 0
+     * @param body   Buffer holding the body, from its current position
+     * @return The decoded message
+     * @throws DeserializationException If the message is malformed
+     */
+    public static JsonKVMessage decode(ByteBuffer header, ByteBuffer body) throws DeserializationException {
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        body.order(ByteOrder.LITTLE_ENDIAN);
+
+        JsonKVMessage message = new JsonKVMessage(toStatus(header.get(STATUS_OFFSET)));
+        byte flags = header.get(FLAGS_OFFSET);
+        message.setForwarded((flags & FLAG_FORWARDED) != 0);
+
+        try {
+            if ((flags & FLAG_EPOCH) != 0) {
+                message.setEpoch(body.getLong());
+            }
+
+            readFields(body, flags, message);
+
+            String metadata = readString(body, body.getInt());
+            if (metadata != null) {
+                message.setMetadata(new HashRing(metadata));
+            }
+
+            if ((flags & FLAG_ENTRIES) != 0) {
+                int count = body.getInt();
+                if (count < 0 || count > body.remaining()) {
+                    throw new DeserializationException("Failed to deserialize message: invalid entry count " + count);
+                }
+
+                List<JsonKVMessage> entries = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    byte status = body.get();
+                    JsonKVMessage entry = new JsonKVMessage(status == NO_STATUS ? null : toStatus(status));
+                    readFields(body, body.get(), entry);
+                    entries.add(entry);
+                }
+                message.setEntries(entries);
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new DeserializationException("Failed to deserialize message: truncated body");
+        } catch (RuntimeException e) {
+            // Such as malformed metadata JSON
+            throw new DeserializationException("Failed to deserialize message: " + e.getMessage());
+        }
+
+        return message;
+    }
+
+    private static KVMessage.StatusType toStatus(byte status) throws DeserializationException {
+        int statusOrdinal = status & 0xFF;
+        if (statusOrdinal >= statusTypes.length) {
+            throw new DeserializationException("Failed to deserialize message: invalid status " + statusOrdinal);
+        }
+        return statusTypes[statusOrdinal];
+    }
+
+    private static void readFields(ByteBuffer body, byte flags, JsonKVMessage message) {
+        if ((flags & FLAG_TTL) != 0) {
+            message.setTTL(body.getLong());
+        }
+
+        int keyLength = body.getInt();
+        int valueLength = body.getInt();
+        int textLength = body.getInt();
+
+        message.setKey(readString(body, keyLength));
+        message.setValue(readString(body, valueLength));
+        message.setMessage(readString(body, textLength));
+    }
+
+    private static byte[] toBytes(String str) {
+        return str == null ? null : str.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes == null ? -1 : bytes.length);
+        if (bytes != null) buffer.put(bytes);
+    }
+
+    private static String readString(ByteBuffer body, int length) {
+        if (length < 0) return null;
+
+        if (length > body.remaining()) throw new BufferUnderflowException();
+
+        String str;
+        if (body.hasArray()) {
+            // Decode straight from the backing array, without an intermediate copy
+            str = new String(body.array(), body.arrayOffset() + body.position(), length, StandardCharsets.UTF_8);
+            body.position(body.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            body.get(bytes);
+            str = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        return str;
+    }
+
+    /**
+     * The TTL, key, value and message of a message or batch entry, encoded
+     * ahead of writing so the body length is known up front
+     */
+    private static class Fields {
+        private final KVMessage.StatusType status;
+        private final byte flags;
+        private final Long ttl;
+        private final byte[] key;
+        private final byte[] value;
+        private final byte[] text;
+
+        public Fields(KVMessage message) {
+            this.status = message.getStatus();
+            this.ttl = message.getTTL();
+            this.flags = ttl == null ? 0 : FLAG_TTL;
+            this.key = toBytes(message.getKey());
+            this.value = toBytes(message.getValue());
+            this.text = toBytes(message.getMessage());
+        }
+
+        public int length() {
+            return (ttl == null ? 0 : Long.BYTES)
+                    + 3 * Integer.BYTES
+                    + BinaryMessageCodec.length(key) + BinaryMessageCodec.length(value) + BinaryMessageCodec.length(text);
+        }
+
+        public void write(ByteBuffer buffer) {
+            if (ttl != null) buffer.putLong(ttl);
+
+            buffer.putInt(key == null ? -1 : key.length);
+            buffer.putInt(value == null ? -1 : value.length);
+            buffer.putInt(text == null ? -1 : text.length);
+
+            if (key != null) buffer.put(key);
+            if (value != null) buffer.put(value);
+            if (text != null) buffer.put(text);
+        }
+    }
+}
@@ -1,14 +1,25 @@
 package shared.messages;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
 import ecs.HashRing;
 
+import java.util.List;
+
 public class JsonKVMessage implements KVMessage, Serializable {
+    private static final Gson gson = new Gson();
+
     private StatusType status;
     private String key;
     private String value;
     private Long ttl;
+    private Long epoch;
+    private List<JsonKVMessage> entries;
+
+    // Null rather than false, so it is left out of the JSON of other messages
+    private Boolean forwarded;
+
+    // Carried in the message header, so it is not serialized
+    private transient int requestId;
     private String message;
     private HashRing metadata;
 
@@ -63,6 +74,22 @@ public class JsonKVMessage implements KVMessage, Serializable {
         return ttl;
     }
 
+    public Long getEpoch() {
+        return epoch;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public List<JsonKVMessage> getEntries() {
+        return entries;
+    }
+
+    public boolean isForwarded() {
+        return forwarded != null && forwarded;
+    }
+
     public void setStatus(StatusType status) {
         this.status = status;
     }
@@ -87,13 +114,29 @@ public class JsonKVMessage implements KVMessage, Serializable {
         this.ttl = ttl;
     }
 
+    public void setEpoch(Long epoch) {
+        this.epoch = epoch;
+    }
+
+    public void setRequestId(int requestId) {
+        this.requestId = requestId;
+    }
+
+    public void setEntries(List<JsonKVMessage> entries) {
+        this.entries = entries;
+    }
+
+    public void setForwarded(boolean forwarded) {
+        this.forwarded = forwarded ? Boolean.TRUE : null;
+    }
+
     public String serialize() {
-        return new Gson().toJson(this);
+        return gson.toJson(this);
     }
 
     public void deserialize(String json) throws DeserializationException {
         try {
-            JsonKVMessage kvMessage = new Gson().fromJson(json, JsonKVMessage.class);
+            JsonKVMessage kvMessage = gson.fromJson(json, JsonKVMessage.class);
             this.status = kvMessage.status;
 
             if (this.status == null)
@@ -102,12 +145,16 @@ public class JsonKVMessage implements KVMessage, Serializable {
             this.key = kvMessage.key;
             this.value = kvMessage.value;
             this.ttl = kvMessage.ttl;
+            this.epoch = kvMessage.epoch;
+            this.entries = kvMessage.entries;
+            this.forwarded = kvMessage.forwarded;
             this.message = kvMessage.message;
             this.metadata = kvMessage.metadata;
             if (this.metadata != null) {
                 this.metadata.rebuildHashRingLinkedList();
             }
-        } catch (JsonSyntaxException e) {
+        } catch (RuntimeException e) {
+            // Gson's exceptions, and anything from rebuilding malformed metadata
             throw new DeserializationException("Failed to deserialize message: " + json);
         }
 
@@ -2,6 +2,8 @@ package shared.messages;
 
 import ecs.HashRing;
 
+import java.util.List;
+
 public interface KVMessage {
 	
 	public enum StatusType {
@@ -19,6 +21,10 @@ public interface KVMessage {
 		SERVER_STOPPED, 		 /* Server is stopped, no requests are processed */
 		SERVER_WRITE_LOCK,       /* Server locked for write, only get possible */
 		SERVER_NOT_RESPONSIBLE,  /* Server not responsible for key */
+		MGET,                    /* Batched get - request, keys in the entries */
+		MPUT,                    /* Batched put - request, key-values in the entries */
+		MDELETE,                 /* Batched delete - request, keys in the entries */
+		BATCH_RESULT,            /* Batch response, each entry has the status of its operation */
 	}
 
 	public void setStatus(StatusType status);
@@ -33,6 +39,12 @@ public interface KVMessage {
 
 	public void setTTL(Long ttl);
 
+	public void setEpoch(Long epoch);
+
+	public void setRequestId(int requestId);
+
+	public void setForwarded(boolean forwarded);
+
 	/**
 	 * @return the text message associated with this message,
 	 * 		or null.
@@ -64,6 +76,28 @@ public interface KVMessage {
 
 	public Long getTTL();
 
+	/**
+	 * @return the epoch of the hash ring known to the sender, or null
+	 */
+	public Long getEpoch();
+
+	/**
+	 * @return the id used to match a response to its request, carried in
+	 * the message header rather than the body
+	 */
+	public int getRequestId();
+
+	/**
+	 * @return whether a server forwarded this request for a client, in
+	 * which case it is not forwarded again
+	 */
+	public boolean isForwarded();
+
+	/**
+	 * @return the per key messages of a batch request or response, or null
+	 */
+	public List<? extends KVMessage> getEntries();
+
 	/**
 	* @return a string representing the entire message object
 	*/
@@ -0,0 +1,136 @@
+package store;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Keys with an expiry time, ordered by when they expire, so the keys due to
+ * expire can be found without looking at every key in the store.
+ * <p>
+ * Stores keep the index current on every put and delete, and fill it as
+ * they load their data. It also keeps the expiry metrics: how many keys
+ * were expired, and how long after their expiry time they were removed.
+ */
+public class ExpiryIndex {
+    private final TreeSet<Entry> byExpiryTime = new TreeSet<>();
+    private final Map<String, Long> expiryTimes = new HashMap<>();
+
+    private long expiredTotal = 0;
+
+    // Metrics since the last report
+    private long reportStart = System.currentTimeMillis();
+    private long expiredSinceReport = 0;
+    private long totalLagSinceReport = 0;
+    private long maxLagSinceReport = 0;
+
+    /**
+     * Set a key's expiry time
+     *
+     * @param expiryTime Expiry time, or null if the key no longer expires
+     */
+    public synchronized void update(String key, Long expiryTime) {
+        Long previous = expiryTime == null ? expiryTimes.remove(key) : expiryTimes.put(key, expiryTime);
+        if (previous != null) {
+            byExpiryTime.remove(new Entry(previous, key));
+        }
+        if (expiryTime != null) {
+            byExpiryTime.add(new Entry(expiryTime, key));
+        }
+    }
+
+    public synchronized void remove(String key) {
+        update(key, null);
+    }
+
+    public synchronized void clear() {
+        byExpiryTime.clear();
+        expiryTimes.clear();
+    }
+
+    /**
+     * @param currentTime Time to check against
+     * @param maxKeys     Most keys to return
+     * @return The keys whose expiry time has passed, earliest first. They
+     * stay in the index until the store deletes them.
+     */
+    public synchronized List<String> expiredKeys(long currentTime, int maxKeys) {
+        List<String> expired = new ArrayList<>();
+        for (Entry entry : byExpiryTime) {
+            if (entry.expiryTime >= currentTime || expired.size() >= maxKeys) break;
+            expired.add(entry.key);
+        }
+        return expired;
+    }
+
+    /**
+     * @return The earliest expiry time of any key, or null if no key expires
+     */
+    public synchronized Long nextExpiryTime() {
+        return byExpiryTime.isEmpty() ? null : byExpiryTime.first().expiryTime;
+    }
+
+    public synchronized int size() {
+        return expiryTimes.size();
+    }
+
+    /**
+     * Count a key the store removed because it expired
+     */
+    public synchronized void recordExpired(long expiryTime, long currentTime) {
+        long lag = Math.max(0, currentTime - expiryTime);
+
+        expiredTotal++;
+        expiredSinceReport++;
+        totalLagSinceReport += lag;
+        maxLagSinceReport = Math.max(maxLagSinceReport, lag);
+    }
+
+    public synchronized long getExpiredTotal() {
+        return expiredTotal;
+    }
+
+    /**
+     * Summarize the expiry metrics since the last report, and start a new
+     * reporting interval
+     */
+    public synchronized String report(long currentTime) {
+        double seconds = Math.max(1, currentTime - reportStart) / 1000.0;
+        Long next = nextExpiryTime();
+        long pendingLag = next == null ? 0 : Math.max(0, currentTime - next);
+
+        String report = String.format("Expiry: %d keys with a TTL, %d expired (%.1f/s), "
+                        + "mean lag %d ms, max lag %d ms, oldest pending %d ms",
+                size(),
+                expiredSinceReport,
+                expiredSinceReport / seconds,
+                expiredSinceReport == 0 ? 0 : totalLagSinceReport / expiredSinceReport,
+                maxLagSinceReport,
+                pendingLag);
+
+        reportStart = currentTime;
+        expiredSinceReport = 0;
+        totalLagSinceReport = 0;
+        maxLagSinceReport = 0;
+
+        return report;
+    }
+
+    private static class Entry implements Comparable<Entry> {
+        private final long expiryTime;
+        private final String key;
+
+        private Entry(long expiryTime, String key) {
+            this.expiryTime = expiryTime;
+            this.key = key;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int result = Long.compare(expiryTime, other.expiryTime);
+            return result != 0 ? result : key.compareTo(other.key);
+        }
+    }
+}
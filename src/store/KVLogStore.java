@@ -0,0 +1,559 @@
+package store;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import ecs.HashRange;
+import ecs.HashToken;
+import ecs.ServerNode;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Log-structured KVStore. Puts, updates and deletes are a single append to
+ * a SegmentLog, rather than a rewrite of the storage file.
+ * <p>
+ * Data moved between servers (splitData, mergeData, replication) still uses
+ * the same files of JSON key-values as KVSimpleStore, so the two stores can
+ * be mixed within a cluster.
+ */
+public class KVLogStore implements KVStore {
+    protected static final Logger logger = Logger.getLogger("KVLogStore");
+    private static final String dataDir = "store_data";
+    private static final Gson gson = new Gson();
+
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    private static final int COMPACTION_INTERVAL_SECONDS = 30;
+
+    // Most expired keys removed under one hold of the log lock
+    private static final int EXPIRY_BATCH_SIZE = 128;
+
+    private final String fileName;
+    private final String serverName;
+    private final long maxSegmentSize;
+
+    private final String logPath;
+    private final String snapshotPath;
+
+    private boolean replicatorsExpireKeys;
+
+    private final SegmentLog log;
+    private final Map<String, SegmentLog> replicatedLogs = new ConcurrentHashMap<>();
+    private final WriteLog writeLog;
+
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "KVLogStore-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public KVLogStore(String serverName) throws IOException {
+        this(serverName, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public KVLogStore(String serverName, long maxSegmentSize) throws IOException {
+        this.serverName = serverName;
+        this.fileName = serverName + "_log";
+        this.maxSegmentSize = maxSegmentSize;
+
+        this.logPath = dataDir + File.separatorChar + fileName;
+        this.snapshotPath = dataDir + File.separatorChar + "~snapshot" + serverName + "_store.txt";
+        this.writeLog = new WriteLog(dataDir + File.separatorChar + "~writeLog" + serverName + "_store.txt");
+
+        this.replicatorsExpireKeys = false;
+
+        try {
+            this.log = new SegmentLog(logPath, maxSegmentSize);
+        } catch (DataFormatException e) {
+            throw new IOException("Storage log " + logPath + " is corrupted", e);
+        }
+
+        compactor.scheduleWithFixedDelay(
+                this::compactIfNeeded, COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public String getFileName() {
+        return fileName;
+    }
+
+    @Override
+    public String getStoragePath() {
+        return logPath;
+    }
+
+    @Override
+    public String getDataDir() {
+        return dataDir;
+    }
+
+    @Override
+    public WriteLog getWriteLog() {
+        return writeLog;
+    }
+
+    @Override
+    public ReentrantReadWriteLock getStorageLock() {
+        return log.getLock();
+    }
+
+    @Override
+    public void setReplicatorsExpireKeys(boolean replicatorsExpireKeys) {
+        this.replicatorsExpireKeys = replicatorsExpireKeys;
+    }
+
+    private String replicatedLogPath(String controlServer) {
+        return dataDir + File.separatorChar + "repl_" + controlServer + "_" + serverName + "_log";
+    }
+
+    private SegmentLog getReplicatedLog(String controlServer, boolean create) throws IOException {
+        String path = replicatedLogPath(controlServer);
+        SegmentLog replicatedLog = replicatedLogs.get(path);
+
+        if (replicatedLog == null && create) {
+            logger.info("Instantiating replicated data for " + controlServer + " at " + path);
+            try {
+                replicatedLog = new SegmentLog(path, maxSegmentSize);
+            } catch (DataFormatException e) {
+                throw new IOException("Replicated log " + path + " is corrupted", e);
+            }
+            replicatedLogs.put(path, replicatedLog);
+        }
+
+        return replicatedLog;
+    }
+
+    /**
+     * Compact the primary and replicated logs which have built up enough dead records
+     */
+    private void compactIfNeeded() {
+        List<SegmentLog> logs = new ArrayList<>(replicatedLogs.values());
+        logs.add(log);
+
+        for (SegmentLog segmentLog : logs) {
+            try {
+                if (segmentLog.needsCompaction()) {
+                    segmentLog.compact();
+                }
+            } catch (Exception e) {
+                logger.error("Failed to compact " + segmentLog.getDirPath(), e);
+            }
+        }
+    }
+
+    /**
+     * Merge every immutable segment of the primary log, regardless of how many dead
+     * records it holds
+     */
+    public void compact() throws IOException, DataFormatException {
+        log.compact();
+    }
+
+    @Override
+    public String get(String key) throws Exception {
+        log.getLock().readLock().lock();
+        boolean readLocked = true;
+
+        try {
+            if (!log.exists(key)) {
+                throw new KeyInvalidException(key);
+            }
+
+            Long keyExpiryTime = log.getExpiryTime(key);
+            long currentTime = System.currentTimeMillis();
+            if (keyExpiryTime != null && keyExpiryTime < currentTime) {
+                // Release the read lock, since delete acquires the write lock
+                log.getLock().readLock().unlock();
+                readLocked = false;
+
+                log.getExpiryIndex().recordExpired(keyExpiryTime, currentTime);
+                this.delete(key);
+
+                throw new KeyExpiredException(key);
+            }
+
+            String value = log.get(key);
+            if (value == null) {
+                throw new KeyInvalidException(key);
+            }
+            return value;
+        } finally {
+            if (readLocked) {
+                log.getLock().readLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public String get(String key, HashToken keyHash) throws Exception {
+        // The log is indexed by key, not by hash
+        return get(key);
+    }
+
+    @Override
+    public String get(String key, ServerNode responsibleNode) throws Exception {
+        SegmentLog replicatedLog = getReplicatedLog(responsibleNode.getNodeName(), false);
+        if (replicatedLog == null) {
+            throw new KeyInvalidException(key);
+        }
+
+        replicatedLog.getLock().readLock().lock();
+        boolean readLocked = true;
+        try {
+            if (!replicatedLog.exists(key)) {
+                throw new KeyInvalidException(key);
+            }
+
+            Long keyExpiryTime = replicatedLog.getExpiryTime(key);
+            if (replicatorsExpireKeys && keyExpiryTime != null && keyExpiryTime < System.currentTimeMillis()) {
+                // Delete expired key from the replica
+                replicatedLog.getLock().readLock().unlock();
+                readLocked = false;
+                replicatedLog.getLock().writeLock().lock();
+
+                try {
+                    replicatedLog.delete(key);
+                } finally {
+                    replicatedLog.getLock().writeLock().unlock();
+                }
+
+                throw new KeyInvalidException(key);
+            }
+
+            String value = replicatedLog.get(key);
+            if (value == null) {
+                throw new KeyInvalidException(key);
+            }
+            return value;
+        } finally {
+            if (readLocked) {
+                replicatedLog.getLock().readLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public boolean put(String key, String value, Long expiryTime) throws Exception {
+        return put(key, HashToken.of(key), value, expiryTime);
+    }
+
+    @Override
+    public boolean put(String key, HashToken keyHash, String value, Long expiryTime) throws Exception {
+        log.getLock().writeLock().lock();
+        try {
+            boolean exists = log.put(key, value, expiryTime);
+            KeyValue keyValue = new KeyValue(key, value, keyHash, expiryTime);
+            writeLog.append(keyValue, exists ? WriteLog.Action.UPDATE : WriteLog.Action.PUT);
+            return exists;
+        } finally {
+            log.getLock().writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean exists(String key) {
+        return log.exists(key);
+    }
+
+    @Override
+    public Long getExpiryTime(String key) {
+        return log.getExpiryTime(key);
+    }
+
+    @Override
+    public void delete(String key, HashToken keyHash) throws Exception {
+        delete(key);
+    }
+
+    @Override
+    public void delete(String key) throws Exception {
+        log.getLock().writeLock().lock();
+        try {
+            if (!log.delete(key)) {
+                throw new KeyInvalidException(key);
+            }
+            writeLog.append(new KeyValue(key), WriteLog.Action.DELETE);
+        } finally {
+            log.getLock().writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void beginWriteBatch() {
+        log.getLock().writeLock().lock();
+        writeLog.beginBatch();
+    }
+
+    @Override
+    public void endWriteBatch() {
+        writeLog.endBatch();
+        log.getLock().writeLock().unlock();
+    }
+
+    @Override
+    public void clear() throws IOException {
+        log.getLock().writeLock().lock();
+        try {
+            log.clear();
+        } finally {
+            log.getLock().writeLock().unlock();
+        }
+    }
+
+    /**
+     * Delete expired keys, found through the log's expiry index. The lock is
+     * held for one small batch at a time, so reads and writes carry on in between.
+     */
+    @Override
+    public boolean checkKeyExpiry() throws Exception {
+        boolean keysExpired = false;
+
+        while (true) {
+            log.getLock().writeLock().lock();
+            try {
+                long currentTime = System.currentTimeMillis();
+                List<String> expired = log.expiredKeys(currentTime, EXPIRY_BATCH_SIZE);
+                if (expired.isEmpty()) break;
+
+                for (String key : expired) {
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Expiring key " + key);
+                    }
+                    Long expiryTime = log.getExpiryTime(key);
+                    if (expiryTime != null) log.getExpiryIndex().recordExpired(expiryTime, currentTime);
+
+                    log.delete(key);
+                    writeLog.append(new KeyValue(key), WriteLog.Action.DELETE);
+                }
+                keysExpired = true;
+            } finally {
+                log.getLock().writeLock().unlock();
+            }
+        }
+
+        return keysExpired;
+    }
+
+    @Override
+    public ExpiryIndex getExpiryIndex() {
+        return log.getExpiryIndex();
+    }
+
+    @Override
+    public void initClearReplicatedData() {
+        File[] files = new File(dataDir).listFiles();
+        if (files == null) return;
+
+        for (File file : files) {
+            String fileName = file.getName();
+            if (fileName.startsWith("repl") && fileName.endsWith(serverName + "_log")) {
+                SegmentLog.deleteDirectory(file);
+            }
+        }
+    }
+
+    /**
+     * Write every live key-value in a log to a file, one JSON key-value per line
+     */
+    private void exportLog(SegmentLog segmentLog, String path) throws IOException {
+        exportLog(segmentLog, path, null);
+    }
+
+    /**
+     * Write the live key-values in a log whose hashes fall in the given
+     * ranges to a file, one JSON key-value per line
+     *
+     * @param hashRanges Ranges to export, or null for every key-value
+     */
+    private void exportLog(SegmentLog segmentLog, String path, List<HashRange> hashRanges) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8)) {
+            for (String key : segmentLog.keys()) {
+                KeyValue keyValue = segmentLog.getKeyValue(key);
+                if (keyValue != null && (hashRanges == null || HashRange.anyContains(hashRanges, keyValue.getKeyHash()))) {
+                    writer.write(keyValue.getJsonKV());
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Could not export " + segmentLog.getDirPath(), e);
+        }
+    }
+
+    /**
+     * Apply every line of a file of JSON key-values (optionally with write log
+     * action prefixes) to a log
+     */
+    private static void importFile(SegmentLog segmentLog, String path) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                importRecord(segmentLog, line);
+            }
+        } catch (JsonSyntaxException e) {
+            throw new IOException("Invalid data in " + path, e);
+        }
+    }
+
+    private static void importRecord(SegmentLog segmentLog, String record) throws IOException {
+        if (record.isBlank()) return;
+
+        WriteLog.Action action = WriteLog.parseAction(record);
+        String keyValueJson = action == null ? record : record.substring(1);
+        KeyValue keyValue = gson.fromJson(keyValueJson, KeyValue.class);
+
+        if (action == WriteLog.Action.DELETE) {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Replicate: delete for key: " + keyValue.getKey());
+            }
+            segmentLog.delete(keyValue.getKey());
+        } else {
+            segmentLog.put(keyValue.getKey(), keyValue.getValue(), keyValue.getExpiryTime());
+        }
+    }
+
+    @Override
+    public String snapshotData() throws IOException {
+        log.getLock().writeLock().lock();
+        try {
+            exportLog(log, snapshotPath);
+        } finally {
+            log.getLock().writeLock().unlock();
+        }
+        return snapshotPath;
+    }
+
+    @Override
+    public void mergeData(String newFileName, boolean deleteFile) throws IOException {
+        log.getLock().writeLock().lock();
+        try {
+            importFile(log, newFileName);
+        } finally {
+            log.getLock().writeLock().unlock();
+        }
+        if (deleteFile) new File(newFileName).delete();
+    }
+
+    @Override
+    public void mergeData(String newFileName) throws IOException {
+        mergeData(newFileName, true);
+    }
+
+    @Override
+    public String splitData(List<HashRange> sendHashRanges) throws IOException {
+        // Each transfer gets its own file, since a node leaving the ring
+        // sends its ranges to several others
+        Path sendPath = Files.createTempFile(Paths.get(dataDir), "~send", ".txt");
+
+        log.getLock().readLock().lock();
+        try {
+            exportLog(log, sendPath.toString(), sendHashRanges);
+        } finally {
+            log.getLock().readLock().unlock();
+        }
+
+        return sendPath.toString();
+    }
+
+    @Override
+    public void sendDataCleanup(List<HashRange> keepHashRanges) {
+        Path removedPath = null;
+
+        log.getLock().writeLock().lock();
+        try {
+            removedPath = Files.createTempFile(Paths.get(dataDir), "~removed", ".txt");
+
+            List<String> removedKeys = new ArrayList<>();
+            try (BufferedWriter writer = Files.newBufferedWriter(removedPath, StandardCharsets.UTF_8)) {
+                for (String key : log.keys()) {
+                    KeyValue keyValue = log.getKeyValue(key);
+                    if (keyValue != null && !HashRange.anyContains(keepHashRanges, keyValue.getKeyHash())) {
+                        writer.write(keyValue.getJsonKV());
+                        removedKeys.add(key);
+                    }
+                }
+            }
+
+            // Replicas drop the key-values that were sent away
+            writeLog.append(removedPath.toString(), WriteLog.Action.DELETE);
+
+            for (String key : removedKeys) {
+                log.delete(key);
+            }
+            logger.info("Cleaned up data after sending.");
+        } catch (IOException | DataFormatException e) {
+            logger.error("Failed to clean up data after sending.", e);
+        } finally {
+            log.getLock().writeLock().unlock();
+            if (removedPath != null) removedPath.toFile().delete();
+        }
+    }
+
+    @Override
+    public boolean replicateRecords(List<String> records, String controlServer) {
+        try {
+            SegmentLog replicatedLog = getReplicatedLog(controlServer, true);
+
+            replicatedLog.getLock().writeLock().lock();
+            try {
+                for (String record : records) {
+                    importRecord(replicatedLog, record);
+                }
+            } finally {
+                replicatedLog.getLock().writeLock().unlock();
+            }
+            logger.info("Updated replicated data for " + controlServer);
+            return true;
+        } catch (IOException | JsonSyntaxException e) {
+            logger.error("Could not update replicated data. ", e);
+            return false;
+        }
+    }
+
+    @Override
+    public String mergeReplicatedData(ServerNode controller, List<HashRange> hashRanges) throws Exception {
+        SegmentLog replicatedLog = getReplicatedLog(controller.getNodeName(), true);
+        Path mergePath = Files.createTempFile(Paths.get(dataDir), "repl_" + controller.getNodeName(), ".txt");
+
+        // The controller's other ranges went to other nodes, which merge those themselves
+        replicatedLog.getLock().readLock().lock();
+        try {
+            exportLog(replicatedLog, mergePath.toString(), hashRanges);
+        } finally {
+            replicatedLog.getLock().readLock().unlock();
+        }
+
+        mergeData(mergePath.toString(), false);
+        return mergePath.toString();
+    }
+
+    @Override
+    public void deleteReplicatedData(ServerNode serverNode) {
+        if (serverNode == null) return;
+
+        SegmentLog replicatedLog = replicatedLogs.remove(replicatedLogPath(serverNode.getNodeName()));
+        if (replicatedLog == null) return;
+
+        replicatedLog.getLock().writeLock().lock();
+        try {
+            replicatedLog.destroy();
+        } catch (IOException e) {
+            logger.error("Failed to delete replicated data for " + serverNode.getNodeName(), e);
+        } finally {
+            replicatedLog.getLock().writeLock().unlock();
+        }
+    }
+}
@@ -2,57 +2,123 @@ package store;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
+import ecs.HashRange;
+import ecs.HashToken;
 import ecs.ServerNode;
 import org.apache.log4j.Logger;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import static ecs.ServerNode.hashInRange;
-
 public class KVSimpleStore implements KVStore {
     protected static final Logger logger = Logger.getLogger("KVSimpleStore");
     private static final String dataDir = "store_data";
-
-    private enum WRITE_ACTION {PUT, UPDATE, DELETE};
+    private static final Gson gson = new Gson();
 
     private String fileName;
     private String serverName;
 
-    private String filePath;
-    private String sendPath;
-    private String keepPath;
-    private String writeLogPath;
+    // Directory of bucket files holding this server's own key-values
+    private String storagePath;
+    private String snapshotPath;
 
     private boolean replicatorsExpireKeys;
 
-    private final ReentrantReadWriteLock storageLock = new ReentrantReadWriteLock(true);
-    private HashMap<String, ReentrantReadWriteLock> replicatedPaths = new HashMap<>();
+    // Operations on a single key hold the storage read lock and their bucket's
+    // lock, so keys in different buckets are read and written in parallel.
+    // Operations on the whole store hold the storage write lock.
+    private final ReentrantReadWriteLock storageLock = new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock[] bucketLocks;
+    private final String[] bucketPaths;
+
+    private Map<String, ReentrantReadWriteLock> replicatedPaths = new ConcurrentHashMap<>();
+
+    private final WriteLog writeLog;
+
+    // In-memory index of every storage file (primary and replicated), mapping
+    // each key to the location of its line in that file. Indexes are built
+    // once from disk, then kept current by every write to the file.
+    private final Map<String, HashMap<String, IndexEntry>> indexes = new ConcurrentHashMap<>();
+
+    // Read-only mappings of the windows of each storage file that have been
+    // read from, by window index. Writes go through the file, and are seen
+    // through the mappings.
+    private final Map<String, Map<Long, MappedByteBuffer>> mappings = new ConcurrentHashMap<>();
 
-    private final ReentrantReadWriteLock writeLogLock = new ReentrantReadWriteLock();
+    // Keys in the primary storage buckets that have an expiry time
+    private final ExpiryIndex expiryIndex = new ExpiryIndex();
 
+    // Most expired keys looked up from the expiry index at once
+    private static final int EXPIRY_BATCH_SIZE = 128;
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+
+    // Storage files are mapped for single reads in aligned windows, so a file
+    // growing through appends only has its last window remapped
+    private static final long READ_WINDOW_SIZE = 1024 * 1024;
+
+    // Primary data is split into buckets by the leading hex digits of each
+    // key's hash, so a hash range is handed off by streaming whole buckets
+    private static final int BUCKET_HEX_DIGITS = 2;
+    private static final int NUM_BUCKETS = 1 << (4 * BUCKET_HEX_DIGITS);
+    private static final String BUCKET_PREFIX = "bucket_";
 
     public KVSimpleStore(String serverName) throws IOException{
         this.serverName = serverName;
-        this.fileName = serverName + "_store.txt";
+        this.fileName = serverName + "_store";
 
-        this.filePath = dataDir + File.separatorChar + fileName;
-        this.sendPath = dataDir + File.separatorChar + "~send" + this.fileName;
-        this.keepPath = dataDir + File.separatorChar + "~keep" + this.fileName;
-        this.writeLogPath = dataDir + File.separatorChar + "~writeLog" + this.fileName;
+        this.storagePath = dataDir + File.separatorChar + fileName;
+        this.snapshotPath = dataDir + File.separatorChar + "~snapshot" + this.fileName + ".txt";
+        this.writeLog = new WriteLog(dataDir + File.separatorChar + "~writeLog" + this.fileName + ".txt");
 
         this.replicatorsExpireKeys = false;
 
+        this.bucketLocks = new ReentrantReadWriteLock[NUM_BUCKETS];
+        this.bucketPaths = new String[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            bucketLocks[i] = new ReentrantReadWriteLock();
+            bucketPaths[i] = storagePath + File.separatorChar + BUCKET_PREFIX
+                    + String.format("%0" + BUCKET_HEX_DIGITS + "x", i) + ".txt";
+        }
+
         prepareFile();
+
+        // Indexes are built up front, so the expiry index covers every bucket
+        for (File bucketFile : bucketFiles()) {
+            try {
+                indexes.put(bucketFile.getPath(), buildIndex(bucketFile.getPath()));
+            } catch (DataFormatException e) {
+                // Leave the index unbuilt, so the error is surfaced on first access
+                logger.error("Storage file " + bucketFile.getPath() + " is corrupted, could not build index");
+            }
+        }
+
+        migrateStorageFile();
     }
 
     @Override
@@ -62,7 +128,22 @@ public class KVSimpleStore implements KVStore {
 
     @Override
     public String getStoragePath(){
-        return filePath;
+        return storagePath;
+    }
+
+    @Override
+    public String snapshotData() throws IOException {
+        // Bucket files are already one JSON key-value per line. The write lock
+        // waits out any reader of the previous snapshot.
+        storageLock.writeLock().lock();
+        try (OutputStream snapshot = new BufferedOutputStream(Files.newOutputStream(Paths.get(snapshotPath)))) {
+            for (File bucketFile : bucketFiles()) {
+                Files.copy(bucketFile.toPath(), snapshot);
+            }
+        } finally {
+            storageLock.writeLock().unlock();
+        }
+        return snapshotPath;
     }
 
     @Override
@@ -71,8 +152,8 @@ public class KVSimpleStore implements KVStore {
     }
 
     @Override
-    public String getWriteLogPath(){
-        return writeLogPath;
+    public WriteLog getWriteLog(){
+        return writeLog;
     }
 
     @Override
@@ -80,53 +161,93 @@ public class KVSimpleStore implements KVStore {
         return storageLock;
     }
 
+    @Override
+    public ExpiryIndex getExpiryIndex() {
+        return expiryIndex;
+    }
+
     @Override
     public void setReplicatorsExpireKeys(boolean replicatorsExpireKeys) {
         this.replicatorsExpireKeys = replicatorsExpireKeys;
     }
 
+    /**
+     * Delete expired keys, found through the expiry index. Only the buckets
+     * holding expired keys are locked, one at a time, so reads and writes to
+     * the rest of the store carry on.
+     */
     @Override
     public boolean checkKeyExpiry() throws Exception {
-        storageLock.writeLock().lock();
-        long currentTime = System.currentTimeMillis();
+        boolean keysExpired = false;
 
-        Path tempPath = Files.createTempFile(serverName, ".txt");
-        Gson gson = new Gson();
+        while (true) {
+            long currentTime = System.currentTimeMillis();
+            List<String> expired = expiryIndex.expiredKeys(currentTime, EXPIRY_BATCH_SIZE);
+            if (expired.isEmpty()) break;
 
-        boolean keysExpired = false;
+            Map<Integer, List<String>> expiredByBucket = new HashMap<>();
+            for (String key : expired) {
+                expiredByBucket.computeIfAbsent(bucketIndex(HashToken.of(key)), bucket -> new ArrayList<>()).add(key);
+            }
 
-        try(RandomAccessFile tempRAFile = new RandomAccessFile(tempPath.toString(), "rw");
-            RandomAccessFile storageFile = new RandomAccessFile(filePath, "rw");){
-            FileChannel fromChannel = storageFile.getChannel();
-            FileChannel toChannel = tempRAFile.getChannel();
+            int removed = 0;
+            for (Map.Entry<Integer, List<String>> bucket : expiredByBucket.entrySet()) {
+                String bucketPath = bucketPaths[bucket.getKey()];
+                List<String> deleting = new ArrayList<>();
+
+                lockBucket(bucket.getKey(), true);
+                try {
+                    HashMap<String, IndexEntry> index = getIndex(bucketPath);
+                    for (String key : bucket.getValue()) {
+                        IndexEntry entry = index.get(key);
+                        if (entry == null) {
+                            expiryIndex.remove(key);
+                            removed++;
+                            continue;
+                        }
 
-            String str;
-            while((str = storageFile.readLine()) != null) {
-                KeyValue keyValue = gson.fromJson(str, KeyValue.class);
-                Long expiry = keyValue.getExpiryTime();
-                if (expiry != null && currentTime > expiry) {
-                    logger.info("Expiring key " + keyValue.getKey());
-                    writeLogAppend(keyValue, WRITE_ACTION.DELETE);
-                    keysExpired = true;
-                } else {
-                    tempRAFile.write((str + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+                        // The key may have been written again since it was looked up
+                        Long expiryTime = entry.getExpiryTime();
+                        if (expiryTime == null || expiryTime >= currentTime) continue;
+
+                        if (logger.isDebugEnabled()) {
+                            logger.debug("Expiring key " + key);
+                        }
+                        expiryIndex.recordExpired(expiryTime, currentTime);
+                        writeLog.append(new KeyValue(key), WriteLog.Action.DELETE);
+                        deleting.add(key);
+                    }
+
+                    deleteKeyValues(bucketPath, deleting);
+                    removed += deleting.size();
+                } finally {
+                    unlockBucket(bucket.getKey(), true);
                 }
             }
-            // Copy the file contents back to the storage file. Could be improved but meh
-            storageFile.setLength(0L);
-            fromChannel.position(0L);
-            toChannel.transferTo(0, toChannel.size(), fromChannel);
 
-            Files.deleteIfExists(tempPath);
-        } finally {
-            storageLock.writeLock().unlock();
+            if (removed == 0) break;
+            keysExpired = true;
         }
+
         return keysExpired;
     }
 
-    @Override
-    public ReentrantReadWriteLock getWriteLogLock() {
-        return writeLogLock;
+    private void lockBucket(int bucket, boolean write) {
+        storageLock.readLock().lock();
+        if (write) {
+            bucketLocks[bucket].writeLock().lock();
+        } else {
+            bucketLocks[bucket].readLock().lock();
+        }
+    }
+
+    private void unlockBucket(int bucket, boolean write) {
+        if (write) {
+            bucketLocks[bucket].writeLock().unlock();
+        } else {
+            bucketLocks[bucket].readLock().unlock();
+        }
+        storageLock.readLock().unlock();
     }
 
     private void prepareFile() throws IOException {
@@ -140,68 +261,386 @@ public class KVSimpleStore implements KVStore {
             logger.info("Storage directory exists.");
         }
 
-        File storageFile = new File(this.filePath);
+        File bucketDir = new File(this.storagePath);
 
-        boolean storageFileCreated = storageFile.createNewFile();
+        boolean bucketDirCreated = bucketDir.mkdir();
 
-        if (storageFileCreated){
+        if (bucketDirCreated){
             logger.info("KVSimpleStore: Storage files created.");
         } else {
-            logger.info("KVSimpleStore: Storage file found.");
+            logger.info("KVSimpleStore: Storage files found.");
         }
     }
 
-    private KeyValueLocation find(String filePath, String key) throws Exception {
-        KeyValueLocation keyValueLocation = new KeyValueLocation();
-        Gson gson = new Gson();
-
-        try(RandomAccessFile storageFile = new RandomAccessFile(filePath, "r");) {
-            String str;
-
-            long currPointer = storageFile.getFilePointer();
-            long prevPointer = currPointer;
-            while ((str = storageFile.readLine()) != null) {
-                KeyValue keyValue = gson.fromJson(str, KeyValue.class);
-                currPointer = storageFile.getFilePointer();
-                String currKey = keyValue.getKey();
-
-                if (currKey.equals(key)) {
-                    keyValueLocation = new KeyValueLocation(
-                            prevPointer,
-                            currPointer,
-                            keyValue
-                    );
+    /**
+     * Move the key-values from a single storage file, as written before
+     * storage was split into buckets, into the buckets
+     */
+    private void migrateStorageFile() {
+        File storageFile = new File(dataDir + File.separatorChar + this.fileName + ".txt");
+        if (!storageFile.exists()) return;
+
+        try {
+            mergeData(storageFile.getPath(), true);
+            logger.info("KVSimpleStore: Moved " + storageFile.getPath() + " into buckets.");
+        } catch (IOException e) {
+            logger.error("Could not move " + storageFile.getPath() + " into buckets", e);
+        }
+    }
+
+    /**
+     * @param keyHash Hash of a key
+     * @return Bucket holding the key
+     */
+    private static int bucketIndex(HashToken keyHash) {
+        return (int) (keyHash.getHigh() >>> (Long.SIZE - 4 * BUCKET_HEX_DIGITS));
+    }
+
+    private static int bucketIndex(File bucketFile) {
+        int start = BUCKET_PREFIX.length();
+        return Integer.parseInt(bucketFile.getName(), start, start + BUCKET_HEX_DIGITS, 16);
+    }
+
+    /**
+     * @param keyHash Hash of a key
+     * @return Path of the bucket file holding the key
+     */
+    private String bucketPath(HashToken keyHash) {
+        return bucketPaths[bucketIndex(keyHash)];
+    }
+
+    private boolean isBucketPath(String filePath) {
+        return filePath.startsWith(storagePath + File.separatorChar);
+    }
+
+    /**
+     * @return The bucket files which exist, in hash order. Buckets are only
+     * created once a key is written to them.
+     */
+    private List<File> bucketFiles() {
+        File[] files = new File(storagePath).listFiles((dir, name) -> name.startsWith(BUCKET_PREFIX));
+        if (files == null) return new ArrayList<>();
+
+        List<File> bucketFiles = new ArrayList<>(Arrays.asList(files));
+        bucketFiles.sort(Comparator.comparing(File::getName));
+        return bucketFiles;
+    }
+
+    /**
+     * @return Range of the hashes held by a bucket file, which never wraps around the ring
+     */
+    private static HashRange bucketHashRange(File bucketFile) {
+        long high = (long) bucketIndex(bucketFile) << (Long.SIZE - 4 * BUCKET_HEX_DIGITS);
+        long highMask = -1L >>> (4 * BUCKET_HEX_DIGITS);
+        return new HashRange(new HashToken(high, 0), new HashToken(high | highMask, -1L));
+    }
+
+    /**
+     * @return Whether every hash in the bucket range falls in one of the hash ranges
+     */
+    private static boolean rangesContain(List<HashRange> hashRanges, HashRange bucketRange) {
+        for (HashRange hashRange : hashRanges) {
+            if (hashRange.contains(bucketRange)) return true;
+        }
+        return false;
+    }
 
+    /**
+     * @return Whether any hash in the bucket range falls in one of the hash ranges
+     */
+    private static boolean rangesOverlap(List<HashRange> hashRanges, HashRange bucketRange) {
+        for (HashRange hashRange : hashRanges) {
+            if (hashRange.overlaps(bucketRange)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Scan a storage file and index the location of every key in it
+     *
+     * @param filePath Storage file to index
+     * @return Map of key to the location of its line in the file
+     * @throws IOException If the file cannot be read
+     * @throws DataFormatException If a line in the file is not a valid key-value
+     */
+    private HashMap<String, IndexEntry> buildIndex(String filePath) throws IOException, DataFormatException {
+        HashMap<String, IndexEntry> index = new HashMap<>();
+        indexRegion(filePath, index, 0L);
+        return index;
+    }
+
+    /**
+     * Add every line from the given position to the end of the file to the index
+     */
+    private void indexRegion(String filePath, HashMap<String, IndexEntry> index, long fromPosition)
+            throws IOException, DataFormatException {
+        forEachLine(filePath, fromPosition, (position, length, line) -> {
+            if (line.isBlank()) return;
+
+            try {
+                KeyValue keyValue = gson.fromJson(line, KeyValue.class);
+                if (keyValue == null || keyValue.getKey() == null) {
+                    throw new DataFormatException();
+                }
+
+                index.put(keyValue.getKey(), new IndexEntry(position, length, keyValue.getExpiryTime()));
+                indexExpiry(filePath, keyValue.getKey(), keyValue.getExpiryTime());
+            } catch (JsonSyntaxException e) {
+                throw new DataFormatException();
+            }
+        });
+    }
+
+    /**
+     * Read every line of a file from the given position, through memory-mapped
+     * windows of the file
+     *
+     * @param consumer Called with the position and length in bytes of each
+     *                 line, line separator included, and the decoded line
+     */
+    private static void forEachLine(String filePath, long fromPosition, LineConsumer consumer)
+            throws IOException, DataFormatException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long windowStart = fromPosition;
+            long windowSize = MAP_WINDOW_SIZE;
+
+            while (windowStart < size) {
+                int length = (int) Math.min(windowSize, size - windowStart);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, length);
+
+                int lineStart = 0;
+                for (int i = 0; i < length; i++) {
+                    if (window.get(i) == '\n') {
+                        consumer.accept(windowStart + lineStart, i + 1 - lineStart, decode(window, lineStart, i + 1));
+                        lineStart = i + 1;
+                    }
+                }
+
+                if (windowStart + length == size) {
+                    // The last line may not end with a line separator
+                    if (lineStart < length) {
+                        consumer.accept(windowStart + lineStart, length - lineStart, decode(window, lineStart, length));
+                    }
                     break;
                 }
-                prevPointer = currPointer;
+
+                if (lineStart == 0) {
+                    // A line longer than the window
+                    windowSize = Math.min(windowSize * 2, Integer.MAX_VALUE);
+                }
+                windowStart += lineStart;
+            }
+        }
+    }
+
+    /**
+     * Decode the UTF-8 line between two positions of a buffer, without its line separator
+     */
+    private static String decode(ByteBuffer buffer, int from, int to) {
+        ByteBuffer line = buffer.duplicate();
+        line.position(from);
+        line.limit(to);
+        return StandardCharsets.UTF_8.decode(line).toString().strip();
+    }
+
+    private interface LineConsumer {
+        void accept(long position, int length, String line) throws IOException, DataFormatException;
+    }
+
+    /**
+     * Track a key's expiry time, if it is in a primary storage bucket.
+     * Replicas are expired by their controller.
+     */
+    private void indexExpiry(String filePath, String key, Long expiryTime) {
+        if (isBucketPath(filePath)) {
+            expiryIndex.update(key, expiryTime);
+        }
+    }
+
+    /**
+     * Forget the index of a storage file, and the expiry times of its keys
+     */
+    private void dropIndex(String filePath) {
+        mappings.remove(filePath);
+        HashMap<String, IndexEntry> index = indexes.remove(filePath);
+        if (index != null) {
+            for (String key : index.keySet()) {
+                indexExpiry(filePath, key, null);
+            }
+        }
+    }
+
+    /**
+     * Get the index for the given storage file, building it from disk if
+     * it has not been loaded yet
+     */
+    private HashMap<String, IndexEntry> getIndex(String filePath) throws IOException, DataFormatException {
+        HashMap<String, IndexEntry> index = indexes.get(filePath);
+        if (index == null) {
+            boolean emptyBucket = isBucketPath(filePath) && !new File(filePath).exists();
+            index = emptyBucket ? new HashMap<>() : buildIndex(filePath);
+            indexes.put(filePath, index);
+        }
+        return index;
+    }
+
+    /**
+     * Read a single key-value from its indexed location in the file's mapping
+     */
+    private KeyValue readKeyValue(String filePath, IndexEntry entry) throws IOException, DataFormatException {
+        long position = entry.getPosition();
+        long end = position + entry.getLength();
+        long window = position / READ_WINDOW_SIZE;
+        long windowStart = window * READ_WINDOW_SIZE;
+
+        ByteBuffer buffer;
+        int offset;
+        if (end - windowStart <= READ_WINDOW_SIZE) {
+            Map<Long, MappedByteBuffer> windows = mappings.computeIfAbsent(filePath, f -> new ConcurrentHashMap<>());
+            MappedByteBuffer mapping = windows.get(window);
+            if (mapping == null || mapping.capacity() < end - windowStart) {
+                mapping = map(filePath, windowStart, end, windowStart + READ_WINDOW_SIZE);
+                windows.put(window, mapping);
             }
-        } catch (JsonSyntaxException e){
+            buffer = mapping;
+            offset = (int) (position - windowStart);
+        } else {
+            // Lines across a window boundary are mapped on their own
+            buffer = map(filePath, position, end, end);
+            offset = 0;
+        }
+
+        try {
+            String line = decode(buffer, offset, offset + entry.getLength());
+            KeyValue keyValue = gson.fromJson(line, KeyValue.class);
+            if (keyValue == null) {
+                throw new DataFormatException();
+            }
+            return keyValue;
+        } catch (JsonSyntaxException e) {
             throw new DataFormatException();
         }
+    }
 
-        return keyValueLocation;
+    /**
+     * Map part of a storage file, from the given position up to maxEnd or
+     * the end of the file
+     *
+     * @param minEnd Size the file must have
+     */
+    private static MappedByteBuffer map(String filePath, long position, long minEnd, long maxEnd)
+            throws IOException, DataFormatException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < minEnd) {
+                throw new DataFormatException();
+            }
+
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size, maxEnd) - position);
+        }
     }
 
-    private void deleteKeyValue(String filePath, KeyValueLocation keyValueLocation) throws IOException {
-        Path tempPath = Files.createTempFile(serverName, ".txt");
+    private KeyValueLocation find(String filePath, String key) throws Exception {
+        IndexEntry entry = getIndex(filePath).get(key);
 
-        try(RandomAccessFile tempRAFile = new RandomAccessFile(tempPath.toString(), "rw");
-            RandomAccessFile storageFile = new RandomAccessFile(filePath, "rw");){
-            FileChannel fromChannel = storageFile.getChannel();
-            FileChannel toChannel = tempRAFile.getChannel();
+        if (entry == null) {
+            return new KeyValueLocation();
+        }
 
-            fromChannel.transferTo(keyValueLocation.getEndPosition(), fromChannel.size(), toChannel);
-            storageFile.setLength(keyValueLocation.getStartPosition());
-            fromChannel.position(keyValueLocation.getStartPosition());
-            toChannel.transferTo(0, toChannel.size(), fromChannel);
+        return new KeyValueLocation(
+                entry.getPosition(),
+                entry.getPosition() + entry.getLength(),
+                readKeyValue(filePath, entry)
+        );
+    }
 
-            Files.deleteIfExists(tempPath);
+    /**
+     * Move the position of every indexed line after the given position by delta
+     * bytes, after the tail of the file has been shifted
+     */
+    private static void shiftIndex(HashMap<String, IndexEntry> index, long afterPosition, long delta) {
+        if (delta == 0) return;
+
+        for (IndexEntry entry : index.values()) {
+            if (entry.getPosition() > afterPosition) {
+                entry.setPosition(entry.getPosition() + delta);
+            }
         }
     }
 
-    private void updateKeyValue(String filePath, KeyValueLocation keyValueLocation, String keyValue) throws  IOException {
+    private void deleteKeyValue(String filePath, String key) throws Exception {
+        deleteKeyValues(filePath, Collections.singletonList(key));
+    }
+
+    /**
+     * Remove several key-values in a single pass, shifting the rest of the
+     * file back over them from the first removed line onwards
+     */
+    private void deleteKeyValues(String filePath, List<String> keys) throws Exception {
+        HashMap<String, IndexEntry> index = getIndex(filePath);
+
+        List<IndexEntry> removed = new ArrayList<>();
+        for (String key : keys) {
+            IndexEntry entry = index.remove(key);
+            if (entry != null) removed.add(entry);
+            indexExpiry(filePath, key, null);
+        }
+        if (removed.isEmpty()) return;
+
+        removed.sort(Comparator.comparingLong(IndexEntry::getPosition));
+
+        try (RandomAccessFile storageFile = new RandomAccessFile(filePath, "rw");) {
+            FileChannel channel = storageFile.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long writePosition = removed.get(0).getPosition();
+
+            for (int i = 0; i < removed.size(); i++) {
+                long readPosition = removed.get(i).getPosition() + removed.get(i).getLength();
+                long keepEnd = i + 1 < removed.size() ? removed.get(i + 1).getPosition() : channel.size();
+
+                // Writes stay behind reads, so nothing is overwritten before it is copied
+                while (readPosition < keepEnd) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), keepEnd - readPosition));
+                    int read = channel.read(buffer, readPosition);
+                    if (read < 0) throw new DataFormatException();
+
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        writePosition += channel.write(buffer, writePosition);
+                    }
+                    readPosition += read;
+                }
+            }
+
+            storageFile.setLength(writePosition);
+        }
+
+        // Move each remaining line back by the bytes removed before it
+        long[] positions = new long[removed.size()];
+        long[] removedBytes = new long[removed.size()];
+        long total = 0;
+        for (int i = 0; i < removed.size(); i++) {
+            total += removed.get(i).getLength();
+            positions[i] = removed.get(i).getPosition();
+            removedBytes[i] = total;
+        }
+
+        for (IndexEntry entry : index.values()) {
+            int before = Arrays.binarySearch(positions, entry.getPosition());
+            before = before < 0 ? -before - 1 : before;
+            if (before > 0) {
+                entry.setPosition(entry.getPosition() - removedBytes[before - 1]);
+            }
+        }
+    }
+
+    private void updateKeyValue(String filePath, IndexEntry entry, KeyValue keyValue) throws Exception {
         Path tempPath = Files.createTempFile(serverName, ".txt");
+        byte[] keyValueBytes = keyValue.getJsonKV().getBytes(StandardCharsets.UTF_8);
+        long startPosition = entry.getPosition();
+        long endPosition = startPosition + entry.getLength();
 
         try(RandomAccessFile tempRAFile = new RandomAccessFile(tempPath.toString(), "rw");
             RandomAccessFile storageFile = new RandomAccessFile(filePath, "rw");
@@ -209,91 +648,41 @@ public class KVSimpleStore implements KVStore {
             FileChannel fromChannel = storageFile.getChannel();
             FileChannel toChannel = tempRAFile.getChannel();
 
-            fromChannel.transferTo(keyValueLocation.getEndPosition(), fromChannel.size(), toChannel);
-            storageFile.setLength(keyValueLocation.getStartPosition());
+            fromChannel.transferTo(endPosition, fromChannel.size(), toChannel);
+            storageFile.setLength(startPosition);
 
-            storageFile.seek(keyValueLocation.getStartPosition());
-            storageFile.write(keyValue.getBytes());
+            storageFile.seek(startPosition);
+            storageFile.write(keyValueBytes);
             fromChannel.position(storageFile.getFilePointer());
 
             toChannel.transferTo(0, toChannel.size(), fromChannel);
         }
         Files.deleteIfExists(tempPath);
 
+        HashMap<String, IndexEntry> index = getIndex(filePath);
+        shiftIndex(index, startPosition, keyValueBytes.length - entry.getLength());
+        index.put(keyValue.getKey(), new IndexEntry(startPosition, keyValueBytes.length, keyValue.getExpiryTime()));
+        indexExpiry(filePath, keyValue.getKey(), keyValue.getExpiryTime());
     }
 
-    private void addKeyValue(String filePath, String keyValue) throws IOException {
-        try (RandomAccessFile storageFile = new RandomAccessFile(filePath, "rw");){
-            storageFile.seek(storageFile.length());
-            storageFile.write(keyValue.getBytes());
+    private void addKeyValue(String filePath, KeyValue keyValue) throws Exception {
+        // A bucket file is created by its first write, as long as the storage directory exists
+        File file = new File(filePath);
+        if (!file.exists() && !(isBucketPath(filePath) && file.getParentFile().isDirectory())) {
+            throw new FileNotFoundException(filePath + " (No such file or directory)");
         }
-    }
 
-    private void writeLogAppend(KeyValue keyValue, WRITE_ACTION action) {
-        writeLogLock.writeLock().lock();
-        try {
-            String prefix = "";
-            switch (action) {
-                case PUT:
-                    prefix = "P";
-                    break;
-                case UPDATE:
-                    prefix = "U";
-                    break;
-                case DELETE:
-                    prefix = "D";
-                    break;
-            }
-            ;
-
-            String output = prefix + keyValue.getJsonKV();
+        byte[] keyValueBytes = keyValue.getJsonKV().getBytes(StandardCharsets.UTF_8);
+        long position;
 
-            try (
-                RandomAccessFile writer = new RandomAccessFile(this.writeLogPath, "rw");
-            ) {
-                writer.setLength(0);
-                writer.write(output.getBytes(StandardCharsets.UTF_8));
-            } catch (IOException e) {
-                logger.error("Could not append to replication write log.");
-            }
-        } finally {
-            writeLogLock.writeLock().unlock();
+        try (RandomAccessFile storageFile = new RandomAccessFile(filePath, "rw");){
+            position = storageFile.length();
+            storageFile.seek(position);
+            storageFile.write(keyValueBytes);
         }
-    }
 
-    private void writeLogAppend(String filePath, WRITE_ACTION action) {
-        writeLogLock.writeLock().lock();
-        try {
-            String prefix = "";
-            switch (action) {
-                case PUT:
-                    prefix = "P";
-                    break;
-                case UPDATE:
-                    prefix = "U";
-                    break;
-                case DELETE:
-                    prefix = "D";
-                    break;
-            }
-
-
-            try (
-                RandomAccessFile writer = new RandomAccessFile(this.writeLogPath, "rw");
-                RandomAccessFile reader = new RandomAccessFile(filePath, "r");
-            ) {
-                writer.setLength(0);
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String output = prefix + line + System.lineSeparator();
-                    writer.write(output.getBytes(StandardCharsets.UTF_8));
-                }
-            } catch (IOException e) {
-                logger.error("Could not append to replication write log.");
-            }
-        } finally {
-            writeLogLock.writeLock().unlock();
-        }
+        getIndex(filePath).put(keyValue.getKey(), new IndexEntry(position, keyValueBytes.length, keyValue.getExpiryTime()));
+        indexExpiry(filePath, keyValue.getKey(), keyValue.getExpiryTime());
     }
 
     /**
@@ -305,36 +694,40 @@ public class KVSimpleStore implements KVStore {
      */
     @Override
     public String get(String key) throws Exception {
-        storageLock.readLock().lock();
-        boolean readLocked = true;  // There's no .isLocked() method on ReadLock
-
-        try {
-            KeyValueLocation keyValueLocation = find(this.filePath, key);
+        return get(key, HashToken.of(key));
+    }
 
-            if (keyValueLocation.isExists()) {
+    @Override
+    public String get(String key, HashToken keyHash) throws Exception {
+        int bucket = bucketIndex(keyHash);
 
-                Long keyExpiryTime = keyValueLocation.getKeyValue().getExpiryTime();
-                long currentTime = System.currentTimeMillis();
+        lockBucket(bucket, false);
+        try {
+            IndexEntry entry = getIndex(bucketPaths[bucket]).get(key);
 
-                if (keyExpiryTime != null && keyExpiryTime < currentTime) {
-                    // Release the read lock, since delete acquires the write lock
-                    storageLock.readLock().unlock();
-                    readLocked = false;
+            if (entry == null) {
+                throw new KeyInvalidException(key);
+            }
 
-                    this.delete(key);
+            Long keyExpiryTime = entry.getExpiryTime();
+            long currentTime = System.currentTimeMillis();
 
-                    throw new KeyExpiredException(key);
-                } else {
-                    return keyValueLocation.getKeyValue().getValue();
-                }
-            } else {
-                throw new KeyInvalidException(key);
+            if (keyExpiryTime == null || keyExpiryTime >= currentTime) {
+                return readKeyValue(bucketPaths[bucket], entry).getValue();
             }
+
+            expiryIndex.recordExpired(keyExpiryTime, currentTime);
         } finally {
-            if (readLocked) {
-                storageLock.readLock().unlock();
-            }
+            unlockBucket(bucket, false);
+        }
+
+        // Delete takes the bucket's write lock, so the read lock is released first
+        try {
+            this.delete(key, keyHash);
+        } catch (KeyInvalidException e) {
+            // Already deleted by another request
         }
+        throw new KeyExpiredException(key);
     }
 
     /**
@@ -394,46 +787,71 @@ public class KVSimpleStore implements KVStore {
 
     @Override
     public boolean put(String key, String value, Long expiryTime) throws Exception {
-        storageLock.writeLock().lock();
+        return put(key, HashToken.of(key), value, expiryTime);
+    }
+
+    @Override
+    public boolean put(String key, HashToken keyHash, String value, Long expiryTime) throws Exception {
+        int bucket = bucketIndex(keyHash);
+
+        lockBucket(bucket, true);
         try {
-            return put(this.filePath, key, value, expiryTime, false);
+            return put(bucketPaths[bucket], new KeyValue(key, value, keyHash, expiryTime), false);
         } finally {
-            storageLock.writeLock().unlock();
+            unlockBucket(bucket, true);
         }
     }
 
-    private boolean put(String filePath, String key, String value, Long expiryTime, boolean replicate) throws Exception {
-        KeyValueLocation keyValueLocation = find(filePath, key);
-        KeyValue keyValue = new KeyValue(key, value, expiryTime);
+    private boolean put(String filePath, KeyValue keyValue, boolean replicate) throws Exception {
+        IndexEntry entry = getIndex(filePath).get(keyValue.getKey());
 
-        if (!keyValueLocation.isExists()){
+        if (entry == null){
             // Can add to end of file
-            addKeyValue(filePath, keyValue.getJsonKV());
-            if (!replicate) writeLogAppend(keyValue, WRITE_ACTION.PUT);
+            addKeyValue(filePath, keyValue);
+            if (!replicate) writeLog.append(keyValue, WriteLog.Action.PUT);
         } else{
             // Update existing key-value pair
-            updateKeyValue(filePath, keyValueLocation, keyValue.getJsonKV());
-            if (!replicate) writeLogAppend(keyValue, WRITE_ACTION.UPDATE);
+            updateKeyValue(filePath, entry, keyValue);
+            if (!replicate) writeLog.append(keyValue, WriteLog.Action.UPDATE);
         }
-        return keyValueLocation.isExists();
+        return entry != null;
     }
 
     @Override
     public boolean exists(String key) throws Exception {
-        storageLock.readLock().lock();
+        int bucket = bucketIndex(HashToken.of(key));
+
+        lockBucket(bucket, false);
         try {
-            KeyValueLocation keyValueLocation = find(this.filePath, key);
-            return keyValueLocation.isExists();
+            return getIndex(bucketPaths[bucket]).containsKey(key);
         } finally {
-            storageLock.readLock().unlock();
+            unlockBucket(bucket, false);
+        }
+    }
+
+    @Override
+    public Long getExpiryTime(String key) throws Exception {
+        int bucket = bucketIndex(HashToken.of(key));
+
+        lockBucket(bucket, false);
+        try {
+            IndexEntry entry = getIndex(bucketPaths[bucket]).get(key);
+            return entry == null ? null : entry.getExpiryTime();
+        } finally {
+            unlockBucket(bucket, false);
         }
     }
 
     @Override
     public void clear() throws IOException {
         storageLock.writeLock().lock();
-        try (RandomAccessFile storageFile = new RandomAccessFile(this.filePath, "rw")) {
-            storageFile.setLength(0L);
+        try {
+            for (File bucketFile : bucketFiles()) {
+                Files.delete(bucketFile.toPath());
+            }
+            indexes.keySet().removeIf(this::isBucketPath);
+            mappings.keySet().removeIf(this::isBucketPath);
+            expiryIndex.clear();
         } finally {
             storageLock.writeLock().unlock();
         }
@@ -446,30 +864,52 @@ public class KVSimpleStore implements KVStore {
             String fileName = file.getName();
             if (fileName.startsWith("repl") && fileName.endsWith(serverName + ".txt")) {
                 file.delete();
+                indexes.remove(file.getPath());
+                mappings.remove(file.getPath());
             }
         }
     }
 
     @Override
     public void delete(String key) throws Exception {
-        storageLock.writeLock().lock();
+        delete(key, HashToken.of(key));
+    }
+
+    @Override
+    public void delete(String key, HashToken keyHash) throws Exception {
+        int bucket = bucketIndex(keyHash);
+
+        lockBucket(bucket, true);
         try {
-            delete(this.filePath, key, false);
+            delete(bucketPaths[bucket], key, false);
         } finally {
-            storageLock.writeLock().unlock();
+            unlockBucket(bucket, true);
         }
     }
 
+    @Override
+    public void beginWriteBatch() {
+        // Batches hold the whole store, so their writes go to the write log together
+        storageLock.writeLock().lock();
+        writeLog.beginBatch();
+    }
+
+    @Override
+    public void endWriteBatch() {
+        writeLog.endBatch();
+        storageLock.writeLock().unlock();
+    }
+
     private void delete(String filePath, String key) throws Exception {
         delete(filePath, key, true);
     }
 
     private void delete(String filePath, String key, boolean replicator) throws Exception {
-        KeyValueLocation keyValueLocation = find(filePath, key);
+        IndexEntry entry = getIndex(filePath).get(key);
         KeyValue keyValue = new KeyValue(key);
-        if (keyValueLocation.isExists()){
-            deleteKeyValue(filePath, keyValueLocation);
-            writeLogAppend(keyValue, WRITE_ACTION.DELETE);
+        if (entry != null){
+            deleteKeyValue(filePath, key);
+            if (!replicator) writeLog.append(keyValue, WriteLog.Action.DELETE);
         } else {
             if (!replicator) throw new KeyInvalidException(key);
         }
@@ -478,19 +918,53 @@ public class KVSimpleStore implements KVStore {
     @Override
     public void mergeData(String newFileName, boolean deleteFile) throws IOException {
         File temp = new File(newFileName);
+
+        // Each key-value is appended to the end of its bucket, then the
+        // appended region of every bucket is indexed
+        Map<String, Long> mergePositions = new HashMap<>();
+        Map<String, OutputStream> bucketWriters = new HashMap<>();
+        int merged = 0;
+
         storageLock.writeLock().lock();
-        try(RandomAccessFile tempRAF = new RandomAccessFile(newFileName, "rw");
-            RandomAccessFile storageRAF = new RandomAccessFile(this.filePath, "rw");){
-            FileChannel fromChannel = tempRAF.getChannel();
-            FileChannel toChannel = storageRAF.getChannel();
+        try {
+            try (BufferedReader reader = Files.newBufferedReader(temp.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isBlank()) continue;
 
-            String line;
-            while((line = tempRAF.readLine())!= null) {
-                logger.info("data received and merging: " + tempRAF.readLine());
+                    KeyValue keyValue = gson.fromJson(line, KeyValue.class);
+                    if (keyValue == null || keyValue.getKey() == null) {
+                        throw new DataFormatException();
+                    }
+
+                    String bucketPath = bucketPath(keyValue.getKeyHash());
+                    OutputStream bucketWriter = bucketWriters.get(bucketPath);
+                    if (bucketWriter == null) {
+                        getIndex(bucketPath);
+                        mergePositions.put(bucketPath, new File(bucketPath).length());
+                        bucketWriter = new BufferedOutputStream(Files.newOutputStream(Paths.get(bucketPath),
+                                StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+                        bucketWriters.put(bucketPath, bucketWriter);
+                    }
+                    bucketWriter.write((line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+                    merged++;
+                }
+            } finally {
+                for (OutputStream bucketWriter : bucketWriters.values()) {
+                    bucketWriter.close();
+                }
+            }
+
+            for (Map.Entry<String, Long> mergePosition : mergePositions.entrySet()) {
+                String bucketPath = mergePosition.getKey();
+                indexRegion(bucketPath, getIndex(bucketPath), mergePosition.getValue());
             }
-            toChannel.position(storageRAF.length());
-            fromChannel.position(0L);
-            fromChannel.transferTo(0L, fromChannel.size(), toChannel);
+            logger.info("Merged " + merged + " key-values into " + mergePositions.size() + " buckets");
+        } catch (DataFormatException | JsonSyntaxException e) {
+            for (String bucketPath : mergePositions.keySet()) {
+                dropIndex(bucketPath);
+            }
+            throw new IOException("Merged data has an invalid format", e);
         } finally {
             storageLock.writeLock().unlock();
         }
@@ -502,12 +976,26 @@ public class KVSimpleStore implements KVStore {
     }
 
     @Override
-    public String mergeReplicatedData(ServerNode controller) throws Exception {
+    public String mergeReplicatedData(ServerNode controller, List<HashRange> hashRanges) throws Exception {
         String controlServer = controller.getNodeName();
         String replicateFilePath = dataDir + File.separatorChar + "repl_" + controlServer + "_" + serverName + ".txt";
-        mergeData(replicateFilePath, false);
-        return replicateFilePath;
+        Path mergePath = Files.createTempFile(Paths.get(dataDir), "repl_" + controlServer, ".txt");
+
+        // The controller's other ranges went to other nodes, which merge those themselves
+        ReentrantReadWriteLock lock = replicatedPaths.get(replicateFilePath);
+        if (lock != null) lock.readLock().lock();
+        try {
+            if (Files.exists(Paths.get(replicateFilePath))) {
+                copyKeyValuesInRanges(replicateFilePath, mergePath.toString(), hashRanges);
+            }
+        } finally {
+            if (lock != null) lock.readLock().unlock();
+        }
+
+        mergeData(mergePath.toString(), false);
+        return mergePath.toString();
     }
+
     @Override
     public void deleteReplicatedData(ServerNode serverNode) {
         if (serverNode != null) {
@@ -518,13 +1006,15 @@ public class KVSimpleStore implements KVStore {
                     + "_" + serverName + ".txt";
 
             ReentrantReadWriteLock lock = replicatedPaths.get(replicateFilePath);
-            lock.writeLock().lock();
+            if (lock != null) lock.writeLock().lock();
             try {
                 File replicatedFile = new File(replicateFilePath);
                 replicatedFile.delete();
+                indexes.remove(replicateFilePath);
+                mappings.remove(replicateFilePath);
 
             } finally {
-                lock.writeLock().unlock();
+                if (lock != null) lock.writeLock().unlock();
                 replicatedPaths.remove(replicateFilePath);
             }
 
@@ -534,7 +1024,7 @@ public class KVSimpleStore implements KVStore {
     }
 
     @Override
-    public void replicateData(String tempFilePath, String controlServer) {
+    public boolean replicateRecords(List<String> records, String controlServer) {
         String replicateFilePath = dataDir + File.separatorChar + "repl_" + controlServer + "_" + serverName + ".txt";
         ReentrantReadWriteLock lock;
 
@@ -552,38 +1042,44 @@ public class KVSimpleStore implements KVStore {
                 lock = replicatedPaths.get(replicateFilePath);
             }
         }
-        boolean success = updateReplicatedData(tempFilePath, replicateFilePath, lock);
+        boolean success = updateReplicatedData(records, replicateFilePath, lock);
         if (success) {
-            logger.info("Instantiated replicated data for " + controlServer);
-
+            logger.info("Updated replicated data for " + controlServer);
         }
+        return success;
     }
 
-    private boolean updateReplicatedData(String tempFilePath, String replicateFilePath){
-        try (
-            RandomAccessFile reader = new RandomAccessFile(tempFilePath, "r");
-        ) {
-            Gson gson = new Gson();
-            String line;
-            while ((line = reader.readLine()) != null) {
+    private boolean updateReplicatedData(List<String> records, String replicateFilePath){
+        try {
+            for (String line : records) {
+                if (line.isEmpty()) continue;
+
                 char action =  line.charAt(0);
                 String keyValueJson = line.substring(1);
 
                 if (action == 'P') {
+                    // Entries can be replayed after a snapshot that already has them,
+                    // so a put may find the key present
                     KeyValue keyValue = gson.fromJson(keyValueJson, KeyValue.class);
-                    logger.info("Replicate: put for key: " + keyValue.getKey());
-                    addKeyValue(replicateFilePath, keyValueJson + System.lineSeparator());
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Replicate: put for key: " + keyValue.getKey());
+                    }
+                    put(replicateFilePath, keyValue, true);
                 } else if (action == 'U') {
                     KeyValue keyValue = gson.fromJson(keyValueJson, KeyValue.class);
-                    put(replicateFilePath, keyValue.getKey(), keyValue.getValue(), keyValue.getExpiryTime(), true);
-                    logger.info("Replicate: update for key: " + keyValue.getKey());
+                    put(replicateFilePath, keyValue, true);
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Replicate: update for key: " + keyValue.getKey());
+                    }
                 } else if (action == 'D') {
                     KeyValue keyValue = gson.fromJson(keyValueJson, KeyValue.class);
-                    logger.info("Replicate: delete for key: " + keyValue.getKey());
+                    if (logger.isDebugEnabled()) {
+                        logger.debug("Replicate: delete for key: " + keyValue.getKey());
+                    }
                     delete(replicateFilePath, keyValue.getKey());
                 } else {
                     KeyValue keyValue = gson.fromJson(line, KeyValue.class);
-                    put(replicateFilePath, keyValue.getKey(), keyValue.getValue(), keyValue.getExpiryTime(), true);
+                    put(replicateFilePath, keyValue, true);
                 }
             }
             return true;
@@ -593,67 +1089,138 @@ public class KVSimpleStore implements KVStore {
         }
     }
 
-    private boolean updateReplicatedData(String tempFilePath, String replicateFilePath, ReentrantReadWriteLock lock) {
+    private boolean updateReplicatedData(List<String> records, String replicateFilePath, ReentrantReadWriteLock lock) {
         lock.writeLock().lock();
         try {
-            return updateReplicatedData(tempFilePath, replicateFilePath);
+            return updateReplicatedData(records, replicateFilePath);
         } finally {
             lock.writeLock().unlock();
         }
     }
 
 
-    public String splitData(String[] keepHashRange) throws IOException {
-        File sendFile = new File(this.sendPath);
-        boolean ignored = sendFile.createNewFile();
-        File keepFile = new File(this.keepPath);
-        ignored = keepFile.createNewFile();
-
-        Gson gson = new Gson();
+    /**
+     * Copy the key-values in the given hash ranges from one file to another
+     */
+    private void copyKeyValuesInRanges(String fromPath, String toPath, List<HashRange> hashRanges) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(fromPath), StandardCharsets.UTF_8);
+             BufferedWriter writer = Files.newBufferedWriter(Paths.get(toPath), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
 
-        try(RandomAccessFile storageRAF = new RandomAccessFile(filePath, "r");
-            RandomAccessFile sendRAF = new RandomAccessFile(sendPath, "rw");
-            RandomAccessFile keepRAF = new RandomAccessFile(keepPath, "rw");){
+                KeyValue keyValue = gson.fromJson(line, KeyValue.class);
+                if (HashRange.anyContains(hashRanges, keyValue.getKeyHash())) {
+                    writer.write(keyValue.getJsonKV());
+                }
+            }
+        }
+    }
 
-            String str;
+    /**
+     * Write the lines of a bucket file to one of two streams, by whether
+     * their key's hash falls in the hash ranges
+     */
+    private static void splitKeyValues(Path fromPath, List<HashRange> hashRanges,
+                                       OutputStream inRanges, OutputStream outOfRanges)
+            throws IOException, DataFormatException {
+        forEachLine(fromPath.toString(), 0L, (position, length, line) -> {
+            if (line.isEmpty()) return;
+
+            KeyValue keyValue = gson.fromJson(line, KeyValue.class);
+            OutputStream out = HashRange.anyContains(hashRanges, keyValue.getKeyHash()) ? inRanges : outOfRanges;
+            if (out != null) {
+                out.write((line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+            }
+        });
+    }
 
-            while ((str = storageRAF.readLine()) != null){
-                KeyValue keyValue = gson.fromJson(str, KeyValue.class);
-                String keyHash = keyValue.getKeyHash();
-                String keyValueJSON = keyValue.getJsonKV();
+    public String splitData(List<HashRange> sendHashRanges) throws IOException {
+        // Each transfer gets its own file, since a node leaving the ring
+        // sends its ranges to several others
+        Path sendPath = Files.createTempFile(Paths.get(dataDir), "~send", ".txt");
 
-                if (hashInRange(keyHash, keepHashRange)) {
-                    // Key-value is sent
-                    sendRAF.seek(sendRAF.length());
-                    sendRAF.write(keyValueJSON.getBytes());
-                } else {
-                    // If key in keyHashRange, key-value is kept
-                    keepRAF.seek(keepRAF.length());
-                    keepRAF.write(keyValueJSON.getBytes());
+        storageLock.readLock().lock();
+        try (OutputStream sendWriter = new BufferedOutputStream(Files.newOutputStream(sendPath))) {
+            // Buckets inside the ranges are copied as they are. Only the buckets
+            // on the edges of a range are read key by key.
+            for (File bucketFile : bucketFiles()) {
+                HashRange bucketRange = bucketHashRange(bucketFile);
+                ReentrantReadWriteLock bucketLock = bucketLocks[bucketIndex(bucketFile)];
+
+                bucketLock.readLock().lock();
+                try {
+                    if (rangesContain(sendHashRanges, bucketRange)) {
+                        Files.copy(bucketFile.toPath(), sendWriter);
+                    } else if (rangesOverlap(sendHashRanges, bucketRange)) {
+                        splitKeyValues(bucketFile.toPath(), sendHashRanges, sendWriter, null);
+                    }
+                } finally {
+                    bucketLock.readLock().unlock();
                 }
             }
+        } catch (DataFormatException e) {
+            throw new IOException("Storage data has an invalid format", e);
+        } finally {
+            storageLock.readLock().unlock();
         }
-        return sendPath;
 
+        return sendPath.toString();
     }
 
-    public void sendDataCleanup(){
-        File storageFile = new File(this.filePath);
-        File sendFile = new File(this.sendPath);
-        File keepFile = new File(this.keepPath);
-
-        // TODO: don't delete send file, turn it into replication file for the newly created server
-        writeLogAppend(this.sendPath, WRITE_ACTION.DELETE);
-        sendFile.delete();
-        storageFile.delete();
-        boolean renamed = keepFile.renameTo(new File(this.filePath));
-        if (renamed){
+    public void sendDataCleanup(List<HashRange> keepHashRanges) {
+        storageLock.writeLock().lock();
+        try {
+            for (File bucketFile : bucketFiles()) {
+                String bucketPath = bucketFile.getPath();
+                HashRange bucketRange = bucketHashRange(bucketFile);
+                if (rangesContain(keepHashRanges, bucketRange)) continue;
+
+                try {
+                    if (rangesOverlap(keepHashRanges, bucketRange)) {
+                        cleanUpBucket(bucketFile, keepHashRanges);
+                    } else {
+                        // Replicas drop the key-values that were sent away
+                        writeLog.append(bucketPath, WriteLog.Action.DELETE);
+                        dropIndex(bucketPath);
+                        Files.delete(bucketFile.toPath());
+                    }
+                } catch (IOException | DataFormatException e) {
+                    dropIndex(bucketPath);
+                    logger.error("Failed to clean up " + bucketPath + " after sending.", e);
+                }
+            }
             logger.info("Cleaned up data after sending.");
-        } else {
-            logger.error("Failed to clean up data after sending, storage deleted.");
+        } finally {
+            storageLock.writeLock().unlock();
         }
+    }
+
+    /**
+     * Rewrite a bucket file with only the key-values in the hash ranges to keep
+     */
+    private void cleanUpBucket(File bucketFile, List<HashRange> keepHashRanges)
+            throws IOException, DataFormatException {
+        String bucketPath = bucketFile.getPath();
+        Path keepPath = Files.createTempFile(Paths.get(dataDir), "~keep", ".txt");
+        Path removedPath = Files.createTempFile(Paths.get(dataDir), "~removed", ".txt");
 
+        try {
+            try (OutputStream keepWriter = new BufferedOutputStream(Files.newOutputStream(keepPath));
+                 OutputStream removedWriter = new BufferedOutputStream(Files.newOutputStream(removedPath))) {
+                splitKeyValues(bucketFile.toPath(), keepHashRanges, keepWriter, removedWriter);
+            }
 
+            // Replicas drop the key-values that were sent away
+            writeLog.append(removedPath.toString(), WriteLog.Action.DELETE);
+
+            Files.move(keepPath, bucketFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            dropIndex(bucketPath);
+            indexes.put(bucketPath, buildIndex(bucketPath));
+        } finally {
+            Files.deleteIfExists(keepPath);
+            Files.deleteIfExists(removedPath);
+        }
     }
 
     private static class KeyValueLocation {
@@ -694,5 +1261,33 @@ public class KVSimpleStore implements KVStore {
             this.keyValue = kv;
         }
     }
+
+    private static class IndexEntry {
+        private long position;
+        private final int length;
+        private final Long expiryTime;
+
+        public IndexEntry(long position, int length, Long expiryTime) {
+            this.position = position;
+            this.length = length;
+            this.expiryTime = expiryTime;
+        }
+
+        public long getPosition() {
+            return position;
+        }
+
+        public void setPosition(long position) {
+            this.position = position;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public Long getExpiryTime() {
+            return expiryTime;
+        }
+    }
 }
 
@@ -1,45 +1,108 @@
 package store;
 
+import ecs.HashRange;
+import ecs.HashToken;
 import ecs.ServerNode;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public interface KVStore {
     public boolean put(String key, String value, Long expiryTime) throws Exception;
+
+    /**
+     * Put a key whose hash was already computed to route the request
+     */
+    public boolean put(String key, HashToken keyHash, String value, Long expiryTime) throws Exception;
+
     public String get(String key) throws Exception;
+    public String get(String key, HashToken keyHash) throws Exception;
     public String get(String key, ServerNode responsibleNode) throws Exception;
     public void clear() throws IOException;
     public boolean exists(String key) throws Exception;
 
+    /**
+     * @return Expiry time of the key, or null if it has none or does not exist
+     */
+    public Long getExpiryTime(String key) throws Exception;
+
     void initClearReplicatedData() throws IOException;
 
     public void delete(String key) throws Exception;
+    public void delete(String key, HashToken keyHash) throws Exception;
+
+    /**
+     * Start a batch of puts and deletes from this thread. The storage lock
+     * is held until endWriteBatch(), and the write log collects the whole
+     * batch so it can be replicated with a single flush.
+     */
+    void beginWriteBatch();
+
+    void endWriteBatch();
 
     void mergeData(String newFileName, boolean deleteFile) throws IOException;
 
     void mergeData(String newFileName) throws IOException;
-    String splitData(String[] hashRange) throws IOException;
-    void sendDataCleanup();
+
+    /**
+     * @return Path to a new file holding the key-values in the given hash
+     * ranges, for sending to another node. The caller deletes it.
+     */
+    String splitData(List<HashRange> sendHashRanges) throws IOException;
+
+    /**
+     * Drop every key-value outside the given hash ranges, once they have
+     * been sent to the nodes now responsible for them
+     */
+    void sendDataCleanup(List<HashRange> keepHashRanges);
 
     public String getFileName();
     public String getDataDir();
 
-    void replicateData(String tempFilePath, String controlServer);
+    /**
+     * Apply write log records from a controller to its replicated data.
+     * Records are a P, U or D action followed by a JSON key-value, or a
+     * plain JSON key-value, which is treated as a put.
+     *
+     * @return Whether every record was applied
+     */
+    boolean replicateRecords(List<String> records, String controlServer);
 
     String getStoragePath();
 
-    String getWriteLogPath();
+    /**
+     * @return Path to a file holding every key-value in the store, one JSON
+     * key-value per line. Readers must hold the storage read lock.
+     */
+    String snapshotData() throws IOException;
 
-    String mergeReplicatedData(ServerNode controller) throws Exception;
+    WriteLog getWriteLog();
 
-    void deleteReplicatedData(ServerNode oldController);
+    /**
+     * Merge the key-values replicated from a controller that fall in the
+     * given hash ranges into this store
+     *
+     * @return Path to a file of the merged key-values
+     */
+    String mergeReplicatedData(ServerNode controller, List<HashRange> hashRanges) throws Exception;
 
-    ReentrantReadWriteLock getWriteLogLock();
+    void deleteReplicatedData(ServerNode oldController);
 
     ReentrantReadWriteLock getStorageLock();
 
+    /**
+     * Delete every key whose expiry time has passed
+     *
+     * @return Whether any keys were deleted
+     */
     boolean checkKeyExpiry() throws Exception;
 
+    /**
+     * @return Index of the keys with an expiry time, which also holds the
+     * expiry metrics
+     */
+    ExpiryIndex getExpiryIndex();
+
     public void setReplicatorsExpireKeys(boolean replicatorsExpireKeys);
 }
\ No newline at end of file
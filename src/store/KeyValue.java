@@ -1,29 +1,32 @@
 package store;
 
 import com.google.gson.Gson;
-
-import static ecs.ServerNode.md5Hash;
+import ecs.HashToken;
 
 public class KeyValue {
+    private static final Gson gson = new Gson();
+
     private String key;
     private String value;
     private Long expiryTime;
     private String jsonKV;
-    private String keyHash;
+
+    // Worked out from the key when first needed, and never written to storage
+    private transient HashToken keyHash;
 
     public KeyValue(String key){
-        this(key, "", null);
+        // Only the key of a deleted key-value is needed, so its hash is left unset
+        this(key, "", null, null);
     }
 
     public KeyValue(String key, String value, Long expiryTime){
         this.key = key;
         this.value = value;
         this.expiryTime = expiryTime;
-        this.keyHash = md5Hash(key);
         this.jsonKV = constructFileString();
     }
 
-    public KeyValue(String key, String value, String keyHash, Long expiryTime){
+    public KeyValue(String key, String value, HashToken keyHash, Long expiryTime){
         this.key = key;
         this.value = value;
         this.expiryTime = expiryTime;
@@ -43,9 +46,9 @@ public class KeyValue {
         return expiryTime;
     }
 
-    public String getKeyHash() {
+    public HashToken getKeyHash() {
         if (keyHash == null) {
-            keyHash = md5Hash(key);
+            keyHash = HashToken.of(key);
         }
         return keyHash;
     }
@@ -58,7 +61,6 @@ public class KeyValue {
     }
 
     public String constructFileString(){
-        Gson gson = new Gson();
         return gson.toJson(this) + System.lineSeparator();
     }
 }
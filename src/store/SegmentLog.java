@@ -0,0 +1,580 @@
+package store;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, Bitcask-style log of key-value records for a single keyspace.
+ * <p>
+ * Records are appended to the active segment file in a directory, and an
+ * in-memory keydir maps every live key to the segment and position of its
+ * latest record. Deletes append a tombstone record. Once the active segment
+ * reaches its maximum size, a new one is started and the old one becomes
+ * immutable. Immutable segments are merged by compact(), which rewrites
+ * only their live records into a single segment and drops the rest.
+ * <p>
+ * Each record is laid out as (little endian):
+ * <pre>
+ *   int  CRC32 of the rest of the record
+ *   long expiry time, or -1 for none
+ *   int  key length in bytes
+ *   int  value length in bytes, or -1 for a tombstone
+ *   key and value bytes (UTF-8)
+ * </pre>
+ * <p>
+ * Callers are expected to hold the read lock from getLock() while reading
+ * and the write lock while writing. compact() acquires the write lock itself,
+ * but only while swapping the merged segment in.
+ */
+class SegmentLog {
+    protected static final Logger logger = Logger.getLogger("SegmentLog");
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String MERGE_SUFFIX = ".merge";
+    private static final String MERGING_SUFFIX = ".merging";
+    private static final int HEADER_SIZE = 20;
+    private static final int TOMBSTONE = -1;
+
+    private final Path dirPath;
+    private final long maxSegmentSize;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final Map<String, KeyDirEntry> keyDir = new ConcurrentHashMap<>();
+
+    // Keys in the keydir that have an expiry time
+    private final ExpiryIndex expiryIndex = new ExpiryIndex();
+    private Segment activeSegment;
+
+    public SegmentLog(String dirPath, long maxSegmentSize) throws IOException, DataFormatException {
+        this.dirPath = Paths.get(dirPath);
+        this.maxSegmentSize = maxSegmentSize;
+
+        Files.createDirectories(this.dirPath);
+        load();
+    }
+
+    public ReentrantReadWriteLock getLock() {
+        return lock;
+    }
+
+    public String getDirPath() {
+        return dirPath.toString();
+    }
+
+    /**
+     * Open every segment in the directory and replay them in order to build the keydir
+     */
+    private void load() throws IOException, DataFormatException {
+        finishInterruptedMerge();
+
+        File[] files = dirPath.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    long id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(id, new Segment(id, file.toPath()));
+                }
+            }
+        }
+
+        for (Segment segment : segments.values()) {
+            replay(segment, segment.id == segments.lastKey());
+        }
+
+        if (segments.isEmpty()) {
+            activeSegment = createSegment(0);
+        } else {
+            activeSegment = segments.lastEntry().getValue();
+        }
+
+        logger.info("Loaded " + keyDir.size() + " keys from " + segments.size() + " segments in " + dirPath);
+    }
+
+    /**
+     * A merge is written to a .merging file, which is renamed to .merge once it
+     * is complete. A .merge file left behind means the process stopped before
+     * it replaced the segments it was merged from, so finish that now.
+     */
+    private void finishInterruptedMerge() throws IOException {
+        File[] files = dirPath.toFile().listFiles();
+        if (files == null) return;
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(MERGING_SUFFIX)) {
+                Files.deleteIfExists(file.toPath());
+                continue;
+            }
+            if (!name.endsWith(MERGE_SUFFIX)) continue;
+
+            long mergeId = Long.parseLong(name.substring(0, name.length() - MERGE_SUFFIX.length()));
+            for (File other : files) {
+                String otherName = other.getName();
+                if (otherName.endsWith(SEGMENT_SUFFIX)) {
+                    long id = Long.parseLong(otherName.substring(0, otherName.length() - SEGMENT_SUFFIX.length()));
+                    if (id <= mergeId) Files.deleteIfExists(other.toPath());
+                }
+            }
+
+            Files.move(file.toPath(), segmentPath(mergeId, SEGMENT_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+            logger.info("Finished interrupted merge into segment " + mergeId);
+        }
+    }
+
+    private void replay(Segment segment, boolean isLast) throws IOException, DataFormatException {
+        long position = 0;
+        long size = segment.channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        while (position < size) {
+            Record record = null;
+
+            if (position + HEADER_SIZE <= size) {
+                header.clear();
+                readFully(segment.channel, header, position);
+                header.flip();
+                int length = recordLength(header);
+                if (length > 0 && position + length <= size) {
+                    record = readRecord(segment.channel, position, length);
+                }
+            }
+
+            if (record == null) {
+                if (isLast) {
+                    // A write was cut off part way through, drop it
+                    logger.warn("Truncating partial record at " + position + " in segment " + segment.id);
+                    segment.channel.truncate(position);
+                    break;
+                }
+                throw new DataFormatException();
+            }
+
+            if (record.value == null) {
+                removeKey(record.key);
+                segment.deadBytes.addAndGet(record.length);
+            } else {
+                KeyDirEntry previous = keyDir.put(
+                        record.key, new KeyDirEntry(segment.id, position, record.length, record.expiryTime));
+                if (previous != null) markDead(previous);
+                expiryIndex.update(record.key, record.expiryTime);
+            }
+
+            position += record.length;
+        }
+
+        segment.size.set(position);
+    }
+
+    private Path segmentPath(long id, String suffix) {
+        return dirPath.resolve(String.format("%010d", id) + suffix);
+    }
+
+    private Segment createSegment(long id) throws IOException {
+        Segment segment = new Segment(id, segmentPath(id, SEGMENT_SUFFIX));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private void markDead(KeyDirEntry entry) {
+        Segment segment = segments.get(entry.segmentId);
+        if (segment != null) segment.deadBytes.addAndGet(entry.length);
+    }
+
+    private KeyDirEntry removeKey(String key) {
+        KeyDirEntry previous = keyDir.remove(key);
+        if (previous != null) markDead(previous);
+        expiryIndex.remove(key);
+        return previous;
+    }
+
+    private static int recordLength(ByteBuffer header) {
+        header.position(12);
+        int keyLength = header.getInt();
+        int valueLength = header.getInt();
+        if (keyLength < 0 || valueLength < TOMBSTONE) return -1;
+        return HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+    }
+
+    private static ByteBuffer encode(String key, String value, Long expiryTime) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length + valueBytes.length);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putInt(0);  // CRC, filled in below
+        buffer.putLong(expiryTime == null ? -1 : expiryTime);
+        buffer.putInt(keyBytes.length);
+        buffer.putInt(value == null ? TOMBSTONE : valueBytes.length);
+        buffer.put(keyBytes);
+        buffer.put(valueBytes);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 4, buffer.capacity() - 4);
+        buffer.putInt(0, (int) crc.getValue());
+
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+        }
+    }
+
+    /**
+     * Read and verify a single record
+     *
+     * @return The record, or null if its checksum does not match
+     */
+    private static Record readRecord(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, buffer, position);
+        buffer.flip();
+
+        int checksum = buffer.getInt();
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 4, length - 4);
+        if ((int) crc.getValue() != checksum) return null;
+
+        long expiry = buffer.getLong();
+        int keyLength = buffer.getInt();
+        int valueLength = buffer.getInt();
+
+        String key = new String(buffer.array(), HEADER_SIZE, keyLength, StandardCharsets.UTF_8);
+        String value = valueLength == TOMBSTONE
+                ? null
+                : new String(buffer.array(), HEADER_SIZE + keyLength, valueLength, StandardCharsets.UTF_8);
+
+        return new Record(key, value, expiry < 0 ? null : expiry, length);
+    }
+
+    private synchronized long append(ByteBuffer record) throws IOException {
+        int length = record.remaining();
+
+        if (activeSegment.size.get() > 0 && activeSegment.size.get() + length > maxSegmentSize) {
+            activeSegment.channel.force(false);
+            activeSegment = createSegment(activeSegment.id + 1);
+        }
+
+        long position = activeSegment.size.get();
+        while (record.hasRemaining()) {
+            activeSegment.channel.write(record, position + record.position());
+        }
+        activeSegment.size.addAndGet(length);
+
+        return position;
+    }
+
+    /**
+     * Append a record for the key-value
+     *
+     * @return True if the key already existed
+     */
+    public boolean put(String key, String value, Long expiryTime) throws IOException {
+        ByteBuffer record = encode(key, value, expiryTime);
+        int length = record.remaining();
+
+        synchronized (this) {
+            long position = append(record);
+            KeyDirEntry previous = keyDir.put(key, new KeyDirEntry(activeSegment.id, position, length, expiryTime));
+            if (previous != null) markDead(previous);
+            expiryIndex.update(key, expiryTime);
+            return previous != null;
+        }
+    }
+
+    /**
+     * Append a tombstone for the key
+     *
+     * @return True if the key existed
+     */
+    public boolean delete(String key) throws IOException {
+        if (!keyDir.containsKey(key)) return false;
+
+        ByteBuffer record = encode(key, null, null);
+        int length = record.remaining();
+
+        synchronized (this) {
+            append(record);
+            // Tombstones are never live, so count them as dead straight away
+            activeSegment.deadBytes.addAndGet(length);
+            return removeKey(key) != null;
+        }
+    }
+
+    public boolean exists(String key) {
+        return keyDir.containsKey(key);
+    }
+
+    /**
+     * @return Expiry time of the key, or null if it has none or does not exist
+     */
+    public Long getExpiryTime(String key) {
+        KeyDirEntry entry = keyDir.get(key);
+        return entry == null ? null : entry.expiryTime;
+    }
+
+    /**
+     * Read the value for a key with one positioned read
+     *
+     * @return The value, or null if the key does not exist
+     */
+    public String get(String key) throws IOException, DataFormatException {
+        KeyDirEntry entry = keyDir.get(key);
+        if (entry == null) return null;
+
+        Record record = readRecord(segments.get(entry.segmentId).channel, entry.position, entry.length);
+        if (record == null || !record.key.equals(key)) {
+            throw new DataFormatException();
+        }
+        return record.value;
+    }
+
+    /**
+     * Read the full key-value for a key
+     *
+     * @return The key-value, or null if the key does not exist
+     */
+    public KeyValue getKeyValue(String key) throws IOException, DataFormatException {
+        KeyDirEntry entry = keyDir.get(key);
+        if (entry == null) return null;
+
+        String value = get(key);
+        return value == null ? null : new KeyValue(key, value, entry.expiryTime);
+    }
+
+    public List<String> keys() {
+        return new ArrayList<>(keyDir.keySet());
+    }
+
+    /**
+     * @return Up to maxKeys keys whose expiry time has passed, earliest first
+     */
+    public List<String> expiredKeys(long currentTime, int maxKeys) {
+        return expiryIndex.expiredKeys(currentTime, maxKeys);
+    }
+
+    public ExpiryIndex getExpiryIndex() {
+        return expiryIndex;
+    }
+
+    public int size() {
+        return keyDir.size();
+    }
+
+    /**
+     * Remove every segment and start again from an empty log
+     */
+    public synchronized void clear() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        }
+        segments.clear();
+        keyDir.clear();
+        expiryIndex.clear();
+        activeSegment = createSegment(0);
+    }
+
+    /**
+     * Close every segment and delete the log directory
+     */
+    public synchronized void destroy() throws IOException {
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+        segments.clear();
+        keyDir.clear();
+        expiryIndex.clear();
+        deleteDirectory(dirPath.toFile());
+    }
+
+    static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * @return True if the immutable segments are at least half dead records
+     */
+    public boolean needsCompaction() {
+        long totalBytes = 0;
+        long deadBytes = 0;
+
+        synchronized (this) {
+            for (Segment segment : segments.headMap(activeSegment.id).values()) {
+                totalBytes += segment.size.get();
+                deadBytes += segment.deadBytes.get();
+            }
+        }
+
+        return totalBytes > 0 && deadBytes * 2 >= totalBytes;
+    }
+
+    /**
+     * Merge every immutable segment into a single segment holding only their
+     * live records. Writes to the active segment continue while the merge is
+     * written; the write lock is only held to swap the merged segment in.
+     */
+    public void compact() throws IOException, DataFormatException {
+        List<Segment> merging;
+        synchronized (this) {
+            // Roll the active segment over if it has anything dead in it, so it can be merged too
+            if (activeSegment.deadBytes.get() > 0) {
+                activeSegment.channel.force(false);
+                activeSegment = createSegment(activeSegment.id + 1);
+            }
+            merging = new ArrayList<>(segments.headMap(activeSegment.id).values());
+        }
+
+        if (merging.isEmpty()) return;
+
+        long mergeId = merging.get(merging.size() - 1).id;
+        HashMap<Long, Segment> mergingById = new HashMap<>();
+        for (Segment segment : merging) {
+            mergingById.put(segment.id, segment);
+        }
+
+        Path mergingPath = segmentPath(mergeId, MERGING_SUFFIX);
+        Path mergePath = segmentPath(mergeId, MERGE_SUFFIX);
+        HashMap<String, KeyDirEntry> merged = new HashMap<>();
+        HashMap<String, KeyDirEntry> replaced = new HashMap<>();
+        long mergeSize = 0;
+
+        try (FileChannel mergeChannel = FileChannel.open(mergingPath,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Map.Entry<String, KeyDirEntry> entry : keyDir.entrySet()) {
+                KeyDirEntry keyDirEntry = entry.getValue();
+                Segment segment = mergingById.get(keyDirEntry.segmentId);
+                if (segment == null) continue;
+
+                ByteBuffer buffer = ByteBuffer.allocate(keyDirEntry.length);
+                readFully(segment.channel, buffer, keyDirEntry.position);
+                buffer.flip();
+
+                while (buffer.hasRemaining()) {
+                    mergeChannel.write(buffer, mergeSize + buffer.position());
+                }
+
+                replaced.put(entry.getKey(), keyDirEntry);
+                merged.put(entry.getKey(), new KeyDirEntry(mergeId, mergeSize, keyDirEntry.length, keyDirEntry.expiryTime));
+                mergeSize += keyDirEntry.length;
+            }
+            mergeChannel.force(true);
+        }
+        Files.move(mergingPath, mergePath, StandardCopyOption.ATOMIC_MOVE);
+
+        lock.writeLock().lock();
+        try {
+            synchronized (this) {
+                for (Segment segment : merging) {
+                    segment.channel.close();
+                    Files.deleteIfExists(segment.path);
+                    segments.remove(segment.id);
+                }
+
+                Files.move(mergePath, segmentPath(mergeId, SEGMENT_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+                Segment mergedSegment = new Segment(mergeId, segmentPath(mergeId, SEGMENT_SUFFIX));
+                mergedSegment.size.set(mergeSize);
+                segments.put(mergeId, mergedSegment);
+
+                for (Map.Entry<String, KeyDirEntry> entry : merged.entrySet()) {
+                    // Keys written or deleted during the merge keep their newer location.
+                    // Their merged copy is dead, and is dropped by the next merge.
+                    if (!keyDir.replace(entry.getKey(), replaced.get(entry.getKey()), entry.getValue())) {
+                        mergedSegment.deadBytes.addAndGet(entry.getValue().length);
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        logger.info("Compacted " + merging.size() + " segments into segment " + mergeId
+                + " (" + mergeSize + " bytes) in " + dirPath);
+    }
+
+    public void close() throws IOException {
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        }
+    }
+
+    private static class Segment {
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        private final AtomicLong size = new AtomicLong();
+        private final AtomicLong deadBytes = new AtomicLong();
+
+        public Segment(long id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size.set(channel.size());
+        }
+    }
+
+    private static class KeyDirEntry {
+        private final long segmentId;
+        private final long position;
+        private final int length;
+        private final Long expiryTime;
+
+        public KeyDirEntry(long segmentId, long position, int length, Long expiryTime) {
+            this.segmentId = segmentId;
+            this.position = position;
+            this.length = length;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    private static class Record {
+        private final String key;
+        private final String value;
+        private final Long expiryTime;
+        private final int length;
+
+        public Record(String key, String value, Long expiryTime, int length) {
+            this.key = key;
+            this.value = value;
+            this.expiryTime = expiryTime;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package store;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Append-only replication write log shared by the KVStore implementations.
+ * <p>
+ * Each line is a sequence number and a space, followed by a single character
+ * action (P, U or D) and the JSON of the key-value it applies to. Sequence
+ * numbers increase by one per entry. Entries stay in the log until every
+ * replicator has acknowledged them, at which point they can be truncated.
+ * <p>
+ * Replicas also receive plain key-values, without a sequence number or
+ * action, when a whole store is copied to them. Those are treated as puts.
+ */
+public class WriteLog {
+    protected static final Logger logger = Logger.getLogger("WriteLog");
+
+    public enum Action {PUT, UPDATE, DELETE}
+
+    private final String path;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private RandomAccessFile file;
+
+    // File offset of every entry in the log, starting at firstSequence
+    private final List<Long> offsets = new ArrayList<>();
+    private long firstSequence;
+    private volatile long lastSequence;
+
+    public WriteLog(String path) {
+        this.path = path;
+
+        // Sequence numbers keep increasing across restarts, so replicas can
+        // tell entries they already applied apart from new ones
+        this.lastSequence = System.currentTimeMillis() * 1000;
+
+        try {
+            Path parent = Paths.get(path).toAbsolutePath().getParent();
+            if (parent != null) Files.createDirectories(parent);
+
+            this.file = new RandomAccessFile(path, "rw");
+            recover();
+        } catch (IOException e) {
+            logger.error("Could not open replication write log " + path, e);
+        }
+        this.firstSequence = lastSequence - offsets.size() + 1;
+    }
+
+    /**
+     * Rebuild the offsets of the entries left in the log by a previous run
+     */
+    private void recover() throws IOException {
+        long offset = 0;
+        long sequence = -1;
+        String line;
+
+        file.seek(0);
+        while ((line = file.readLine()) != null) {
+            long lineSequence = parseSequence(line);
+            if (lineSequence == -1 || (sequence != -1 && lineSequence != sequence + 1)) {
+                logger.warn("Discarding unreadable replication write log " + path);
+                file.setLength(0);
+                offsets.clear();
+                return;
+            }
+
+            offsets.add(offset);
+            sequence = lineSequence;
+            offset = file.getFilePointer();
+        }
+
+        if (sequence != -1) {
+            lastSequence = sequence;
+        }
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public ReentrantReadWriteLock getLock() {
+        return lock;
+    }
+
+    /**
+     * @return Sequence number of the last entry appended, or of the
+     * entry before the first one if nothing was appended yet
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    private static String prefix(Action action) {
+        switch (action) {
+            case PUT:
+                return "P";
+            case UPDATE:
+                return "U";
+            case DELETE:
+                return "D";
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Get the action of a write log record, without its sequence number
+     *
+     * @return The action, or null if the record is a plain key-value
+     */
+    public static Action parseAction(String record) {
+        switch (record.charAt(0)) {
+            case 'P':
+                return Action.PUT;
+            case 'U':
+                return Action.UPDATE;
+            case 'D':
+                return Action.DELETE;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Get the sequence number of a write log line
+     *
+     * @return The sequence number, or -1 if the line doesn't start with one
+     */
+    public static long parseSequence(String line) {
+        int space = line.indexOf(' ');
+        if (space <= 0 || !Character.isDigit(line.charAt(0))) return -1;
+
+        try {
+            return Long.parseLong(line.substring(0, space));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return The record of a write log line, without its sequence number
+     */
+    public static String parseRecord(String line) {
+        return line.substring(line.indexOf(' ') + 1);
+    }
+
+    /**
+     * Start a batch. Until endBatch(), the log stays locked by this thread,
+     * so the entries of the batch are contiguous.
+     */
+    public void beginBatch() {
+        lock.writeLock().lock();
+    }
+
+    public void endBatch() {
+        lock.writeLock().unlock();
+    }
+
+    /**
+     * Append a single line. Must hold the write lock.
+     *
+     * @param record Record to append, which is already encoded in the bytes
+     *               of the charset
+     */
+    private long appendRecord(String record, Charset charset) throws IOException {
+        long sequence = lastSequence + 1;
+        long offset = file.length();
+
+        file.seek(offset);
+        file.write((sequence + " " + record + System.lineSeparator()).getBytes(charset));
+
+        offsets.add(offset);
+        lastSequence = sequence;
+        return sequence;
+    }
+
+    /**
+     * @return Sequence number of the new entry, or -1 if it couldn't be written
+     */
+    public long append(KeyValue keyValue, Action action) {
+        lock.writeLock().lock();
+        try {
+            // The JSON of a key-value already ends with a line separator
+            return appendRecord(prefix(action) + keyValue.getJsonKV().stripTrailing(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            logger.error("Could not append to replication write log.");
+            return -1;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Append every key-value in a file of JSON key-values with the same action
+     */
+    public void append(String filePath, Action action) {
+        lock.writeLock().lock();
+        try {
+            String prefix = prefix(action);
+
+            try (
+                RandomAccessFile reader = new RandomAccessFile(filePath, "r");
+            ) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    // readLine() decodes one char per byte, so this writes the original bytes back
+                    appendRecord(prefix + line, StandardCharsets.ISO_8859_1);
+                }
+            } catch (IOException e) {
+                logger.error("Could not append to replication write log.");
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Read the entries after a sequence number, in order. Each line keeps
+     * its sequence number. Entries already truncated are skipped.
+     *
+     * @param afterSequence Sequence number to read after
+     * @param maxEntries    Most entries to return
+     * @return The lines of the entries, possibly none
+     */
+    public List<String> read(long afterSequence, int maxEntries) {
+        lock.readLock().lock();
+        try {
+            int start = (int) Math.max(0, afterSequence + 1 - firstSequence);
+            int end = Math.min(offsets.size(), start + maxEntries);
+            if (start >= end) return new ArrayList<>();
+
+            long startOffset = offsets.get(start);
+            long endOffset = end < offsets.size() ? offsets.get(end) : file.length();
+
+            byte[] bytes = new byte[(int) (endOffset - startOffset)];
+            try (RandomAccessFile reader = new RandomAccessFile(path, "r")) {
+                reader.seek(startOffset);
+                reader.readFully(bytes);
+            }
+
+            List<String> lines = new ArrayList<>(end - start);
+            for (String line : new String(bytes, StandardCharsets.UTF_8).split("\\R")) {
+                if (!line.isEmpty()) lines.add(line);
+            }
+            return lines;
+        } catch (IOException e) {
+            logger.error("Could not read replication write log.", e);
+            return new ArrayList<>();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drop the entries up to and including a sequence number, once every
+     * replicator has acknowledged them. The file is only rewritten if that
+     * frees at least half of it, otherwise the entries are kept until a
+     * later truncation.
+     */
+    public void truncate(long upToSequence) {
+        lock.writeLock().lock();
+        try {
+            int count = (int) Math.min(offsets.size(), upToSequence + 1 - firstSequence);
+            if (count <= 0) return;
+
+            if (count == offsets.size()) {
+                file.setLength(0);
+                offsets.clear();
+            } else if (count >= offsets.size() / 2) {
+                long keepOffset = offsets.get(count);
+                byte[] keep = new byte[(int) (file.length() - keepOffset)];
+                file.seek(keepOffset);
+                file.readFully(keep);
+
+                file.setLength(0);
+                file.seek(0);
+                file.write(keep);
+
+                List<Long> kept = new ArrayList<>(offsets.subList(count, offsets.size()));
+                offsets.clear();
+                for (long offset : kept) {
+                    offsets.add(offset - keepOffset);
+                }
+            } else {
+                return;
+            }
+
+            firstSequence += count;
+        } catch (IOException e) {
+            logger.error("Could not truncate replication write log.", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -14,6 +14,15 @@ import org.junit.runners.Suite;
 		InteractionTest.class,
 		JsonMessageTest.class,
 		KVStoreTest.class,
+		KVLogStoreTest.class,
+		KVCacheTest.class,
+		WriteLogTest.class,
+		ReplicationChannelTest.class,
+		DataTransferTest.class,
+		ConnectionPoolTest.class,
+		KVAsyncStoreConnectionTest.class,
+		ReplicaSelectorTest.class,
+		KVClientListenerTest.class,
 		CommunicationProtocolTest.class,
 		HashRingTest.class,
 		ECSTest.class,
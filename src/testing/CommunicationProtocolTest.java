@@ -3,6 +3,8 @@ package testing;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import ecs.HashRing;
+import ecs.ServerNode;
 import org.mockito.Mockito;
 import shared.Connection;
 import shared.messages.DeserializationException;
@@ -14,6 +16,8 @@ import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Test the communication protocol used by the TCP
@@ -101,6 +105,106 @@ public class CommunicationProtocolTest extends Assert {
         assertEquals(receivedMessage.getMessage(), msg.getMessage());
     }
 
+    @Test
+    public void testBinaryRoundTrip() throws IOException, DeserializationException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        SampleConnection sender = new SampleConnection(null, output);
+        sender.setProtocolVersion(Connection.BINARY_PROTOCOL_VERSION);
+
+        HashRing hashRing = new HashRing();
+        hashRing.addNode(new ServerNode("server1", "localhost", 50000));
+
+        JsonKVMessage msg = new JsonKVMessage(KVMessage.StatusType.PUT);
+        msg.setKey("foo");
+        msg.setValue("b\u00e4r");
+        msg.setTTL(30L);
+        msg.setMetadata(hashRing);
+
+        sender.sendMessage(msg);
+
+        byte[] packet = output.toByteArray();
+        assertEquals(Connection.BINARY_PROTOCOL_VERSION, packet[0]);
+
+        SampleConnection receiver = new SampleConnection(new ByteArrayInputStream(packet), null);
+        JsonKVMessage receivedMessage = receiver.receiveMessage();
+
+        assertEquals(msg.getStatus(), receivedMessage.getStatus());
+        assertEquals(msg.getKey(), receivedMessage.getKey());
+        assertEquals(msg.getValue(), receivedMessage.getValue());
+        assertEquals(msg.getTTL(), receivedMessage.getTTL());
+        assertNull(receivedMessage.getMessage());
+        assertEquals("server1", receivedMessage.getMetadata().getNodes().get(0).getNodeName());
+    }
+
+    @Test
+    public void testBinaryBatchRoundTrip() throws IOException, DeserializationException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        SampleConnection sender = new SampleConnection(null, output);
+        sender.setProtocolVersion(Connection.BINARY_PROTOCOL_VERSION);
+
+        List<JsonKVMessage> entries = new ArrayList<>();
+        JsonKVMessage put = new JsonKVMessage();
+        put.setKey("foo");
+        put.setValue("bar");
+        put.setTTL(30L);
+        entries.add(put);
+        JsonKVMessage delete = new JsonKVMessage(KVMessage.StatusType.DELETE_SUCCESS);
+        delete.setKey("fizz");
+        entries.add(delete);
+
+        JsonKVMessage msg = new JsonKVMessage(KVMessage.StatusType.MPUT);
+        msg.setEntries(entries);
+        msg.setEpoch(7L);
+        msg.setRequestId(12);
+
+        sender.sendMessage(msg);
+
+        SampleConnection receiver = new SampleConnection(new ByteArrayInputStream(output.toByteArray()), null);
+        JsonKVMessage receivedMessage = receiver.receiveMessage();
+
+        assertEquals(KVMessage.StatusType.MPUT, receivedMessage.getStatus());
+        assertEquals(Long.valueOf(7), receivedMessage.getEpoch());
+        assertEquals(12, receivedMessage.getRequestId());
+        assertEquals(2, receivedMessage.getEntries().size());
+
+        JsonKVMessage first = receivedMessage.getEntries().get(0);
+        assertNull(first.getStatus());
+        assertEquals("foo", first.getKey());
+        assertEquals("bar", first.getValue());
+        assertEquals(Long.valueOf(30), first.getTTL());
+
+        JsonKVMessage second = receivedMessage.getEntries().get(1);
+        assertEquals(KVMessage.StatusType.DELETE_SUCCESS, second.getStatus());
+        assertEquals("fizz", second.getKey());
+        assertNull(second.getValue());
+    }
+
+    @Test(expected = DeserializationException.class)
+    public void testBinaryTruncatedBody() throws IOException, DeserializationException {
+        //            version | |  length  | |status|flags|        ttl         |     | key length |
+        byte[] inputBytes = {2, 4, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 3, 0, 0, 0};
+        ByteArrayInputStream input = new ByteArrayInputStream(inputBytes);
+
+        SampleConnection conn = new SampleConnection(input, null);
+        conn.receiveMessage();
+    }
+
+    @Test(expected = DeserializationException.class)
+    public void testBinaryMalformedMetadata() throws IOException, DeserializationException {
+        ByteBuffer buffer = ByteBuffer.allocate(Connection.HEADER_SIZE + 19).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(Connection.BINARY_PROTOCOL_VERSION);
+        buffer.putInt(19);
+        buffer.put((byte) KVMessage.StatusType.GET_SUCCESS.ordinal());
+        buffer.position(Connection.HEADER_SIZE);
+
+        // No key, value or message, then metadata that is not a hash ring
+        buffer.putInt(-1).putInt(-1).putInt(-1);
+        buffer.putInt(3).put(new byte[] {'{', 'x', '!'});
+
+        SampleConnection conn = new SampleConnection(new ByteArrayInputStream(buffer.array()), null);
+        conn.receiveMessage();
+    }
+
     @Test(expected = IOException.class)
     public void testThrowsIOExceptionForClosedInputStream() throws IOException, DeserializationException {
         ByteArrayInputStream input = new ByteArrayInputStream(new byte[] {});
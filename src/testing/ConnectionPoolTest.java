@@ -0,0 +1,112 @@
+package testing;
+
+import client.ConnectionPool;
+import ecs.HashRing;
+import ecs.ServerNode;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Test reusing and evicting client connections against a local socket
+ */
+public class ConnectionPoolTest extends Assert {
+    private ServerSocket serverSocket;
+    private ServerNode node;
+
+    @Before
+    public void init() throws Exception {
+        serverSocket = new ServerSocket(0);
+        node = new ServerNode("server0", "localhost", serverSocket.getLocalPort());
+    }
+
+    @After
+    public void close() throws Exception {
+        serverSocket.close();
+    }
+
+    @Test
+    public void testReleasedSocketReused() throws Exception {
+        ConnectionPool pool = new ConnectionPool(2, 60000);
+
+        Socket socket = pool.acquire(node);
+        pool.release(node, socket);
+        assertEquals(1, pool.idleCount("server0"));
+
+        assertSame(socket, pool.acquire(node));
+        assertEquals(0, pool.idleCount("server0"));
+
+        pool.close();
+        socket.close();
+    }
+
+    @Test
+    public void testIdleSocketsBounded() throws Exception {
+        ConnectionPool pool = new ConnectionPool(1, 60000);
+
+        Socket first = pool.acquire(node);
+        Socket second = pool.acquire(node);
+        pool.release(node, first);
+        pool.release(node, second);
+
+        assertEquals(1, pool.idleCount("server0"));
+        assertTrue(second.isClosed());
+
+        pool.close();
+        assertTrue(first.isClosed());
+    }
+
+    @Test
+    public void testIdleSocketsExpire() throws Exception {
+        ConnectionPool pool = new ConnectionPool(2, 0);
+
+        Socket socket = pool.acquire(node);
+        pool.release(node, socket);
+        Thread.sleep(10);
+
+        Socket next = pool.acquire(node);
+        assertNotSame(socket, next);
+        assertTrue(socket.isClosed());
+
+        next.close();
+    }
+
+    @Test
+    public void testBrokenSocketDropped() throws Exception {
+        ConnectionPool pool = new ConnectionPool(2, 60000);
+
+        Socket socket = pool.acquire(node);
+        pool.release(node, socket);
+        socket.close();
+
+        Socket next = pool.acquire(node);
+        assertNotSame(socket, next);
+
+        next.close();
+    }
+
+    @Test
+    public void testRemovedNodesEvicted() throws Exception {
+        ConnectionPool pool = new ConnectionPool(2, 60000);
+        ServerNode other = new ServerNode("server1", "localhost", serverSocket.getLocalPort());
+
+        Socket socket = pool.acquire(node);
+        Socket otherSocket = pool.acquire(other);
+        pool.release(node, socket);
+        pool.release(other, otherSocket);
+
+        HashRing hashRing = new HashRing();
+        hashRing.addNode(new ServerNode("server0", "localhost", serverSocket.getLocalPort()));
+        pool.retain(hashRing);
+
+        assertEquals(1, pool.idleCount("server0"));
+        assertEquals(0, pool.idleCount("server1"));
+        assertTrue(otherSocket.isClosed());
+
+        pool.close();
+    }
+}
@@ -0,0 +1,89 @@
+package testing;
+
+import app_kvServer.DataTransfer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Test sending files between two ends of a local data transfer connection
+ */
+public class DataTransferTest extends Assert {
+    private ServerSocketChannel serverChannel;
+    private Path sendPath;
+    private Path receivePath;
+
+    @Before
+    public void init() throws Exception {
+        serverChannel = ServerSocketChannel.open().bind(new InetSocketAddress("localhost", 0));
+        sendPath = Files.createTempFile("send", ".txt");
+        receivePath = Files.createTempFile("receive", ".txt");
+    }
+
+    @After
+    public void close() throws Exception {
+        serverChannel.close();
+        Files.deleteIfExists(sendPath);
+        Files.deleteIfExists(receivePath);
+    }
+
+    private long sendAndReceive() throws Exception {
+        int port = serverChannel.socket().getLocalPort();
+        CompletableFuture<Long> sent = CompletableFuture.supplyAsync(() -> {
+            try {
+                return DataTransfer.send("localhost", port, sendPath);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        try (SocketChannel socket = serverChannel.accept()) {
+            long received = DataTransfer.receive(socket, receivePath);
+            assertEquals(received, (long) sent.get());
+            return received;
+        }
+    }
+
+    @Test
+    public void testFileTransferred() throws Exception {
+        byte[] data = new byte[3 * 1024 * 1024 + 17];
+        new Random(0).nextBytes(data);
+        Files.write(sendPath, data);
+
+        assertEquals(data.length, sendAndReceive());
+        assertArrayEquals(data, Files.readAllBytes(receivePath));
+    }
+
+    @Test
+    public void testEmptyFileTransferred() throws Exception {
+        Files.write(receivePath, new byte[]{1, 2, 3});
+
+        assertEquals(0, sendAndReceive());
+        assertEquals(0, Files.size(receivePath));
+    }
+
+    @Test (expected = EOFException.class)
+    public void testTruncatedTransfer() throws Exception {
+        int port = serverChannel.socket().getLocalPort();
+        try (SocketChannel sender = SocketChannel.open(new InetSocketAddress("localhost", port));
+             SocketChannel socket = serverChannel.accept()) {
+            ByteBuffer partial = ByteBuffer.allocate(Long.BYTES + 4).putLong(100).putInt(0);
+            partial.flip();
+            sender.write(partial);
+            sender.shutdownOutput();
+
+            DataTransfer.receive(socket, receivePath);
+        }
+    }
+}
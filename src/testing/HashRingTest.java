@@ -1,9 +1,13 @@
 package testing;
 
+import ecs.HashRange;
+import ecs.HashToken;
 import ecs.ServerNode;
 import ecs.HashRing;
 import org.junit.*;
 
+import java.util.Arrays;
+
 public class HashRingTest extends Assert {
 
     @Test()
@@ -84,6 +88,16 @@ public class HashRingTest extends Assert {
         assert (!node0.doesNodeReplicateKey("server0"));
     }
 
+    @Test
+    public void testEpochKeptBySerializeAndCopy() {
+        HashRing hashRing = new HashRing();
+        hashRing.addNode(new ServerNode("server0", "127.0.0.1", 9000));
+        hashRing.setEpoch(42);
+
+        assertEquals(42, new HashRing(hashRing.serialize()).getEpoch());
+        assertEquals(42, hashRing.copy().getEpoch());
+    }
+
     @Test
     public void testServerNodeEquality() {
         ServerNode node = new ServerNode("server0", "127.0.0.1", 9000);
@@ -183,4 +197,192 @@ public class HashRingTest extends Assert {
 
         assertArrayEquals(node0Controllers, expectedControllers);
     }
+
+    @Test
+    public void testHashTokenMatchesHex() {
+        for (String data : new String[]{"server0", "server1", "server2", "server3", "", "key"}) {
+            String hash = ServerNode.md5Hash(data);
+            assertEquals(hash, HashToken.of(data).toHex());
+            assertEquals(HashToken.of(data), HashToken.fromHex(hash));
+
+            // Numeric order must agree with the hex strings
+            String other = ServerNode.md5Hash(data + "x");
+            assertEquals(Integer.signum(hash.compareTo(other)),
+                    Integer.signum(HashToken.of(data).compareTo(HashToken.of(data + "x"))));
+        }
+    }
+
+    @Test
+    public void testHashRangeWrapsAroundRing() {
+        // Top bit set, which has to compare as unsigned
+        HashToken high = new HashToken(0xF000000000000000L, 0);
+        HashToken low = new HashToken(0x1000000000000000L, 0);
+        HashRange wrapping = new HashRange(high, low);
+        HashRange middle = new HashRange(low.next(), new HashToken(0x8000000000000000L, 0));
+
+        assertTrue(wrapping.contains(new HashToken(-1L, -1L)));
+        assertTrue(wrapping.contains(new HashToken(0, 0)));
+        assertTrue(wrapping.contains(high));
+        assertTrue(wrapping.contains(low));
+        assertFalse(wrapping.contains(low.next()));
+
+        assertTrue(middle.contains(new HashToken(0x8000000000000000L, 0)));
+        assertFalse(middle.contains(high));
+
+        HashRange top = new HashRange(new HashToken(0xF100000000000000L, 0), new HashToken(-1L, -1L));
+        assertTrue(wrapping.contains(top));
+        assertFalse(middle.overlaps(top));
+        assertTrue(wrapping.overlaps(new HashRange(new HashToken(0x0800000000000000L, 0), low.next())));
+        assertFalse(wrapping.contains(new HashRange(new HashToken(0x0800000000000000L, 0), low.next())));
+    }
+
+    @Test
+    public void testGetNodeForKey() {
+        HashRing hashRing = new HashRing();
+        for (int i = 0; i < 20; i++) {
+            hashRing.addNode(new ServerNode("server" + i, "127.0.0.1", 9000 + i));
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            String key = "key" + i;
+            ServerNode node = hashRing.getNodeForKey(key);
+
+            // Exactly one node is responsible, and it is the one returned
+            int responsible = 0;
+            for (ServerNode other : hashRing.getNodes()) {
+                if (other.isNodeResponsible(key)) responsible++;
+            }
+            assertEquals(1, responsible);
+            assertTrue(node.isNodeResponsible(key));
+        }
+
+        // A node's own name hashes to its position, so it is responsible for it
+        assertEquals("server7", hashRing.getNodeForKey("server7").getNodeName());
+        assertNull(new HashRing().getNodeForKey("key"));
+    }
+
+    @Test
+    public void testLookupAfterChanges() {
+        HashRing hashRing = new HashRing();
+        for (int i = 0; i < 5; i++) {
+            hashRing.addNode(new ServerNode("server" + i, "127.0.0.1", 9000 + i));
+        }
+
+        hashRing.removeNode("server3");
+        assertNull(hashRing.getNode("server3"));
+        assertFalse("server3".equals(hashRing.getNodeForKey("server3").getNodeName()));
+
+        HashRing copy = new HashRing(hashRing.serialize());
+        assertEquals(4, copy.getNodes().size());
+        assertEquals("server2", copy.getNode("server2").getNodeName());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(hashRing.getNodeForKey("key" + i).getNodeName(),
+                    copy.getNodeForKey("key" + i).getNodeName());
+            assertEquals(hashRing.getNodeForKey("key" + i).getNodeName(),
+                    hashRing.copy().getNodeForKey("key" + i).getNodeName());
+        }
+    }
+
+    private static HashRing virtualNodeRing(int nodeCount, int virtualNodes) {
+        HashRing hashRing = new HashRing();
+        hashRing.setVirtualNodes(virtualNodes);
+        for (int i = 0; i < nodeCount; i++) {
+            hashRing.addNode(new ServerNode("server" + i, "127.0.0.1", 9000 + i));
+        }
+        return hashRing;
+    }
+
+    @Test
+    public void testVirtualNodeRanges() {
+        HashRing hashRing = virtualNodeRing(5, 8);
+
+        for (int i = 0; i < 1000; i++) {
+            String key = "key" + i;
+            HashToken keyHash = HashToken.of(key);
+            ServerNode owner = hashRing.getNodeForKey(key);
+
+            // The key falls in exactly one node's ranges, the owner's
+            for (ServerNode node : hashRing.getNodes()) {
+                boolean inRanges = HashRange.anyContains(node.getNodeHashRanges(), keyHash);
+                assertEquals(node == owner, inRanges);
+                assertEquals(node == owner, node.isNodeResponsible(key));
+            }
+        }
+
+        for (ServerNode node : hashRing.getNodes()) {
+            assertTrue(node.getNodeHashRanges().size() > 1);
+            assertTrue(HashRange.fromHex(node.getNodeHashRange()).contains(node.getNodeToken()));
+        }
+
+        HashRing single = virtualNodeRing(1, 8);
+        assertEquals(1, single.getHashRanges("server0").size());
+        assertTrue(single.getNode("server0").isNodeResponsible("anything"));
+    }
+
+    @Test
+    public void testVirtualNodesSpreadLoad() {
+        int[] counts = new int[10];
+        HashRing hashRing = virtualNodeRing(10, 64);
+
+        for (int i = 0; i < 20000; i++) {
+            String name = hashRing.getNodeForKey("key" + i).getNodeName();
+            counts[Integer.parseInt(name.substring("server".length()))]++;
+        }
+
+        for (int count : counts) {
+            assertTrue(count > 1000 && count < 3000);
+        }
+    }
+
+    @Test
+    public void testVirtualNodeReplication() {
+        HashRing hashRing = virtualNodeRing(6, 4);
+
+        for (ServerNode node : hashRing.getNodes()) {
+            ServerNode[] replicators = hashRing.getReplicators(node.getNodeName(), 2);
+            ServerNode[] controllers = hashRing.getControllers(node.getNodeName(), 2);
+
+            // Replication is symmetric: a node's replicators list it as a controller
+            for (ServerNode replicator : replicators) {
+                if (replicator == null) continue;
+                assertFalse(replicator.equals(node));
+                assertTrue(Arrays.asList(hashRing.getControllers(replicator.getNodeName(), 2)).contains(node));
+            }
+            for (ServerNode controller : controllers) {
+                if (controller == null) continue;
+                assertTrue(Arrays.asList(hashRing.getReplicators(controller.getNodeName(), 2)).contains(node));
+            }
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            String key = "key" + i;
+            ServerNode owner = hashRing.getNodeForKey(key);
+            int replicas = 0;
+
+            for (ServerNode node : hashRing.getNodes()) {
+                if (node.doesNodeReplicateKey(key)) {
+                    replicas++;
+                    assertFalse(node.equals(owner));
+                    assertTrue(Arrays.asList(hashRing.getReplicators(owner.getNodeName(), 2)).contains(node));
+                }
+            }
+            assertEquals(2, replicas);
+        }
+    }
+
+    @Test
+    public void testVirtualNodesKeptBySerializeAndCopy() {
+        HashRing hashRing = virtualNodeRing(3, 16);
+
+        HashRing deserialized = new HashRing(hashRing.serialize());
+        HashRing copy = hashRing.copy();
+        assertEquals(16, deserialized.getVirtualNodes());
+        assertEquals(16, copy.getVirtualNodes());
+
+        for (int i = 0; i < 100; i++) {
+            String name = hashRing.getNodeForKey("key" + i).getNodeName();
+            assertEquals(name, deserialized.getNodeForKey("key" + i).getNodeName());
+            assertEquals(name, copy.getNodeForKey("key" + i).getNodeName());
+        }
+    }
 }
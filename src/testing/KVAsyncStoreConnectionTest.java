@@ -0,0 +1,209 @@
+package testing;
+
+import app_kvServer.IKVServer;
+import app_kvServer.KVClientListener;
+import app_kvServer.KVServer;
+import client.KVAsyncStoreConnection;
+import ecs.HashRing;
+import ecs.HashToken;
+import ecs.ServerNode;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import shared.messages.KVMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test the asynchronous client against client listeners of mocked KVServers
+ */
+public class KVAsyncStoreConnectionTest extends Assert {
+    private final List<KVClientListener> listeners = new ArrayList<>();
+    private KVAsyncStoreConnection client;
+
+    @After
+    public void close() {
+        if (client != null) client.disconnect();
+        for (KVClientListener listener : listeners) {
+            listener.close();
+        }
+    }
+
+    private KVServer mockServer(boolean responsible) {
+        KVServer server = Mockito.mock(KVServer.class);
+        Mockito.when(server.getStatus()).thenReturn(IKVServer.ServerStatus.ACTIVE);
+        Mockito.when(server.getMaxConnections()).thenReturn(16);
+        Mockito.when(server.isNodeResponsible(Mockito.any(HashToken.class))).thenReturn(responsible);
+        return server;
+    }
+
+    private KVClientListener listen(KVServer server) {
+        try {
+            KVClientListener listener = new KVClientListener(server, 0, 1, 2, 16);
+            new Thread(listener).start();
+            listeners.add(listener);
+            return listener;
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Test
+    public void testConcurrentRequests() throws Exception {
+        KVServer server = mockServer(true);
+        Mockito.when(server.getKV(Mockito.anyString(), Mockito.any(HashToken.class)))
+                .thenAnswer(invocation -> "value" + invocation.getArgument(0));
+        KVClientListener listener = listen(server);
+
+        client = new KVAsyncStoreConnection("localhost", listener.getLocalPort());
+        client.connect();
+
+        // Several threads share the client, with all their requests in flight at once
+        List<List<CompletableFuture<KVMessage>>> futures = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            List<CompletableFuture<KVMessage>> threadFutures = new ArrayList<>();
+            futures.add(threadFutures);
+            int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    threadFutures.add(client.getAsync("key" + thread + "_" + i));
+                }
+            }));
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+
+        for (int t = 0; t < 4; t++) {
+            for (int i = 0; i < 500; i++) {
+                KVMessage res = futures.get(t).get(i).get(10, TimeUnit.SECONDS);
+                assertEquals(KVMessage.StatusType.GET_SUCCESS, res.getStatus());
+                assertEquals("valuekey" + t + "_" + i, res.getValue());
+            }
+        }
+    }
+
+    @Test
+    public void testRedirectedToResponsibleServer() throws Exception {
+        KVServer responsibleServer = mockServer(true);
+        Mockito.when(responsibleServer.putKV(Mockito.anyString(), Mockito.any(HashToken.class),
+                Mockito.anyString(), Mockito.any())).thenReturn(false);
+        KVClientListener responsibleListener = listen(responsibleServer);
+
+        HashRing hashRing = new HashRing();
+        hashRing.addNode(new ServerNode("server1", "localhost", responsibleListener.getLocalPort()));
+        hashRing.setEpoch(5);
+        Mockito.when(responsibleServer.getMetadata()).thenReturn(hashRing);
+
+        KVServer otherServer = mockServer(false);
+        Mockito.when(otherServer.getMetadata()).thenReturn(hashRing);
+        KVClientListener otherListener = listen(otherServer);
+
+        client = new KVAsyncStoreConnection("localhost", otherListener.getLocalPort());
+        client.connect();
+
+        KVMessage res = client.putAsync("foo", "bar").get(10, TimeUnit.SECONDS);
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS, res.getStatus());
+        Mockito.verify(responsibleServer).putKV(Mockito.eq("foo"), Mockito.any(HashToken.class),
+                Mockito.eq("bar"), Mockito.any());
+
+        // Later requests go straight to the responsible server
+        client.putAsync("fizz", "buzz").get(10, TimeUnit.SECONDS);
+        Mockito.verify(otherServer, Mockito.times(1)).isNodeResponsible(Mockito.any(HashToken.class));
+    }
+
+    @Test
+    public void testHedgedGet() throws Exception {
+        HashRing hashRing = new HashRing();
+        List<KVServer> servers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            KVServer server = mockServer(true);
+            Mockito.when(server.getKV(Mockito.anyString(), Mockito.any(HashToken.class))).thenReturn("fast");
+            Mockito.when(server.getMetadata()).thenReturn(hashRing);
+            servers.add(server);
+            hashRing.addNode(new ServerNode("server" + i, "localhost", listen(server).getLocalPort()));
+        }
+        hashRing.setEpoch(1);
+
+        // The server responsible for foo is slow to read it
+        ServerNode primary = hashRing.getNodeForKey(HashToken.of("foo"));
+        KVServer slowServer = servers.get(Integer.parseInt(primary.getNodeName().substring("server".length())));
+        Mockito.when(slowServer.getKV(Mockito.eq("foo"), Mockito.any(HashToken.class))).thenAnswer(invocation -> {
+            Thread.sleep(1000);
+            return "slow";
+        });
+
+        client = new KVAsyncStoreConnection("localhost", primary.getNodePort());
+        client.connect();
+
+        // Learn the metadata before hedging
+        client.getAsync("bar").get(10, TimeUnit.SECONDS);
+        client.setHedging(95, 50);
+
+        KVMessage res = client.getAsync("foo").get(10, TimeUnit.SECONDS);
+        assertEquals(KVMessage.StatusType.GET_SUCCESS, res.getStatus());
+        assertEquals("fast", res.getValue());
+        assertEquals(1, client.getHedgesSent());
+        assertEquals(1, client.getHedgesWon());
+
+        // The slow server's answer to the losing GET arrives first, and is dropped
+        res = client.putAsync("foo", "new").get(10, TimeUnit.SECONDS);
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS, res.getStatus());
+
+        // Fast GETs are not hedged
+        client.getAsync("bar").get(10, TimeUnit.SECONDS);
+        assertEquals(1, client.getHedgesSent());
+    }
+
+    @Test
+    public void testRequestsDuringDisconnectComplete() throws Exception {
+        KVServer server = mockServer(true);
+        Mockito.when(server.getKV(Mockito.anyString(), Mockito.any(HashToken.class))).thenReturn("value");
+        KVClientListener listener = listen(server);
+
+        for (int round = 0; round < 20; round++) {
+            client = new KVAsyncStoreConnection("localhost", listener.getLocalPort());
+            client.connect();
+
+            List<CompletableFuture<KVMessage>> futures = new ArrayList<>();
+            Thread submitter = new Thread(() -> {
+                for (int i = 0; i < 200; i++) {
+                    futures.add(client.getAsync("key" + i));
+                }
+            });
+            submitter.start();
+            client.disconnect();
+            submitter.join();
+
+            // Each request is either answered or failed, none is left waiting
+            for (CompletableFuture<KVMessage> future : futures) {
+                try {
+                    future.get(5, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    // Expected for requests submitted after the disconnect
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUnreachableServerFails() throws Exception {
+        KVClientListener listener = listen(mockServer(true));
+
+        client = new KVAsyncStoreConnection("localhost", listener.getLocalPort());
+        client.connect();
+        listener.close();
+
+        try {
+            client.getAsync("foo").get(10, TimeUnit.SECONDS);
+            fail("Request to a closed server completed");
+        } catch (ExecutionException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package testing;
+
+import app_kvServer.IKVServer.CacheStrategy;
+import app_kvServer.KVCache;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class KVCacheTest extends Assert {
+
+    private static KVCache filledCache(CacheStrategy strategy) {
+        KVCache cache = new KVCache(strategy, 3);
+        cache.put("a", "1", null);
+        cache.put("b", "2", null);
+        cache.put("c", "3", null);
+        return cache;
+    }
+
+    @Test
+    public void testLRUEviction() {
+        KVCache cache = filledCache(CacheStrategy.LRU);
+
+        // Touch a, so b is the least recently used
+        cache.get("a");
+        cache.put("d", "4", null);
+
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertEquals(1, cache.getEvictions());
+    }
+
+    @Test
+    public void testFIFOEviction() {
+        KVCache cache = filledCache(CacheStrategy.FIFO);
+
+        // Reads don't change the insertion order
+        cache.get("a");
+        cache.put("d", "4", null);
+
+        assertFalse(cache.contains("a"));
+        assertTrue(cache.contains("b"));
+    }
+
+    @Test
+    public void testLFUEviction() {
+        KVCache cache = filledCache(CacheStrategy.LFU);
+
+        cache.get("a");
+        cache.get("a");
+        cache.get("c");
+        cache.put("d", "4", null);
+
+        assertFalse(cache.contains("b"));
+
+        // d has only been used once, so it goes before c
+        cache.put("e", "5", null);
+        assertFalse(cache.contains("d"));
+        assertTrue(cache.contains("a"));
+        assertTrue(cache.contains("c"));
+    }
+
+    @Test
+    public void testLFUEvictionAfterInvalidate() {
+        KVCache cache = filledCache(CacheStrategy.LFU);
+
+        cache.get("b");
+        cache.get("b");
+        cache.get("c");
+
+        // Invalidating the only key used once leaves c as the least used
+        cache.invalidate("a");
+        cache.put("d", "4", null);
+        cache.get("d");
+        cache.get("d");
+        cache.put("e", "5", null);
+
+        assertFalse(cache.contains("c"));
+        assertTrue(cache.contains("b"));
+        assertTrue(cache.contains("d"));
+        assertTrue(cache.contains("e"));
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        KVCache cache = filledCache(CacheStrategy.LRU);
+
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("foo"));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testExpiredEntry() {
+        KVCache cache = new KVCache(CacheStrategy.LRU, 3);
+        cache.put("foo", "bar", System.currentTimeMillis() - 1);
+        cache.put("fizz", "buzz", null);
+
+        assertNull(cache.get("foo"));
+
+        cache.removeExpired(System.currentTimeMillis());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testStaleFillIgnored() {
+        KVCache cache = new KVCache(CacheStrategy.LRU, 3);
+
+        long stamp = cache.stamp();
+        cache.invalidate("foo");
+        cache.fill("foo", "stale", null, stamp);
+        assertFalse(cache.contains("foo"));
+
+        cache.fill("foo", "bar", null, cache.stamp());
+        assertEquals("bar", cache.get("foo"));
+    }
+
+    /**
+     * Read a key the way KVServer.getKV() does, filling the cache on a miss
+     */
+    private static String read(KVCache cache, Map<String, String> store, String key) {
+        String value = cache.get(key);
+        if (value != null) return value;
+
+        long stamp = cache.stamp();
+        value = store.get(key);
+        if (value != null) cache.fill(key, value, null, stamp);
+        return value;
+    }
+
+    @Test
+    public void testPutsFinishingOutOfOrder() {
+        KVCache cache = new KVCache(CacheStrategy.LRU, 3);
+        Map<String, String> store = new HashMap<>();
+
+        // Two puts reach the store in one order and the cache in the other
+        store.put("foo", "first");
+        store.put("foo", "second");
+        cache.invalidate("foo");
+        cache.invalidate("foo");
+
+        assertEquals(store.get("foo"), read(cache, store, "foo"));
+        assertEquals(store.get("foo"), read(cache, store, "foo"));
+    }
+
+    @Test
+    public void testPutRacingDelete() {
+        KVCache cache = new KVCache(CacheStrategy.LRU, 3);
+        Map<String, String> store = new HashMap<>();
+
+        // The delete finishes in between the put's store write and its cache update
+        store.put("foo", "bar");
+        store.remove("foo");
+        cache.invalidate("foo");
+        cache.invalidate("foo");
+
+        assertNull(read(cache, store, "foo"));
+        assertFalse(cache.contains("foo"));
+
+        // A read overlapping a put does not cache the value it replaced
+        store.put("foo", "old");
+        long stamp = cache.stamp();
+        String old = store.get("foo");
+        store.put("foo", "new");
+        cache.invalidate("foo");
+        cache.fill("foo", old, null, stamp);
+
+        assertEquals("new", read(cache, store, "foo"));
+    }
+}
@@ -0,0 +1,397 @@
+package testing;
+
+import app_kvServer.IKVServer;
+import app_kvServer.KVClientListener;
+import app_kvServer.KVServer;
+import app_kvServer.RequestForwarder;
+import ecs.HashRing;
+import ecs.HashToken;
+import ecs.ServerNode;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import shared.Connection;
+import shared.messages.JsonKVMessage;
+import shared.messages.KVMessage;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test the non-blocking client front end against a mocked KVServer
+ */
+public class KVClientListenerTest extends Assert {
+    private KVServer server;
+    private KVClientListener listener;
+
+    @Before
+    public void init() throws Exception {
+        server = Mockito.mock(KVServer.class);
+        Mockito.when(server.getStatus()).thenReturn(IKVServer.ServerStatus.ACTIVE);
+        Mockito.when(server.getMaxConnections()).thenReturn(2);
+        Mockito.when(server.isNodeResponsible(Mockito.anyString())).thenReturn(true);
+        Mockito.when(server.isNodeResponsible(Mockito.any(HashToken.class))).thenReturn(true);
+        Mockito.when(server.getKV(Mockito.eq("foo"), Mockito.any(HashToken.class))).thenReturn("bar");
+
+        HashRing hashRing = new HashRing();
+        hashRing.addNode(new ServerNode("server0", "localhost", 50000));
+        hashRing.setEpoch(5);
+        Mockito.when(server.getMetadata()).thenReturn(hashRing);
+
+        listener = new KVClientListener(server, 0, 1, 2, 16);
+        new Thread(listener).start();
+    }
+
+    @After
+    public void close() {
+        listener.close();
+    }
+
+    private TestConnection connect() throws IOException {
+        return new TestConnection(new Socket("localhost", listener.getLocalPort()));
+    }
+
+    private static JsonKVMessage getRequest(String key) {
+        JsonKVMessage req = new JsonKVMessage(KVMessage.StatusType.GET);
+        req.setKey(key);
+        return req;
+    }
+
+    @Test
+    public void testGet() throws Exception {
+        TestConnection conn = connect();
+
+        conn.sendMessage(getRequest("foo"));
+        JsonKVMessage res = conn.receiveMessage();
+
+        assertEquals(KVMessage.StatusType.GET_SUCCESS, res.getStatus());
+        assertEquals("bar", res.getValue());
+
+        conn.disconnect();
+    }
+
+    @Test
+    public void testBinaryProtocol() throws Exception {
+        TestConnection conn = connect();
+        conn.setProtocolVersion(Connection.BINARY_PROTOCOL_VERSION);
+
+        conn.sendMessage(getRequest("foo"));
+        JsonKVMessage res = conn.receiveMessage();
+
+        assertEquals(Connection.BINARY_PROTOCOL_VERSION, conn.getReceivedProtocolVersion());
+        assertEquals(KVMessage.StatusType.GET_SUCCESS, res.getStatus());
+        assertEquals("bar", res.getValue());
+
+        conn.disconnect();
+    }
+
+    @Test
+    public void testMetadataOnlyWhenStale() throws Exception {
+        TestConnection conn = connect();
+
+        JsonKVMessage req = getRequest("foo");
+        req.setEpoch(4L);
+        conn.sendMessage(req);
+        assertNotNull(conn.receiveMessage().getMetadata());
+
+        req.setEpoch(5L);
+        conn.sendMessage(req);
+        assertNull(conn.receiveMessage().getMetadata());
+
+        // A client with a current epoch still needs the ring to find the right server
+        Mockito.when(server.isNodeResponsible(HashToken.of("fizz"))).thenReturn(false);
+        req.setKey("fizz");
+        conn.sendMessage(req);
+        JsonKVMessage res = conn.receiveMessage();
+        assertEquals(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, res.getStatus());
+        assertNotNull(res.getMetadata());
+
+        conn.disconnect();
+    }
+
+    @Test
+    public void testRequestWithoutKey() throws Exception {
+        TestConnection conn = connect();
+
+        // The connection keeps serving requests after a malformed one
+        conn.sendMessage(getRequest(null));
+        conn.sendMessage(getRequest("foo"));
+        assertEquals(KVMessage.StatusType.BAD_REQUEST, conn.receiveMessage().getStatus());
+        assertEquals("bar", conn.receiveMessage().getValue());
+
+        JsonKVMessage req = new JsonKVMessage(KVMessage.StatusType.MGET);
+        List<JsonKVMessage> entries = new ArrayList<>();
+        entries.add(getRequest(null));
+        entries.add(getRequest("foo"));
+        req.setEntries(entries);
+        conn.sendMessage(req);
+
+        JsonKVMessage res = conn.receiveMessage();
+        assertEquals(KVMessage.StatusType.BATCH_RESULT, res.getStatus());
+        assertEquals(KVMessage.StatusType.BAD_REQUEST, res.getEntries().get(0).getStatus());
+        assertEquals("bar", res.getEntries().get(1).getValue());
+
+        conn.disconnect();
+    }
+
+    @Test
+    public void testServerErrorOnUnexpectedException() throws Exception {
+        Mockito.when(server.isNodeResponsible(HashToken.of("crash"))).thenThrow(new IllegalStateException("crash"));
+
+        TestConnection conn = connect();
+
+        conn.sendMessage(getRequest("crash"));
+        conn.sendMessage(getRequest("foo"));
+        assertEquals(KVMessage.StatusType.SERVER_ERROR, conn.receiveMessage().getStatus());
+        assertEquals("bar", conn.receiveMessage().getValue());
+
+        conn.disconnect();
+    }
+
+    @Test
+    public void testPipelinedRequestsInOrder() throws Exception {
+        TestConnection conn = connect();
+
+        // Send everything before reading, so requests queue up on the server
+        for (int i = 0; i < 10; i++) {
+            conn.sendMessage(getRequest("key" + i));
+        }
+
+        for (int i = 0; i < 10; i++) {
+            JsonKVMessage res = conn.receiveMessage();
+            assertEquals("key" + i, res.getKey());
+        }
+
+        conn.disconnect();
+    }
+
+    @Test
+    public void testRequestIdEchoed() throws Exception {
+        TestConnection conn = connect();
+        conn.setProtocolVersion(Connection.BINARY_PROTOCOL_VERSION);
+
+        JsonKVMessage req = getRequest("foo");
+        req.setRequestId(42);
+        conn.sendMessage(req);
+        assertEquals(42, conn.receiveMessage().getRequestId());
+
+        conn.setProtocolVersion(Connection.PROTOCOL_VERSION);
+        req.setRequestId(43);
+        conn.sendMessage(req);
+        assertEquals(43, conn.receiveMessage().getRequestId());
+
+        conn.disconnect();
+    }
+
+    @Test
+    public void testWriteLockedRanges() throws Exception {
+        // Only the keys being handed over are locked
+        Mockito.when(server.isWriteLocked(HashToken.of("fizz"))).thenReturn(true);
+        Mockito.when(server.putKV(Mockito.anyString(), Mockito.any(HashToken.class),
+                Mockito.anyString(), Mockito.any())).thenReturn(false);
+
+        TestConnection conn = connect();
+
+        JsonKVMessage req = new JsonKVMessage(KVMessage.StatusType.PUT);
+        req.setKey("foo");
+        req.setValue("value");
+        conn.sendMessage(req);
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS, conn.receiveMessage().getStatus());
+
+        req.setKey("fizz");
+        conn.sendMessage(req);
+        assertEquals(KVMessage.StatusType.SERVER_WRITE_LOCK, conn.receiveMessage().getStatus());
+
+        conn.disconnect();
+    }
+
+    @Test
+    public void testForwardedRequests() throws Exception {
+        // Another server, responsible for fizz but not for foo
+        KVServer otherServer = Mockito.mock(KVServer.class);
+        Mockito.when(otherServer.getStatus()).thenReturn(IKVServer.ServerStatus.ACTIVE);
+        Mockito.when(otherServer.getMaxConnections()).thenReturn(2);
+        Mockito.when(otherServer.isNodeResponsible(HashToken.of("fizz"))).thenReturn(true);
+        Mockito.when(otherServer.getKV(Mockito.eq("fizz"), Mockito.any(HashToken.class))).thenReturn("buzz");
+        HashRing hashRing = server.getMetadata();
+        Mockito.when(otherServer.getMetadata()).thenReturn(hashRing);
+        Mockito.when(otherServer.isForwardingRequests()).thenReturn(true);
+
+        KVClientListener otherListener = new KVClientListener(otherServer, 0, 1, 2, 16);
+        new Thread(otherListener).start();
+
+        ServerNode otherNode = new ServerNode("server1", "localhost", otherListener.getLocalPort());
+        RequestForwarder forwarder = new RequestForwarder(2);
+        Mockito.when(server.isNodeResponsible(HashToken.of("fizz"))).thenReturn(false);
+        Mockito.when(server.isNodeResponsible(HashToken.of("foo"))).thenReturn(false);
+        Mockito.when(server.isForwardingRequests()).thenReturn(true);
+        Mockito.when(server.forwardRequest(Mockito.any(JsonKVMessage.class), Mockito.any(HashToken.class)))
+                .thenAnswer(invocation -> forwarder.forward(otherNode, invocation.getArgument(0), 5L));
+
+        TestConnection conn = connect();
+
+        // A client with a stale ring gets the answer and the current epoch
+        JsonKVMessage req = getRequest("fizz");
+        req.setEpoch(4L);
+        conn.sendMessage(req);
+        JsonKVMessage res = conn.receiveMessage();
+        assertEquals(KVMessage.StatusType.GET_SUCCESS, res.getStatus());
+        assertEquals("buzz", res.getValue());
+        assertNull(res.getMetadata());
+        assertEquals(Long.valueOf(5), res.getEpoch());
+
+        // The ring is only sent to clients that ask for it
+        req.setEpoch(null);
+        conn.sendMessage(req);
+        res = conn.receiveMessage();
+        assertEquals("buzz", res.getValue());
+        assertNotNull(res.getMetadata());
+
+        // Forwarded requests are not forwarded again, so the client is sent the ring
+        conn.sendMessage(getRequest("foo"));
+        res = conn.receiveMessage();
+        assertEquals(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, res.getStatus());
+        assertNotNull(res.getMetadata());
+        Mockito.verify(otherServer, Mockito.never()).forwardRequest(Mockito.any(), Mockito.any());
+
+        conn.disconnect();
+        forwarder.close();
+        otherListener.close();
+    }
+
+    @Test
+    public void testForwardsLimitedPerNode() throws Exception {
+        // Another server, which is slow to read the key
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        KVServer otherServer = Mockito.mock(KVServer.class);
+        Mockito.when(otherServer.getStatus()).thenReturn(IKVServer.ServerStatus.ACTIVE);
+        Mockito.when(otherServer.getMaxConnections()).thenReturn(4);
+        Mockito.when(otherServer.isNodeResponsible(Mockito.any(HashToken.class))).thenReturn(true);
+        Mockito.when(otherServer.getKV(Mockito.eq("fizz"), Mockito.any(HashToken.class))).thenAnswer(invocation -> {
+            reading.countDown();
+            release.await(10, TimeUnit.SECONDS);
+            return "buzz";
+        });
+
+        KVClientListener otherListener = new KVClientListener(otherServer, 0, 1, 2, 16);
+        new Thread(otherListener).start();
+        ServerNode otherNode = new ServerNode("server1", "localhost", otherListener.getLocalPort());
+        RequestForwarder forwarder = new RequestForwarder(1);
+
+        try {
+            Thread slowForward = new Thread(() -> forwarder.forward(otherNode, getRequest("fizz"), 5L));
+            slowForward.start();
+            assertTrue(reading.await(10, TimeUnit.SECONDS));
+
+            // The server already has as many forwards as allowed
+            assertNull(forwarder.forward(otherNode, getRequest("fizz"), 5L));
+
+            release.countDown();
+            slowForward.join();
+            Mockito.verify(otherServer, Mockito.times(1)).getKV(Mockito.eq("fizz"), Mockito.any(HashToken.class));
+        } finally {
+            forwarder.close();
+            otherListener.close();
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testBatchOperations() throws Exception {
+        List<List<JsonKVMessage>> batches = new ArrayList<>();
+        Mockito.doAnswer(invocation -> {
+            List<JsonKVMessage> writes = invocation.getArgument(0);
+            for (JsonKVMessage write : writes) {
+                write.setStatus(write.getValue() == null
+                        ? KVMessage.StatusType.DELETE_SUCCESS
+                        : KVMessage.StatusType.PUT_SUCCESS);
+            }
+            batches.add(new ArrayList<>(writes));
+            return null;
+        }).when(server).putKVBatch(Mockito.anyList());
+        Mockito.when(server.isNodeResponsible(HashToken.of("fizz"))).thenReturn(false);
+
+        TestConnection conn = connect();
+        conn.setProtocolVersion(Connection.BINARY_PROTOCOL_VERSION);
+
+        JsonKVMessage req = new JsonKVMessage(KVMessage.StatusType.MPUT);
+        List<JsonKVMessage> entries = new ArrayList<>();
+        entries.add(getRequest("foo"));
+        entries.add(getRequest("fizz"));
+        entries.add(getRequest("baz"));
+        for (JsonKVMessage entry : entries) {
+            entry.setStatus(null);
+            entry.setValue("value");
+        }
+        entries.get(2).setValue("null");
+        req.setEntries(entries);
+
+        conn.sendMessage(req);
+        JsonKVMessage res = conn.receiveMessage();
+
+        assertEquals(KVMessage.StatusType.BATCH_RESULT, res.getStatus());
+        assertEquals(3, res.getEntries().size());
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS, res.getEntries().get(0).getStatus());
+        assertEquals(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, res.getEntries().get(1).getStatus());
+        assertEquals(KVMessage.StatusType.DELETE_SUCCESS, res.getEntries().get(2).getStatus());
+        assertNotNull(res.getMetadata());
+
+        // Both writes the server is responsible for go in a single batch
+        assertEquals(1, batches.size());
+        assertEquals(2, batches.get(0).size());
+
+        req = new JsonKVMessage(KVMessage.StatusType.MGET);
+        req.setEntries(entries.subList(0, 1));
+        conn.sendMessage(req);
+        res = conn.receiveMessage();
+
+        assertEquals(KVMessage.StatusType.BATCH_RESULT, res.getStatus());
+        assertEquals(KVMessage.StatusType.GET_SUCCESS, res.getEntries().get(0).getStatus());
+        assertEquals("bar", res.getEntries().get(0).getValue());
+
+        conn.disconnect();
+    }
+
+    @Test
+    public void testConnectionLimit() throws Exception {
+        TestConnection first = connect();
+        TestConnection second = connect();
+
+        // Make sure both connections were accepted before opening the third
+        first.sendMessage(getRequest("foo"));
+        first.receiveMessage();
+        second.sendMessage(getRequest("foo"));
+        second.receiveMessage();
+
+        TestConnection third = connect();
+        JsonKVMessage res = third.receiveMessage();
+        assertEquals(KVMessage.StatusType.SERVER_ERROR, res.getStatus());
+
+        first.disconnect();
+        second.disconnect();
+        third.disconnect();
+    }
+
+    private static class TestConnection extends Connection {
+
+        public TestConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.hostname = "localhost";
+            this.port = socket.getPort();
+
+            this.input = socket.getInputStream();
+            this.output = socket.getOutputStream();
+        }
+
+        public byte getReceivedProtocolVersion() {
+            return receivedProtocolVersion;
+        }
+    }
+}
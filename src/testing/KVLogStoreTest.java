@@ -0,0 +1,153 @@
+package testing;
+
+import ecs.HashRing;
+import ecs.ServerNode;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import store.KVLogStore;
+import store.KeyExpiredException;
+import store.KeyInvalidException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+public class KVLogStoreTest extends Assert {
+    private static KVLogStore kvStore;
+    private static final String serverName = "testlog";
+
+    // Small enough that a few puts roll over to a new segment
+    private static final long segmentSize = 256;
+
+    @BeforeClass
+    public static void init() throws IOException {
+        kvStore = new KVLogStore(serverName, segmentSize);
+    }
+
+    @Before
+    public void clear() throws Exception {
+        kvStore.clear();
+    }
+
+    private static int segmentCount() {
+        File[] files = new File(kvStore.getStoragePath()).listFiles();
+        assertNotNull(files);
+        return files.length;
+    }
+
+    @Test(expected = KeyInvalidException.class)
+    public void testInvalidGetKey() throws Exception {
+        kvStore.get("foo");
+    }
+
+    @Test(expected = KeyInvalidException.class)
+    public void testInvalidDeleteKey() throws Exception {
+        kvStore.delete("foo");
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+        assertFalse(kvStore.put("foo", "bar", null));
+        assertEquals("bar", kvStore.get("foo"));
+    }
+
+    @Test
+    public void testPutUpdate() throws Exception {
+        kvStore.put("foo", "bar", null);
+        assertTrue(kvStore.put("foo", "fizz", null));
+        assertEquals("fizz", kvStore.get("foo"));
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        kvStore.put("foo", "bar", null);
+        kvStore.delete("foo");
+
+        assertFalse(kvStore.exists("foo"));
+    }
+
+    @Test(expected = KeyExpiredException.class)
+    public void testExpiredKey() throws Exception {
+        kvStore.put("foo", "bar", System.currentTimeMillis() - 1);
+        kvStore.get("foo");
+    }
+
+    @Test
+    public void testCheckKeyExpiry() throws Exception {
+        kvStore.put("foo", "bar", System.currentTimeMillis() - 1);
+        kvStore.put("fizz", "buzz", null);
+
+        assertTrue(kvStore.checkKeyExpiry());
+        assertFalse(kvStore.exists("foo"));
+        assertTrue(kvStore.exists("fizz"));
+    }
+
+    @Test
+    public void testReloadFromSegments() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            kvStore.put("key" + i, "value" + i, null);
+        }
+        kvStore.put("key3", "updated", null);
+        kvStore.delete("key5");
+
+        KVLogStore reloadedStore = new KVLogStore(serverName, segmentSize);
+
+        assertEquals("updated", reloadedStore.get("key3"));
+        assertEquals("value19", reloadedStore.get("key19"));
+        assertFalse(reloadedStore.exists("key5"));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        // Overwrite the same keys many times, so most records are dead
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 5; i++) {
+                kvStore.put("key" + i, "value" + round, null);
+            }
+        }
+        kvStore.delete("key4");
+
+        int segmentsBefore = segmentCount();
+        kvStore.compact();
+
+        assertTrue(segmentCount() < segmentsBefore);
+        assertEquals("value9", kvStore.get("key0"));
+        assertFalse(kvStore.exists("key4"));
+
+        // The merged segment has to replay to the same state
+        KVLogStore reloadedStore = new KVLogStore(serverName, segmentSize);
+        assertEquals("value9", reloadedStore.get("key3"));
+        assertFalse(reloadedStore.exists("key4"));
+    }
+
+    @Test
+    public void testSplitAndCleanUpByHashRanges() throws Exception {
+        HashRing hashRing = new HashRing();
+        hashRing.setVirtualNodes(4);
+        hashRing.addNode(new ServerNode("server0", "127.0.0.1", 9000));
+        hashRing.addNode(new ServerNode("server1", "127.0.0.1", 9001));
+
+        for (int i = 0; i < 50; i++) {
+            kvStore.put("key" + i, "value" + i, null);
+        }
+
+        String sendPath = kvStore.splitData(hashRing.getHashRanges("server1"));
+        List<String> sent = Files.readAllLines(Paths.get(sendPath));
+        Files.delete(Paths.get(sendPath));
+
+        kvStore.sendDataCleanup(hashRing.getHashRanges("server0"));
+
+        // Every key is either sent or kept, never both
+        int kept = 0;
+        for (int i = 0; i < 50; i++) {
+            boolean responsible = hashRing.getNode("server0").isNodeResponsible("key" + i);
+            assertEquals(responsible, kvStore.exists("key" + i));
+            if (responsible) kept++;
+        }
+        assertEquals(50 - kept, sent.size());
+    }
+}
@@ -1,5 +1,9 @@
 package testing;
 
+import ecs.HashRange;
+import ecs.HashRing;
+import ecs.HashToken;
+import ecs.ServerNode;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -8,14 +12,22 @@ import store.DataFormatException;
 import store.KVSimpleStore;
 import store.KVStore;
 import store.KeyInvalidException;
+import store.KeyValue;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class KVStoreTest extends Assert {
     private static KVStore kvStore;
@@ -92,6 +104,48 @@ public class KVStoreTest extends Assert {
         assertFalse(exists);
     }
 
+    @Test
+    public void testUpdateAndDeleteKeepOtherKeys() throws Exception{
+        kvStore.put("foo", "bar", null);
+        kvStore.put("fizz", "buzz", null);
+        kvStore.put("hello", "world", null);
+
+        // Changing the length of an earlier line moves every line after it
+        kvStore.put("foo", "a much longer value than before", null);
+        assertEquals("buzz", kvStore.get("fizz"));
+        assertEquals("world", kvStore.get("hello"));
+
+        kvStore.delete("fizz");
+        assertEquals("a much longer value than before", kvStore.get("foo"));
+        assertEquals("world", kvStore.get("hello"));
+    }
+
+    @Test
+    public void testIndexBuiltFromExistingFile() throws Exception{
+        kvStore.put("foo", "bar", null);
+        kvStore.put("fizz", "buzz", null);
+
+        KVStore reloadedStore = new KVSimpleStore("test");
+
+        assertTrue(reloadedStore.exists("foo"));
+        assertEquals("buzz", reloadedStore.get("fizz"));
+    }
+
+    @Test
+    public void testNonAsciiValuesReloaded() throws Exception {
+        kvStore.put("caf\u00e9", "cr\u00e8me br\u00fbl\u00e9e", null);
+        kvStore.put("kanji", "\u6f22\u5b57", null);
+        kvStore.put("emoji", "\ud83d\ude00", null);
+
+        // Multi-byte characters change the byte length of the line
+        kvStore.put("caf\u00e9", "\u00e9", null);
+
+        KVStore reloadedStore = new KVSimpleStore("test");
+        assertEquals("\u00e9", reloadedStore.get("caf\u00e9"));
+        assertEquals("\u6f22\u5b57", reloadedStore.get("kanji"));
+        assertEquals("\ud83d\ude00", reloadedStore.get("emoji"));
+    }
+
     @Test (expected = FileNotFoundException.class)
     public void testFileDeletion() throws Exception{
         File file = new File(kvStore.getStoragePath());
@@ -101,25 +155,201 @@ public class KVStoreTest extends Assert {
             String value = "bar";
             kvStore.put(key, value, null);
         }finally {
-            file.createNewFile();
+            file.mkdir();
         }
     }
 
     @Test (expected = DataFormatException.class)
     public void testInvalidDataFormat() throws Exception{
+        kvStore.put("foo", "bar", null);
+
         String garbage = "garbage";
-        Files.writeString(
-                Paths.get(kvStore.getStoragePath()),
-                garbage,
-                StandardCharsets.ISO_8859_1,
-                StandardOpenOption.CREATE,
-                StandardOpenOption.APPEND);
+        for (File bucketFile : new File(kvStore.getStoragePath()).listFiles()) {
+            Files.writeString(
+                    bucketFile.toPath(),
+                    garbage,
+                    StandardCharsets.ISO_8859_1,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        }
+
+        // The index is built from disk, so the corruption is only seen by a store
+        // which loads the file after it was written
+        KVStore reloadedStore = new KVSimpleStore("test");
 
         String key = "foo";
-        boolean exists = kvStore.exists(key);
+        boolean exists = reloadedStore.exists(key);
         assert (!exists);
     }
 
+    @Test
+    public void testSplitAndCleanUpByHashRanges() throws Exception {
+        HashRing hashRing = new HashRing();
+        hashRing.setVirtualNodes(4);
+        hashRing.addNode(new ServerNode("server0", "127.0.0.1", 9000));
+        hashRing.addNode(new ServerNode("server1", "127.0.0.1", 9001));
+
+        for (int i = 0; i < 50; i++) {
+            kvStore.put("key" + i, "value" + i, null);
+        }
+
+        String sendPath = kvStore.splitData(hashRing.getHashRanges("server1"));
+        List<String> sent = Files.readAllLines(Paths.get(sendPath));
+        Files.delete(Paths.get(sendPath));
 
+        kvStore.sendDataCleanup(hashRing.getHashRanges("server0"));
 
+        // Every key is either sent or kept, never both
+        int kept = 0;
+        for (int i = 0; i < 50; i++) {
+            boolean responsible = hashRing.getNode("server0").isNodeResponsible("key" + i);
+            assertEquals(responsible, kvStore.exists("key" + i));
+            if (responsible) kept++;
+        }
+        assertEquals(50 - kept, sent.size());
+    }
+
+    @Test
+    public void testWholeBucketsHandedOff() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            kvStore.put("key" + i, "value" + i, null);
+        }
+
+        // Ranges on bucket boundaries, so no bucket is split
+        List<HashRange> lowerHalf = Collections.singletonList(
+                HashRange.fromHex(new String[]{"0".repeat(32), "7" + "f".repeat(31)}));
+        List<HashRange> upperHalf = Collections.singletonList(
+                HashRange.fromHex(new String[]{"8" + "0".repeat(31), "f".repeat(32)}));
+
+        String sendPath = kvStore.splitData(lowerHalf);
+        List<String> sent = Files.readAllLines(Paths.get(sendPath));
+        Files.delete(Paths.get(sendPath));
+
+        kvStore.sendDataCleanup(upperHalf);
+
+        for (File bucketFile : new File(kvStore.getStoragePath()).listFiles()) {
+            assertTrue(bucketFile.getName().compareTo("bucket_80") >= 0);
+        }
+
+        int kept = 0;
+        for (int i = 0; i < 50; i++) {
+            boolean upper = HashRange.anyContains(upperHalf, HashToken.of("key" + i));
+            assertEquals(upper, kvStore.exists("key" + i));
+            if (upper) kept++;
+        }
+        assertEquals(50 - kept, sent.size());
+    }
+
+    @Test
+    public void testReadsInterleavedWithAppends() throws Exception {
+        // Keys in a single bucket, so its file grows across several mapped windows
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; keys.size() < 120; i++) {
+            if (HashToken.of("key" + i).getHigh() >>> 56 == 0) {
+                keys.add("key" + i);
+            }
+        }
+
+        String value = "v".repeat(20 * 1024);
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                kvStore.put(keys.get(i), value + i, null);
+                assertEquals(value + i, kvStore.get(keys.get(i)));
+                assertEquals(value + i / 2, kvStore.get(keys.get(i / 2)));
+            }
+
+            for (int i = 0; i < keys.size() - 1; i += 7) {
+                kvStore.put(keys.get(i), "updated" + i, null);
+                assertEquals("updated" + i, kvStore.get(keys.get(i)));
+                assertEquals(value + (i + 1), kvStore.get(keys.get(i + 1)));
+            }
+        } finally {
+            // Nothing replicates the writes, so they would pile up in the write log
+            kvStore.getWriteLog().truncate(kvStore.getWriteLog().getLastSequence());
+        }
+    }
+
+    @Test
+    public void testStorageFileMovedIntoBuckets() throws Exception {
+        Path storageFile = Paths.get(kvStore.getDataDir(), "legacy_store.txt");
+        Files.writeString(storageFile,
+                new KeyValue("foo", "bar", null).getJsonKV() + new KeyValue("fizz", "buzz", null).getJsonKV(),
+                StandardCharsets.UTF_8);
+
+        KVStore legacyStore = new KVSimpleStore("legacy");
+        try {
+            assertFalse(Files.exists(storageFile));
+            assertEquals("bar", legacyStore.get("foo"));
+            assertEquals("buzz", legacyStore.get("fizz"));
+        } finally {
+            legacyStore.clear();
+        }
+    }
+
+    @Test
+    public void testConcurrentWrites() throws Exception {
+        int threads = 8;
+        int keysPerThread = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> writers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            writers.add(executor.submit(() -> {
+                for (int i = 0; i < keysPerThread; i++) {
+                    String key = "thread" + thread + "key" + i;
+                    kvStore.put(key, "first", null);
+                    kvStore.put(key, "value" + i, null);
+                    assertEquals("value" + i, kvStore.get(key));
+                }
+                return null;
+            }));
+        }
+
+        for (Future<?> writer : writers) {
+            writer.get();
+        }
+        executor.shutdown();
+
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < keysPerThread; i++) {
+                assertEquals("value" + i, kvStore.get("thread" + t + "key" + i));
+            }
+        }
+    }
+
+    @Test
+    public void testCheckKeyExpiry() throws Exception {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 300; i++) {
+            // Interleave expired keys with live ones, so lines after each removal move
+            kvStore.put("expired" + i, "value" + i, now - 1);
+            kvStore.put("live" + i, "value" + i, i % 2 == 0 ? null : now + 60000);
+        }
+
+        assertEquals(450, kvStore.getExpiryIndex().size());
+        assertTrue(kvStore.checkKeyExpiry());
+        assertFalse(kvStore.checkKeyExpiry());
+
+        assertEquals(150, kvStore.getExpiryIndex().size());
+        assertTrue(kvStore.getExpiryIndex().getExpiredTotal() >= 300);
+        for (int i = 0; i < 300; i++) {
+            assertFalse(kvStore.exists("expired" + i));
+            assertEquals("value" + i, kvStore.get("live" + i));
+        }
+
+        // Clearing a key's TTL takes it out of the index
+        kvStore.put("live1", "fizz", null);
+        assertEquals(149, kvStore.getExpiryIndex().size());
+    }
+
+    @Test
+    public void testExpiryIndexRebuiltOnLoad() throws Exception {
+        kvStore.put("foo", "bar", System.currentTimeMillis() + 60000);
+        kvStore.put("fizz", "buzz", null);
+
+        KVStore reloadedStore = new KVSimpleStore("test");
+        assertEquals(1, reloadedStore.getExpiryIndex().size());
+        assertNotNull(reloadedStore.getExpiryIndex().nextExpiryTime());
+    }
 }
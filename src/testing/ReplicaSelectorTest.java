@@ -0,0 +1,108 @@
+package testing;
+
+import client.ReadPolicy;
+import client.ReplicaSelector;
+import ecs.HashRing;
+import ecs.HashToken;
+import ecs.ServerNode;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Test choosing which server a client reads a key from
+ */
+public class ReplicaSelectorTest extends Assert {
+    private HashRing hashRing;
+    private HashToken key;
+    private ServerNode primary;
+    private List<ServerNode> replicas;
+
+    @Before
+    public void init() {
+        hashRing = new HashRing();
+        for (int i = 0; i < 5; i++) {
+            hashRing.addNode(new ServerNode("server" + i, "localhost", 50000 + i));
+        }
+
+        key = HashToken.of("foo");
+        primary = hashRing.getNodeForKey(key);
+        replicas = hashRing.getReplicasForKey(key, ServerNode.NUM_REPLICAS);
+    }
+
+    @Test
+    public void testPrimary() {
+        ReplicaSelector selector = new ReplicaSelector(ReadPolicy.PRIMARY);
+
+        for (int i = 0; i < 10; i++) {
+            assertSame(primary, selector.select(hashRing, key));
+        }
+    }
+
+    @Test
+    public void testRoundRobin() {
+        ReplicaSelector selector = new ReplicaSelector(ReadPolicy.ROUND_ROBIN);
+
+        Set<ServerNode> selected = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            selected.add(selector.select(hashRing, key));
+        }
+
+        // Each of the three servers holding the key is read once
+        assertEquals(3, selected.size());
+        assertTrue(selected.contains(primary));
+        assertTrue(selected.containsAll(replicas));
+    }
+
+    @Test
+    public void testLeastOutstanding() {
+        ReplicaSelector selector = new ReplicaSelector(ReadPolicy.LEAST_OUTSTANDING);
+
+        // Every server is tried before any has a latency
+        for (ServerNode node : replicas) {
+            selector.onRequestSent(node);
+            selector.onResponse(node, 1000);
+        }
+        assertSame(primary, selector.select(hashRing, key));
+
+        // The slow server is avoided
+        selector.onRequestSent(primary);
+        selector.onResponse(primary, 1000000);
+        ServerNode selected = selector.select(hashRing, key);
+        assertTrue(replicas.contains(selected));
+
+        // As is a server with requests in flight
+        selector.onRequestSent(selected);
+        selector.onRequestSent(selected);
+        ServerNode next = selector.select(hashRing, key);
+        assertTrue(replicas.contains(next));
+        assertNotSame(selected, next);
+
+        selector.onRequestFailed(selected);
+        selector.onRequestFailed(selected);
+        assertSame(selected, selector.select(hashRing, key));
+    }
+
+    @Test
+    public void testRetainForgetsDepartedServers() {
+        ReplicaSelector selector = new ReplicaSelector(ReadPolicy.LEAST_OUTSTANDING);
+
+        for (ServerNode node : replicas) {
+            selector.onRequestSent(node);
+            selector.onResponse(node, 1000);
+        }
+        selector.onRequestSent(primary);
+        selector.onResponse(primary, 1000000);
+        assertTrue(replicas.contains(selector.select(hashRing, key)));
+
+        // A server that leaves and rejoins has no latency, so it is tried again
+        hashRing.removeNode(primary.getNodeName());
+        selector.retain(hashRing);
+        hashRing.addNode(new ServerNode(primary.getNodeName(), "localhost", primary.getNodePort()));
+        assertEquals(primary, selector.select(hashRing, key));
+    }
+}
@@ -0,0 +1,92 @@
+package testing;
+
+import app_kvServer.KVReplicationReceiver;
+import app_kvServer.KVServer;
+import app_kvServer.ReplicationChannel;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Test a replication channel against a receiver applying to a mocked KVServer
+ */
+public class ReplicationChannelTest extends Assert {
+    private KVServer server;
+    private ServerSocket serverSocket;
+    private ReplicationChannel channel;
+
+    @Before
+    public void init() throws Exception {
+        server = Mockito.mock(KVServer.class);
+        Mockito.when(server.replicateRecords(Mockito.anyList(), Mockito.anyString())).thenReturn(true);
+
+        serverSocket = new ServerSocket(0);
+        channel = ReplicationChannel.connect("localhost", serverSocket.getLocalPort());
+
+        ReplicationChannel receiverChannel = new ReplicationChannel(serverSocket.accept());
+        new Thread(new KVReplicationReceiver(server, receiverChannel)).start();
+
+        channel.sendHello("server0");
+    }
+
+    @After
+    public void close() throws Exception {
+        channel.close();
+        serverSocket.close();
+    }
+
+    @Test
+    public void testRecordsAppliedAndAcknowledged() throws Exception {
+        Mockito.when(server.getAppliedSequence("server0")).thenReturn(-1L);
+
+        channel.sendRecords(Arrays.asList("10 P{\"key\":\"a\"}", "11 D{\"key\":\"b\"}"));
+        channel.flush();
+
+        assertEquals(11, channel.readAck());
+        Mockito.verify(server).replicateRecords(Arrays.asList("P{\"key\":\"a\"}", "D{\"key\":\"b\"}"), "server0");
+        Mockito.verify(server).setAppliedSequence("server0", 11);
+    }
+
+    @Test
+    public void testResentRecordsSkipped() throws Exception {
+        Mockito.when(server.getAppliedSequence("server0")).thenReturn(11L);
+
+        channel.sendRecords(Arrays.asList("10 P{\"key\":\"a\"}", "11 D{\"key\":\"b\"}", "12 U{\"key\":\"c\"}"));
+        channel.flush();
+
+        assertEquals(12, channel.readAck());
+        Mockito.verify(server).replicateRecords(Collections.singletonList("U{\"key\":\"c\"}"), "server0");
+    }
+
+    @Test
+    public void testEncodedRecordsApplied() throws Exception {
+        Mockito.when(server.getAppliedSequence("server0")).thenReturn(-1L);
+
+        // A chunk of a file, whatever its line separators
+        byte[] chunk = "{\"key\":\"a\"}\r\n{\"key\":\"b\"}\n".getBytes(StandardCharsets.UTF_8);
+        channel.sendRecords(chunk, chunk.length);
+        channel.flush();
+
+        assertEquals(-1, channel.readAck());
+        Mockito.verify(server).replicateRecords(Arrays.asList("{\"key\":\"a\"}", "{\"key\":\"b\"}"), "server0");
+    }
+
+    @Test
+    public void testPlainKeyValuesApplied() throws Exception {
+        Mockito.when(server.getAppliedSequence("server0")).thenReturn(5L);
+
+        channel.sendRecords(Collections.singletonList("{\"key\":\"a\"}"));
+        channel.flush();
+
+        // Snapshots carry no sequence numbers, so the last applied one is unchanged
+        assertEquals(5, channel.readAck());
+        Mockito.verify(server).replicateRecords(Collections.singletonList("{\"key\":\"a\"}"), "server0");
+    }
+}
@@ -0,0 +1,94 @@
+package testing;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import store.KeyValue;
+import store.WriteLog;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class WriteLogTest extends Assert {
+    private Path path;
+    private WriteLog writeLog;
+
+    @Before
+    public void init() throws IOException {
+        path = Files.createTempFile("writeLog", ".txt");
+        writeLog = new WriteLog(path.toString());
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    @Test
+    public void testAppendKeepsEveryEntry() {
+        long first = writeLog.append(new KeyValue("foo", "bar", null), WriteLog.Action.PUT);
+        long second = writeLog.append(new KeyValue("foo", "fizz", null), WriteLog.Action.UPDATE);
+        long third = writeLog.append(new KeyValue("foo"), WriteLog.Action.DELETE);
+
+        assertEquals(first + 1, second);
+        assertEquals(second + 1, third);
+        assertEquals(third, writeLog.getLastSequence());
+
+        List<String> lines = writeLog.read(first - 1, 10);
+        assertEquals(3, lines.size());
+        assertEquals(first, WriteLog.parseSequence(lines.get(0)));
+        assertEquals(WriteLog.Action.UPDATE, WriteLog.parseAction(WriteLog.parseRecord(lines.get(1))));
+        assertEquals(WriteLog.Action.DELETE, WriteLog.parseAction(WriteLog.parseRecord(lines.get(2))));
+    }
+
+    @Test
+    public void testReadAfterSequence() {
+        long first = writeLog.append(new KeyValue("a", "1", null), WriteLog.Action.PUT);
+        for (int i = 0; i < 9; i++) {
+            writeLog.append(new KeyValue("a", "1", null), WriteLog.Action.UPDATE);
+        }
+
+        List<String> lines = writeLog.read(first + 4, 3);
+        assertEquals(3, lines.size());
+        assertEquals(first + 5, WriteLog.parseSequence(lines.get(0)));
+        assertEquals(first + 7, WriteLog.parseSequence(lines.get(2)));
+
+        assertTrue(writeLog.read(writeLog.getLastSequence(), 10).isEmpty());
+    }
+
+    @Test
+    public void testTruncate() {
+        long first = writeLog.append(new KeyValue("a", "1", null), WriteLog.Action.PUT);
+        for (int i = 0; i < 9; i++) {
+            writeLog.append(new KeyValue("a", String.valueOf(i), null), WriteLog.Action.UPDATE);
+        }
+
+        writeLog.truncate(first + 5);
+
+        // Truncated entries are skipped, and the rest can still be read
+        List<String> lines = writeLog.read(first - 1, 10);
+        assertEquals(4, lines.size());
+        assertEquals(first + 6, WriteLog.parseSequence(lines.get(0)));
+
+        long next = writeLog.append(new KeyValue("b", "2", null), WriteLog.Action.PUT);
+        assertEquals(first + 10, next);
+        assertEquals(next, WriteLog.parseSequence(writeLog.read(next - 1, 1).get(0)));
+
+        writeLog.truncate(next);
+        assertTrue(writeLog.read(first - 1, 10).isEmpty());
+    }
+
+    @Test
+    public void testSequenceSurvivesRestart() {
+        writeLog.append(new KeyValue("a", "1", null), WriteLog.Action.PUT);
+        long last = writeLog.append(new KeyValue("a", "2", null), WriteLog.Action.UPDATE);
+
+        WriteLog reopened = new WriteLog(path.toString());
+        assertEquals(last, reopened.getLastSequence());
+        assertEquals(2, reopened.read(last - 2, 10).size());
+        assertEquals(last + 1, reopened.append(new KeyValue("a"), WriteLog.Action.DELETE));
+    }
+}